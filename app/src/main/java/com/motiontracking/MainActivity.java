@@ -2,14 +2,13 @@ package com.motiontracking;
 
 import android.Manifest;
 import android.content.Context;
+import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.databinding.DataBindingUtil;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
-import android.graphics.Color;
 import android.graphics.ImageFormat;
 import android.graphics.Matrix;
-import android.graphics.Paint;
 import android.graphics.RectF;
 import android.graphics.SurfaceTexture;
 import android.hardware.camera2.CameraAccessException;
@@ -23,6 +22,7 @@ import android.hardware.camera2.params.StreamConfigurationMap;
 import android.media.Image;
 import android.media.ImageReader;
 import android.os.Bundle;
+import android.os.Debug;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Trace;
@@ -35,19 +35,63 @@ import android.view.Surface;
 import android.view.TextureView;
 import android.view.Window;
 import android.view.WindowManager;
+import android.widget.CheckBox;
+import android.widget.CompoundButton;
 import android.widget.Toast;
 
+import com.motiontracking.analytics.AnalyticsConfig;
+import com.motiontracking.analytics.CountingLine;
+import com.motiontracking.analytics.HeatmapOverlay;
+import com.motiontracking.analytics.OccupancyHeatmap;
+import com.motiontracking.analytics.TrackAnalytics;
+import com.motiontracking.analytics.Zone;
 import com.motiontracking.databinding.ActivityMainBinding;
+import com.motiontracking.detection.CascadeFrame;
+import com.motiontracking.detection.DetectionCascade;
+import com.motiontracking.detection.IntervalGate;
+import com.motiontracking.detection.MotionGate;
+import com.motiontracking.detection.ProgressiveScan;
+import com.motiontracking.detection.TileResultMerger;
+import com.motiontracking.detection.TrackGate;
+import com.motiontracking.network.InferenceServer;
+import com.motiontracking.network.TrackStreamServer;
+import com.motiontracking.recording.CaptureWriter;
+import com.motiontracking.recording.PreEventRecorder;
+import com.motiontracking.recording.TrackLogWriter;
+import com.motiontracking.tflite.ClassFilter;
 import com.motiontracking.tflite.Classifier;
+import com.motiontracking.tflite.DetectorSlot;
+import com.motiontracking.tflite.InterpreterConfigTuner;
+import com.motiontracking.tflite.ModelRegistry;
+import com.motiontracking.tflite.ModelSpec;
+import com.motiontracking.tflite.RemoteClassifier;
 import com.motiontracking.tflite.TFLiteObjectDetectionAPIModel;
+import com.motiontracking.tracking.AppearanceFrame;
+import com.motiontracking.tracking.EgoMotionEstimator;
 import com.motiontracking.tracking.MultiBoxTracker;
+import com.motiontracking.tracking.TrackSnapshot;
+import com.motiontracking.utils.AllocationMeter;
+import com.motiontracking.utils.ImageResampler;
 import com.motiontracking.utils.ImageUtils;
+import com.motiontracking.utils.LumaPyramid;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.LinkedList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class MainActivity extends AppCompatActivity implements ImageReader.OnImageAvailableListener {
 
@@ -61,14 +105,41 @@ public class MainActivity extends AppCompatActivity implements ImageReader.OnIma
     //
     protected int previewWidth = 0;
     protected int previewHeight = 0;
-    private Handler handler;
-    private HandlerThread handlerThread;
     private boolean isProcessingFrame = false;
     private byte[][] yuvBytes = new byte[3][];
     private int[] rgbBytes = null;
     private int yRowStride;
-    private Runnable postInferenceCallback;
-    private Runnable imageConverter;
+    private int uvRowStride;
+    private int uvPixelStride;
+    // The camera image being processed, closed once the next one may be acquired.
+    private Image processingImage;
+    private final Runnable imageConverter =
+            new Runnable() {
+                @Override
+                public void run() {
+                    ImageUtils.convertYUV420ToARGB8888(
+                            yuvBytes[0],
+                            yuvBytes[1],
+                            yuvBytes[2],
+                            previewWidth,
+                            previewHeight,
+                            yRowStride,
+                            uvRowStride,
+                            uvPixelStride,
+                            rgbBytes);
+                }
+            };
+    private final Runnable postInferenceCallback =
+            new Runnable() {
+                @Override
+                public void run() {
+                    if (processingImage != null) {
+                        processingImage.close();
+                        processingImage = null;
+                    }
+                    isProcessingFrame = false;
+                }
+            };
 
     /** Conversion from screen rotation to JPEG orientation. */
     private static final SparseIntArray ORIENTATIONS = new SparseIntArray();
@@ -81,31 +152,172 @@ public class MainActivity extends AppCompatActivity implements ImageReader.OnIma
         ORIENTATIONS.append(Surface.ROTATION_270, 180);
     }
     //
-    // Configuration values for the prepackaged SSD model.
-    private static final int TF_OD_API_INPUT_SIZE = 300;
-    private static final boolean TF_OD_API_IS_QUANTIZED = true;
-    private static final String TF_OD_API_MODEL_FILE = "detect.tflite";
-    private static final String TF_OD_API_LABELS_FILE = "file:///android_asset/labelmap.txt";
-    private static final DetectorMode MODE = DetectorMode.TF_OD_API;
-    // Minimum detection confidence to track a detection.
-    private static final float MINIMUM_CONFIDENCE_TF_OD_API = 0.5f;
     private static final boolean MAINTAIN_ASPECT = false;
+    // Detection models are trained on bilinearly resized images.
+    private static final ImageResampler.Filter CROP_FILTER = ImageResampler.Filter.BILINEAR;
+    private static final int RESAMPLER_THREADS = 2;
+    // Tiles and regions are cropped on this pixel grid, see ImageResampler.Geometry#setRegion.
+    private static final int CROP_GRID = 8;
     private Integer sensorOrientation;
 
-    private Classifier detector;
-
-    private Bitmap rgbFrameBitmap = null;
-    private Bitmap croppedBitmap = null;
-    private Bitmap cropCopyBitmap = null;
-
-    private boolean computingDetection = false;
+    // Detection models, see assets/models.json.
+    private ModelRegistry modelRegistry;
+    // The model of the primary stage; a running activity switches to the registered model named in
+    // this extra, for example:
+    // adb shell am start -n com.motiontracking/.MainActivity --es com.motiontracking.MODEL ssd_mobilenet_v1_quant
+    public static final String EXTRA_MODEL = "com.motiontracking.MODEL";
+    private ModelSpec primaryModel;
+    // The primary stage runs on every frame it can keep up with, the optional secondary stage runs
+    // a second model on its own thread next to it.
+    private DetectionStage primaryStage;
+    private DetectionStage secondaryStage;
+
+    // Detection cascade thresholds: a full detection at least every CASCADE_MAX_SKIPPED_FRAMES
+    // frames and on every frame while something is tracked; otherwise only where blocks of
+    // MOTION_BLOCK_SAMPLES x MOTION_BLOCK_SAMPLES luminance samples, taken every MOTION_SAMPLE_STEP
+    // pixels, changed by more than MOTION_PIXEL_THRESHOLD on average.
+    private static final int CASCADE_MAX_SKIPPED_FRAMES = 30;
+    private static final int MOTION_SAMPLE_STEP = 4;
+    private static final int MOTION_BLOCK_SAMPLES = 8;
+    private static final int MOTION_PIXEL_THRESHOLD = 12;
+    private static final float MOTION_MIN_MOVING_FRACTION = 0.005f;
+    private static final float MOTION_REGION_PADDING = 0.25f;
+    // Motion regions are grown to at least this fraction of the frame, and dropped in favour of the
+    // full frame once they cover more than MAX_REGION_AREA of it.
+    private static final float MIN_REGION_SIZE = 0.5f;
+    private static final float MAX_REGION_AREA = 0.6f;
+    private static final int CASCADE_STATS_INTERVAL = 300;
+    // Bytes allocated per frame by each stage of the frame path, logged every
+    // ALLOCATION_LOG_INTERVAL frames when ALLOCATION_METERING is on; see AllocationMeter.
+    private static final boolean ALLOCATION_METERING = false;
+    private static final int ALLOCATION_LOG_INTERVAL = 300;
+    private static final int STAGE_ANALYZE = 0;
+    private static final int STAGE_CONVERT = 1;
+    private static final int STAGE_CROP = 2;
+    private static final int STAGE_DETECT = 3;
+    private static final int STAGE_TRACK = 4;
+    private static final int STAGE_DRAW = 5;
+    private final AllocationMeter allocationMeter =
+            new AllocationMeter(
+                    ALLOCATION_METERING
+                            ? new RuntimeAllocationCounter()
+                            : AllocationMeter.Counter.NONE,
+                    "analyze", "convert", "crop", "detect", "track", "draw");
+    private final DetectionCascade cascade =
+            new DetectionCascade(
+                    new IntervalGate(CASCADE_MAX_SKIPPED_FRAMES),
+                    new TrackGate(1),
+                    new MotionGate(
+                            MOTION_SAMPLE_STEP,
+                            MOTION_BLOCK_SAMPLES,
+                            MOTION_PIXEL_THRESHOLD,
+                            MOTION_MIN_MOVING_FRACTION,
+                            MOTION_REGION_PADDING));
+    private final CascadeFrame cascadeFrame = new CascadeFrame();
+    // Downscaled luminance of the current frame, shared by the motion gate, the ego-motion estimate
+    // and the pre-event recorder; the coarsest level is a quarter of the frame in each dimension.
+    private static final int LUMA_PYRAMID_LEVELS = 2;
+    private final LumaPyramid lumaPyramid = new LumaPyramid(LUMA_PYRAMID_LEVELS);
+    private final float[] detectionRegion = new float[4];
+    private final RectF detectionRegionRect = new RectF();
+    // Frames the cascade sends to the full detector are scanned progressively: SCAN_TILES_PER_FRAME
+    // detector runs per frame on the windows around tracks and on a rotating grid of overlapping
+    // tiles, see ProgressiveScan. Results of earlier tiles fade out over SCAN_MAX_RESULT_AGE_NANOS.
+    private static final boolean PROGRESSIVE_SCAN = true;
+    private static final int SCAN_COLUMNS = 3;
+    private static final int SCAN_ROWS = 2;
+    private static final float SCAN_OVERLAP = 0.15f;
+    private static final int SCAN_TILES_PER_FRAME = 1;
+    private static final float SCAN_TRACK_MARGIN = 0.5f;
+    private static final long SCAN_MAX_RESULT_AGE_NANOS = 1_000_000_000L;
+    private final ProgressiveScan progressiveScan =
+            new ProgressiveScan(
+                    SCAN_COLUMNS, SCAN_ROWS, SCAN_OVERLAP, SCAN_TILES_PER_FRAME, SCAN_TRACK_MARGIN);
+    private final float[] scanTiles = new float[4 * SCAN_TILES_PER_FRAME];
+
+    // Labels of the checked class checkboxes. Replaced as a whole from the UI thread and compiled
+    // into a ClassFilter by each detection stage.
+    private volatile Set<String> selectedLabels = Collections.emptySet();
+    private static final String[] CLASS_LABELS = {"person", "bicycle", "car", "truck", "bus", "train"};
+
+    private ImageResampler imageResampler;
 
     private long timestamp = 0;
 
-    private Matrix frameToCropTransform;
-    private Matrix cropToFrameTransform;
-
     private MultiBoxTracker tracker;
+    // Shift of the image between processed frames when the camera shakes or pans, from rows and
+    // columns sampled every EGO_MOTION_SAMPLE_STEP pixels; tracks are predicted to move with it.
+    private static final int EGO_MOTION_SAMPLE_STEP = 2;
+    private static final int EGO_MOTION_MAX_SHIFT = 64;
+    private final EgoMotionEstimator egoMotion =
+            new EgoMotionEstimator(EGO_MOTION_SAMPLE_STEP, EGO_MOTION_MAX_SHIFT);
+    // Every published set of tracks goes to the track log in the app's files, see TrackLogWriter,
+    // when the activity is started with this extra set:
+    // adb shell am start -n com.motiontracking/.MainActivity --ez com.motiontracking.TRACK_LOG true
+    public static final String EXTRA_TRACK_LOG = "com.motiontracking.TRACK_LOG";
+    private static final String TRACK_LOG_DIRECTORY = "tracks";
+    private static final int TRACK_LOG_SEGMENT_BYTES = 4 << 20;
+    private static final int TRACK_LOG_MAX_SEGMENTS = 8;
+    private volatile TrackLogWriter trackLog;
+    // Opens and closes the track log and the raw capture, which list, delete and map their files,
+    // and saves the heatmap, off the UI thread and one after another.
+    private final ExecutorService fileExecutor = Executors.newSingleThreadExecutor();
+    // Line crossings and zone counts, see assets/analytics.json. Guarded by onStageResults.
+    private TrackAnalytics analytics;
+    // Results of both stages and the frames they were detected in, guarded by onStageResults.
+    private final List<Classifier.Recognition> mergedResults = new ArrayList<>();
+    private final List<AppearanceFrame> mergedAppearances = new ArrayList<>();
+    private long analyticsUpdates;
+    private static final int ANALYTICS_LOG_INTERVAL = 100;
+    // Where objects of all classes spent the last minutes, drawn under the boxes and saved to
+    // HEATMAP_FILE on pause.
+    private static final int HEATMAP_COLUMNS = 64;
+    private static final int HEATMAP_ROWS = 48;
+    private static final long HEATMAP_HALF_LIFE_NANOS = 10 * 60 * 1_000_000_000L;
+    private static final long HEATMAP_REFRESH_NANOS = 1_000_000_000L;
+    private static final String HEATMAP_FILE = "heatmap.bin";
+    private final OccupancyHeatmap heatmap =
+            new OccupancyHeatmap(HEATMAP_COLUMNS, HEATMAP_ROWS, HEATMAP_HALF_LIFE_NANOS);
+    // Seconds of downscaled frames around the appearance of a checked class, saved as clips.
+    private static final String CLIP_DIRECTORY = "clips";
+    private static final int CLIP_DOWNSCALE = 4;
+    private static final int CLIP_BUFFER_BYTES = 8 << 20;
+    private static final long CLIP_PRE_EVENT_NANOS = 5_000_000_000L;
+    private static final long CLIP_POST_EVENT_NANOS = 5_000_000_000L;
+    private volatile PreEventRecorder preEventRecorder;
+    // Raw camera frames for replay, recorded when the activity is started with this extra set:
+    // adb shell am start -n com.motiontracking/.MainActivity --ez com.motiontracking.RAW_CAPTURE true
+    public static final String EXTRA_RAW_CAPTURE = "com.motiontracking.RAW_CAPTURE";
+    private static final String CAPTURE_DIRECTORY = "capture";
+    private static final int CAPTURE_CHUNK_BYTES = 64 << 20;
+    private static final int CAPTURE_MAX_CHUNKS = 32;
+    private static final int CAPTURE_BUFFERED_FRAMES = 8;
+    private static final boolean CAPTURE_COMPRESSED = true;
+    private volatile CaptureWriter captureWriter;
+    // Tracks streamed to other apps on the device, on the loopback port given with this extra:
+    // adb shell am start -n com.motiontracking/.MainActivity --ei com.motiontracking.TRACK_STREAM_PORT 5150
+    public static final String EXTRA_TRACK_STREAM_PORT = "com.motiontracking.TRACK_STREAM_PORT";
+    private static final int TRACK_STREAM_BUFFER_BYTES = 256 << 10;
+    private volatile TrackStreamServer trackStream;
+    // The primary model served to other processes on the loopback port given with this extra:
+    // adb shell am start -n com.motiontracking/.MainActivity --ei com.motiontracking.INFERENCE_SERVE_PORT 5151
+    public static final String EXTRA_INFERENCE_SERVE_PORT = "com.motiontracking.INFERENCE_SERVE_PORT";
+    private static final int INFERENCE_MAX_BATCH = 4;
+    private static final long INFERENCE_MAX_LATENCY_NANOS = 5_000_000L;
+    // Loads, serves and closes the model off the UI thread and one after another, so a server
+    // started by onResume only binds the port once the one stopped by onPause has let go of it.
+    private final ExecutorService inferenceServerExecutor = Executors.newSingleThreadExecutor();
+    // Only touched by inferenceServerExecutor.
+    private TFLiteObjectDetectionAPIModel servedModel;
+    private InferenceServer inferenceServer;
+    // The primary stage runs on a model served on this loopback port instead of its own:
+    // adb shell am start -n com.motiontracking/.MainActivity --ei com.motiontracking.INFERENCE_SERVER_PORT 5151
+    public static final String EXTRA_INFERENCE_SERVER_PORT = "com.motiontracking.INFERENCE_SERVER_PORT";
+    private static final long INFERENCE_RECONNECT_NANOS = 1_000_000_000L;
+    private final ByteBuffer[] capturePlanes = new ByteBuffer[3];
+    private final int[] captureRowStrides = new int[3];
+    private final int[] capturePixelStrides = new int[3];
+    private volatile OverlayRenderScheduler renderScheduler;
 //    private String cameraId;
     private Size previewSize = new Size(640, 480);
     private HandlerThread backgroundThread;
@@ -215,14 +427,124 @@ public class MainActivity extends AppCompatActivity implements ImageReader.OnIma
         binding = DataBindingUtil.setContentView(this, R.layout.activity_main);
         binding.texture.setSurfaceTextureListener(textureListener);
 
+        final CompoundButton.OnCheckedChangeListener classSelectionListener =
+                new CompoundButton.OnCheckedChangeListener() {
+                    @Override
+                    public void onCheckedChanged(final CompoundButton button, final boolean checked) {
+                        updateSelectedLabels();
+                    }
+                };
+        for (final CheckBox checkBox : getClassCheckBoxes()) {
+            checkBox.setOnCheckedChangeListener(classSelectionListener);
+        }
+        updateSelectedLabels();
+
+        try {
+            modelRegistry = ModelRegistry.load(this);
+            primaryModel = modelRegistry.getPrimary();
+            selectModel(getIntent());
+        } catch (final IOException e) {
+            e.printStackTrace();
+            Toast toast =
+                    Toast.makeText(
+                            getApplicationContext(), "Classifier could not be initialized", Toast.LENGTH_SHORT);
+            toast.show();
+            finish();
+        }
+
+        List<CountingLine> lines = Collections.emptyList();
+        List<Zone> zones = Collections.emptyList();
+        try {
+            final AnalyticsConfig analyticsConfig = AnalyticsConfig.load(this);
+            lines = analyticsConfig.getLines();
+            zones = analyticsConfig.getZones();
+        } catch (final IOException e) {
+            Log.e(TAG, "Counting lines and zones could not be loaded", e);
+        }
+        analytics = new TrackAnalytics(lines, zones);
+    }
+    @Override
+    protected void onNewIntent(final Intent intent) {
+        super.onNewIntent(intent);
+        selectModel(intent);
+    }
+
+    /** Switches to the model named in the intent, if any. */
+    private void selectModel(final Intent intent) {
+        final String name = intent.getStringExtra(EXTRA_MODEL);
+        if (name != null && !switchPrimaryModel(name)) {
+            Log.w(TAG, "No model named " + name + ", keeping " + primaryModel.getName());
+        }
     }
+
     @Override
     protected void onResume() {
         super.onResume();
         Log.d(TAG, "onResume");
-        handlerThread = new HandlerThread("inference");
-        handlerThread.start();
-        handler = new Handler(handlerThread.getLooper());
+        if (ALLOCATION_METERING) {
+            startAllocationCounting();
+        }
+        final ModelSpec secondary = modelRegistry.getSecondary();
+        // Side by side, each model gets its own half of the cores.
+        final int cores = Runtime.getRuntime().availableProcessors();
+        final int maxThreads = secondary != null ? Math.max(1, cores / 2) : cores;
+        imageResampler = new ImageResampler(RESAMPLER_THREADS);
+        if (getIntent().getBooleanExtra(EXTRA_TRACK_LOG, false)) {
+            fileExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        trackLog = new TrackLogWriter(
+                                new File(getFilesDir(), TRACK_LOG_DIRECTORY),
+                                TRACK_LOG_SEGMENT_BYTES,
+                                TRACK_LOG_MAX_SEGMENTS);
+                    } catch (final IOException e) {
+                        Log.e(TAG, "Track log could not be opened", e);
+                    }
+                }
+            });
+        }
+        if (getIntent().getBooleanExtra(EXTRA_RAW_CAPTURE, false)) {
+            fileExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        captureWriter = new CaptureWriter(
+                                new File(getFilesDir(), CAPTURE_DIRECTORY),
+                                CAPTURE_CHUNK_BYTES,
+                                CAPTURE_MAX_CHUNKS,
+                                CAPTURE_BUFFERED_FRAMES,
+                                CAPTURE_COMPRESSED);
+                    } catch (final IOException e) {
+                        Log.e(TAG, "Raw capture could not be started", e);
+                    }
+                }
+            });
+        }
+        final int trackStreamPort = getIntent().getIntExtra(EXTRA_TRACK_STREAM_PORT, 0);
+        if (trackStreamPort > 0) {
+            try {
+                trackStream = new TrackStreamServer(
+                        new InetSocketAddress(InetAddress.getLoopbackAddress(), trackStreamPort),
+                        TRACK_STREAM_BUFFER_BYTES,
+                        TrackStreamServer.SlowSubscriberPolicy.COALESCE);
+            } catch (final IOException e) {
+                Log.e(TAG, "Track stream could not be started", e);
+            }
+        }
+        final int inferenceServePort = getIntent().getIntExtra(EXTRA_INFERENCE_SERVE_PORT, 0);
+        if (inferenceServePort > 0) {
+            startInferenceServer(primaryModel, inferenceServePort, maxThreads);
+        }
+        primaryStage = new DetectionStage(
+                "inference",
+                primaryModel,
+                getIntent().getIntExtra(EXTRA_INFERENCE_SERVER_PORT, 0));
+        primaryStage.start(maxThreads);
+        if (secondary != null) {
+            secondaryStage = new DetectionStage("inference-secondary", secondary, 0);
+            secondaryStage.start(maxThreads);
+        }
         startBackgroundThread();
         if (binding.texture.isAvailable()) {
             openCamera();
@@ -235,17 +557,162 @@ public class MainActivity extends AppCompatActivity implements ImageReader.OnIma
     protected void onPause() {
         Log.e(TAG, "onPause");
         stopBackgroundThread();
-        handlerThread.quitSafely();
-        try {
-            handlerThread.join();
-            handlerThread = null;
-            handler = null;
-        } catch (final InterruptedException e) {
-            Log.e(TAG, "Exception!");
+        if (ALLOCATION_METERING) {
+            stopAllocationCounting();
+        }
+        if (renderScheduler != null) {
+            renderScheduler.stop();
+            renderScheduler = null;
+        }
+        primaryStage.stop();
+        primaryStage = null;
+        if (secondaryStage != null) {
+            secondaryStage.stop();
+            secondaryStage = null;
+        }
+        imageResampler.close();
+        stopInferenceServer();
+        fileExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final TrackLogWriter log = trackLog;
+                trackLog = null;
+                if (log != null) {
+                    try {
+                        log.close();
+                    } catch (final IOException e) {
+                        Log.e(TAG, "Track log could not be written", e);
+                    }
+                }
+            }
+        });
+        final TrackStreamServer stream = trackStream;
+        trackStream = null;
+        if (stream != null) {
+            try {
+                stream.close();
+            } catch (final IOException e) {
+                Log.e(TAG, "Track stream could not be closed", e);
+            }
+            Log.d(TAG, "Track stream: " + stream);
         }
+        closePreEventRecorder();
+        fileExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final CaptureWriter capture = captureWriter;
+                captureWriter = null;
+                if (capture != null) {
+                    try {
+                        capture.close();
+                    } catch (final IOException e) {
+                        Log.e(TAG, "Raw capture could not be written", e);
+                    }
+                    Log.d(TAG, "Raw capture: " + capture.getFramesWritten() + " frames written, "
+                            + capture.getFramesDropped() + " dropped");
+                }
+            }
+        });
+        fileExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                saveHeatmap();
+            }
+        });
         super.onPause();
     }
 
+    @Override
+    protected void onDestroy() {
+        // Closing the files and the inference server queued by onPause still runs.
+        fileExecutor.shutdown();
+        inferenceServerExecutor.shutdown();
+        super.onDestroy();
+    }
+
+    /** Loads the model and serves it once the server of the previous start is closed. */
+    private void startInferenceServer(final ModelSpec spec, final int port, final int maxThreads) {
+        inferenceServerExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                TFLiteObjectDetectionAPIModel model = null;
+                try {
+                    model = TFLiteObjectDetectionAPIModel.create(
+                            getAssets(),
+                            spec,
+                            new InterpreterConfigTuner(MainActivity.this)
+                                    .select(spec)
+                                    .withMaxThreads(maxThreads));
+                    inferenceServer = new InferenceServer(
+                            new InetSocketAddress(InetAddress.getLoopbackAddress(), port),
+                            model,
+                            INFERENCE_MAX_BATCH,
+                            INFERENCE_MAX_LATENCY_NANOS);
+                    servedModel = model;
+                    Log.i(TAG, "Serving " + spec + " on port " + port);
+                } catch (final IOException | RuntimeException e) {
+                    Log.e(TAG, "Inference server could not be started", e);
+                    closeInferenceServer(null, model);
+                }
+            }
+        });
+    }
+
+    /** Stops serving once a model that is still loading is ready; closing waits for its threads. */
+    private void stopInferenceServer() {
+        inferenceServerExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                closeInferenceServer(inferenceServer, servedModel);
+                inferenceServer = null;
+                servedModel = null;
+            }
+        });
+    }
+
+    private static void closeInferenceServer(
+            final InferenceServer server, final TFLiteObjectDetectionAPIModel model) {
+        if (server != null) {
+            try {
+                server.close();
+            } catch (final IOException e) {
+                Log.e(TAG, "Inference server could not be closed", e);
+            }
+            Log.d(TAG, "Inference server: " + server);
+        }
+        if (model != null) {
+            model.close();
+        }
+    }
+
+    private void closePreEventRecorder() {
+        final PreEventRecorder recorder = preEventRecorder;
+        preEventRecorder = null;
+        if (recorder != null) {
+            try {
+                recorder.close();
+            } catch (final IOException e) {
+                Log.e(TAG, "Clip could not be saved", e);
+            }
+            Log.d(TAG, "Clips: " + recorder.getClipsSaved() + " saved, "
+                    + recorder.getFramesLost() + " frames lost");
+        }
+    }
+
+    /** Deflates and writes the heatmap; runs on the file executor. */
+    private void saveHeatmap() {
+        try {
+            final OutputStream out = new FileOutputStream(new File(getFilesDir(), HEATMAP_FILE));
+            try {
+                heatmap.write(out, System.nanoTime());
+            } finally {
+                out.close();
+            }
+        } catch (final IOException e) {
+            Log.e(TAG, "Heatmap could not be saved", e);
+        }
+    }
+
     private TextureView.SurfaceTextureListener textureListener = new TextureView.SurfaceTextureListener() {
         @Override
         public void onSurfaceTextureAvailable(SurfaceTexture surface, int width, int height) {
@@ -264,8 +731,6 @@ public class MainActivity extends AppCompatActivity implements ImageReader.OnIma
 
         @Override
         public void onSurfaceTextureUpdated(SurfaceTexture surface) {
-            binding.mycanvas.postInvalidate();
-            Log.d(TAG, "onSurfaceTextureUpdated: ");
         }
     };
     private void configureTransform(final int viewWidth, final int viewHeight) {
@@ -336,6 +801,7 @@ public class MainActivity extends AppCompatActivity implements ImageReader.OnIma
             if (image == null) {
                 return;
             }
+            captureFrame(image);
 
             if (isProcessingFrame) {
                 image.close();
@@ -346,35 +812,10 @@ public class MainActivity extends AppCompatActivity implements ImageReader.OnIma
             final Image.Plane[] planes = image.getPlanes();
             fillBytes(planes, yuvBytes);
             yRowStride = planes[0].getRowStride();
-            final int uvRowStride = planes[1].getRowStride();
-            final int uvPixelStride = planes[1].getPixelStride();
-
-            imageConverter =
-                    new Runnable() {
-                        @Override
-                        public void run() {
-                            ImageUtils.convertYUV420ToARGB8888(
-                                    yuvBytes[0],
-                                    yuvBytes[1],
-                                    yuvBytes[2],
-                                    previewWidth,
-                                    previewHeight,
-                                    yRowStride,
-                                    uvRowStride,
-                                    uvPixelStride,
-                                    rgbBytes);
-                        }
-                    };
-
-            postInferenceCallback =
-                    new Runnable() {
-                        @Override
-                        public void run() {
-                            image.close();
-                            isProcessingFrame = false;
-                        }
-                    };
+            uvRowStride = planes[1].getRowStride();
+            uvPixelStride = planes[1].getPixelStride();
 
+            processingImage = image;
             processImage();
         } catch (final Exception e) {
             Trace.endSection();
@@ -382,6 +823,27 @@ public class MainActivity extends AppCompatActivity implements ImageReader.OnIma
         }
         Trace.endSection();
     }
+    /** Hands every frame the camera delivers to the raw capture, if recording. */
+    private void captureFrame(final Image image) {
+        final CaptureWriter capture = captureWriter;
+        if (capture == null) {
+            return;
+        }
+        final Image.Plane[] planes = image.getPlanes();
+        for (int i = 0; i < capturePlanes.length; ++i) {
+            capturePlanes[i] = planes[i].getBuffer();
+            captureRowStrides[i] = planes[i].getRowStride();
+            capturePixelStrides[i] = planes[i].getPixelStride();
+        }
+        capture.capture(
+                image.getTimestamp(),
+                image.getWidth(),
+                image.getHeight(),
+                capturePlanes,
+                captureRowStrides,
+                capturePixelStrides);
+    }
+
     protected void fillBytes(final Image.Plane[] planes, final byte[][] yuvBytes) {
         // Because of the variable row stride it's not possible to know in
         // advance the actual necessary dimensions of the yuv planes.
@@ -396,71 +858,190 @@ public class MainActivity extends AppCompatActivity implements ImageReader.OnIma
     protected void processImage() {
 
         ++timestamp;
-        binding.mycanvas.postInvalidate();
-
-        if (computingDetection) {
+        allocationMeter.endFrame();
+        if (ALLOCATION_METERING && timestamp % ALLOCATION_LOG_INTERVAL == 0) {
+            Log.d(TAG, "Allocations: " + allocationMeter);
+        }
+        long allocation = allocationMeter.start();
+        lumaPyramid.setFrame(yuvBytes[0], previewWidth, previewHeight, yRowStride);
+        final PreEventRecorder recorder = preEventRecorder;
+        if (recorder != null) {
+            recorder.onFrame(lumaPyramid, System.nanoTime());
+        }
+        egoMotion.update(lumaPyramid);
+
+        boolean detect = false;
+        RectF region = null;
+        if (primaryStage.isIdle() || (secondaryStage != null && secondaryStage.isIdle())) {
+            cascadeFrame.set(lumaPyramid, timestamp, tracker.getTrackedCount());
+            detect = cascade.shouldDetect(cascadeFrame);
+            if (timestamp % CASCADE_STATS_INTERVAL == 0) {
+                Log.d(TAG, "Cascade: " + cascade.getStats());
+            }
+            if (detect) {
+                region = getDetectionRegion();
+            }
+        }
+        allocationMeter.stop(STAGE_ANALYZE, allocation);
+        if (!detect) {
             readyForNextImage();
             return;
         }
 
-        computingDetection = true;
-
-        rgbFrameBitmap.setPixels(getRgbBytes(), 0, previewWidth, 0, 0, previewWidth, previewHeight);
-
+        final int[] rgb = getRgbBytes();
+        allocation = allocationMeter.start();
         readyForNextImage();
 
-        final Canvas canvas = new Canvas(croppedBitmap);
-        canvas.drawBitmap(rgbFrameBitmap, frameToCropTransform, null);
-        // For examining the actual TF input.
-
-        runInBackground(
-                new Runnable() {
-                    @Override
-                    public void run() {
-                        final List<Classifier.Recognition> results = detector.recognizeImage(croppedBitmap);
-
-                        cropCopyBitmap = Bitmap.createBitmap(croppedBitmap);
-                        final Canvas canvas = new Canvas(cropCopyBitmap);
-                        final Paint paint = new Paint();
-                        paint.setColor(Color.RED);
-                        paint.setStyle(Paint.Style.FILL);
-                        paint.setStrokeWidth(2.0f);
-
-                        float minimumConfidence = MINIMUM_CONFIDENCE_TF_OD_API;
-                        switch (MODE) {
-                            case TF_OD_API:
-                                minimumConfidence = MINIMUM_CONFIDENCE_TF_OD_API;
-                                break;
-                        }
-
-                        final List<Classifier.Recognition> mappedRecognitions =
-                                new LinkedList<Classifier.Recognition>();
+        final float[] tiles;
+        final int tileCount;
+        if (region != null) {
+            tiles = detectionRegion;
+            tiles[0] = region.left;
+            tiles[1] = region.top;
+            tiles[2] = region.right;
+            tiles[3] = region.bottom;
+            tileCount = 1;
+        } else if (PROGRESSIVE_SCAN) {
+            tiles = scanTiles;
+            tileCount = progressiveScan.plan(previewWidth, previewHeight, tracker.getSnapshot(), tiles);
+        } else {
+            tiles = null;
+            tileCount = 0;
+        }
 
-                        for (final Classifier.Recognition result : results) {
+        primaryStage.offer(rgb, tiles, tileCount, region == null && PROGRESSIVE_SCAN);
+        if (secondaryStage != null) {
+            secondaryStage.offer(rgb, tiles, tileCount, region == null && PROGRESSIVE_SCAN);
+        }
+        allocationMeter.stop(STAGE_CROP, allocation);
+    }
 
-                            final RectF location = result.getLocation();
+    /** Returns the part of the frame the cascade wants detected, or null for the whole frame. */
+    private RectF getDetectionRegion() {
+        if (!cascade.getRegion(detectionRegion)) {
+            return null;
+        }
+        final RectF region = detectionRegionRect;
+        region.set(detectionRegion[0], detectionRegion[1], detectionRegion[2], detectionRegion[3]);
+        final float minWidth = MIN_REGION_SIZE * previewWidth;
+        final float minHeight = MIN_REGION_SIZE * previewHeight;
+        if (region.width() < minWidth) {
+            region.inset((region.width() - minWidth) / 2, 0);
+        }
+        if (region.height() < minHeight) {
+            region.inset(0, (region.height() - minHeight) / 2);
+        }
+        region.offset(
+                Math.max(0, -region.left) - Math.max(0, region.right - previewWidth),
+                Math.max(0, -region.top) - Math.max(0, region.bottom - previewHeight));
+        if (region.width() * region.height() > MAX_REGION_AREA * previewWidth * previewHeight) {
+            return null;
+        }
+        return region;
+    }
 
-                            if (location != null && result.getConfidence() >= minimumConfidence) {
-                                canvas.drawRect(location, paint);
-                                cropToFrameTransform.mapRect(location);
+    /** The class checkboxes, in the order of {@link #CLASS_LABELS}. */
+    private CheckBox[] getClassCheckBoxes() {
+        return new CheckBox[] {
+                binding.checkboxPerson,
+                binding.checkboxBicycle,
+                binding.checkboxCar,
+                binding.checkboxTruck,
+                binding.checkboxBus,
+                binding.checkboxTrain
+        };
+    }
 
-                                result.setLocation(location);
-                                mappedRecognitions.add(result);
-                            }
-                        }
+    /** Publishes the labels of the checked boxes. */
+    private void updateSelectedLabels() {
+        final Set<String> labels = new HashSet<>();
+        final CheckBox[] checkBoxes = getClassCheckBoxes();
+        for (int i = 0; i < checkBoxes.length; ++i) {
+            if (checkBoxes[i].isChecked()) {
+                labels.add(CLASS_LABELS[i]);
+            }
+        }
+        selectedLabels = Collections.unmodifiableSet(labels);
+        final PreEventRecorder recorder = preEventRecorder;
+        if (recorder != null) {
+            recorder.setTriggerClasses(selectedLabels);
+        }
+    }
 
-                        tracker.trackResults(mappedRecognitions);
-                        binding.mycanvas.postInvalidate();
+    /**
+     * Switches the primary stage to another registered model. Frames keep flowing through the
+     * current model until the new one is loaded; while paused, the model is loaded on resuming.
+     *
+     * @return false if no model with that name is registered.
+     */
+    public boolean switchPrimaryModel(final String name) {
+        final ModelSpec spec = modelRegistry.get(name);
+        if (spec == null) {
+            return false;
+        }
+        primaryModel = spec;
+        if (primaryStage != null) {
+            primaryStage.switchModel(spec);
+        }
+        return true;
+    }
 
-                        computingDetection = false;
+    /** Adds the latest results of the stage, each with the frame it was detected in. */
+    private static void addLatestResults(
+            final DetectionStage stage,
+            final List<Classifier.Recognition> results,
+            final List<AppearanceFrame> appearances) {
+        for (int i = 0; i < stage.latestResults.size(); ++i) {
+            results.add(stage.latestResults.get(i));
+            appearances.add(stage.latestAppearance);
+        }
+    }
 
-                    }
-                });
+    private synchronized void onStageResults(
+            final DetectionStage stage, final List<Classifier.Recognition> results) {
+        final long allocation = allocationMeter.start();
+        stage.latestResults = results;
+        final AppearanceFrame detected = stage.appearance;
+        stage.appearance = stage.latestAppearance;
+        stage.latestAppearance = detected;
+        final List<Classifier.Recognition> merged = mergedResults;
+        final List<AppearanceFrame> appearances = mergedAppearances;
+        merged.clear();
+        appearances.clear();
+        addLatestResults(primaryStage, merged, appearances);
+        if (secondaryStage != null) {
+            addLatestResults(secondaryStage, merged, appearances);
+        }
+        // The results of the other stage were detected in an earlier frame, but are associated as
+        // if they moved with the image since then, like the tracks.
+        tracker.trackResults(merged, appearances, stage.offeredCameraX, stage.offeredCameraY);
+        final TrackSnapshot snapshot = tracker.getSnapshot();
+        final TrackLogWriter log = trackLog;
+        if (log != null) {
+            log.log(snapshot);
+        }
+        final TrackStreamServer stream = trackStream;
+        if (stream != null) {
+            stream.publish(snapshot);
+        }
+        analytics.update(snapshot);
+        heatmap.update(snapshot);
+        final PreEventRecorder recorder = preEventRecorder;
+        if (recorder != null) {
+            recorder.onTracks(snapshot);
+        }
+        if (++analyticsUpdates % ANALYTICS_LOG_INTERVAL == 0) {
+            Log.d(TAG, "Analytics: " + analytics);
+        }
+        final OverlayRenderScheduler scheduler = renderScheduler;
+        if (scheduler != null) {
+            scheduler.requestRender();
+        }
+        allocationMeter.stop(STAGE_TRACK, allocation);
     }
+
     protected void readyForNextImage() {
-        if (postInferenceCallback != null) {
-            postInferenceCallback.run();
-        }
+        postInferenceCallback.run();
     }
 
     protected int getScreenOrientation() {
@@ -478,68 +1059,413 @@ public class MainActivity extends AppCompatActivity implements ImageReader.OnIma
 
 
 
-    private enum DetectorMode {
-        TF_OD_API;
-    }
     protected int[] getRgbBytes() {
+        final long allocation = allocationMeter.start();
         imageConverter.run();
+        allocationMeter.stop(STAGE_CONVERT, allocation);
         return rgbBytes;
     }
 
-    protected synchronized void runInBackground(final Runnable r) {
-        if (handler != null) {
-            handler.post(r);
-        }
-    }
 
     public void onPreviewSizeChosen(final Size size, final int rotation) {
         tracker = new MultiBoxTracker(this);
-        int cropSize = TF_OD_API_INPUT_SIZE;
-
-        try {
-            detector =
-                    TFLiteObjectDetectionAPIModel.create(
-                            getAssets(),
-                            TF_OD_API_MODEL_FILE,
-                            TF_OD_API_LABELS_FILE,
-                            TF_OD_API_INPUT_SIZE,
-                            TF_OD_API_IS_QUANTIZED);
-            cropSize = TF_OD_API_INPUT_SIZE;
-        } catch (final IOException e) {
-            e.printStackTrace();
-            Toast toast =
-                    Toast.makeText(
-                            getApplicationContext(), "Classifier could not be initialized", Toast.LENGTH_SHORT);
-            toast.show();
-            finish();
+        if (renderScheduler != null) {
+            renderScheduler.stop();
         }
+        renderScheduler = new OverlayRenderScheduler(binding.mycanvas, tracker);
+        tracker.setHeatmapOverlay(new HeatmapOverlay(heatmap, null, HEATMAP_REFRESH_NANOS));
 
         previewWidth = size.getWidth();
         previewHeight = size.getHeight();
 
         sensorOrientation = rotation - getScreenOrientation();
-        rgbFrameBitmap = Bitmap.createBitmap(previewWidth, previewHeight, Bitmap.Config.ARGB_8888);
-        croppedBitmap = Bitmap.createBitmap(cropSize, cropSize, Bitmap.Config.ARGB_8888);
-
-        frameToCropTransform =
-                ImageUtils.getTransformationMatrix(
-                        previewWidth, previewHeight,
-                        cropSize, cropSize,
-                        sensorOrientation, MAINTAIN_ASPECT);
 
-        cropToFrameTransform = new Matrix();
-        frameToCropTransform.invert(cropToFrameTransform);
+        closePreEventRecorder();
+        try {
+            preEventRecorder = new PreEventRecorder(
+                    new File(getFilesDir(), CLIP_DIRECTORY),
+                    previewWidth,
+                    previewHeight,
+                    CLIP_DOWNSCALE,
+                    CLIP_BUFFER_BYTES,
+                    CLIP_PRE_EVENT_NANOS,
+                    CLIP_POST_EVENT_NANOS,
+                    selectedLabels);
+        } catch (final IOException e) {
+            Log.e(TAG, "Clip directory could not be created", e);
+        }
 
         binding.mycanvas.setDrawCallback(
                 new MyCanvas.DrawCallback() {
                     @Override
                     public void draw(final Canvas canvas) {
-                        int orientation = getWindowManager().getDefaultDisplay().getRotation();
+                        final long allocation = allocationMeter.start();
                         tracker.draw(canvas, binding);
+                        allocationMeter.stop(STAGE_DRAW, allocation);
                     }
                 });
 
         tracker.setFrameConfiguration(previewWidth, previewHeight, sensorOrientation);
+        renderScheduler.requestRender();
+    }
+
+    @SuppressWarnings("deprecation")
+    private void startAllocationCounting() {
+        Debug.resetAllCounts();
+        Debug.startAllocCounting();
+        allocationMeter.reset();
+    }
+
+    @SuppressWarnings("deprecation")
+    private void stopAllocationCounting() {
+        Debug.stopAllocCounting();
+        Log.d(TAG, "Allocations: " + allocationMeter);
     }
 
+    /**
+     * Allocations of the calling thread as counted by the runtime, which only counts between
+     * {@link Debug#startAllocCounting()} and {@link Debug#stopAllocCounting()}.
+     */
+    @SuppressWarnings("deprecation")
+    private static final class RuntimeAllocationCounter implements AllocationMeter.Counter {
+        @Override
+        public long getAllocatedBytes() {
+            return Debug.getThreadAllocSize();
+        }
+    }
+
+    /**
+     * A detector together with the thread it runs on and the crop geometry of its model. A frame is
+     * offered to the stage from the camera thread; while the stage is computing, its crop state is
+     * owned by the stage's thread.
+     */
+    private class DetectionStage {
+        private final String name;
+        private final ModelSpec initialSpec;
+        // Loopback port of a served model to run instead of the slot's, 0 for none.
+        private final int remotePort;
+        private RemoteClassifier remote;
+        private long remoteRetryNanos;
+        private HandlerThread thread;
+        private Handler handler;
+        private DetectorSlot<TFLiteObjectDetectionAPIModel> slot;
+        private volatile boolean computing = false;
+
+        private ModelSpec cropSpec;
+        private int cropFrameWidth;
+        private int cropFrameHeight;
+        private Bitmap croppedBitmap;
+        private ImageResampler.Geometry frameToCropGeometry;
+        private Matrix frameToCropTransform;
+        private Matrix cropToFrameTransform;
+        // Crops of the frame currently being detected, one per tile, or one of the whole frame.
+        private int[][] tilePixels = new int[0][];
+        private Matrix[] cropToTileTransforms = new Matrix[0];
+        private ImageResampler.Geometry[] tileGeometries = new ImageResampler.Geometry[0];
+        private int cropCount;
+        private final float[] tiles = new float[4 * SCAN_TILES_PER_FRAME];
+        private int tileCount;
+        private boolean progressive;
+        private long offeredNanos;
+        private float offeredCameraX;
+        private float offeredCameraY;
+        // Results of earlier tiles, owned by the stage's thread.
+        private final TileResultMerger tileResults = new TileResultMerger(SCAN_MAX_RESULT_AGE_NANOS);
+        private final Matrix tileToCrop = new Matrix();
+        // Results are written to one list while the other one is the stage's latest.
+        private List<Classifier.Recognition> results = new ArrayList<>();
+        private List<Classifier.Recognition> spareResults = new ArrayList<>();
+        private boolean cropped;
+        private final Runnable detection =
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        detect(cropped);
+                        computing = false;
+                    }
+                };
+
+        // The detector and label selection the current class filter was compiled for.
+        private Classifier filteredDetector;
+        private Set<String> filteredLabels;
+
+        // The frame offered, from which appearance signatures of its results are computed. Set
+        // with the offer and swapped with the latest one when its results are tracked.
+        private AppearanceFrame appearance = new AppearanceFrame();
+
+        // Guarded by MainActivity.this.
+        private List<Classifier.Recognition> latestResults = Collections.emptyList();
+        private AppearanceFrame latestAppearance = new AppearanceFrame();
+
+        DetectionStage(final String name, final ModelSpec initialSpec, final int remotePort) {
+            this.name = name;
+            this.initialSpec = initialSpec;
+            this.remotePort = remotePort;
+        }
+
+        void start(final int maxThreads) {
+            thread = new HandlerThread(name);
+            thread.start();
+            handler = new Handler(thread.getLooper());
+            slot = DetectorSlot.create(MainActivity.this, name, maxThreads);
+            // A stage on a served model loads none of its own.
+            remoteRetryNanos = System.nanoTime();
+            if (remotePort == 0) {
+                slot.load(initialSpec);
+            }
+        }
+
+        void stop() {
+            thread.quitSafely();
+            try {
+                thread.join();
+                thread = null;
+                handler = null;
+            } catch (final InterruptedException e) {
+                Log.e(TAG, "Exception!");
+            }
+            slot.close();
+            if (remote != null) {
+                remote.close();
+                remote = null;
+            }
+        }
+
+        void switchModel(final ModelSpec spec) {
+            if (remotePort == 0) {
+                slot.load(spec);
+            }
+        }
+
+        boolean isIdle() {
+            return !computing;
+        }
+
+        /**
+         * Crops the current RGB frame for this stage's model and schedules a detection on it.
+         *
+         * @param rgb ARGB pixels of the preview frame.
+         * @param tiles {@code left, top, right, bottom} of each part of the frame to detect objects
+         *     in, each cropped and detected separately, or null for the whole frame.
+         * @param progressive Whether the results are merged with those of earlier tiles, rather
+         *     than replacing them.
+         */
+        void offer(final int[] rgb, final float[] tiles, final int tileCount, final boolean progressive) {
+            if (computing || handler == null) {
+                return;
+            }
+            computing = true;
+            cropped = croppedBitmap != null;
+            this.tileCount = tiles != null ? Math.min(tileCount, this.tiles.length / 4) : 0;
+            if (tiles != null) {
+                System.arraycopy(tiles, 0, this.tiles, 0, 4 * this.tileCount);
+            }
+            this.progressive = progressive;
+            offeredNanos = System.nanoTime();
+            offeredCameraX = egoMotion.getPositionX();
+            offeredCameraY = egoMotion.getPositionY();
+            // Results of this frame are told apart by how they look in it.
+            appearance.set(
+                    yuvBytes[0], yuvBytes[1], yuvBytes[2], previewWidth, previewHeight,
+                    yRowStride, uvRowStride, uvPixelStride);
+            cropCount = Math.max(1, this.tileCount);
+            if (cropped) {
+                if (tilePixels.length < cropCount) {
+                    tilePixels = Arrays.copyOf(tilePixels, cropCount);
+                    cropToTileTransforms = Arrays.copyOf(cropToTileTransforms, cropCount);
+                    tileGeometries = Arrays.copyOf(tileGeometries, cropCount);
+                }
+                for (int k = 0; k < cropCount; ++k) {
+                    cropTile(rgb, k);
+                }
+            }
+            handler.post(detection);
+        }
+
+        /** Resamples the tile, or the whole frame if there are no tiles, for the model. */
+        private void cropTile(final int[] rgb, final int k) {
+            final int pixels = cropSpec.getInputWidth() * cropSpec.getInputHeight();
+            if (tilePixels[k] == null || tilePixels[k].length != pixels) {
+                tilePixels[k] = new int[pixels];
+                cropToTileTransforms[k] = new Matrix();
+            }
+            if (tileGeometries[k] == null) {
+                tileGeometries[k] =
+                        new ImageResampler.Geometry(
+                                previewWidth, previewHeight,
+                                cropSpec.getInputWidth(), cropSpec.getInputHeight(),
+                                sensorOrientation, MAINTAIN_ASPECT, CROP_FILTER);
+            }
+            final ImageResampler.Geometry geometry;
+            if (tileCount == 0) {
+                geometry = frameToCropGeometry;
+                cropToTileTransforms[k].set(cropToFrameTransform);
+            } else {
+                // Snapped to the grid, so that a region moving a little keeps its resampling plan.
+                geometry = tileGeometries[k];
+                geometry.setRegion(
+                        tiles[4 * k], tiles[4 * k + 1], tiles[4 * k + 2], tiles[4 * k + 3],
+                        CROP_GRID);
+                final int left = geometry.getRegionLeft();
+                final int top = geometry.getRegionTop();
+                final int width = geometry.getRegionWidth();
+                final int height = geometry.getRegionHeight();
+                // Results are merged by the part of the frame actually detected in.
+                tiles[4 * k] = left;
+                tiles[4 * k + 1] = top;
+                tiles[4 * k + 2] = left + width;
+                tiles[4 * k + 3] = top + height;
+                ImageUtils.getTransformationMatrix(
+                        width, height,
+                        cropSpec.getInputWidth(), cropSpec.getInputHeight(),
+                        sensorOrientation, MAINTAIN_ASPECT, tileToCrop);
+                tileToCrop.preTranslate(-left, -top);
+                tileToCrop.invert(cropToTileTransforms[k]);
+            }
+            imageResampler.resample(rgb, geometry, tilePixels[k]);
+        }
+
+        /** Returns the served model, connecting to it first if necessary, or null if it is down. */
+        private RemoteClassifier acquireRemote() {
+            if (remote != null && remote.isConnected()) {
+                return remote;
+            }
+            if (remote != null) {
+                remote.close();
+                remote = null;
+            }
+            final long now = System.nanoTime();
+            if (now - remoteRetryNanos < 0) {
+                return null;
+            }
+            try {
+                remote = RemoteClassifier.connect(
+                        InetAddress.getLoopbackAddress().getHostAddress(),
+                        remotePort,
+                        RESAMPLER_THREADS);
+                Log.i(TAG, name + " runs on served " + remote.getSpec());
+            } catch (final IOException e) {
+                Log.w(TAG, name + " could not reach the inference server on port " + remotePort, e);
+                remoteRetryNanos = now + INFERENCE_RECONNECT_NANOS;
+            }
+            return remote;
+        }
+
+        private void detect(final boolean cropped) {
+            final long allocation = allocationMeter.start();
+            final Classifier detector;
+            final ModelSpec spec;
+            if (remotePort > 0) {
+                final RemoteClassifier served = acquireRemote();
+                if (served == null) {
+                    return;
+                }
+                detector = served;
+                spec = served.getSpec();
+            } else {
+                final TFLiteObjectDetectionAPIModel model = slot.acquire();
+                if (model == null) {
+                    return;
+                }
+                detector = model;
+                spec = model.getSpec();
+            }
+            if (spec != cropSpec || cropFrameWidth != previewWidth || cropFrameHeight != previewHeight) {
+                // The model or preview changed; the next frame is cropped for the new geometry.
+                configureCrop(spec);
+                return;
+            }
+            if (!cropped) {
+                return;
+            }
+            final Set<String> labels = selectedLabels;
+            if (detector != filteredDetector || labels != filteredLabels) {
+                final Map<String, Float> thresholds = new HashMap<>();
+                for (final String label : labels) {
+                    thresholds.put(label, spec.getMinimumConfidence(label));
+                }
+                detector.setClassFilter(ClassFilter.forLabels(detector.getLabels(), thresholds));
+                filteredDetector = detector;
+                filteredLabels = labels;
+            }
+
+            // The spare list is not the stage's latest results, which the other stage may read.
+            final List<Classifier.Recognition> mappedRecognitions = spareResults;
+            spareResults = results;
+            results = mappedRecognitions;
+            mappedRecognitions.clear();
+            for (int k = 0; k < cropCount; ++k) {
+                final int inputWidth = cropSpec.getInputWidth();
+                croppedBitmap.setPixels(
+                        tilePixels[k], 0, inputWidth, 0, 0, inputWidth, cropSpec.getInputHeight());
+                final List<Classifier.Recognition> recognitions =
+                        detector.recognizeImage(croppedBitmap);
+
+                for (int i = 0; i < recognitions.size(); ++i) {
+                    final Classifier.Recognition result = recognitions.get(i);
+                    final RectF location = result.getLocation();
+
+                    // Confidence thresholds were applied by the detector's class filter.
+                    if (location != null) {
+                        cropToTileTransforms[k].mapRect(location);
+
+                        result.setLocation(location);
+                        mappedRecognitions.add(result);
+                    }
+                }
+            }
+
+            if (!progressive) {
+                tileResults.clear();
+                allocationMeter.stop(STAGE_DETECT, allocation);
+                onStageResults(this, mappedRecognitions);
+                return;
+            }
+            tileResults.begin(tiles, tileCount, offeredNanos);
+            for (int i = 0; i < mappedRecognitions.size(); ++i) {
+                final Classifier.Recognition result = mappedRecognitions.get(i);
+                final RectF location = result.getLocation();
+                tileResults.add(
+                        location.left, location.top, location.right, location.bottom,
+                        result.getTitle(), result.getConfidence());
+            }
+            tileResults.end();
+            mappedRecognitions.clear();
+            for (int i = 0; i < tileResults.size(); ++i) {
+                mappedRecognitions.add(new Classifier.Recognition(
+                        Integer.toString(i),
+                        tileResults.getTitle(i),
+                        tileResults.getConfidence(i),
+                        new RectF(
+                                tileResults.getLeft(i), tileResults.getTop(i),
+                                tileResults.getRight(i), tileResults.getBottom(i))));
+            }
+            allocationMeter.stop(STAGE_DETECT, allocation);
+            onStageResults(this, mappedRecognitions);
+        }
+
+        private void configureCrop(final ModelSpec spec) {
+            cropSpec = spec;
+            Arrays.fill(tileGeometries, null);
+            cropFrameWidth = previewWidth;
+            cropFrameHeight = previewHeight;
+            croppedBitmap =
+                    Bitmap.createBitmap(
+                            spec.getInputWidth(), spec.getInputHeight(), Bitmap.Config.ARGB_8888);
+            frameToCropGeometry =
+                    new ImageResampler.Geometry(
+                            previewWidth, previewHeight,
+                            spec.getInputWidth(), spec.getInputHeight(),
+                            sensorOrientation, MAINTAIN_ASPECT, CROP_FILTER);
+
+            frameToCropTransform =
+                    ImageUtils.getTransformationMatrix(
+                            previewWidth, previewHeight,
+                            spec.getInputWidth(), spec.getInputHeight(),
+                            sensorOrientation, MAINTAIN_ASPECT);
+
+            cropToFrameTransform = new Matrix();
+            frameToCropTransform.invert(cropToFrameTransform);
+        }
+    }
 }
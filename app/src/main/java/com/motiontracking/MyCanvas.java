@@ -21,7 +21,7 @@ public class MyCanvas extends View {
     }
 
     @Override
-    public synchronized void onDraw(Canvas canvas) {
+    public void onDraw(Canvas canvas) {
         super.onDraw(canvas);
         drawCallback.draw(canvas);
     }
@@ -0,0 +1,84 @@
+package com.motiontracking;
+
+import android.graphics.Rect;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+import android.view.View;
+
+import com.motiontracking.tracking.MultiBoxTracker;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Redraws the tracking overlay in step with the display, but only while there is something new to
+ * show: after the tracker published new tracks, or while boxes are still moving towards them. Frames
+ * in which the boxes only moved outside the view are skipped.
+ */
+public class OverlayRenderScheduler implements Choreographer.FrameCallback {
+    private final View view;
+    private final MultiBoxTracker tracker;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Rect dirty = new Rect();
+    // Set while a frame callback is pending or running.
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private volatile boolean pendingUpdate;
+    private boolean stopped;
+
+    private final Runnable postFrame = new Runnable() {
+        @Override
+        public void run() {
+            if (stopped) {
+                scheduled.set(false);
+                return;
+            }
+            Choreographer.getInstance().postFrameCallback(OverlayRenderScheduler.this);
+        }
+    };
+
+    public OverlayRenderScheduler(final View view, final MultiBoxTracker tracker) {
+        this.view = view;
+        this.tracker = tracker;
+    }
+
+    /** Requests a redraw at the next display frame. May be called from any thread. */
+    public void requestRender() {
+        pendingUpdate = true;
+        if (scheduled.compareAndSet(false, true)) {
+            mainHandler.post(postFrame);
+        }
+    }
+
+    /** Stops scheduling frames. Must be called on the UI thread. */
+    public void stop() {
+        stopped = true;
+        mainHandler.removeCallbacks(postFrame);
+        Choreographer.getInstance().removeFrameCallback(this);
+        scheduled.set(false);
+    }
+
+    @Override
+    public void doFrame(final long frameTimeNanos) {
+        if (stopped) {
+            return;
+        }
+        pendingUpdate = false;
+        // Hardware-accelerated views redraw whole anyway, so the dirty area only decides whether
+        // the frame changed anything on screen at all.
+        if (view.getWidth() > 0
+                && tracker.advance(frameTimeNanos, view.getWidth(), view.getHeight(), dirty)
+                && dirty.intersect(0, 0, view.getWidth(), view.getHeight())) {
+            view.invalidate();
+        }
+        if (tracker.isAnimating()) {
+            Choreographer.getInstance().postFrameCallback(this);
+            return;
+        }
+        scheduled.set(false);
+        // Tracks published after this frame picked up the latest snapshot would otherwise wait for
+        // the next publication.
+        if (pendingUpdate && scheduled.compareAndSet(false, true)) {
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.motiontracking.analytics;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The counting lines and zones of a deployment. The bundled {@code analytics.json} asset is used
+ * unless the app's external files directory holds an {@code analytics.json}, which replaces it, so
+ * lines and zones can be drawn for each camera without rebuilding the APK.
+ *
+ * <p>Coordinates are normalized to the camera frame, from 0 to 1:
+ *
+ * <pre>
+ * {
+ *   "lines": [ { "name": "door", "points": [0.5, 0.2, 0.5, 0.8] } ],
+ *   "zones": [ { "name": "entrance", "points": [0.1, 0.1, 0.4, 0.1, 0.4, 0.5, 0.1, 0.5] } ]
+ * }
+ * </pre>
+ */
+public class AnalyticsConfig {
+  private static final String TAG = AnalyticsConfig.class.getSimpleName();
+  private static final String CONFIG_FILE = "analytics.json";
+
+  private final List<CountingLine> lines = new ArrayList<>();
+  private final List<Zone> zones = new ArrayList<>();
+
+  private AnalyticsConfig() {}
+
+  public static AnalyticsConfig load(final Context context) throws IOException {
+    final AnalyticsConfig config = new AnalyticsConfig();
+    final File externalDir = context.getExternalFilesDir(null);
+    final File override = externalDir != null ? new File(externalDir, CONFIG_FILE) : null;
+    try {
+      if (override != null && override.isFile()) {
+        Log.i(TAG, "Reading counting lines and zones from " + override);
+        config.parse(readJson(new FileInputStream(override)));
+      } else {
+        config.parse(readJson(context.getAssets().open(CONFIG_FILE)));
+      }
+    } catch (final JSONException e) {
+      throw new IOException("Malformed analytics configuration", e);
+    } catch (final IllegalArgumentException e) {
+      throw new IOException("Invalid analytics configuration", e);
+    }
+    return config;
+  }
+
+  private void parse(final JSONObject json) throws JSONException {
+    final JSONArray lineEntries = json.optJSONArray("lines");
+    for (int i = 0; lineEntries != null && i < lineEntries.length(); ++i) {
+      final JSONObject entry = lineEntries.getJSONObject(i);
+      final float[] points = readPoints(entry);
+      if (points.length != 4) {
+        throw new JSONException("Line " + entry.optString("name") + " needs two points");
+      }
+      lines.add(
+          new CountingLine(entry.getString("name"), points[0], points[1], points[2], points[3]));
+    }
+    final JSONArray zoneEntries = json.optJSONArray("zones");
+    for (int i = 0; zoneEntries != null && i < zoneEntries.length(); ++i) {
+      final JSONObject entry = zoneEntries.getJSONObject(i);
+      zones.add(new Zone(entry.getString("name"), readPoints(entry)));
+    }
+  }
+
+  private static float[] readPoints(final JSONObject entry) throws JSONException {
+    final JSONArray array = entry.getJSONArray("points");
+    final float[] points = new float[array.length()];
+    for (int i = 0; i < points.length; ++i) {
+      points[i] = (float) array.getDouble(i);
+    }
+    return points;
+  }
+
+  private static JSONObject readJson(final InputStream input) throws IOException, JSONException {
+    final StringBuilder content = new StringBuilder();
+    try (BufferedReader reader = new BufferedReader(new InputStreamReader(input, "UTF-8"))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        content.append(line).append('\n');
+      }
+    }
+    return new JSONObject(content.toString());
+  }
+
+  public List<CountingLine> getLines() {
+    return Collections.unmodifiableList(lines);
+  }
+
+  public List<Zone> getZones() {
+    return Collections.unmodifiableList(zones);
+  }
+}
@@ -0,0 +1,73 @@
+package com.motiontracking.analytics;
+
+/**
+ * A line segment tracks are counted crossing, in normalized frame coordinates from 0 to 1. Looking
+ * from the first point towards the second, crossings from the left-hand to the right-hand side
+ * count as {@link Direction#FORWARD}.
+ */
+public final class CountingLine {
+  public enum Direction {
+    FORWARD,
+    BACKWARD
+  }
+
+  private final String name;
+  private final float x1;
+  private final float y1;
+  private final float x2;
+  private final float y2;
+
+  public CountingLine(
+      final String name, final float x1, final float y1, final float x2, final float y2) {
+    if (x1 == x2 && y1 == y2) {
+      throw new IllegalArgumentException("Counting line " + name + " has no length");
+    }
+    this.name = name;
+    this.x1 = x1;
+    this.y1 = y1;
+    this.x2 = x2;
+    this.y2 = y2;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public float getX1() {
+    return x1;
+  }
+
+  public float getY1() {
+    return y1;
+  }
+
+  public float getX2() {
+    return x2;
+  }
+
+  public float getY2() {
+    return y2;
+  }
+
+  /** Negative on the left-hand side of the line, non-negative on or right of it. */
+  float side(final float x, final float y) {
+    return (x2 - x1) * (y - y1) - (y2 - y1) * (x - x1);
+  }
+
+  /** Whether a move from one point to another crosses the segment, touching included. */
+  boolean isCrossedBy(final float fromX, final float fromY, final float toX, final float toY) {
+    if ((side(fromX, fromY) < 0) == (side(toX, toY) < 0)) {
+      return false;
+    }
+    final float dx = toX - fromX;
+    final float dy = toY - fromY;
+    final float d1 = dx * (y1 - fromY) - dy * (x1 - fromX);
+    final float d2 = dx * (y2 - fromY) - dy * (x2 - fromX);
+    return (d1 <= 0 && d2 >= 0) || (d1 >= 0 && d2 <= 0);
+  }
+
+  @Override
+  public String toString() {
+    return name;
+  }
+}
@@ -0,0 +1,58 @@
+package com.motiontracking.analytics;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+
+/**
+ * Draws an {@link OccupancyHeatmap} under the tracking overlay. The heatmap changes slowly, so its
+ * bitmap is rendered again only every refresh interval and stretched over the frame in between.
+ * Used on the UI thread only.
+ */
+public class HeatmapOverlay {
+  private final OccupancyHeatmap heatmap;
+  private final String title;
+  private final long refreshIntervalNanos;
+  private final Bitmap bitmap;
+  private final int[] pixels;
+  private final Matrix cellsToCanvas = new Matrix();
+  private final Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+  private long renderedNanos;
+  private boolean rendered;
+
+  /** @param title The class to show, or null for all classes. */
+  public HeatmapOverlay(
+      final OccupancyHeatmap heatmap, final String title, final long refreshIntervalNanos) {
+    this.heatmap = heatmap;
+    this.title = title;
+    this.refreshIntervalNanos = refreshIntervalNanos;
+    bitmap =
+        Bitmap.createBitmap(heatmap.getColumns(), heatmap.getRows(), Bitmap.Config.ARGB_8888);
+    pixels = new int[heatmap.getColumns() * heatmap.getRows()];
+  }
+
+  /** Whether the next {@link #draw} renders the heatmap again, so the whole overlay changes. */
+  public boolean isRefreshDue(final long nowNanos) {
+    return !rendered || nowNanos - renderedNanos >= refreshIntervalNanos;
+  }
+
+  public void draw(
+      final Canvas canvas,
+      final Matrix frameToCanvas,
+      final int frameWidth,
+      final int frameHeight) {
+    final long now = System.nanoTime();
+    if (isRefreshDue(now)) {
+      heatmap.render(title, pixels);
+      final int columns = heatmap.getColumns();
+      bitmap.setPixels(pixels, 0, columns, 0, 0, columns, heatmap.getRows());
+      renderedNanos = now;
+      rendered = true;
+    }
+    cellsToCanvas.setScale(
+        frameWidth / (float) heatmap.getColumns(), frameHeight / (float) heatmap.getRows());
+    cellsToCanvas.postConcat(frameToCanvas);
+    canvas.drawBitmap(bitmap, cellsToCanvas, paint);
+  }
+}
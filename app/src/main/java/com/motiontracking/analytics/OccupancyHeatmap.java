@@ -0,0 +1,284 @@
+package com.motiontracking.analytics;
+
+import com.motiontracking.tracking.TrackSnapshot;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Where tracked objects spend their time, per class, on a fixed grid over the frame. Every update
+ * spreads the time since the previous update evenly over the cells under the footprint of each
+ * track, the bottom {@link #FOOTPRINT_FRACTION} of its box, so a cell holds the seconds objects
+ * stood on it. Older time fades out with the configured half-life.
+ *
+ * <p>Decay is lazy: instead of scaling every cell on every update, new time is added multiplied by
+ * a scale that doubles every half-life, and values are divided by the current scale when read.
+ * Only when the scale grows large are the cells rescaled once and the epoch moved forward. Updates
+ * allocate nothing once every class has been seen.
+ *
+ * <p>Thread-safe; the tracking thread updates while the overlay renders at a low rate.
+ */
+public class OccupancyHeatmap {
+  /** Height of the footprint of an object relative to its box. */
+  public static final float FOOTPRINT_FRACTION = 0.2f;
+  // Longest gap between updates that counts as time spent, so pauses of the pipeline do not
+  // smear the map.
+  private static final long MAX_STEP_NANOS = 1_000_000_000L;
+  private static final double RENORMALIZE_SCALE = 1 << 24;
+  private static final int FILE_MAGIC = 0x4d54484d; // "MTHM"
+  private static final int FILE_VERSION = 1;
+  private static final int[] PALETTE = createPalette();
+
+  private final int columns;
+  private final int rows;
+  private final long halfLifeNanos;
+  private final List<String> classes = new ArrayList<>();
+  private final Map<String, Integer> classIndices = new HashMap<>();
+  private final List<float[]> grids = new ArrayList<>();
+  private final float[] combined;
+
+  private long epochNanos;
+  private boolean started;
+  private long lastUpdateNanos;
+  private TrackSnapshot lastSnapshot;
+
+  public OccupancyHeatmap(final int columns, final int rows, final long halfLifeNanos) {
+    if (columns <= 0 || rows <= 0 || halfLifeNanos <= 0) {
+      throw new IllegalArgumentException(
+          "Invalid heatmap " + columns + "x" + rows + ", half-life " + halfLifeNanos);
+    }
+    this.columns = columns;
+    this.rows = rows;
+    this.halfLifeNanos = halfLifeNanos;
+    combined = new float[columns * rows];
+  }
+
+  public int getColumns() {
+    return columns;
+  }
+
+  public int getRows() {
+    return rows;
+  }
+
+  public long getHalfLifeNanos() {
+    return halfLifeNanos;
+  }
+
+  public synchronized List<String> getClasses() {
+    return Collections.unmodifiableList(new ArrayList<>(classes));
+  }
+
+  /** Adds the snapshot at its own timestamp. */
+  public void update(final TrackSnapshot snapshot) {
+    update(snapshot, snapshot.getTimestampNanos());
+  }
+
+  /** Adds the time since the previous update to the footprints of the snapshot's tracks. */
+  public synchronized void update(final TrackSnapshot snapshot, final long timeNanos) {
+    if (snapshot == lastSnapshot) {
+      return;
+    }
+    lastSnapshot = snapshot;
+    if (!started) {
+      started = true;
+      epochNanos = timeNanos;
+      lastUpdateNanos = timeNanos;
+      return;
+    }
+    final long now = Math.max(timeNanos, lastUpdateNanos);
+    final long step = Math.min(now - lastUpdateNanos, MAX_STEP_NANOS);
+    lastUpdateNanos = now;
+    if (step == 0 || snapshot.getFrameWidth() == 0 || snapshot.getFrameHeight() == 0) {
+      return;
+    }
+    double scale = scaleAt(now);
+    if (scale > RENORMALIZE_SCALE) {
+      renormalize(now, scale);
+      scale = 1;
+    }
+    final float seconds = (float) (step / 1e9 * scale);
+    final float columnsPerPixel = columns / (float) snapshot.getFrameWidth();
+    final float rowsPerPixel = rows / (float) snapshot.getFrameHeight();
+
+    for (int i = 0; i < snapshot.size(); ++i) {
+      final float bottom = snapshot.getBottom(i);
+      final float footprintTop = bottom - (bottom - snapshot.getTop(i)) * FOOTPRINT_FRACTION;
+      final int left = clamp((int) (snapshot.getLeft(i) * columnsPerPixel), columns);
+      final int right = clamp((int) (snapshot.getRight(i) * columnsPerPixel), columns);
+      final int top = clamp((int) (footprintTop * rowsPerPixel), rows);
+      final int bottomRow = clamp((int) (bottom * rowsPerPixel), rows);
+      final float share = seconds / ((right - left + 1) * (bottomRow - top + 1));
+      final float[] grid = gridOf(snapshot.getTitle(i));
+      for (int row = top; row <= bottomRow; ++row) {
+        final int end = row * columns + right;
+        for (int cell = row * columns + left; cell <= end; ++cell) {
+          grid[cell] += share;
+          combined[cell] += share;
+        }
+      }
+    }
+  }
+
+  /**
+   * Seconds objects of the class spent on the cell, decayed to {@code nowNanos}.
+   *
+   * @param title The class, or null for all classes.
+   */
+  public synchronized float getValue(
+      final String title, final int column, final int row, final long nowNanos) {
+    final float[] grid = find(title);
+    return grid != null ? (float) (grid[row * columns + column] / scaleAt(nowNanos)) : 0;
+  }
+
+  /** Sum over all cells and classes, decayed to {@code nowNanos}. */
+  public synchronized double getTotal(final long nowNanos) {
+    double total = 0;
+    for (final float value : combined) {
+      total += value;
+    }
+    return total / scaleAt(nowNanos);
+  }
+
+  /**
+   * Renders the class into ARGB pixels of {@code columns x rows}, scaled to the busiest cell, with
+   * empty cells transparent.
+   *
+   * @param title The class, or null for all classes.
+   */
+  public synchronized void render(final String title, final int[] argb) {
+    final float[] grid = find(title);
+    float max = 0;
+    if (grid != null) {
+      for (final float value : grid) {
+        max = Math.max(max, value);
+      }
+    }
+    if (max <= 0) {
+      Arrays.fill(argb, 0, columns * rows, 0);
+      return;
+    }
+    final float toPalette = (PALETTE.length - 1) / max;
+    for (int i = 0; i < columns * rows; ++i) {
+      argb[i] = PALETTE[(int) (grid[i] * toPalette)];
+    }
+  }
+
+  /**
+   * Writes the decayed values at {@code nowNanos} in a compact form: the grid size, the half-life
+   * and, per class, the maximum and every cell as a 16-bit fraction of it, deflated.
+   */
+  public synchronized void write(final OutputStream output, final long nowNanos)
+      throws IOException {
+    final DeflaterOutputStream deflater = new DeflaterOutputStream(output);
+    final DataOutputStream out = new DataOutputStream(deflater);
+    out.writeInt(FILE_MAGIC);
+    out.writeInt(FILE_VERSION);
+    out.writeInt(columns);
+    out.writeInt(rows);
+    out.writeLong(halfLifeNanos);
+    out.writeInt(classes.size());
+    final double scale = scaleAt(nowNanos);
+    for (int c = 0; c < classes.size(); ++c) {
+      final float[] grid = grids.get(c);
+      float max = 0;
+      for (final float value : grid) {
+        max = Math.max(max, value);
+      }
+      out.writeUTF(classes.get(c));
+      out.writeFloat((float) (max / scale));
+      for (final float value : grid) {
+        out.writeShort(max > 0 ? Math.round(value / max * 0xffff) : 0);
+      }
+    }
+    out.flush();
+    deflater.finish();
+  }
+
+  /** Reads a heatmap written by {@link #write}, with its values as of the time it was written. */
+  public static OccupancyHeatmap read(final InputStream input) throws IOException {
+    final DataInputStream in = new DataInputStream(new InflaterInputStream(input));
+    if (in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION) {
+      throw new IOException("Not a heatmap file");
+    }
+    final OccupancyHeatmap heatmap = new OccupancyHeatmap(in.readInt(), in.readInt(), in.readLong());
+    final int classCount = in.readInt();
+    for (int c = 0; c < classCount; ++c) {
+      final float[] grid = heatmap.gridOf(in.readUTF());
+      final float max = in.readFloat();
+      for (int i = 0; i < grid.length; ++i) {
+        grid[i] = (in.readShort() & 0xffff) / (float) 0xffff * max;
+        heatmap.combined[i] += grid[i];
+      }
+    }
+    return heatmap;
+  }
+
+  private double scaleAt(final long nowNanos) {
+    return started ? Math.pow(2, (nowNanos - epochNanos) / (double) halfLifeNanos) : 1;
+  }
+
+  /** Applies the pending decay to every cell and starts a new epoch. */
+  private void renormalize(final long nowNanos, final double scale) {
+    final float inverse = (float) (1 / scale);
+    for (final float[] grid : grids) {
+      for (int i = 0; i < grid.length; ++i) {
+        grid[i] *= inverse;
+      }
+    }
+    for (int i = 0; i < combined.length; ++i) {
+      combined[i] *= inverse;
+    }
+    epochNanos = nowNanos;
+  }
+
+  private float[] gridOf(final String title) {
+    final String key = title != null ? title : "";
+    final Integer index = classIndices.get(key);
+    if (index != null) {
+      return grids.get(index);
+    }
+    classIndices.put(key, classes.size());
+    classes.add(key);
+    final float[] grid = new float[columns * rows];
+    grids.add(grid);
+    return grid;
+  }
+
+  private float[] find(final String title) {
+    if (title == null) {
+      return combined;
+    }
+    final Integer index = classIndices.get(title);
+    return index != null ? grids.get(index) : null;
+  }
+
+  private static int clamp(final int value, final int size) {
+    return Math.max(0, Math.min(size - 1, value));
+  }
+
+  /** Transparent for nothing, then blue through red with increasing opacity. */
+  private static int[] createPalette() {
+    final int[] palette = new int[256];
+    for (int i = 1; i < palette.length; ++i) {
+      final float t = i / 255f;
+      final int alpha = (int) (64 + 128 * t);
+      final int red = (int) (255 * Math.min(1, 2 * t));
+      final int green = (int) (255 * (1 - Math.abs(2 * t - 1)));
+      final int blue = (int) (255 * Math.min(1, 2 * (1 - t)));
+      palette[i] = (alpha << 24) | (red << 16) | (green << 8) | blue;
+    }
+    return palette;
+  }
+}
@@ -0,0 +1,344 @@
+package com.motiontracking.analytics;
+
+import com.motiontracking.tracking.TrackSnapshot;
+import com.motiontracking.utils.IntIntMap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Counts tracks crossing lines and staying in zones, updated incrementally from every published
+ * set of tracks. A track is located by the bottom center of its box, where a person or vehicle
+ * touches the ground, in normalized frame coordinates clamped to the frame.
+ *
+ * <p>Per class, each line counts crossings in both directions, and each zone counts the tracks in
+ * it now, the tracks that entered it and the time tracks spent in it. A track first seen inside a
+ * zone counts as entering it. Time in a zone is accounted from one update of a track to the next,
+ * to the zones the track was in at the earlier one.
+ *
+ * <p>The cost of an update is linear in the number of tracks and, through {@link ZoneGrid}, close to
+ * constant per track however many zones and lines there are. Updates allocate nothing once every
+ * class has been seen. Not thread-safe: update and read the counts from one thread or under one
+ * lock.
+ */
+public class TrackAnalytics {
+  public static final int DEFAULT_GRID_SIZE = 16;
+  private static final int NO_SLOT = -1;
+
+  private final List<CountingLine> lines;
+  private final List<Zone> zones;
+  private final ZoneGrid grid;
+  private final int maskWords;
+
+  private final List<String> classes = new ArrayList<>();
+  private final Map<String, Integer> classIndices = new HashMap<>();
+  private final List<ClassCounts> counts = new ArrayList<>();
+
+  // Per track state in slots, found by track id.
+  private final IntIntMap slotsById = new IntIntMap(64);
+  private int[] slotIds = new int[0];
+  private int[] slotClasses = new int[0];
+  private float[] slotX = new float[0];
+  private float[] slotY = new float[0];
+  private long[] slotTimes = new long[0];
+  private long[] slotUpdates = new long[0];
+  private long[] slotZones = new long[0];
+  private int[] freeSlots = new int[0];
+  private int freeCount;
+  private int[] liveSlots = new int[0];
+  private int liveCount;
+
+  private final long[] zonesNow;
+  // Per line, the update it was last tested in, so a move spanning several cells tests it once.
+  private final int[] lineTested;
+  private int testStamp;
+  private long updates;
+  private TrackSnapshot lastSnapshot;
+
+  public TrackAnalytics(final List<CountingLine> lines, final List<Zone> zones) {
+    this(lines, zones, DEFAULT_GRID_SIZE);
+  }
+
+  public TrackAnalytics(
+      final List<CountingLine> lines, final List<Zone> zones, final int gridSize) {
+    this.lines = Collections.unmodifiableList(new ArrayList<>(lines));
+    this.zones = Collections.unmodifiableList(new ArrayList<>(zones));
+    grid = new ZoneGrid(this.zones, this.lines, gridSize);
+    maskWords = Math.max(1, (zones.size() + 63) >>> 6);
+    zonesNow = new long[maskWords];
+    lineTested = new int[lines.size()];
+  }
+
+  public List<CountingLine> getLines() {
+    return lines;
+  }
+
+  public List<Zone> getZones() {
+    return zones;
+  }
+
+  /** Classes seen so far, in order of appearance. */
+  public List<String> getClasses() {
+    return Collections.unmodifiableList(classes);
+  }
+
+  /** Updates the counts with the snapshot at its own timestamp. */
+  public void update(final TrackSnapshot snapshot) {
+    update(snapshot, snapshot.getTimestampNanos());
+  }
+
+  /**
+   * Updates the counts with the snapshot taken at {@code timeNanos}. A snapshot passed again is
+   * ignored.
+   */
+  public void update(final TrackSnapshot snapshot, final long timeNanos) {
+    if (snapshot == lastSnapshot) {
+      return;
+    }
+    lastSnapshot = snapshot;
+    ++updates;
+    for (int c = 0; c < counts.size(); ++c) {
+      Arrays.fill(counts.get(c).occupancy, 0);
+    }
+    final float width = Math.max(1, snapshot.getFrameWidth());
+    final float height = Math.max(1, snapshot.getFrameHeight());
+
+    for (int i = 0; i < snapshot.size(); ++i) {
+      final float x = clamp((snapshot.getLeft(i) + snapshot.getRight(i)) / 2 / width);
+      final float y = clamp(snapshot.getBottom(i) / height);
+      final int classIndex = classIndexOf(snapshot.getTitle(i));
+      final ClassCounts classCounts = counts.get(classIndex);
+      final int id = snapshot.getId(i);
+      grid.zonesAt(x, y, zonesNow, 0);
+
+      int slot = slotsById.get(id, NO_SLOT);
+      if (slot == NO_SLOT) {
+        slot = allocateSlot(id);
+        for (int w = 0; w < maskWords; ++w) {
+          countZones(zonesNow[w], w, classCounts.entries);
+        }
+      } else {
+        final int base = slot * maskWords;
+        final ClassCounts previousCounts = counts.get(slotClasses[slot]);
+        final long elapsed = Math.max(0, timeNanos - slotTimes[slot]);
+        for (int w = 0; w < maskWords; ++w) {
+          final long before = slotZones[base + w];
+          addToZones(before, w, previousCounts.dwellNanos, elapsed);
+          countZones(zonesNow[w] & ~before, w, classCounts.entries);
+        }
+        countCrossings(slotX[slot], slotY[slot], x, y, classCounts);
+      }
+      for (int w = 0; w < maskWords; ++w) {
+        slotZones[slot * maskWords + w] = zonesNow[w];
+        countZones(zonesNow[w], w, classCounts.occupancy);
+      }
+      slotClasses[slot] = classIndex;
+      slotX[slot] = x;
+      slotY[slot] = y;
+      slotTimes[slot] = timeNanos;
+      slotUpdates[slot] = updates;
+    }
+
+    // Forget the tracks that are gone.
+    for (int i = 0; i < liveCount; ) {
+      final int slot = liveSlots[i];
+      if (slotUpdates[slot] != updates) {
+        slotsById.remove(slotIds[slot], NO_SLOT);
+        freeSlots[freeCount++] = slot;
+        liveSlots[i] = liveSlots[--liveCount];
+      } else {
+        ++i;
+      }
+    }
+  }
+
+  /** Crossings of the line by tracks of all classes in the direction. */
+  public long getCrossings(final int line, final CountingLine.Direction direction) {
+    long total = 0;
+    for (int c = 0; c < counts.size(); ++c) {
+      total += counts.get(c).crossings[line * 2 + direction.ordinal()];
+    }
+    return total;
+  }
+
+  /** Crossings of the line by tracks of the class in the direction. */
+  public long getCrossings(
+      final int line, final String title, final CountingLine.Direction direction) {
+    final ClassCounts classCounts = find(title);
+    return classCounts != null ? classCounts.crossings[line * 2 + direction.ordinal()] : 0;
+  }
+
+  /** Tracks of all classes in the zone at the last update. */
+  public int getOccupancy(final int zone) {
+    int total = 0;
+    for (int c = 0; c < counts.size(); ++c) {
+      total += counts.get(c).occupancy[zone];
+    }
+    return total;
+  }
+
+  /** Tracks of the class in the zone at the last update. */
+  public int getOccupancy(final int zone, final String title) {
+    final ClassCounts classCounts = find(title);
+    return classCounts != null ? (int) classCounts.occupancy[zone] : 0;
+  }
+
+  /** Tracks of the class that entered the zone. */
+  public long getEntries(final int zone, final String title) {
+    final ClassCounts classCounts = find(title);
+    return classCounts != null ? classCounts.entries[zone] : 0;
+  }
+
+  /** Total time tracks of the class spent in the zone. */
+  public long getDwellNanos(final int zone, final String title) {
+    final ClassCounts classCounts = find(title);
+    return classCounts != null ? classCounts.dwellNanos[zone] : 0;
+  }
+
+  @Override
+  public String toString() {
+    final StringBuilder text = new StringBuilder();
+    for (int l = 0; l < lines.size(); ++l) {
+      text.append(
+          String.format(
+              Locale.US,
+              "%s: %d forward, %d backward; ",
+              lines.get(l).getName(),
+              getCrossings(l, CountingLine.Direction.FORWARD),
+              getCrossings(l, CountingLine.Direction.BACKWARD)));
+    }
+    for (int z = 0; z < zones.size(); ++z) {
+      text.append(String.format(Locale.US, "%s: %d now", zones.get(z).getName(), getOccupancy(z)));
+      for (int c = 0; c < classes.size(); ++c) {
+        final long entries = counts.get(c).entries[z];
+        if (entries > 0) {
+          text.append(
+              String.format(
+                  Locale.US,
+                  ", %s %d entered %.1f s",
+                  classes.get(c),
+                  entries,
+                  counts.get(c).dwellNanos[z] / 1e9));
+        }
+      }
+      text.append("; ");
+    }
+    return text.toString();
+  }
+
+  private void countCrossings(
+      final float fromX,
+      final float fromY,
+      final float toX,
+      final float toY,
+      final ClassCounts classCounts) {
+    if (lines.isEmpty() || (fromX == toX && fromY == toY)) {
+      return;
+    }
+    ++testStamp;
+    final int left = grid.cellOf(Math.min(fromX, toX));
+    final int right = grid.cellOf(Math.max(fromX, toX));
+    final int top = grid.cellOf(Math.min(fromY, toY));
+    final int bottom = grid.cellOf(Math.max(fromY, toY));
+    for (int row = top; row <= bottom; ++row) {
+      for (int column = left; column <= right; ++column) {
+        final int cell = row * grid.getSize() + column;
+        for (int i = grid.lineStart(cell); i < grid.lineEnd(cell); ++i) {
+          final int l = grid.lineAt(i);
+          if (lineTested[l] == testStamp) {
+            continue;
+          }
+          lineTested[l] = testStamp;
+          final CountingLine line = lines.get(l);
+          if (line.isCrossedBy(fromX, fromY, toX, toY)) {
+            final CountingLine.Direction direction =
+                line.side(toX, toY) >= 0
+                    ? CountingLine.Direction.FORWARD
+                    : CountingLine.Direction.BACKWARD;
+            ++classCounts.crossings[l * 2 + direction.ordinal()];
+          }
+        }
+      }
+    }
+  }
+
+  private static void countZones(long bits, final int word, final long[] perZone) {
+    while (bits != 0) {
+      ++perZone[(word << 6) + Long.numberOfTrailingZeros(bits)];
+      bits &= bits - 1;
+    }
+  }
+
+  private static void addToZones(
+      long bits, final int word, final long[] perZone, final long amount) {
+    while (bits != 0) {
+      perZone[(word << 6) + Long.numberOfTrailingZeros(bits)] += amount;
+      bits &= bits - 1;
+    }
+  }
+
+  private int classIndexOf(final String title) {
+    final String key = title != null ? title : "";
+    final Integer index = classIndices.get(key);
+    if (index != null) {
+      return index;
+    }
+    classIndices.put(key, classes.size());
+    classes.add(key);
+    counts.add(new ClassCounts(lines.size(), zones.size()));
+    return classes.size() - 1;
+  }
+
+  private ClassCounts find(final String title) {
+    final Integer index = classIndices.get(title);
+    return index != null ? counts.get(index) : null;
+  }
+
+  private int allocateSlot(final int id) {
+    if (freeCount == 0) {
+      final int capacity = Math.max(16, slotIds.length * 2);
+      final int oldCapacity = slotIds.length;
+      slotIds = Arrays.copyOf(slotIds, capacity);
+      slotClasses = Arrays.copyOf(slotClasses, capacity);
+      slotX = Arrays.copyOf(slotX, capacity);
+      slotY = Arrays.copyOf(slotY, capacity);
+      slotTimes = Arrays.copyOf(slotTimes, capacity);
+      slotUpdates = Arrays.copyOf(slotUpdates, capacity);
+      slotZones = Arrays.copyOf(slotZones, capacity * maskWords);
+      liveSlots = Arrays.copyOf(liveSlots, capacity);
+      freeSlots = Arrays.copyOf(freeSlots, capacity);
+      for (int slot = capacity - 1; slot >= oldCapacity; --slot) {
+        freeSlots[freeCount++] = slot;
+      }
+    }
+    final int slot = freeSlots[--freeCount];
+    slotIds[slot] = id;
+    slotsById.put(id, slot);
+    liveSlots[liveCount++] = slot;
+    return slot;
+  }
+
+  private static float clamp(final float value) {
+    return Math.max(0, Math.min(1, value));
+  }
+
+  /** Counts of one class. */
+  private static final class ClassCounts {
+    final long[] crossings;
+    final long[] entries;
+    final long[] dwellNanos;
+    final long[] occupancy;
+
+    ClassCounts(final int lines, final int zones) {
+      crossings = new long[lines * 2];
+      entries = new long[zones];
+      dwellNanos = new long[zones];
+      occupancy = new long[zones];
+    }
+  }
+}
@@ -0,0 +1,56 @@
+package com.motiontracking.analytics;
+
+/**
+ * A polygon tracks are counted in, in normalized frame coordinates from 0 to 1. The polygon may be
+ * concave; self-intersecting polygons follow the even-odd rule.
+ */
+public final class Zone {
+  private final String name;
+  private final float[] points;
+
+  /** @param points {@code x, y} of each vertex in order, at least three vertices. */
+  public Zone(final String name, final float[] points) {
+    if (points.length < 6 || points.length % 2 != 0) {
+      throw new IllegalArgumentException("Zone " + name + " needs three or more x, y vertices");
+    }
+    this.name = name;
+    this.points = points.clone();
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public int getVertexCount() {
+    return points.length / 2;
+  }
+
+  public float getX(final int vertex) {
+    return points[vertex * 2];
+  }
+
+  public float getY(final int vertex) {
+    return points[vertex * 2 + 1];
+  }
+
+  /** Even-odd test against all edges, the reference for the grid lookup. */
+  boolean contains(final float x, final float y) {
+    boolean inside = false;
+    final int n = getVertexCount();
+    for (int i = 0, j = n - 1; i < n; j = i++) {
+      final float xi = getX(i);
+      final float yi = getY(i);
+      final float xj = getX(j);
+      final float yj = getY(j);
+      if ((yi > y) != (yj > y) && x < xi + (y - yi) * (xj - xi) / (yj - yi)) {
+        inside = !inside;
+      }
+    }
+    return inside;
+  }
+
+  @Override
+  public String toString() {
+    return name;
+  }
+}
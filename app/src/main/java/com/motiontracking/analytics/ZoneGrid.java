@@ -0,0 +1,215 @@
+package com.motiontracking.analytics;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Precomputed lookup structures over a coarse grid of the unit square, so the cost of finding the
+ * zones containing a point, or the lines a move may cross, depends on what is near the point rather
+ * than on the number of zones and lines.
+ *
+ * <p>Each cell lists the zones that cover it completely, which need no test, and the zones whose
+ * boundary passes through it. For the latter, the even-odd test only walks the zone's edge table
+ * for the grid row, the edges overlapping the row vertically. Each cell also lists the lines that
+ * pass through it.
+ */
+final class ZoneGrid {
+  // Cells and rows are widened by this much, so points rounding into a neighbouring cell still
+  // find every edge that matters for them.
+  private static final float EPSILON = 1e-5f;
+
+  private final int size;
+  private final float cellSize;
+  private final int zoneCount;
+
+  // Per cell, ranges of fullZones and partialZones.
+  private final int[] fullStart;
+  private final int[] fullZones;
+  private final int[] partialStart;
+  private final int[] partialZones;
+  // Per grid row and zone, a range of the edge table; each edge is x1, y1, x2, y2.
+  private final int[] edgeStart;
+  private final float[] edges;
+  // Per cell, a range of cellLines.
+  private final int[] lineStart;
+  private final int[] cellLines;
+
+  ZoneGrid(final List<Zone> zones, final List<CountingLine> lines, final int size) {
+    this.size = size;
+    cellSize = 1f / size;
+    zoneCount = zones.size();
+    final int cells = size * size;
+
+    final List<Float> edgeList = new ArrayList<>();
+    edgeStart = new int[size * zoneCount + 1];
+    for (int row = 0; row < size; ++row) {
+      final float top = row * cellSize - EPSILON;
+      final float bottom = (row + 1) * cellSize + EPSILON;
+      for (int z = 0; z < zoneCount; ++z) {
+        edgeStart[row * zoneCount + z] = edgeList.size() / 4;
+        final Zone zone = zones.get(z);
+        final int n = zone.getVertexCount();
+        // Same edge order and orientation as Zone.contains, for identical results.
+        for (int i = 0, j = n - 1; i < n; j = i++) {
+          final float yi = zone.getY(i);
+          final float yj = zone.getY(j);
+          if (Math.max(yi, yj) >= top && Math.min(yi, yj) <= bottom) {
+            edgeList.add(zone.getX(i));
+            edgeList.add(yi);
+            edgeList.add(zone.getX(j));
+            edgeList.add(yj);
+          }
+        }
+      }
+    }
+    edgeStart[size * zoneCount] = edgeList.size() / 4;
+    edges = new float[edgeList.size()];
+    for (int i = 0; i < edges.length; ++i) {
+      edges[i] = edgeList.get(i);
+    }
+
+    final List<Integer> full = new ArrayList<>();
+    final List<Integer> partial = new ArrayList<>();
+    final List<Integer> cellLineList = new ArrayList<>();
+    fullStart = new int[cells + 1];
+    partialStart = new int[cells + 1];
+    lineStart = new int[cells + 1];
+    for (int cell = 0; cell < cells; ++cell) {
+      final float left = (cell % size) * cellSize - EPSILON;
+      final float top = (cell / size) * cellSize - EPSILON;
+      final float right = (cell % size + 1) * cellSize + EPSILON;
+      final float bottom = (cell / size + 1) * cellSize + EPSILON;
+      fullStart[cell] = full.size();
+      partialStart[cell] = partial.size();
+      lineStart[cell] = cellLineList.size();
+      for (int z = 0; z < zoneCount; ++z) {
+        final Zone zone = zones.get(z);
+        boolean boundary = false;
+        final int n = zone.getVertexCount();
+        for (int i = 0, j = n - 1; i < n && !boundary; j = i++) {
+          boundary =
+              segmentTouchesRect(
+                  zone.getX(j), zone.getY(j), zone.getX(i), zone.getY(i),
+                  left, top, right, bottom);
+        }
+        if (boundary) {
+          partial.add(z);
+        } else if (zone.contains((left + right) / 2, (top + bottom) / 2)) {
+          full.add(z);
+        }
+      }
+      for (int l = 0; l < lines.size(); ++l) {
+        final CountingLine line = lines.get(l);
+        if (segmentTouchesRect(
+            line.getX1(), line.getY1(), line.getX2(), line.getY2(), left, top, right, bottom)) {
+          cellLineList.add(l);
+        }
+      }
+    }
+    fullStart[cells] = full.size();
+    partialStart[cells] = partial.size();
+    lineStart[cells] = cellLineList.size();
+    fullZones = toArray(full);
+    partialZones = toArray(partial);
+    cellLines = toArray(cellLineList);
+  }
+
+  int getSize() {
+    return size;
+  }
+
+  /** Grid column or row of a normalized coordinate, clamped to the grid. */
+  int cellOf(final float coordinate) {
+    return Math.max(0, Math.min(size - 1, (int) (coordinate * size)));
+  }
+
+  /**
+   * Sets the bits of the zones containing the point in {@code mask}, which has a bit per zone and
+   * is cleared first.
+   */
+  void zonesAt(final float x, final float y, final long[] mask, final int maskOffset) {
+    final int words = (zoneCount + 63) >>> 6;
+    for (int w = 0; w < words; ++w) {
+      mask[maskOffset + w] = 0;
+    }
+    final int row = cellOf(y);
+    final int cell = row * size + cellOf(x);
+    for (int i = fullStart[cell]; i < fullStart[cell + 1]; ++i) {
+      final int z = fullZones[i];
+      mask[maskOffset + (z >>> 6)] |= 1L << z;
+    }
+    for (int i = partialStart[cell]; i < partialStart[cell + 1]; ++i) {
+      final int z = partialZones[i];
+      boolean inside = false;
+      final int edgeEnd = edgeStart[row * zoneCount + z + 1];
+      for (int e = edgeStart[row * zoneCount + z] * 4; e < edgeEnd * 4; e += 4) {
+        final float xi = edges[e];
+        final float yi = edges[e + 1];
+        final float xj = edges[e + 2];
+        final float yj = edges[e + 3];
+        if ((yi > y) != (yj > y) && x < xi + (y - yi) * (xj - xi) / (yj - yi)) {
+          inside = !inside;
+        }
+      }
+      if (inside) {
+        mask[maskOffset + (z >>> 6)] |= 1L << z;
+      }
+    }
+  }
+
+  int lineStart(final int cell) {
+    return lineStart[cell];
+  }
+
+  int lineEnd(final int cell) {
+    return lineStart[cell + 1];
+  }
+
+  int lineAt(final int i) {
+    return cellLines[i];
+  }
+
+  /** Liang-Barsky clipping of the segment against the closed rectangle. */
+  static boolean segmentTouchesRect(
+      final float x1,
+      final float y1,
+      final float x2,
+      final float y2,
+      final float left,
+      final float top,
+      final float right,
+      final float bottom) {
+    final float dx = x2 - x1;
+    final float dy = y2 - y1;
+    final float[] p = {-dx, dx, -dy, dy};
+    final float[] q = {x1 - left, right - x1, y1 - top, bottom - y1};
+    float t0 = 0;
+    float t1 = 1;
+    for (int i = 0; i < 4; ++i) {
+      if (p[i] == 0) {
+        if (q[i] < 0) {
+          return false;
+        }
+      } else {
+        final float t = q[i] / p[i];
+        if (p[i] < 0) {
+          t0 = Math.max(t0, t);
+        } else {
+          t1 = Math.min(t1, t);
+        }
+        if (t0 > t1) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  private static int[] toArray(final List<Integer> list) {
+    final int[] array = new int[list.size()];
+    for (int i = 0; i < array.length; ++i) {
+      array[i] = list.get(i);
+    }
+    return array;
+  }
+}
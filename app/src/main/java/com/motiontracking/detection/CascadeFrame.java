@@ -0,0 +1,90 @@
+package com.motiontracking.detection;
+
+import com.motiontracking.utils.LumaPyramid;
+
+/**
+ * The inputs a {@link DetectionCascade} gate can look at for one frame. Instances are reused from
+ * frame to frame, gates must not keep references to the luminance plane. Gates that look at a
+ * lower resolution take it from the frame's {@link LumaPyramid}, shared with the other analyses of
+ * the frame.
+ */
+public class CascadeFrame {
+  // Depth of the pyramid of frames set from a bare luminance plane.
+  private static final int OWN_PYRAMID_LEVELS = 4;
+
+  private LumaPyramid ownPyramid;
+  LumaPyramid pyramid;
+  byte[] luma;
+  int width;
+  int height;
+  int rowStride;
+  long frameIndex;
+  int trackCount;
+
+  /**
+   * @param luma Y plane of the frame.
+   * @param width Width of the frame in pixels.
+   * @param height Height of the frame in pixels.
+   * @param rowStride Distance between two rows of the Y plane in bytes.
+   * @param frameIndex Increasing index of the frame.
+   * @param trackCount Number of objects currently tracked.
+   */
+  public CascadeFrame set(
+      final byte[] luma,
+      final int width,
+      final int height,
+      final int rowStride,
+      final long frameIndex,
+      final int trackCount) {
+    if (ownPyramid == null) {
+      ownPyramid = new LumaPyramid(OWN_PYRAMID_LEVELS);
+    }
+    ownPyramid.setFrame(luma, width, height, rowStride);
+    return set(ownPyramid, frameIndex, trackCount);
+  }
+
+  /**
+   * @param pyramid Pyramid already set to the frame.
+   * @param frameIndex Increasing index of the frame.
+   * @param trackCount Number of objects currently tracked.
+   */
+  public CascadeFrame set(final LumaPyramid pyramid, final long frameIndex, final int trackCount) {
+    final LumaPyramid.Level base = pyramid.getLevel(0);
+    this.pyramid = pyramid;
+    this.luma = base.getPixels();
+    this.width = base.getWidth();
+    this.height = base.getHeight();
+    this.rowStride = base.getStride();
+    this.frameIndex = frameIndex;
+    this.trackCount = trackCount;
+    return this;
+  }
+
+  public LumaPyramid getPyramid() {
+    return pyramid;
+  }
+
+  public byte[] getLuma() {
+    return luma;
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  public int getHeight() {
+    return height;
+  }
+
+  public int getRowStride() {
+    return rowStride;
+  }
+
+  public long getFrameIndex() {
+    return frameIndex;
+  }
+
+  public int getTrackCount() {
+    return trackCount;
+  }
+}
@@ -0,0 +1,167 @@
+package com.motiontracking.detection;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A two-stage detection cascade: cheap gates look at every frame and decide whether, and where, the
+ * expensive detector has to run. Gates are asked in order until one of them short-circuits with
+ * {@link Verdict#DETECT} or {@link Verdict#SKIP}; if all of them pass, the detector runs.
+ */
+public class DetectionCascade {
+  /** The answer of a gate for one frame. */
+  public enum Verdict {
+    /** Run the detector, don't ask the remaining gates. */
+    DETECT,
+    /** Don't run the detector on this frame, don't ask the remaining gates. */
+    SKIP,
+    /** No opinion, ask the next gate. */
+    PASS
+  }
+
+  /** A cheap first-stage test run on every frame. */
+  public interface Gate {
+    String getName();
+
+    /**
+     * Decides on the frame. Gates answering {@link Verdict#DETECT} may narrow the area the detector
+     * has to look at by writing a {@code left, top, right, bottom} box in frame coordinates into
+     * {@code region} and returning true from {@link #hasRegion()}.
+     */
+    Verdict evaluate(CascadeFrame frame, float[] region);
+
+    /** Whether the last {@link Verdict#DETECT} came with a region. */
+    boolean hasRegion();
+
+    /** Called for every frame once the cascade decided, even if this gate was not asked. */
+    void endFrame(CascadeFrame frame, boolean detected);
+  }
+
+  private final Gate[] gates;
+  private final long[] evaluations;
+  private final long[] detects;
+  private final long[] skips;
+  private long frames;
+  private long detections;
+
+  private final float[] region = new float[4];
+  private boolean regionValid;
+
+  public DetectionCascade(final Gate... gates) {
+    this.gates = gates.clone();
+    evaluations = new long[gates.length];
+    detects = new long[gates.length];
+    skips = new long[gates.length];
+  }
+
+  /** Returns whether the detector has to run on the frame. */
+  public synchronized boolean shouldDetect(final CascadeFrame frame) {
+    ++frames;
+    regionValid = false;
+    Verdict verdict = Verdict.PASS;
+    for (int i = 0; i < gates.length && verdict == Verdict.PASS; ++i) {
+      ++evaluations[i];
+      verdict = gates[i].evaluate(frame, region);
+      if (verdict == Verdict.DETECT) {
+        ++detects[i];
+        regionValid = gates[i].hasRegion();
+      } else if (verdict == Verdict.SKIP) {
+        ++skips[i];
+      }
+    }
+    final boolean detect = verdict != Verdict.SKIP;
+    for (final Gate gate : gates) {
+      gate.endFrame(frame, detect);
+    }
+    if (detect) {
+      ++detections;
+    }
+    return detect;
+  }
+
+  /**
+   * Copies the area the detector has to cover for the last frame into {@code out}. Returns false if
+   * the whole frame has to be covered.
+   */
+  public synchronized boolean getRegion(final float[] out) {
+    if (!regionValid) {
+      return false;
+    }
+    System.arraycopy(region, 0, out, 0, 4);
+    return true;
+  }
+
+  public synchronized Stats getStats() {
+    final List<GateStats> gateStats = new ArrayList<>(gates.length);
+    for (int i = 0; i < gates.length; ++i) {
+      gateStats.add(new GateStats(gates[i].getName(), evaluations[i], detects[i], skips[i]));
+    }
+    return new Stats(frames, detections, gateStats);
+  }
+
+  public synchronized void resetStats() {
+    frames = 0;
+    detections = 0;
+    Arrays.fill(evaluations, 0);
+    Arrays.fill(detects, 0);
+    Arrays.fill(skips, 0);
+  }
+
+  /** How often the cascade and each of its gates short-circuited. */
+  public static final class Stats {
+    public final long frames;
+    public final long detections;
+    public final List<GateStats> gates;
+
+    Stats(final long frames, final long detections, final List<GateStats> gates) {
+      this.frames = frames;
+      this.detections = detections;
+      this.gates = Collections.unmodifiableList(gates);
+    }
+
+    /** Fraction of frames the detector did not run on. */
+    public float getSkipRate() {
+      return frames == 0 ? 0 : 1.0f - detections / (float) frames;
+    }
+
+    @Override
+    public String toString() {
+      final StringBuilder builder =
+          new StringBuilder(
+              String.format(
+                  Locale.ENGLISH,
+                  "%d frames, %d detections (%.1f%% skipped)",
+                  frames,
+                  detections,
+                  100 * getSkipRate()));
+      for (final GateStats gate : gates) {
+        builder.append("; ").append(gate);
+      }
+      return builder.toString();
+    }
+  }
+
+  /** Short-circuit counters of a single gate. */
+  public static final class GateStats {
+    public final String name;
+    public final long evaluations;
+    public final long detects;
+    public final long skips;
+
+    GateStats(final String name, final long evaluations, final long detects, final long skips) {
+      this.name = name;
+      this.evaluations = evaluations;
+      this.detects = detects;
+      this.skips = skips;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          Locale.ENGLISH, "%s: %d asked, %d detect, %d skip", name, evaluations, detects, skips);
+    }
+  }
+}
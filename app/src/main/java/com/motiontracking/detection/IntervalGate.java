@@ -0,0 +1,38 @@
+package com.motiontracking.detection;
+
+/**
+ * Forces a full-frame detection when the detector has not run for too many frames, so that objects
+ * which entered the scene without triggering any other gate are still found.
+ */
+public class IntervalGate implements DetectionCascade.Gate {
+  private final int maxFramesWithoutDetection;
+  private long lastDetectionFrame = Long.MIN_VALUE / 2;
+
+  public IntervalGate(final int maxFramesWithoutDetection) {
+    this.maxFramesWithoutDetection = maxFramesWithoutDetection;
+  }
+
+  @Override
+  public String getName() {
+    return "interval";
+  }
+
+  @Override
+  public DetectionCascade.Verdict evaluate(final CascadeFrame frame, final float[] region) {
+    return frame.frameIndex - lastDetectionFrame >= maxFramesWithoutDetection
+        ? DetectionCascade.Verdict.DETECT
+        : DetectionCascade.Verdict.PASS;
+  }
+
+  @Override
+  public boolean hasRegion() {
+    return false;
+  }
+
+  @Override
+  public void endFrame(final CascadeFrame frame, final boolean detected) {
+    if (detected) {
+      lastDetectionFrame = frame.frameIndex;
+    }
+  }
+}
@@ -0,0 +1,133 @@
+package com.motiontracking.detection;
+
+import com.motiontracking.utils.LumaPyramid;
+
+/**
+ * Compares a downscaled luminance grid of the frame, a level of its {@link LumaPyramid}, with the
+ * one of the previous frame the cascade saw. Frames in which too few blocks changed are skipped;
+ * otherwise the detector runs on the padded bounding box of the blocks that changed.
+ */
+public class MotionGate implements DetectionCascade.Gate {
+  private final int sampleStep;
+  private final int level;
+  private final int blockSamples;
+  private final int blockThreshold;
+  private final float minMovingFraction;
+  private final float regionPadding;
+
+  // The grid of the previous frame, retained from its pyramid.
+  private LumaPyramid.Level previous;
+  private boolean regionValid;
+  private float lastMovingFraction;
+
+  /**
+   * @param sampleStep Distance in pixels between two luminance samples, each the mean of the pixels
+   *     around it; a power of two from 2.
+   * @param blockSamples Width and height of a block in samples.
+   * @param pixelThreshold Mean absolute luminance difference from which on a block has changed.
+   * @param minMovingFraction Fraction of changed blocks below which the frame is skipped.
+   * @param regionPadding Padding added around the changed blocks, relative to their extent.
+   */
+  public MotionGate(
+      final int sampleStep,
+      final int blockSamples,
+      final int pixelThreshold,
+      final float minMovingFraction,
+      final float regionPadding) {
+    if (sampleStep < 2 || Integer.bitCount(sampleStep) != 1) {
+      throw new IllegalArgumentException("Sample step " + sampleStep + " is no power of two");
+    }
+    this.sampleStep = sampleStep;
+    this.level = Integer.numberOfTrailingZeros(sampleStep);
+    this.blockSamples = blockSamples;
+    this.blockThreshold = pixelThreshold * blockSamples * blockSamples;
+    this.minMovingFraction = minMovingFraction;
+    this.regionPadding = regionPadding;
+  }
+
+  @Override
+  public String getName() {
+    return "motion";
+  }
+
+  /** Fraction of blocks that changed in the last evaluated frame. */
+  public float getLastMovingFraction() {
+    return lastMovingFraction;
+  }
+
+  @Override
+  public DetectionCascade.Verdict evaluate(final CascadeFrame frame, final float[] region) {
+    final LumaPyramid.Level current = frame.pyramid.getLevel(level);
+    regionValid = false;
+    if (previous == null
+        || previous.getWidth() != current.getWidth()
+        || previous.getHeight() != current.getHeight()) {
+      return DetectionCascade.Verdict.PASS;
+    }
+
+    final byte[] currentGrid = current.getPixels();
+    final byte[] previousGrid = previous.getPixels();
+    final int gridWidth = current.getWidth();
+    final int gridHeight = current.getHeight();
+    final int blocksX = gridWidth / blockSamples;
+    final int blocksY = gridHeight / blockSamples;
+    int moving = 0;
+    int minBx = Integer.MAX_VALUE;
+    int minBy = Integer.MAX_VALUE;
+    int maxBx = -1;
+    int maxBy = -1;
+    for (int by = 0; by < blocksY; ++by) {
+      for (int bx = 0; bx < blocksX; ++bx) {
+        int difference = 0;
+        for (int y = by * blockSamples; y < (by + 1) * blockSamples; ++y) {
+          int i = y * gridWidth + bx * blockSamples;
+          final int end = i + blockSamples;
+          for (; i < end; ++i) {
+            final int d = (currentGrid[i] & 0xFF) - (previousGrid[i] & 0xFF);
+            difference += d < 0 ? -d : d;
+          }
+        }
+        if (difference > blockThreshold) {
+          ++moving;
+          minBx = Math.min(minBx, bx);
+          minBy = Math.min(minBy, by);
+          maxBx = Math.max(maxBx, bx);
+          maxBy = Math.max(maxBy, by);
+        }
+      }
+    }
+
+    final int blocks = blocksX * blocksY;
+    lastMovingFraction = blocks == 0 ? 0 : moving / (float) blocks;
+    if (moving == 0 || lastMovingFraction < minMovingFraction) {
+      return DetectionCascade.Verdict.SKIP;
+    }
+
+    final float blockPixels = blockSamples * sampleStep;
+    final float left = minBx * blockPixels;
+    final float top = minBy * blockPixels;
+    final float right = (maxBx + 1) * blockPixels;
+    final float bottom = (maxBy + 1) * blockPixels;
+    final float padX = (right - left) * regionPadding;
+    final float padY = (bottom - top) * regionPadding;
+    region[0] = Math.max(0, left - padX);
+    region[1] = Math.max(0, top - padY);
+    region[2] = Math.min(frame.width, right + padX);
+    region[3] = Math.min(frame.height, bottom + padY);
+    regionValid = true;
+    return DetectionCascade.Verdict.DETECT;
+  }
+
+  @Override
+  public boolean hasRegion() {
+    return regionValid;
+  }
+
+  @Override
+  public void endFrame(final CascadeFrame frame, final boolean detected) {
+    if (previous != null) {
+      previous.release();
+    }
+    previous = frame.pyramid.getLevel(level).retain();
+  }
+}
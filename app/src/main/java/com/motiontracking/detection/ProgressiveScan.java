@@ -0,0 +1,187 @@
+package com.motiontracking.detection;
+
+import com.motiontracking.tracking.TrackSnapshot;
+import com.motiontracking.utils.IntIntMap;
+
+/**
+ * Plans which parts of the frame the detector looks at, so every frame costs the same fixed number
+ * of detector runs however large the frame. The frame is covered by a grid of overlapping tiles;
+ * each frame gets a budget of tiles, and the windows around tracked objects come first, the track
+ * that was looked at longest ago first. The rest of the budget goes to the grid, which is scanned
+ * tile by tile over successive frames and ends each round with a view of the whole frame, for
+ * objects larger than a tile. New objects are therefore found anywhere within one round.
+ *
+ * <p>With a budget of one tile, frames alternate between the windows around tracks and the grid.
+ * Results of the tiles are combined with those of earlier frames by a {@link TileResultMerger}.
+ *
+ * <p>Not thread-safe; used by the camera thread only.
+ */
+public class ProgressiveScan {
+  private final int columns;
+  private final int rows;
+  private final float overlap;
+  private final int tilesPerFrame;
+  private final float trackMargin;
+
+  private long frame;
+  private int nextView;
+  // Frame in which each track was last inside a window, by track id.
+  private IntIntMap coveredFrames = new IntIntMap(16);
+  private IntIntMap nextCoveredFrames = new IntIntMap(16);
+  private boolean[] covered = new boolean[16];
+
+  /**
+   * @param overlap Fraction of a tile shared with each neighbour, so objects on a border are whole
+   *     in one of the tiles.
+   * @param tilesPerFrame Detector runs per frame.
+   * @param trackMargin Margin added on each side of a track's box for its window, relative to the
+   *     box size, so the object is still inside after moving.
+   */
+  public ProgressiveScan(
+      final int columns,
+      final int rows,
+      final float overlap,
+      final int tilesPerFrame,
+      final float trackMargin) {
+    if (columns < 1 || rows < 1 || overlap < 0 || overlap >= 1 || tilesPerFrame < 1) {
+      throw new IllegalArgumentException(
+          "Invalid scan of " + columns + "x" + rows + " tiles, " + tilesPerFrame + " per frame");
+    }
+    this.columns = columns;
+    this.rows = rows;
+    this.overlap = overlap;
+    this.tilesPerFrame = tilesPerFrame;
+    this.trackMargin = trackMargin;
+  }
+
+  public int getTilesPerFrame() {
+    return tilesPerFrame;
+  }
+
+  /** Number of views in a round of the grid, the tiles and the whole frame. */
+  public int getViewsPerRound() {
+    return columns * rows + 1;
+  }
+
+  /**
+   * Plans the next frame.
+   *
+   * @param tracks The tracks of the latest update, in frame coordinates.
+   * @param tiles Receives {@code left, top, right, bottom} of each tile in frame coordinates, at
+   *     least {@code 4 *} {@link #getTilesPerFrame()} floats.
+   * @return The number of tiles written.
+   */
+  public int plan(
+      final int frameWidth, final int frameHeight, final TrackSnapshot tracks, final float[] tiles) {
+    final float tileWidth = frameWidth / (columns * (1 - overlap) + overlap);
+    final float tileHeight = frameHeight / (rows * (1 - overlap) + overlap);
+    final int trackSlots =
+        tracks.size() == 0 ? 0 : tilesPerFrame > 1 ? tilesPerFrame - 1 : (int) (frame & 1);
+
+    final int count = tracks.size();
+    if (covered.length < count) {
+      covered = new boolean[count];
+    }
+    nextCoveredFrames.clear();
+    for (int i = 0; i < count; ++i) {
+      covered[i] = false;
+      nextCoveredFrames.put(tracks.getId(i), coveredFrames.get(tracks.getId(i), -1));
+    }
+
+    int planned = 0;
+    while (planned < trackSlots) {
+      // The track looked at longest ago.
+      int oldest = -1;
+      int oldestFrame = Integer.MAX_VALUE;
+      for (int i = 0; i < count; ++i) {
+        final int coveredFrame = nextCoveredFrames.get(tracks.getId(i), -1);
+        if (!covered[i] && coveredFrame < oldestFrame) {
+          oldest = i;
+          oldestFrame = coveredFrame;
+        }
+      }
+      if (oldest < 0) {
+        break;
+      }
+      final int t = 4 * planned++;
+      trackWindow(tracks, oldest, frameWidth, frameHeight, tileWidth, tileHeight, tiles, t);
+      for (int i = 0; i < count; ++i) {
+        if (tracks.getLeft(i) >= tiles[t]
+            && tracks.getTop(i) >= tiles[t + 1]
+            && tracks.getRight(i) <= tiles[t + 2]
+            && tracks.getBottom(i) <= tiles[t + 3]) {
+          covered[i] = true;
+          nextCoveredFrames.put(tracks.getId(i), (int) frame);
+        }
+      }
+      // A track too large for any window still counts as looked at.
+      covered[oldest] = true;
+      nextCoveredFrames.put(tracks.getId(oldest), (int) frame);
+    }
+
+    while (planned < tilesPerFrame) {
+      gridView(nextView, frameWidth, frameHeight, tileWidth, tileHeight, tiles, 4 * planned++);
+      nextView = (nextView + 1) % getViewsPerRound();
+    }
+
+    final IntIntMap swap = coveredFrames;
+    coveredFrames = nextCoveredFrames;
+    nextCoveredFrames = swap;
+    ++frame;
+    return planned;
+  }
+
+  /** The track's box with margins, grown to at least a tile and kept inside the frame. */
+  private void trackWindow(
+      final TrackSnapshot tracks,
+      final int i,
+      final int frameWidth,
+      final int frameHeight,
+      final float tileWidth,
+      final float tileHeight,
+      final float[] tiles,
+      final int t) {
+    final float width = tracks.getRight(i) - tracks.getLeft(i);
+    final float height = tracks.getBottom(i) - tracks.getTop(i);
+    final float windowWidth =
+        Math.min(frameWidth, Math.max(tileWidth, width * (1 + 2 * trackMargin)));
+    final float windowHeight =
+        Math.min(frameHeight, Math.max(tileHeight, height * (1 + 2 * trackMargin)));
+    final float centerX = (tracks.getLeft(i) + tracks.getRight(i)) / 2;
+    final float centerY = (tracks.getTop(i) + tracks.getBottom(i)) / 2;
+    final float left = clamp(centerX - windowWidth / 2, 0, frameWidth - windowWidth);
+    final float top = clamp(centerY - windowHeight / 2, 0, frameHeight - windowHeight);
+    tiles[t] = left;
+    tiles[t + 1] = top;
+    tiles[t + 2] = left + windowWidth;
+    tiles[t + 3] = top + windowHeight;
+  }
+
+  /** A tile of the grid, row by row, or the whole frame after the last tile. */
+  private void gridView(
+      final int view,
+      final int frameWidth,
+      final int frameHeight,
+      final float tileWidth,
+      final float tileHeight,
+      final float[] tiles,
+      final int t) {
+    if (view == columns * rows) {
+      tiles[t] = 0;
+      tiles[t + 1] = 0;
+      tiles[t + 2] = frameWidth;
+      tiles[t + 3] = frameHeight;
+      return;
+    }
+    final float left = (view % columns) * tileWidth * (1 - overlap);
+    final float top = (view / columns) * tileHeight * (1 - overlap);
+    tiles[t] = left;
+    tiles[t + 1] = top;
+    tiles[t + 2] = Math.min(frameWidth, left + tileWidth);
+    tiles[t + 3] = Math.min(frameHeight, top + tileHeight);
+  }
+
+  private static float clamp(final float value, final float min, final float max) {
+    return Math.max(min, Math.min(max, value));
+  }
+}
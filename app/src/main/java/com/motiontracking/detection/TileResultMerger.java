@@ -0,0 +1,196 @@
+package com.motiontracking.detection;
+
+import java.util.Arrays;
+
+/**
+ * Combines the detections of the tiles of a {@link ProgressiveScan} with those of earlier frames
+ * into one set of results covering the whole frame. Results of a tile replace what earlier frames
+ * found inside it; results elsewhere are kept and fade out: their confidence falls linearly with
+ * their age and they are dropped at the maximum age, so objects that left a part of the frame not
+ * looked at again soon do not linger.
+ *
+ * <p>Detections of the same class that overlap strongly, either because tiles overlap or because a
+ * tile cut an object that another tile saw whole, are merged into the more confident one.
+ *
+ * <p>Used by one thread at a time: {@link #begin}, {@link #add} for every detection of the scanned
+ * tiles, {@link #end}, then the results can be read.
+ */
+public class TileResultMerger {
+  // Overlap from which two detections of the same class are the same object.
+  private static final float SAME_OBJECT_IOU = 0.5f;
+  // Share of the smaller box inside the larger one from which it is a part of the same object.
+  private static final float SAME_OBJECT_CONTAINMENT = 0.8f;
+
+  private final long maxAgeNanos;
+  private float[] tiles = new float[16];
+  private int tileCount;
+  private long timeNanos;
+
+  // Results, the kept ones first, then the ones added in this update.
+  private int size;
+  private int keptSize;
+  private float[] boxes = new float[64];
+  private float[] confidences = new float[16];
+  private long[] times = new long[16];
+  private String[] titles = new String[16];
+  private boolean[] removed = new boolean[16];
+
+  /** @param maxAgeNanos Age at which a result not confirmed by a new scan is dropped. */
+  public TileResultMerger(final long maxAgeNanos) {
+    this.maxAgeNanos = maxAgeNanos;
+  }
+
+  /** Forgets all results. */
+  public void clear() {
+    Arrays.fill(titles, 0, size, null);
+    size = 0;
+    keptSize = 0;
+  }
+
+  /**
+   * Starts the update with the results of tiles detected at the time.
+   *
+   * @param tiles {@code left, top, right, bottom} of each tile in frame coordinates.
+   */
+  public void begin(final float[] tiles, final int tileCount, final long timeNanos) {
+    if (this.tiles.length < 4 * tileCount) {
+      this.tiles = new float[4 * tileCount];
+    }
+    System.arraycopy(tiles, 0, this.tiles, 0, 4 * tileCount);
+    this.tileCount = tileCount;
+    this.timeNanos = timeNanos;
+    keptSize = size;
+  }
+
+  /** Adds a detection of one of the tiles, in frame coordinates. */
+  public void add(
+      final float left,
+      final float top,
+      final float right,
+      final float bottom,
+      final String title,
+      final float confidence) {
+    if (size == titles.length) {
+      final int capacity = size * 2;
+      boxes = Arrays.copyOf(boxes, 4 * capacity);
+      confidences = Arrays.copyOf(confidences, capacity);
+      times = Arrays.copyOf(times, capacity);
+      titles = Arrays.copyOf(titles, capacity);
+      removed = Arrays.copyOf(removed, capacity);
+    }
+    boxes[4 * size] = left;
+    boxes[4 * size + 1] = top;
+    boxes[4 * size + 2] = right;
+    boxes[4 * size + 3] = bottom;
+    confidences[size] = confidence;
+    times[size] = timeNanos;
+    titles[size] = title;
+    ++size;
+  }
+
+  /** Replaces the results inside the tiles, merges duplicates and drops expired results. */
+  public void end() {
+    Arrays.fill(removed, 0, size, false);
+    for (int i = 0; i < keptSize; ++i) {
+      removed[i] = timeNanos - times[i] > maxAgeNanos || insideTile(i);
+    }
+    // New detections against the kept results and each other.
+    for (int i = keptSize; i < size; ++i) {
+      for (int j = 0; j < i && !removed[i]; ++j) {
+        if (removed[j] || !sameObject(i, j)) {
+          continue;
+        }
+        if (j < keptSize || confidences[j] < confidences[i]) {
+          removed[j] = true;
+        } else {
+          removed[i] = true;
+        }
+      }
+    }
+    int kept = 0;
+    for (int i = 0; i < size; ++i) {
+      if (removed[i]) {
+        continue;
+      }
+      if (kept != i) {
+        System.arraycopy(boxes, 4 * i, boxes, 4 * kept, 4);
+        confidences[kept] = confidences[i];
+        times[kept] = times[i];
+        titles[kept] = titles[i];
+      }
+      ++kept;
+    }
+    Arrays.fill(titles, kept, size, null);
+    size = kept;
+    keptSize = kept;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public float getLeft(final int i) {
+    return boxes[4 * i];
+  }
+
+  public float getTop(final int i) {
+    return boxes[4 * i + 1];
+  }
+
+  public float getRight(final int i) {
+    return boxes[4 * i + 2];
+  }
+
+  public float getBottom(final int i) {
+    return boxes[4 * i + 3];
+  }
+
+  public String getTitle(final int i) {
+    return titles[i];
+  }
+
+  /** How long ago the result was detected, as of the last update. */
+  public long getAgeNanos(final int i) {
+    return timeNanos - times[i];
+  }
+
+  /** The confidence of the detection, faded by its age. */
+  public float getConfidence(final int i) {
+    return confidences[i] * Math.max(0, 1 - getAgeNanos(i) / (float) maxAgeNanos);
+  }
+
+  /** Whether a tile of this update saw the whole box, so its results replace it. */
+  private boolean insideTile(final int i) {
+    for (int t = 0; t < 4 * tileCount; t += 4) {
+      if (boxes[4 * i] >= tiles[t]
+          && boxes[4 * i + 1] >= tiles[t + 1]
+          && boxes[4 * i + 2] <= tiles[t + 2]
+          && boxes[4 * i + 3] <= tiles[t + 3]) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private boolean sameObject(final int i, final int j) {
+    if (titles[i] == null ? titles[j] != null : !titles[i].equals(titles[j])) {
+      return false;
+    }
+    final float interLeft = Math.max(boxes[4 * i], boxes[4 * j]);
+    final float interTop = Math.max(boxes[4 * i + 1], boxes[4 * j + 1]);
+    final float interRight = Math.min(boxes[4 * i + 2], boxes[4 * j + 2]);
+    final float interBottom = Math.min(boxes[4 * i + 3], boxes[4 * j + 3]);
+    if (interRight <= interLeft || interBottom <= interTop) {
+      return false;
+    }
+    final float intersection = (interRight - interLeft) * (interBottom - interTop);
+    final float areaI = area(i);
+    final float areaJ = area(j);
+    return intersection / (areaI + areaJ - intersection) >= SAME_OBJECT_IOU
+        || intersection / Math.min(areaI, areaJ) >= SAME_OBJECT_CONTAINMENT;
+  }
+
+  private float area(final int i) {
+    return (boxes[4 * i + 2] - boxes[4 * i]) * (boxes[4 * i + 3] - boxes[4 * i + 1]);
+  }
+}
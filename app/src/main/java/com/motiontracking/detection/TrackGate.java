@@ -0,0 +1,34 @@
+package com.motiontracking.detection;
+
+/**
+ * Keeps the detector running on the full frame while the previous frames' detections are still
+ * being tracked, so tracked objects are followed even when they move slowly.
+ */
+public class TrackGate implements DetectionCascade.Gate {
+  private final int minTracks;
+
+  /** @param minTracks Number of tracked objects from which on every frame is detected. */
+  public TrackGate(final int minTracks) {
+    this.minTracks = minTracks;
+  }
+
+  @Override
+  public String getName() {
+    return "tracks";
+  }
+
+  @Override
+  public DetectionCascade.Verdict evaluate(final CascadeFrame frame, final float[] region) {
+    return frame.trackCount >= minTracks
+        ? DetectionCascade.Verdict.DETECT
+        : DetectionCascade.Verdict.PASS;
+  }
+
+  @Override
+  public boolean hasRegion() {
+    return false;
+  }
+
+  @Override
+  public void endFrame(final CascadeFrame frame, final boolean detected) {}
+}
@@ -0,0 +1,181 @@
+package com.motiontracking.evaluation;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The ground truth of a video sequence: for every frame the boxes of the annotated objects, in
+ * frame coordinates, and the identifiers that follow each object through the sequence.
+ *
+ * <p>Sequences are read from the {@code gt.txt} files of the MOTChallenge benchmarks, one line per
+ * box of {@code frame, id, left, top, width, height[, confidence, class, visibility]} with frames
+ * counted from 1; boxes with a confidence of 0 are to be ignored and are left out. Synthetic
+ * sequences are put together with a {@link Builder}.
+ */
+public final class AnnotatedSequence {
+  private final String name;
+  private final int width;
+  private final int height;
+  // Boxes of frame f are the entries frameStarts[f] to frameStarts[f + 1] - 1.
+  private final int[] frameStarts;
+  private final int[] ids;
+  private final float[] boxes;
+
+  private AnnotatedSequence(
+      final String name,
+      final int width,
+      final int height,
+      final int[] frameStarts,
+      final int[] ids,
+      final float[] boxes) {
+    this.name = name;
+    this.width = width;
+    this.height = height;
+    this.frameStarts = frameStarts;
+    this.ids = ids;
+    this.boxes = boxes;
+  }
+
+  /** Puts a sequence together frame by frame. */
+  public static final class Builder {
+    private final String name;
+    private final int width;
+    private final int height;
+    private final List<List<float[]>> frames = new ArrayList<>();
+
+    public Builder(final String name, final int width, final int height) {
+      this.name = name;
+      this.width = width;
+      this.height = height;
+    }
+
+    /** Makes the sequence at least {@code count} frames long, even if its last frames are empty. */
+    public Builder setFrameCount(final int count) {
+      while (frames.size() < count) {
+        frames.add(new ArrayList<float[]>());
+      }
+      return this;
+    }
+
+    /** Adds the box of an object to a frame, counted from 0. */
+    public Builder add(
+        final int frame,
+        final int id,
+        final float left,
+        final float top,
+        final float right,
+        final float bottom) {
+      if (frame < 0) {
+        throw new IllegalArgumentException("Invalid frame " + frame);
+      }
+      setFrameCount(frame + 1);
+      frames.get(frame).add(new float[] {id, left, top, right, bottom});
+      return this;
+    }
+
+    public AnnotatedSequence build() {
+      int count = 0;
+      for (final List<float[]> frame : frames) {
+        count += frame.size();
+      }
+      final int[] frameStarts = new int[frames.size() + 1];
+      final int[] ids = new int[count];
+      final float[] boxes = new float[4 * count];
+      int i = 0;
+      for (int f = 0; f < frames.size(); ++f) {
+        frameStarts[f] = i;
+        for (final float[] entry : frames.get(f)) {
+          ids[i] = (int) entry[0];
+          System.arraycopy(entry, 1, boxes, 4 * i, 4);
+          ++i;
+        }
+      }
+      frameStarts[frames.size()] = i;
+      return new AnnotatedSequence(name, width, height, frameStarts, ids, boxes);
+    }
+  }
+
+  /** Reads the ground truth of a MOTChallenge sequence. */
+  public static AnnotatedSequence readMotChallenge(
+      final String name, final int width, final int height, final Reader reader)
+      throws IOException {
+    final Builder builder = new Builder(name, width, height);
+    final BufferedReader lines = new BufferedReader(reader);
+    String line;
+    int number = 0;
+    while ((line = lines.readLine()) != null) {
+      ++number;
+      line = line.trim();
+      if (line.isEmpty()) {
+        continue;
+      }
+      final String[] fields = line.split("\\s*,\\s*");
+      if (fields.length < 6) {
+        throw new IOException("Line " + number + " has " + fields.length + " fields");
+      }
+      try {
+        if (fields.length > 6 && Float.parseFloat(fields[6]) == 0) {
+          continue;
+        }
+        final float left = Float.parseFloat(fields[2]);
+        final float top = Float.parseFloat(fields[3]);
+        builder.add(
+            Integer.parseInt(fields[0]) - 1,
+            Integer.parseInt(fields[1]),
+            left,
+            top,
+            left + Float.parseFloat(fields[4]),
+            top + Float.parseFloat(fields[5]));
+      } catch (final NumberFormatException e) {
+        throw new IOException("Line " + number + " is not a box: " + line, e);
+      } catch (final IllegalArgumentException e) {
+        throw new IOException("Line " + number + ": " + e.getMessage(), e);
+      }
+    }
+    return builder.build();
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  public int getHeight() {
+    return height;
+  }
+
+  public int getFrameCount() {
+    return frameStarts.length - 1;
+  }
+
+  /** Number of boxes in the frame. */
+  public int getObjectCount(final int frame) {
+    return frameStarts[frame + 1] - frameStarts[frame];
+  }
+
+  public int getId(final int frame, final int i) {
+    return ids[frameStarts[frame] + i];
+  }
+
+  public float getLeft(final int frame, final int i) {
+    return boxes[4 * (frameStarts[frame] + i)];
+  }
+
+  public float getTop(final int frame, final int i) {
+    return boxes[4 * (frameStarts[frame] + i) + 1];
+  }
+
+  public float getRight(final int frame, final int i) {
+    return boxes[4 * (frameStarts[frame] + i) + 2];
+  }
+
+  public float getBottom(final int frame, final int i) {
+    return boxes[4 * (frameStarts[frame] + i) + 3];
+  }
+}
@@ -0,0 +1,88 @@
+package com.motiontracking.evaluation;
+
+import java.util.Arrays;
+
+/** Minimum cost assignment of rows to columns, by the Hungarian method in O(n^2 m). */
+final class Assignment {
+  private Assignment() {}
+
+  /**
+   * Assigns every row to a distinct column, or every column to a distinct row if there are fewer
+   * columns, so the sum of the costs of the assigned cells is minimal.
+   *
+   * @param cost {@code rows} by {@code columns} costs.
+   * @return The column of each row, or -1 for rows left out.
+   */
+  static int[] minimize(final double[][] cost, final int rows, final int columns) {
+    if (rows > columns) {
+      final double[][] transposed = new double[columns][rows];
+      for (int i = 0; i < rows; ++i) {
+        for (int j = 0; j < columns; ++j) {
+          transposed[j][i] = cost[i][j];
+        }
+      }
+      final int[] rowOfColumn = minimize(transposed, columns, rows);
+      final int[] columnOfRow = new int[rows];
+      Arrays.fill(columnOfRow, -1);
+      for (int j = 0; j < columns; ++j) {
+        columnOfRow[rowOfColumn[j]] = j;
+      }
+      return columnOfRow;
+    }
+    // Potentials of rows and columns, 1-based, and the row assigned to each column, 0 for none.
+    final double[] u = new double[rows + 1];
+    final double[] v = new double[columns + 1];
+    final int[] rowOf = new int[columns + 1];
+    final int[] way = new int[columns + 1];
+    final double[] minimum = new double[columns + 1];
+    final boolean[] used = new boolean[columns + 1];
+    for (int i = 1; i <= rows; ++i) {
+      rowOf[0] = i;
+      int column = 0;
+      Arrays.fill(minimum, Double.POSITIVE_INFINITY);
+      Arrays.fill(used, false);
+      do {
+        used[column] = true;
+        final int row = rowOf[column];
+        double delta = Double.POSITIVE_INFINITY;
+        int next = 0;
+        for (int j = 1; j <= columns; ++j) {
+          if (used[j]) {
+            continue;
+          }
+          final double reduced = cost[row - 1][j - 1] - u[row] - v[j];
+          if (reduced < minimum[j]) {
+            minimum[j] = reduced;
+            way[j] = column;
+          }
+          if (minimum[j] < delta) {
+            delta = minimum[j];
+            next = j;
+          }
+        }
+        for (int j = 0; j <= columns; ++j) {
+          if (used[j]) {
+            u[rowOf[j]] += delta;
+            v[j] -= delta;
+          } else {
+            minimum[j] -= delta;
+          }
+        }
+        column = next;
+      } while (rowOf[column] != 0);
+      do {
+        final int previous = way[column];
+        rowOf[column] = rowOf[previous];
+        column = previous;
+      } while (column != 0);
+    }
+    final int[] columnOfRow = new int[rows];
+    Arrays.fill(columnOfRow, -1);
+    for (int j = 1; j <= columns; ++j) {
+      if (rowOf[j] != 0) {
+        columnOfRow[rowOf[j] - 1] = j - 1;
+      }
+    }
+    return columnOfRow;
+  }
+}
@@ -0,0 +1,176 @@
+package com.motiontracking.evaluation;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Compares configurations evaluated by a {@link TrackingEvaluation}, each over all the sequences it
+ * ran on. A configuration is on the speed/accuracy frontier unless another one is at least as fast
+ * and at least as accurate, by MOTA, and better in one of the two.
+ */
+public final class EvaluationReport {
+  /** The results of one configuration, summed over its sequences. */
+  public static final class Row {
+    private final String configuration;
+    private int sequences;
+    private long frames;
+    private long groundTruthBoxes;
+    private long trackBoxes;
+    private long misses;
+    private long falsePositives;
+    private long idSwitches;
+    private long idTruePositives;
+    private long processingNanos;
+    private long[] latencies = new long[0];
+    private boolean frontier;
+
+    Row(final String configuration) {
+      this.configuration = configuration;
+    }
+
+    void add(final TrackingEvaluation.Result result) {
+      final MotMetrics metrics = result.getMetrics();
+      ++sequences;
+      frames += result.getFrames();
+      groundTruthBoxes += metrics.getGroundTruthBoxes();
+      trackBoxes += metrics.getTrackBoxes();
+      misses += metrics.getMisses();
+      falsePositives += metrics.getFalsePositives();
+      idSwitches += metrics.getIdSwitches();
+      idTruePositives += metrics.getIdTruePositives();
+      processingNanos += result.getProcessingNanos();
+      final long[] added = result.getLatencies();
+      final int length = latencies.length;
+      latencies = Arrays.copyOf(latencies, length + added.length);
+      System.arraycopy(added, 0, latencies, length, added.length);
+      Arrays.sort(latencies);
+    }
+
+    public String getConfiguration() {
+      return configuration;
+    }
+
+    public double getMota() {
+      return groundTruthBoxes == 0
+          ? 0
+          : 1 - (misses + falsePositives + idSwitches) / (double) groundTruthBoxes;
+    }
+
+    public double getIdf1() {
+      final long boxes = groundTruthBoxes + trackBoxes;
+      return boxes == 0 ? 0 : 2.0 * idTruePositives / boxes;
+    }
+
+    public long getIdSwitches() {
+      return idSwitches;
+    }
+
+    public double getFps() {
+      return processingNanos > 0 ? frames * 1e9 / processingNanos : 0;
+    }
+
+    public double getLatencyMillis(final double fraction) {
+      return TrackingEvaluation.percentile(latencies, fraction) / 1e6;
+    }
+
+    public boolean isOnFrontier() {
+      return frontier;
+    }
+  }
+
+  private final Map<String, Row> rows = new LinkedHashMap<>();
+
+  public void add(final TrackingEvaluation.Result result) {
+    Row row = rows.get(result.getConfiguration());
+    if (row == null) {
+      row = new Row(result.getConfiguration());
+      rows.put(result.getConfiguration(), row);
+    }
+    row.add(result);
+  }
+
+  /** The configurations in the order they were first added. */
+  public List<Row> getRows() {
+    final List<Row> all = new ArrayList<>(rows.values());
+    for (final Row row : all) {
+      row.frontier = true;
+      for (final Row other : all) {
+        if (other != row
+            && other.getFps() >= row.getFps()
+            && other.getMota() >= row.getMota()
+            && (other.getFps() > row.getFps() || other.getMota() > row.getMota())) {
+          row.frontier = false;
+          break;
+        }
+      }
+    }
+    return all;
+  }
+
+  /** Writes a table of the configurations, those on the frontier marked with an asterisk. */
+  public void write(final Writer out) throws IOException {
+    out.write(
+        String.format(
+            Locale.ENGLISH,
+            "  %-24s %7s %7s %6s %8s %8s %8s %8s %8s%n",
+            "configuration",
+            "MOTA",
+            "IDF1",
+            "IDSW",
+            "FN",
+            "FP",
+            "fps",
+            "p50 ms",
+            "p99 ms"));
+    for (final Row row : getRows()) {
+      out.write(
+          String.format(
+              Locale.ENGLISH,
+              "%s %-24s %7.3f %7.3f %6d %8d %8d %8.1f %8.2f %8.2f%n",
+              row.frontier ? "*" : " ",
+              row.configuration,
+              row.getMota(),
+              row.getIdf1(),
+              row.idSwitches,
+              row.misses,
+              row.falsePositives,
+              row.getFps(),
+              row.getLatencyMillis(0.5),
+              row.getLatencyMillis(0.99)));
+    }
+    out.flush();
+  }
+
+  /** Writes the configurations as comma-separated values with a header line. */
+  public void writeCsv(final Writer out) throws IOException {
+    out.write(
+        "configuration,sequences,frames,mota,idf1,id_switches,misses,false_positives,fps,"
+            + "latency_p50_ms,latency_p90_ms,latency_p99_ms,frontier\n");
+    for (final Row row : getRows()) {
+      out.write(
+          String.format(
+              Locale.ENGLISH,
+              "%s,%d,%d,%.4f,%.4f,%d,%d,%d,%.2f,%.3f,%.3f,%.3f,%b%n",
+              row.configuration.replace(',', ' '),
+              row.sequences,
+              row.frames,
+              row.getMota(),
+              row.getIdf1(),
+              row.idSwitches,
+              row.misses,
+              row.falsePositives,
+              row.getFps(),
+              row.getLatencyMillis(0.5),
+              row.getLatencyMillis(0.9),
+              row.getLatencyMillis(0.99),
+              row.frontier));
+    }
+    out.flush();
+  }
+}
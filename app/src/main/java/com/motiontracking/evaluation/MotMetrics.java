@@ -0,0 +1,267 @@
+package com.motiontracking.evaluation;
+
+import com.motiontracking.tracking.TrackSnapshot;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Accumulates the standard multi-object tracking metrics of a tracker's output against the ground
+ * truth, frame by frame.
+ *
+ * <p>The CLEAR MOT metrics match the tracks of each frame to the annotated objects one to one:
+ * matches of the previous frame are kept while the boxes still overlap enough, the other objects
+ * are matched to the remaining tracks with the highest overlap. Objects without a track are misses,
+ * tracks without an object false positives, and an object matched to another track than the last
+ * time it was matched is an identity switch. MOTA is one less the sum of the three errors relative
+ * to the number of annotated boxes, MOTP the mean intersection over union of the matches.
+ *
+ * <p>The identity metrics instead match whole tracks to whole objects once for the sequence, each
+ * track to the object it overlapped in most frames. IDF1 is the F1 score of the boxes that overlap
+ * the object their track was matched to.
+ */
+public final class MotMetrics {
+  // Cost of the pairs that must not be matched; larger than any sum of real costs.
+  private static final double FORBIDDEN = 1e9;
+
+  private final float minIou;
+  private long frames;
+  private long groundTruthBoxes;
+  private long trackBoxes;
+  private long matches;
+  private long misses;
+  private long falsePositives;
+  private long idSwitches;
+  private double iouSum;
+  // Track the object was matched to the last time it was matched, by object identifier.
+  private final Map<Integer, Integer> lastMatches = new HashMap<>();
+  private final Map<Integer, Integer> matchesOfFrame = new HashMap<>();
+  // Frames in which a track overlapped an object, by object and track identifier.
+  private final Map<Long, Integer> overlaps = new HashMap<>();
+  private long idTruePositives = -1;
+
+  /** @param minIou Lowest intersection over union of a track and an object that match. */
+  public MotMetrics(final float minIou) {
+    this.minIou = minIou;
+  }
+
+  /** Adds the tracks of a frame of the sequence. */
+  public void update(
+      final AnnotatedSequence sequence, final int frame, final TrackSnapshot tracks) {
+    final int objects = sequence.getObjectCount(frame);
+    final int count = tracks.size();
+    final float[][] ious = new float[objects][count];
+    for (int i = 0; i < objects; ++i) {
+      for (int j = 0; j < count; ++j) {
+        ious[i][j] =
+            iou(
+                sequence.getLeft(frame, i),
+                sequence.getTop(frame, i),
+                sequence.getRight(frame, i),
+                sequence.getBottom(frame, i),
+                tracks.getLeft(j),
+                tracks.getTop(j),
+                tracks.getRight(j),
+                tracks.getBottom(j));
+        if (ious[i][j] >= minIou) {
+          final long pair = (long) sequence.getId(frame, i) << 32 | (tracks.getId(j) & 0xFFFFFFFFL);
+          final Integer overlapping = overlaps.get(pair);
+          overlaps.put(pair, overlapping == null ? 1 : overlapping + 1);
+        }
+      }
+    }
+
+    // Matches of the last frame that still hold.
+    final int[] trackOf = new int[objects];
+    final boolean[] taken = new boolean[count];
+    for (int i = 0; i < objects; ++i) {
+      trackOf[i] = -1;
+      final Integer last = lastMatches.get(sequence.getId(frame, i));
+      final int j = last == null ? -1 : tracks.indexOf(last);
+      if (j >= 0 && !taken[j] && ious[i][j] >= minIou) {
+        trackOf[i] = j;
+        taken[j] = true;
+      }
+    }
+    // The others by overlap.
+    final List<Integer> freeObjects = new ArrayList<>();
+    final List<Integer> freeTracks = new ArrayList<>();
+    for (int i = 0; i < objects; ++i) {
+      if (trackOf[i] < 0) {
+        freeObjects.add(i);
+      }
+    }
+    for (int j = 0; j < count; ++j) {
+      if (!taken[j]) {
+        freeTracks.add(j);
+      }
+    }
+    if (!freeObjects.isEmpty() && !freeTracks.isEmpty()) {
+      final double[][] cost = new double[freeObjects.size()][freeTracks.size()];
+      for (int a = 0; a < freeObjects.size(); ++a) {
+        for (int b = 0; b < freeTracks.size(); ++b) {
+          final float iou = ious[freeObjects.get(a)][freeTracks.get(b)];
+          cost[a][b] = iou >= minIou ? 1 - iou : FORBIDDEN;
+        }
+      }
+      final int[] assigned = Assignment.minimize(cost, freeObjects.size(), freeTracks.size());
+      for (int a = 0; a < assigned.length; ++a) {
+        if (assigned[a] >= 0 && cost[a][assigned[a]] < FORBIDDEN) {
+          trackOf[freeObjects.get(a)] = freeTracks.get(assigned[a]);
+        }
+      }
+    }
+
+    matchesOfFrame.clear();
+    int matched = 0;
+    for (int i = 0; i < objects; ++i) {
+      if (trackOf[i] < 0) {
+        continue;
+      }
+      ++matched;
+      iouSum += ious[i][trackOf[i]];
+      final int objectId = sequence.getId(frame, i);
+      final int trackId = tracks.getId(trackOf[i]);
+      final Integer last = lastMatches.get(objectId);
+      if (last != null && last != trackId) {
+        ++idSwitches;
+      }
+      matchesOfFrame.put(objectId, trackId);
+    }
+    lastMatches.putAll(matchesOfFrame);
+
+    ++frames;
+    groundTruthBoxes += objects;
+    trackBoxes += count;
+    matches += matched;
+    misses += objects - matched;
+    falsePositives += count - matched;
+    idTruePositives = -1;
+  }
+
+  public long getFrames() {
+    return frames;
+  }
+
+  public long getGroundTruthBoxes() {
+    return groundTruthBoxes;
+  }
+
+  public long getTrackBoxes() {
+    return trackBoxes;
+  }
+
+  public long getMatches() {
+    return matches;
+  }
+
+  public long getMisses() {
+    return misses;
+  }
+
+  public long getFalsePositives() {
+    return falsePositives;
+  }
+
+  public long getIdSwitches() {
+    return idSwitches;
+  }
+
+  /** Multi-object tracking accuracy, 1 without any errors; negative with more errors than boxes. */
+  public double getMota() {
+    return groundTruthBoxes == 0
+        ? 0
+        : 1 - (misses + falsePositives + idSwitches) / (double) groundTruthBoxes;
+  }
+
+  /** Multi-object tracking precision, the mean intersection over union of the matches. */
+  public double getMotp() {
+    return matches == 0 ? 0 : iouSum / matches;
+  }
+
+  /** Boxes that overlap the object their track is matched to for the whole sequence. */
+  public long getIdTruePositives() {
+    if (idTruePositives < 0) {
+      idTruePositives = matchIdentities();
+    }
+    return idTruePositives;
+  }
+
+  /** Identity F1 score, 1 if every object is followed by one track for its whole life. */
+  public double getIdf1() {
+    final long boxes = groundTruthBoxes + trackBoxes;
+    return boxes == 0 ? 0 : 2.0 * getIdTruePositives() / boxes;
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        Locale.ENGLISH,
+        "MOTA %.3f, MOTP %.3f, IDF1 %.3f, %d ID switches, %d misses, %d false positives "
+            + "of %d boxes in %d frames",
+        getMota(),
+        getMotp(),
+        getIdf1(),
+        idSwitches,
+        misses,
+        falsePositives,
+        groundTruthBoxes,
+        frames);
+  }
+
+  private long matchIdentities() {
+    final Map<Integer, Integer> objectIndices = new HashMap<>();
+    final Map<Integer, Integer> trackIndices = new HashMap<>();
+    for (final Long pair : overlaps.keySet()) {
+      final int objectId = (int) (pair >> 32);
+      final int trackId = (int) (long) pair;
+      if (!objectIndices.containsKey(objectId)) {
+        objectIndices.put(objectId, objectIndices.size());
+      }
+      if (!trackIndices.containsKey(trackId)) {
+        trackIndices.put(trackId, trackIndices.size());
+      }
+    }
+    if (overlaps.isEmpty()) {
+      return 0;
+    }
+    final double[][] cost = new double[objectIndices.size()][trackIndices.size()];
+    for (final Map.Entry<Long, Integer> entry : overlaps.entrySet()) {
+      final long pair = entry.getKey();
+      cost[objectIndices.get((int) (pair >> 32))][trackIndices.get((int) pair)] = -entry.getValue();
+    }
+    final int[] assigned = Assignment.minimize(cost, cost.length, cost[0].length);
+    long truePositives = 0;
+    for (int i = 0; i < assigned.length; ++i) {
+      if (assigned[i] >= 0) {
+        truePositives -= (long) cost[i][assigned[i]];
+      }
+    }
+    return truePositives;
+  }
+
+  static float iou(
+      final float left1,
+      final float top1,
+      final float right1,
+      final float bottom1,
+      final float left2,
+      final float top2,
+      final float right2,
+      final float bottom2) {
+    final float interLeft = Math.max(left1, left2);
+    final float interTop = Math.max(top1, top2);
+    final float interRight = Math.min(right1, right2);
+    final float interBottom = Math.min(bottom1, bottom2);
+    if (interRight <= interLeft || interBottom <= interTop) {
+      return 0;
+    }
+    final float intersection = (interRight - interLeft) * (interBottom - interTop);
+    final float union =
+        (right1 - left1) * (bottom1 - top1) + (right2 - left2) * (bottom2 - top2) - intersection;
+    return intersection / union;
+  }
+}
@@ -0,0 +1,467 @@
+package com.motiontracking.evaluation;
+
+import com.motiontracking.stream.StreamDetector;
+import com.motiontracking.stream.StreamFrame;
+import com.motiontracking.tflite.Detections;
+import com.motiontracking.tracking.DetectionTracker;
+import com.motiontracking.utils.ImageResampler;
+import com.motiontracking.utils.ImageUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Drives the frame pipeline with a {@link SyntheticScene} for as long as asked, hours on a device,
+ * to find what only shows after a long time: objects that leak each time the pipeline is rebuilt,
+ * a heap that keeps growing, threads that are never stopped and latencies that creep up.
+ *
+ * <p>Every frame is converted from YUV to ARGB as the camera's frames are, resampled to the model
+ * input, run through a detector and tracked. Without a detector the detections are the scene's
+ * boxes, jittered by a pixel, so tracking still has work to do. Every {@code rebuildInterval}
+ * frames the detector, the resampler and the tracker are closed and created anew, as when the
+ * activity pauses and resumes.
+ *
+ * <p>Each sampling interval ends with a {@link Sample} of the heap, the number of threads and the
+ * latency percentiles of every stage. Taking it includes requesting a garbage collection, so the
+ * interval should be long, a minute or so, when frame rates are of interest. The {@link Report} compares the samples at the end of the run
+ * with those at its start, after the first interval that warms up the JIT compiler, and names the
+ * measures that drifted.
+ */
+public final class SoakRunner {
+  public static final int CONVERT = 0;
+  public static final int RESAMPLE = 1;
+  public static final int DETECT = 2;
+  public static final int TRACK = 3;
+  /** The whole frame, rendering the scene excluded. */
+  public static final int FRAME = 4;
+  private static final String[] STAGES = {"convert", "resample", "detect", "track", "frame"};
+
+  // A retained heap that grows by more than both of these is reported.
+  private static final long HEAP_DRIFT_BYTES = 8 << 20;
+  private static final double HEAP_DRIFT_FRACTION = 0.25;
+  // A frame latency whose 95th percentile grows by more than both of these is reported.
+  private static final double LATENCY_DRIFT_RATIO = 1.5;
+  private static final long LATENCY_DRIFT_NANOS = 1_000_000L;
+  private static final int MAX_DETECTIONS = 100;
+
+  /** Receives the samples as they are taken, for instance to log them. */
+  public interface Listener {
+    void onSample(Sample sample);
+  }
+
+  /** The state of the run at the end of a sampling interval. */
+  public static final class Sample {
+    private final long elapsedNanos;
+    private final long frames;
+    private final double fps;
+    private final long usedHeapBytes;
+    private final long retainedHeapBytes;
+    private final int threads;
+    // Per stage the 50th, 95th and 99th percentiles over the interval.
+    private final long[] latencies;
+
+    Sample(
+        final long elapsedNanos,
+        final long frames,
+        final double fps,
+        final long usedHeapBytes,
+        final long retainedHeapBytes,
+        final int threads,
+        final long[] latencies) {
+      this.elapsedNanos = elapsedNanos;
+      this.frames = frames;
+      this.fps = fps;
+      this.usedHeapBytes = usedHeapBytes;
+      this.retainedHeapBytes = retainedHeapBytes;
+      this.threads = threads;
+      this.latencies = latencies;
+    }
+
+    public long getElapsedNanos() {
+      return elapsedNanos;
+    }
+
+    /** Frames processed since the start of the run. */
+    public long getFrames() {
+      return frames;
+    }
+
+    /** Frames per second over the interval. */
+    public double getFps() {
+      return fps;
+    }
+
+    /** Heap in use at the end of the interval, garbage included. */
+    public long getUsedHeapBytes() {
+      return usedHeapBytes;
+    }
+
+    /**
+     * Heap in use after a collection was requested at the end of the interval: what the pipeline
+     * retains, which unlike the heap in use does not follow the garbage.
+     */
+    public long getRetainedHeapBytes() {
+      return retainedHeapBytes;
+    }
+
+    /** Live threads in the runner's thread group. */
+    public int getThreads() {
+      return threads;
+    }
+
+    /** Latency of the stage at the 50th, 95th or 99th percentile, in nanoseconds. */
+    public long getLatencyNanos(final int stage, final int percentile) {
+      switch (percentile) {
+        case 50:
+          return latencies[3 * stage];
+        case 95:
+          return latencies[3 * stage + 1];
+        case 99:
+          return latencies[3 * stage + 2];
+        default:
+          throw new IllegalArgumentException("No percentile " + percentile);
+      }
+    }
+
+    @Override
+    public String toString() {
+      final StringBuilder builder =
+          new StringBuilder(
+              String.format(
+                  Locale.ENGLISH,
+                  "%.0f s: %d frames, %.1f fps, heap %.1f MB (retained %.1f MB), %d threads",
+                  elapsedNanos / 1e9,
+                  frames,
+                  fps,
+                  usedHeapBytes / 1048576.0,
+                  retainedHeapBytes / 1048576.0,
+                  threads));
+      for (int stage = 0; stage < STAGES.length; ++stage) {
+        builder.append(
+            String.format(
+                Locale.ENGLISH,
+                ", %s %.2f/%.2f/%.2f ms",
+                STAGES[stage],
+                latencies[3 * stage] / 1e6,
+                latencies[3 * stage + 1] / 1e6,
+                latencies[3 * stage + 2] / 1e6));
+      }
+      return builder.toString();
+    }
+  }
+
+  /** The samples of a run and what drifted between its start and its end. */
+  public static final class Report {
+    // Measures compared between the start and the end of the run.
+    private static final int HEAP = 0;
+    private static final int THREADS = 1;
+    private static final int LATENCY = 2;
+
+    private final List<Sample> samples;
+    private final long rebuilds;
+
+    Report(final List<Sample> samples, final long rebuilds) {
+      this.samples = Collections.unmodifiableList(samples);
+      this.rebuilds = rebuilds;
+    }
+
+    public List<Sample> getSamples() {
+      return samples;
+    }
+
+    /** Times the pipeline was rebuilt. */
+    public long getRebuilds() {
+      return rebuilds;
+    }
+
+    /** Whether there are enough samples after the warm-up to compare a start and an end. */
+    public boolean isConclusive() {
+      return samples.size() >= 3;
+    }
+
+    /** Growth of the retained heap from the start to the end of the run. */
+    public long getHeapGrowthBytes() {
+      if (!isConclusive()) {
+        return 0;
+      }
+      return median(samples, false, HEAP) - median(samples, true, HEAP);
+    }
+
+    /** Growth of the number of threads from the start to the end of the run. */
+    public long getThreadGrowth() {
+      if (!isConclusive()) {
+        return 0;
+      }
+      return median(samples, false, THREADS) - median(samples, true, THREADS);
+    }
+
+    /** Ratio of the 95th percentile frame latency at the end of the run to that at the start. */
+    public double getLatencyGrowth() {
+      if (!isConclusive()) {
+        return 1;
+      }
+      final long start = median(samples, true, LATENCY);
+      return start > 0 ? median(samples, false, LATENCY) / (double) start : 1;
+    }
+
+    /** A line for each measure that drifted; empty for a healthy run. */
+    public List<String> getDrift() {
+      final List<String> drift = new ArrayList<>();
+      if (!isConclusive()) {
+        return drift;
+      }
+      final long heapStart = median(samples, true, HEAP);
+      final long heapGrowth = getHeapGrowthBytes();
+      if (heapGrowth > HEAP_DRIFT_BYTES && heapGrowth > heapStart * HEAP_DRIFT_FRACTION) {
+        drift.add(
+            String.format(
+                Locale.ENGLISH,
+                "retained heap grew from %.1f MB to %.1f MB",
+                heapStart / 1048576.0,
+                (heapStart + heapGrowth) / 1048576.0));
+      }
+      if (getThreadGrowth() > 0) {
+        final long threadStart = median(samples, true, THREADS);
+        drift.add(
+            "threads grew from " + threadStart + " to " + (threadStart + getThreadGrowth()));
+      }
+      final long latencyStart = median(samples, true, LATENCY);
+      final long latencyEnd = median(samples, false, LATENCY);
+      if (latencyEnd > latencyStart * LATENCY_DRIFT_RATIO
+          && latencyEnd - latencyStart > LATENCY_DRIFT_NANOS) {
+        drift.add(
+            String.format(
+                Locale.ENGLISH,
+                "frame latency p95 grew from %.2f ms to %.2f ms",
+                latencyStart / 1e6,
+                latencyEnd / 1e6));
+      }
+      return drift;
+    }
+
+    @Override
+    public String toString() {
+      final List<String> drift = getDrift();
+      final Sample last = samples.isEmpty() ? null : samples.get(samples.size() - 1);
+      return String.format(
+          Locale.ENGLISH,
+          "%d samples, %d rebuilds, last %s: %s",
+          samples.size(),
+          rebuilds,
+          last,
+          !isConclusive() ? "too short to judge" : drift.isEmpty() ? "no drift" : drift);
+    }
+
+    /**
+     * Median of a measure over the first quarter of the samples after the warm-up one, or over the
+     * last quarter.
+     */
+    private static long median(final List<Sample> samples, final boolean start, final int measure) {
+      final int count = Math.max(1, (samples.size() - 1) / 4);
+      final int from = start ? 1 : samples.size() - count;
+      final long[] values = new long[count];
+      for (int i = 0; i < count; ++i) {
+        final Sample sample = samples.get(from + i);
+        values[i] =
+            measure == HEAP
+                ? sample.retainedHeapBytes
+                : measure == THREADS ? sample.threads : sample.getLatencyNanos(FRAME, 95);
+      }
+      Arrays.sort(values);
+      return values[count / 2];
+    }
+  }
+
+  private final SyntheticScene scene;
+  private final int inputSize;
+  private final int resamplerThreads;
+  private final StreamDetector.Factory detectors;
+  private final int rebuildInterval;
+  private final long sampleIntervalNanos;
+  private volatile boolean stopped;
+
+  /**
+   * @param inputSize Side of the square model input frames are resampled to.
+   * @param detectors Creates the detector, such as a {@link
+   *     com.motiontracking.stream.ModelStreamDetector#factory model} on a device, or null to detect
+   *     the scene's boxes.
+   * @param rebuildInterval Frames after which the pipeline is rebuilt, 0 to never rebuild it.
+   */
+  public SoakRunner(
+      final SyntheticScene scene,
+      final int inputSize,
+      final int resamplerThreads,
+      final StreamDetector.Factory detectors,
+      final int rebuildInterval,
+      final long sampleIntervalNanos) {
+    this.scene = scene;
+    this.inputSize = inputSize;
+    this.resamplerThreads = resamplerThreads;
+    this.detectors = detectors;
+    this.rebuildInterval = rebuildInterval;
+    this.sampleIntervalNanos = sampleIntervalNanos;
+  }
+
+  /** Makes a running {@link #run} return after the current frame. */
+  public void stop() {
+    stopped = true;
+  }
+
+  /**
+   * Runs the pipeline on the calling thread for the duration, or until {@link #stop}ped.
+   *
+   * @param listener Gets each sample as it is taken; may be null.
+   */
+  public Report run(final long durationNanos, final Listener listener) throws Exception {
+    final int width = scene.getWidth();
+    final int height = scene.getHeight();
+    final int[] rgb = new int[width * height];
+    final int[] input = new int[inputSize * inputSize];
+    final ImageResampler.Geometry geometry =
+        new ImageResampler.Geometry(
+            width, height, inputSize, inputSize, 0, false, ImageResampler.Filter.BILINEAR);
+    final StreamFrame frame = new StreamFrame();
+    final Detections detections = new Detections(MAX_DETECTIONS);
+    final float[] box = new float[4];
+    final Random jitter = new Random(5);
+    final Runtime runtime = Runtime.getRuntime();
+    final List<Sample> samples = new ArrayList<>();
+    final LatencyWindow[] windows = new LatencyWindow[STAGES.length];
+    for (int stage = 0; stage < windows.length; ++stage) {
+      windows[stage] = new LatencyWindow();
+    }
+
+    StreamDetector detector = detectors != null ? detectors.create() : null;
+    ImageResampler resampler = new ImageResampler(resamplerThreads);
+    DetectionTracker tracker = createTracker(detector);
+    long rebuilds = 0;
+    try {
+      final long start = System.nanoTime();
+      long sampleStart = start;
+      long sampleFrames = 0;
+      long frames = 0;
+      stopped = false;
+      while (!stopped && System.nanoTime() - start < durationNanos) {
+        if (rebuildInterval > 0 && frames > 0 && frames % rebuildInterval == 0) {
+          if (detector != null) {
+            detector.close();
+            // Not closed again below if the new one cannot be created.
+            detector = null;
+            detector = detectors.create();
+          }
+          resampler.close();
+          resampler = new ImageResampler(resamplerThreads);
+          tracker = createTracker(detector);
+          ++rebuilds;
+        }
+
+        scene.read(frame);
+        final long frameStart = System.nanoTime();
+        ImageUtils.convertYUV420ToARGB8888(
+            scene.getYPlane(),
+            scene.getUPlane(),
+            scene.getVPlane(),
+            width,
+            height,
+            scene.getYRowStride(),
+            scene.getUvRowStride(),
+            scene.getUvPixelStride(),
+            rgb);
+        final long converted = System.nanoTime();
+        resampler.resample(rgb, geometry, input);
+        final long resampled = System.nanoTime();
+        detections.clear();
+        if (detector != null) {
+          detector.detect(frame, detections);
+        } else {
+          for (int i = 0; i < scene.getObjectCount(); ++i) {
+            scene.getBox(frame.getIndex(), i, box);
+            final float dx = jitter.nextFloat() * 2 - 1;
+            final float dy = jitter.nextFloat() * 2 - 1;
+            detections.add(box[1] + dy, box[0] + dx, box[3] + dy, box[2] + dx, 0, 0.9f);
+          }
+        }
+        final long detected = System.nanoTime();
+        tracker.update(detections);
+        final long tracked = System.nanoTime();
+
+        windows[CONVERT].add(converted - frameStart);
+        windows[RESAMPLE].add(resampled - converted);
+        windows[DETECT].add(detected - resampled);
+        windows[TRACK].add(tracked - detected);
+        windows[FRAME].add(tracked - frameStart);
+        ++frames;
+        ++sampleFrames;
+
+        if (tracked - sampleStart >= sampleIntervalNanos) {
+          final long[] latencies = new long[3 * STAGES.length];
+          for (int stage = 0; stage < STAGES.length; ++stage) {
+            windows[stage].percentiles(latencies, 3 * stage);
+          }
+          final long usedHeap = runtime.totalMemory() - runtime.freeMemory();
+          // Between frames, so the collection is not part of any latency.
+          System.gc();
+          final Sample sample =
+              new Sample(
+                  tracked - start,
+                  frames,
+                  sampleFrames * 1e9 / (tracked - sampleStart),
+                  usedHeap,
+                  runtime.totalMemory() - runtime.freeMemory(),
+                  Thread.activeCount(),
+                  latencies);
+          samples.add(sample);
+          if (listener != null) {
+            listener.onSample(sample);
+          }
+          sampleFrames = 0;
+          sampleStart = System.nanoTime();
+        }
+      }
+    } finally {
+      if (detector != null) {
+        detector.close();
+      }
+      resampler.close();
+    }
+    return new Report(samples, rebuilds);
+  }
+
+  private DetectionTracker createTracker(final StreamDetector detector) {
+    final DetectionTracker tracker =
+        new DetectionTracker(
+            detector != null ? detector.getLabels() : Collections.singletonList("object"));
+    tracker.setFrameConfiguration(scene.getWidth(), scene.getHeight(), 0);
+    return tracker;
+  }
+
+  /** Latencies of one stage over a sampling interval. */
+  private static final class LatencyWindow {
+    private long[] values = new long[1024];
+    private int count;
+
+    void add(final long nanos) {
+      if (count == values.length) {
+        values = Arrays.copyOf(values, 2 * count);
+      }
+      values[count++] = nanos;
+    }
+
+    /** Writes the 50th, 95th and 99th percentiles to {@code out} and starts a new interval. */
+    void percentiles(final long[] out, final int offset) {
+      Arrays.sort(values, 0, count);
+      out[offset] = at(0.5);
+      out[offset + 1] = at(0.95);
+      out[offset + 2] = at(0.99);
+      count = 0;
+    }
+
+    private long at(final double fraction) {
+      return count > 0 ? values[Math.min(count - 1, (int) (count * fraction))] : 0;
+    }
+  }
+}
@@ -0,0 +1,265 @@
+package com.motiontracking.evaluation;
+
+import com.motiontracking.stream.FrameSource;
+import com.motiontracking.stream.StreamFrame;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Renders rectangles moving over a textured background into YUV 4:2:0 frames like the camera's, for
+ * load and soak tests that need a scene of known size, crowd and speed but no recording.
+ *
+ * <p>Every object moves at a constant velocity and bounces off the edges of the frame. Its position
+ * is a closed-form function of the frame index, so the box of every object is known for every frame
+ * and any frame can be rendered without rendering the ones before; that holds for the millions of
+ * frames of a long run too, as positions are computed in double precision. Objects are drawn in
+ * order, later ones over earlier ones, while the boxes are those of the whole rectangles.
+ *
+ * <p>The planes are laid out as I420: full-resolution luminance, then U and V at half the
+ * resolution in both directions, with a pixel stride of 1. As a {@link FrameSource} the scene
+ * renders frame after frame and delivers its luminance, paced at the frame interval if one is set.
+ */
+public final class SyntheticScene implements FrameSource {
+  private final String name;
+  private final int width;
+  private final int height;
+  private final long frameIntervalNanos;
+  // Per object: size, position at frame 0 and velocity in pixels per frame.
+  private final int[] widths;
+  private final int[] heights;
+  private final double[] startX;
+  private final double[] startY;
+  private final double[] velocityX;
+  private final double[] velocityY;
+  private final byte[] lumas;
+  private final byte[] us;
+  private final byte[] vs;
+
+  private final byte[] background;
+  private final byte[] yPlane;
+  private final byte[] uPlane;
+  private final byte[] vPlane;
+  private final int uvWidth;
+  private final int uvHeight;
+  private final float[] box = new float[4];
+  private long renderedFrame = -1;
+  private long nextFrame;
+  private long startNanos;
+
+  /**
+   * A scene delivered as fast as it is read.
+   *
+   * @param speed Average distance objects move per frame, in pixels; each one moves between half
+   *     and one and a half times as far.
+   * @param seed Makes the sizes, starting points and directions of the objects reproducible.
+   */
+  public SyntheticScene(
+      final String name,
+      final int width,
+      final int height,
+      final int objectCount,
+      final float speed,
+      final long seed) {
+    this(name, width, height, objectCount, speed, seed, 0);
+  }
+
+  /** @param frameIntervalNanos Time between frames read from the scene, 0 to read unpaced. */
+  public SyntheticScene(
+      final String name,
+      final int width,
+      final int height,
+      final int objectCount,
+      final float speed,
+      final long seed,
+      final long frameIntervalNanos) {
+    if (width < 32 || height < 32 || objectCount < 0 || speed < 0) {
+      throw new IllegalArgumentException(
+          "Invalid scene " + width + "x" + height + ", " + objectCount + " objects at " + speed);
+    }
+    this.name = name;
+    this.width = width;
+    this.height = height;
+    this.frameIntervalNanos = frameIntervalNanos;
+    uvWidth = (width + 1) / 2;
+    uvHeight = (height + 1) / 2;
+
+    final Random random = new Random(seed);
+    widths = new int[objectCount];
+    heights = new int[objectCount];
+    startX = new double[objectCount];
+    startY = new double[objectCount];
+    velocityX = new double[objectCount];
+    velocityY = new double[objectCount];
+    lumas = new byte[objectCount];
+    us = new byte[objectCount];
+    vs = new byte[objectCount];
+    final int minSide = Math.min(width, height);
+    for (int i = 0; i < objectCount; ++i) {
+      widths[i] = minSide / 16 + random.nextInt(minSide / 6);
+      heights[i] = minSide / 16 + random.nextInt(minSide / 6);
+      startX[i] = random.nextInt(width - widths[i] + 1);
+      startY[i] = random.nextInt(height - heights[i] + 1);
+      final double direction = random.nextDouble() * 2 * Math.PI;
+      final double magnitude = speed * (0.5 + random.nextDouble());
+      velocityX[i] = magnitude * Math.cos(direction);
+      velocityY[i] = magnitude * Math.sin(direction);
+      // Brighter than the background, and a color of its own.
+      lumas[i] = (byte) (150 + random.nextInt(86));
+      us[i] = (byte) (64 + random.nextInt(128));
+      vs[i] = (byte) (64 + random.nextInt(128));
+    }
+
+    background = new byte[width * height];
+    for (int y = 0; y < height; ++y) {
+      for (int x = 0; x < width; ++x) {
+        background[y * width + x] = (byte) (40 + ((x / 16 + y / 16) % 2) * 30 + 40 * x / width);
+      }
+    }
+    yPlane = new byte[width * height];
+    uPlane = new byte[uvWidth * uvHeight];
+    vPlane = new byte[uvWidth * uvHeight];
+  }
+
+  @Override
+  public String getName() {
+    return name;
+  }
+
+  @Override
+  public int getWidth() {
+    return width;
+  }
+
+  @Override
+  public int getHeight() {
+    return height;
+  }
+
+  public int getObjectCount() {
+    return widths.length;
+  }
+
+  /** Identifier of the object in annotations, from 1. */
+  public int getId(final int object) {
+    return object + 1;
+  }
+
+  /**
+   * Writes the box of the object in the frame, as rendered, to {@code box} as left, top, right and
+   * bottom in pixels.
+   */
+  public void getBox(final long frame, final int object, final float[] box) {
+    final int rangeX = width - widths[object];
+    final int rangeY = height - heights[object];
+    final int left = (int) Math.round(bounce(startX[object], velocityX[object], frame, rangeX));
+    final int top = (int) Math.round(bounce(startY[object], velocityY[object], frame, rangeY));
+    box[0] = left;
+    box[1] = top;
+    box[2] = left + widths[object];
+    box[3] = top + heights[object];
+  }
+
+  /** Position along an axis of length {@code range}, reflected at both ends. */
+  private static double bounce(
+      final double start, final double velocity, final long frame, final int range) {
+    if (range == 0) {
+      return 0;
+    }
+    double position = (start + velocity * frame) % (2.0 * range);
+    if (position < 0) {
+      position += 2.0 * range;
+    }
+    return position <= range ? position : 2.0 * range - position;
+  }
+
+  /** Renders the frame into the planes, unless it is the one rendered last. */
+  public void render(final long frame) {
+    if (frame == renderedFrame) {
+      return;
+    }
+    System.arraycopy(background, 0, yPlane, 0, yPlane.length);
+    Arrays.fill(uPlane, (byte) 128);
+    Arrays.fill(vPlane, (byte) 128);
+    for (int i = 0; i < widths.length; ++i) {
+      getBox(frame, i, box);
+      final int left = (int) box[0];
+      final int top = (int) box[1];
+      final int right = (int) box[2];
+      final int bottom = (int) box[3];
+      for (int y = top; y < bottom; ++y) {
+        Arrays.fill(yPlane, y * width + left, y * width + right, lumas[i]);
+      }
+      for (int y = top / 2; y < (bottom + 1) / 2; ++y) {
+        final int row = y * uvWidth;
+        Arrays.fill(uPlane, row + left / 2, row + (right + 1) / 2, us[i]);
+        Arrays.fill(vPlane, row + left / 2, row + (right + 1) / 2, vs[i]);
+      }
+    }
+    renderedFrame = frame;
+  }
+
+  /** Index of the frame in the planes, -1 before the first one is rendered. */
+  public long getRenderedFrame() {
+    return renderedFrame;
+  }
+
+  public byte[] getYPlane() {
+    return yPlane;
+  }
+
+  public byte[] getUPlane() {
+    return uPlane;
+  }
+
+  public byte[] getVPlane() {
+    return vPlane;
+  }
+
+  public int getYRowStride() {
+    return width;
+  }
+
+  public int getUvRowStride() {
+    return uvWidth;
+  }
+
+  public int getUvPixelStride() {
+    return 1;
+  }
+
+  /** The ground truth of the scene's first {@code frames} frames. */
+  public AnnotatedSequence toSequence(final int frames) {
+    final AnnotatedSequence.Builder builder = new AnnotatedSequence.Builder(name, width, height);
+    builder.setFrameCount(frames);
+    final float[] box = new float[4];
+    for (int f = 0; f < frames; ++f) {
+      for (int i = 0; i < widths.length; ++i) {
+        getBox(f, i, box);
+        builder.add(f, getId(i), box[0], box[1], box[2], box[3]);
+      }
+    }
+    return builder.build();
+  }
+
+  /** Renders the next frame and delivers its luminance. */
+  @Override
+  public boolean read(final StreamFrame frame) throws InterruptedException {
+    final long index = nextFrame++;
+    if (index == 0) {
+      startNanos = System.nanoTime();
+    } else if (frameIntervalNanos > 0) {
+      final long wait = startNanos + index * frameIntervalNanos - System.nanoTime();
+      if (wait > 0) {
+        Thread.sleep(wait / 1_000_000L, (int) (wait % 1_000_000L));
+      }
+    }
+    render(index);
+    System.arraycopy(yPlane, 0, frame.prepare(width, height), 0, yPlane.length);
+    frame.setTiming(index, System.nanoTime());
+    return true;
+  }
+
+  @Override
+  public void close() {}
+}
@@ -0,0 +1,201 @@
+package com.motiontracking.evaluation;
+
+import com.motiontracking.stream.FrameSource;
+import com.motiontracking.stream.StreamDetector;
+import com.motiontracking.stream.StreamFrame;
+import com.motiontracking.tflite.Detections;
+import com.motiontracking.tracking.DetectionTracker;
+import com.motiontracking.tracking.TrackSnapshot;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Replays annotated sequences through a detector and a {@link DetectionTracker}, timing each frame
+ * and scoring the tracks of every frame against the ground truth with {@link MotMetrics}, so the
+ * speed and the accuracy of a configuration can be judged together.
+ *
+ * <p>A configuration runs the detector on every {@code detectionInterval}th frame; the frames in
+ * between keep the tracks of the last detection, as the app shows them while the cascade skips
+ * frames. Frames are processed one after the other on the calling thread, so the frame rate is the
+ * one the configuration sustains on one core.
+ */
+public final class TrackingEvaluation {
+  private static final int MAX_DETECTIONS = 100;
+
+  /** A detector and how often it runs. */
+  public static final class Configuration {
+    private final String name;
+    private final StreamDetector.Factory detectors;
+    private final int detectionInterval;
+
+    public Configuration(
+        final String name, final StreamDetector.Factory detectors, final int detectionInterval) {
+      if (detectionInterval < 1) {
+        throw new IllegalArgumentException("Invalid detection interval " + detectionInterval);
+      }
+      this.name = name;
+      this.detectors = detectors;
+      this.detectionInterval = detectionInterval;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public int getDetectionInterval() {
+      return detectionInterval;
+    }
+  }
+
+  /** Accuracy and speed of one configuration on one sequence. */
+  public static final class Result {
+    private final String configuration;
+    private final String sequence;
+    private final MotMetrics metrics;
+    private final long frames;
+    private final long processingNanos;
+    // Time from handing a frame to the detector to the tracks of the frame, sorted.
+    private final long[] latencies;
+
+    Result(
+        final String configuration,
+        final String sequence,
+        final MotMetrics metrics,
+        final long frames,
+        final long processingNanos,
+        final long[] latencies) {
+      this.configuration = configuration;
+      this.sequence = sequence;
+      this.metrics = metrics;
+      this.frames = frames;
+      this.processingNanos = processingNanos;
+      this.latencies = latencies;
+    }
+
+    public String getConfiguration() {
+      return configuration;
+    }
+
+    public String getSequence() {
+      return sequence;
+    }
+
+    public MotMetrics getMetrics() {
+      return metrics;
+    }
+
+    public long getFrames() {
+      return frames;
+    }
+
+    /** Time spent detecting and tracking, over all frames. */
+    public long getProcessingNanos() {
+      return processingNanos;
+    }
+
+    /** Frames per second the configuration can process. */
+    public double getFps() {
+      return processingNanos > 0 ? frames * 1e9 / processingNanos : 0;
+    }
+
+    /** Latencies of the detected frames in nanoseconds, sorted. */
+    public long[] getLatencies() {
+      return latencies.clone();
+    }
+
+    /** The latency below which the fraction of detected frames falls, in milliseconds. */
+    public double getLatencyMillis(final double fraction) {
+      return percentile(latencies, fraction) / 1e6;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          Locale.ENGLISH,
+          "%s on %s: %s, %.1f fps, latency p50 %.2f ms, p90 %.2f ms, p99 %.2f ms",
+          configuration,
+          sequence,
+          metrics,
+          getFps(),
+          getLatencyMillis(0.5),
+          getLatencyMillis(0.9),
+          getLatencyMillis(0.99));
+    }
+  }
+
+  private final float minIou;
+
+  /** @param minIou Lowest intersection over union of a track and an object that match. */
+  public TrackingEvaluation(final float minIou) {
+    this.minIou = minIou;
+  }
+
+  /**
+   * Runs the configuration over the sequence.
+   *
+   * @param frames The frames of the sequence, or null for detectors that do not look at the
+   *     pixels, which then get blank frames of the sequence's size. Read from the start, its frame
+   *     {@code f} belonging to frame {@code f} of the annotations, and closed at the end.
+   */
+  public Result run(
+      final Configuration configuration, final AnnotatedSequence sequence, final FrameSource frames)
+      throws Exception {
+    final StreamDetector detector = configuration.detectors.create();
+    try {
+      final DetectionTracker tracker = new DetectionTracker(detector.getLabels());
+      tracker.setFrameConfiguration(sequence.getWidth(), sequence.getHeight(), 0);
+      final MotMetrics metrics = new MotMetrics(minIou);
+      final Detections detections = new Detections(MAX_DETECTIONS);
+      final StreamFrame frame = new StreamFrame();
+      final long[] latencies =
+          new long[(sequence.getFrameCount() + configuration.detectionInterval - 1)
+              / configuration.detectionInterval];
+      int detected = 0;
+      long processingNanos = 0;
+      int f = 0;
+      for (; f < sequence.getFrameCount(); ++f) {
+        if (frames == null) {
+          frame.prepare(sequence.getWidth(), sequence.getHeight());
+        } else if (!frames.read(frame)) {
+          break;
+        }
+        frame.setTiming(f, System.nanoTime());
+        final TrackSnapshot tracks;
+        if (f % configuration.detectionInterval == 0) {
+          final long start = System.nanoTime();
+          detections.clear();
+          detector.detect(frame, detections);
+          tracks = tracker.update(detections);
+          final long latency = System.nanoTime() - start;
+          latencies[detected++] = latency;
+          processingNanos += latency;
+        } else {
+          tracks = tracker.getSnapshot();
+        }
+        metrics.update(sequence, f, tracks);
+      }
+      final long[] sorted = Arrays.copyOf(latencies, detected);
+      Arrays.sort(sorted);
+      return new Result(
+          configuration.name, sequence.getName(), metrics, f, processingNanos, sorted);
+    } finally {
+      detector.close();
+      if (frames != null) {
+        try {
+          frames.close();
+        } catch (final IOException e) {
+          // The results are complete.
+        }
+      }
+    }
+  }
+
+  static long percentile(final long[] sorted, final double fraction) {
+    if (sorted.length == 0) {
+      return 0;
+    }
+    return sorted[Math.min(sorted.length - 1, (int) (sorted.length * fraction))];
+  }
+}
@@ -0,0 +1,121 @@
+package com.motiontracking.network;
+
+import com.motiontracking.tflite.Detections;
+import com.motiontracking.tflite.ModelSpec;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Runs detections on the model of an {@link InferenceServer}. Plain Java on a blocking socket, so
+ * capture processes and tools on a desktop can use a served model alike. The client learns the
+ * model from the server on connecting; inputs are preprocessed for it by the caller.
+ *
+ * <p>Requests of one client run one after another; {@link #detect} may be called from any thread.
+ */
+public class InferenceClient implements Closeable {
+  private final SocketChannel channel;
+  private final ModelSpec spec;
+  private final List<String> labels;
+  private final ByteBuffer header = ByteBuffer.allocate(4);
+  private final ByteBuffer response;
+
+  /** Connects to a server, usually on the loopback address, and reads its model. */
+  public InferenceClient(final String host, final int port) throws IOException {
+    channel = SocketChannel.open(new InetSocketAddress(host, port));
+    try {
+      channel.socket().setTcpNoDelay(true);
+      InferenceFormat.readFully(channel, header);
+      final int length = header.getInt(0);
+      if (length <= 0 || length > InferenceFormat.MAX_HELLO_BYTES) {
+        throw new IOException("Bad hello length " + length);
+      }
+      final ByteBuffer hello = ByteBuffer.allocate(length);
+      InferenceFormat.readFully(channel, hello);
+      hello.flip();
+      final List<String> labels = new ArrayList<>();
+      spec = InferenceFormat.decodeHello(hello, labels);
+      this.labels = Collections.unmodifiableList(labels);
+    } catch (final IOException e) {
+      channel.close();
+      throw e;
+    }
+    response = ByteBuffer.allocate(InferenceFormat.DETECTION_BYTES * spec.getMaxDetections());
+  }
+
+  /** The served model; its input size and type are what {@link #detect} takes. */
+  public ModelSpec getSpec() {
+    return spec;
+  }
+
+  /** Lines of the served model's label file, indexed by label index. */
+  public List<String> getLabels() {
+    return labels;
+  }
+
+  /**
+   * Detects objects in an input tensor, blocking until the server responds.
+   *
+   * @param input {@link ModelSpec#getInputBytes()} bytes from its position on, in native byte
+   *     order. The position is left alone.
+   * @param out Receives as many detections as it holds, boxes normalized to [0, 1] of the input.
+   * @throws IOException If the connection failed, or the server could not run the request.
+   */
+  public synchronized void detect(final ByteBuffer input, final Detections out)
+      throws IOException {
+    final int length = spec.getInputBytes();
+    if (input.remaining() < length) {
+      throw new IllegalArgumentException(
+          "Input of " + input.remaining() + " bytes, " + length + " needed");
+    }
+    header.clear();
+    header.putInt(length).flip();
+    InferenceFormat.writeFully(channel, header);
+    final ByteBuffer tensor = input.duplicate();
+    tensor.limit(tensor.position() + length);
+    InferenceFormat.writeFully(channel, tensor);
+
+    header.clear();
+    InferenceFormat.readFully(channel, header);
+    final int count = header.getInt(0);
+    if (count == InferenceFormat.ERROR) {
+      header.clear();
+      InferenceFormat.readFully(channel, header);
+      final int messageLength = header.getInt(0);
+      if (messageLength < 0 || messageLength > InferenceFormat.MAX_HELLO_BYTES) {
+        throw new IOException("Bad error length " + messageLength);
+      }
+      final ByteBuffer message = ByteBuffer.allocate(messageLength);
+      InferenceFormat.readFully(channel, message);
+      throw new IOException(new String(message.array(), InferenceFormat.UTF_8));
+    }
+    if (count < 0 || count > spec.getMaxDetections()) {
+      throw new IOException("Bad detection count " + count);
+    }
+    response.clear();
+    response.limit(count * InferenceFormat.DETECTION_BYTES);
+    InferenceFormat.readFully(channel, response);
+    response.flip();
+    out.clear();
+    for (int i = 0; i < count; ++i) {
+      out.add(
+          response.getFloat(),
+          response.getFloat(),
+          response.getFloat(),
+          response.getFloat(),
+          response.getInt(),
+          response.getFloat());
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+}
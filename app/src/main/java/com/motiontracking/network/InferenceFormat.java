@@ -0,0 +1,149 @@
+package com.motiontracking.network;
+
+import com.motiontracking.tflite.ModelSpec;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Wire format between an {@link InferenceServer} and its clients. All integers are 4-byte
+ * big-endian, floats are their IEEE bits as such integers, strings a length and UTF-8 bytes.
+ *
+ * <p>On connecting, the server sends a hello: its length, a magic number and version, the byte
+ * order of its input tensors, and the model: name, input size and type, normalization, label
+ * offset, maximum detections, minimum confidence, and every label with its own minimum confidence.
+ *
+ * <p>Then the client sends requests, each the length of an input tensor followed by the tensor in
+ * the server's byte order, and waits for the response before sending the next one. A response is
+ * the number of detections followed by top, left, bottom, right, class index and score of each,
+ * boxes normalized to the input; or -1 followed by an error message if the request failed.
+ */
+final class InferenceFormat {
+  static final Charset UTF_8 = Charset.forName("UTF-8");
+  static final int MAGIC = 0x4d54494e;
+  static final int VERSION = 1;
+  static final int DETECTION_BYTES = 24;
+  static final int ERROR = -1;
+  // Hellos and error messages longer than this are rejected by the client as corrupt.
+  static final int MAX_HELLO_BYTES = 1 << 20;
+
+  private InferenceFormat() {}
+
+  static ByteBuffer encodeHello(final ModelSpec spec, final List<String> labels) {
+    final byte[] name = String.valueOf(spec.getName()).getBytes(UTF_8);
+    final byte[][] labelBytes = new byte[labels.size()][];
+    int length = 4 * 13 + name.length;
+    for (int i = 0; i < labelBytes.length; ++i) {
+      labelBytes[i] = labels.get(i).getBytes(UTF_8);
+      length += 8 + labelBytes[i].length;
+    }
+    final ByteBuffer hello = ByteBuffer.allocate(4 + length);
+    hello.putInt(length);
+    hello.putInt(MAGIC);
+    hello.putInt(VERSION);
+    hello.putInt(ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN ? 1 : 0);
+    hello.putInt(name.length).put(name);
+    hello.putInt(spec.getInputWidth());
+    hello.putInt(spec.getInputHeight());
+    hello.putInt(spec.isQuantized() ? 1 : 0);
+    hello.putFloat(spec.getImageMean());
+    hello.putFloat(spec.getImageStd());
+    hello.putInt(spec.getLabelOffset());
+    hello.putInt(spec.getMaxDetections());
+    hello.putFloat(spec.getMinimumConfidence());
+    hello.putInt(labelBytes.length);
+    for (int i = 0; i < labelBytes.length; ++i) {
+      hello.putInt(labelBytes[i].length).put(labelBytes[i]);
+      hello.putFloat(spec.getMinimumConfidence(labels.get(i)));
+    }
+    hello.flip();
+    return hello;
+  }
+
+  /**
+   * Decodes a hello without its length into the spec of the served model, adding the labels.
+   *
+   * @throws IOException If it is no hello, or from a server with another byte order.
+   */
+  static ModelSpec decodeHello(final ByteBuffer hello, final List<String> labels)
+      throws IOException {
+    try {
+      if (hello.getInt() != MAGIC) {
+        throw new IOException("Not an inference server");
+      }
+      final int version = hello.getInt();
+      if (version != VERSION) {
+        throw new IOException("Unsupported protocol version " + version);
+      }
+      final boolean littleEndian = hello.getInt() != 0;
+      if (littleEndian != (ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN)) {
+        throw new IOException("Server tensors are in another byte order");
+      }
+      final String name = getString(hello);
+      final int inputWidth = hello.getInt();
+      final int inputHeight = hello.getInt();
+      final boolean quantized = hello.getInt() != 0;
+      final float imageMean = hello.getFloat();
+      final float imageStd = hello.getFloat();
+      final int labelOffset = hello.getInt();
+      final int maxDetections = hello.getInt();
+      final float minimumConfidence = hello.getFloat();
+      final int labelCount = hello.getInt();
+      final Map<String, Float> thresholds = new HashMap<>();
+      for (int i = 0; i < labelCount; ++i) {
+        final String label = getString(hello);
+        labels.add(label);
+        thresholds.put(label, hello.getFloat());
+      }
+      return new ModelSpec(
+          name,
+          name,
+          null,
+          inputWidth,
+          inputHeight,
+          quantized,
+          imageMean,
+          imageStd,
+          labelOffset,
+          ModelSpec.OutputLayout.POSTPROCESSED,
+          null,
+          maxDetections,
+          minimumConfidence,
+          thresholds);
+    } catch (final RuntimeException e) {
+      throw new IOException("Corrupt hello", e);
+    }
+  }
+
+  private static String getString(final ByteBuffer buffer) {
+    final byte[] bytes = new byte[buffer.getInt()];
+    buffer.get(bytes);
+    return new String(bytes, UTF_8);
+  }
+
+  /** Reads until the buffer is full. */
+  static void readFully(final ReadableByteChannel channel, final ByteBuffer buffer)
+      throws IOException {
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer) < 0) {
+        throw new EOFException("Connection closed with " + buffer.remaining() + " bytes missing");
+      }
+    }
+  }
+
+  /** Writes everything up to the buffer's limit. */
+  static void writeFully(final WritableByteChannel channel, final ByteBuffer buffer)
+      throws IOException {
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+}
@@ -0,0 +1,385 @@
+package com.motiontracking.network;
+
+import com.motiontracking.tflite.BatchDetector;
+import com.motiontracking.tflite.Detections;
+import com.motiontracking.tflite.ModelSpec;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Shares one loaded model between processes: clients connected over TCP, typically capture
+ * processes on the same device connecting to the loopback address, send input tensors they
+ * preprocessed themselves and get the detections back, in the format of {@link InferenceFormat}.
+ *
+ * <p>Each connection has a thread of its own that reads requests straight into a direct buffer and
+ * writes the responses, and at most one request in flight. A single batch thread runs the model on
+ * the requests that are pending together: once the first one arrives, it waits for more until the
+ * batch is full, every connection has a request pending, or the first one has waited the maximum
+ * latency, whichever comes first. The detector is only ever called by that thread.
+ */
+public class InferenceServer implements Closeable {
+  private final BatchDetector detector;
+  private final int maxBatch;
+  private final long maxLatencyNanos;
+  private final int inputBytes;
+  private final int maxDetections;
+  private final ByteBuffer hello;
+  private final ServerSocketChannel serverChannel;
+  private final Thread acceptThread;
+  private final Thread batchThread;
+
+  // Connections and their pending requests, guarded by lock.
+  private final Object lock = new Object();
+  private final List<Connection> connections = new ArrayList<>();
+  private final ArrayDeque<Connection> pending = new ArrayDeque<>();
+  private boolean closing;
+  private long requests;
+  private long batches;
+  private int largestBatch;
+
+  /** A client, and its request while one is in flight. */
+  private final class Connection implements Runnable {
+    private final SocketChannel channel;
+    private final Thread thread;
+    private final ByteBuffer header = ByteBuffer.allocate(4);
+    private final ByteBuffer input =
+        ByteBuffer.allocateDirect(inputBytes).order(ByteOrder.nativeOrder());
+    private final Detections detections = new Detections(maxDetections);
+    private final ByteBuffer response =
+        ByteBuffer.allocate(4 + InferenceFormat.DETECTION_BYTES * maxDetections);
+    // Guarded by lock.
+    private long arrivalNanos;
+    private boolean done;
+    private String error;
+
+    Connection(final SocketChannel channel, final int number) {
+      this.channel = channel;
+      thread = new Thread(this, "InferenceServer-" + number);
+      thread.setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+      try {
+        InferenceFormat.writeFully(channel, hello.duplicate());
+        while (readRequest()) {
+          detect(this);
+          if (error != null) {
+            writeError(error);
+          } else {
+            writeDetections();
+          }
+        }
+      } catch (final IOException e) {
+        // The client went away or the server is closing; either way the connection ends.
+      } finally {
+        synchronized (lock) {
+          connections.remove(this);
+          lock.notifyAll();
+        }
+        try {
+          channel.close();
+        } catch (final IOException e) {
+          // Nothing left to release.
+        }
+      }
+    }
+
+    /** Returns false if the client closed the connection between requests. */
+    private boolean readRequest() throws IOException {
+      header.clear();
+      if (channel.read(header) < 0) {
+        return false;
+      }
+      InferenceFormat.readFully(channel, header);
+      final int length = header.getInt(0);
+      if (length != inputBytes) {
+        // The rest of the request cannot be skipped reliably, so the connection ends here.
+        writeError("Expected an input of " + inputBytes + " bytes, got " + length);
+        throw new IOException("Bad request length " + length);
+      }
+      input.clear();
+      InferenceFormat.readFully(channel, input);
+      input.flip();
+      return true;
+    }
+
+    private void writeDetections() throws IOException {
+      response.clear();
+      response.putInt(detections.size());
+      for (int i = 0; i < detections.size(); ++i) {
+        response.putFloat(detections.getTop(i));
+        response.putFloat(detections.getLeft(i));
+        response.putFloat(detections.getBottom(i));
+        response.putFloat(detections.getRight(i));
+        response.putInt(detections.getClassIndex(i));
+        response.putFloat(detections.getScore(i));
+      }
+      response.flip();
+      InferenceFormat.writeFully(channel, response);
+    }
+
+    private void writeError(final String message) throws IOException {
+      final byte[] bytes = message.getBytes(InferenceFormat.UTF_8);
+      final ByteBuffer buffer = ByteBuffer.allocate(8 + bytes.length);
+      buffer.putInt(InferenceFormat.ERROR).putInt(bytes.length).put(bytes).flip();
+      InferenceFormat.writeFully(channel, buffer);
+    }
+  }
+
+  /**
+   * Listens on the address and starts the accept and batch threads.
+   *
+   * @param address Where to listen, usually the loopback address; port 0 picks a free port.
+   * @param maxBatch Most requests run together.
+   * @param maxLatencyNanos Longest a request waits for others to join its batch.
+   */
+  public InferenceServer(
+      final InetSocketAddress address,
+      final BatchDetector detector,
+      final int maxBatch,
+      final long maxLatencyNanos)
+      throws IOException {
+    if (maxBatch < 1 || maxLatencyNanos < 0) {
+      throw new IllegalArgumentException(
+          "Invalid batching of " + maxBatch + " within " + maxLatencyNanos + " ns");
+    }
+    this.detector = detector;
+    this.maxBatch = maxBatch;
+    this.maxLatencyNanos = maxLatencyNanos;
+    final ModelSpec spec = detector.getSpec();
+    inputBytes = spec.getInputBytes();
+    maxDetections = spec.getMaxDetections();
+    hello = InferenceFormat.encodeHello(spec, detector.getLabels());
+    serverChannel = ServerSocketChannel.open();
+    try {
+      serverChannel.socket().setReuseAddress(true);
+      serverChannel.socket().bind(address);
+    } catch (final IOException e) {
+      serverChannel.close();
+      throw e;
+    }
+    acceptThread =
+        new Thread(
+            new Runnable() {
+              @Override
+              public void run() {
+                acceptLoop();
+              }
+            },
+            "InferenceServer-accept");
+    acceptThread.setDaemon(true);
+    batchThread =
+        new Thread(
+            new Runnable() {
+              @Override
+              public void run() {
+                batchLoop();
+              }
+            },
+            "InferenceServer-batch");
+    batchThread.setDaemon(true);
+    batchThread.start();
+    acceptThread.start();
+  }
+
+  /** The port the server listens on. */
+  public int getPort() {
+    return serverChannel.socket().getLocalPort();
+  }
+
+  public int getConnectionCount() {
+    synchronized (lock) {
+      return connections.size();
+    }
+  }
+
+  /** Number of requests run so far. */
+  public long getRequests() {
+    synchronized (lock) {
+      return requests;
+    }
+  }
+
+  /** Number of times the model ran a batch of requests. */
+  public long getBatches() {
+    synchronized (lock) {
+      return batches;
+    }
+  }
+
+  public int getLargestBatch() {
+    synchronized (lock) {
+      return largestBatch;
+    }
+  }
+
+  /**
+   * Disconnects all clients and stops the threads. Returns once the batch thread is done with the
+   * detector, which can then be closed.
+   */
+  @Override
+  public void close() throws IOException {
+    final List<Connection> open;
+    synchronized (lock) {
+      if (closing) {
+        return;
+      }
+      closing = true;
+      lock.notifyAll();
+      open = new ArrayList<>(connections);
+    }
+    serverChannel.close();
+    for (final Connection connection : open) {
+      connection.channel.close();
+    }
+    try {
+      acceptThread.join();
+      batchThread.join();
+      for (final Connection connection : open) {
+        connection.thread.join();
+      }
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void acceptLoop() {
+    int number = 0;
+    while (true) {
+      final SocketChannel channel;
+      try {
+        channel = serverChannel.accept();
+        channel.socket().setTcpNoDelay(true);
+      } catch (final IOException e) {
+        // Closed.
+        return;
+      }
+      final Connection connection = new Connection(channel, ++number);
+      synchronized (lock) {
+        if (!closing) {
+          connections.add(connection);
+          connection.thread.start();
+          continue;
+        }
+      }
+      try {
+        channel.close();
+      } catch (final IOException e) {
+        // Nothing left to release.
+      }
+      return;
+    }
+  }
+
+  /** Queues the connection's request and waits until it ran. */
+  private void detect(final Connection connection) throws IOException {
+    synchronized (lock) {
+      connection.arrivalNanos = System.nanoTime();
+      connection.done = false;
+      connection.error = null;
+      pending.add(connection);
+      lock.notifyAll();
+      try {
+        while (!connection.done && !closing) {
+          lock.wait();
+        }
+      } catch (final InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      if (!connection.done) {
+        throw new IOException("Server closed");
+      }
+    }
+  }
+
+  private void batchLoop() {
+    final Connection[] batch = new Connection[maxBatch];
+    final ByteBuffer[] inputs = new ByteBuffer[maxBatch];
+    final Detections[] outputs = new Detections[maxBatch];
+    while (true) {
+      final int count;
+      synchronized (lock) {
+        try {
+          while (!closing && pending.isEmpty()) {
+            lock.wait();
+          }
+          if (closing) {
+            return;
+          }
+          final long deadline = pending.peek().arrivalNanos + maxLatencyNanos;
+          // Waits only while a connection without a pending request could still send one.
+          long remaining;
+          while (!closing
+              && pending.size() < maxBatch
+              && pending.size() < connections.size()
+              && (remaining = deadline - System.nanoTime()) > 0) {
+            lock.wait(remaining / 1_000_000L, (int) (remaining % 1_000_000L));
+          }
+        } catch (final InterruptedException e) {
+          return;
+        }
+        if (closing) {
+          return;
+        }
+        count = Math.min(maxBatch, pending.size());
+        for (int i = 0; i < count; ++i) {
+          batch[i] = pending.poll();
+          inputs[i] = batch[i].input;
+          outputs[i] = batch[i].detections;
+        }
+      }
+
+      String error = null;
+      try {
+        detector.detect(inputs, count, outputs);
+      } catch (final RuntimeException e) {
+        error = "Detection failed: " + e;
+      }
+
+      synchronized (lock) {
+        requests += count;
+        ++batches;
+        largestBatch = Math.max(largestBatch, count);
+        for (int i = 0; i < count; ++i) {
+          batch[i].error = error;
+          batch[i].done = true;
+          batch[i] = null;
+          inputs[i] = null;
+          outputs[i] = null;
+        }
+        lock.notifyAll();
+      }
+    }
+  }
+
+  @Override
+  public String toString() {
+    synchronized (lock) {
+      return "InferenceServer{port="
+          + getPort()
+          + ", connections="
+          + connections.size()
+          + ", requests="
+          + requests
+          + ", batches="
+          + batches
+          + ", largestBatch="
+          + largestBatch
+          + ", maxBatch="
+          + maxBatch
+          + ", maxLatencyNanos="
+          + maxLatencyNanos
+          + "}";
+    }
+  }
+}
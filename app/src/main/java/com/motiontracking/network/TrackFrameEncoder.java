@@ -0,0 +1,189 @@
+package com.motiontracking.network;
+
+import com.motiontracking.tracking.TrackSnapshot;
+import com.motiontracking.utils.IntIntMap;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encodes consecutive snapshots into frames of the track stream, see {@link TrackStreamFormat}.
+ * Each snapshot is encoded once as a key frame and, if the previous snapshot had the same frame
+ * configuration, once as a delta frame against it; the server picks one per subscriber.
+ *
+ * <p>Used by one thread.
+ */
+final class TrackFrameEncoder {
+  private static final int MAX_VARINT_BYTES = 10;
+  private static final int MAX_INT_VARINT_BYTES = 5;
+  private static final int MAX_TRACK_BYTES = 6 * MAX_INT_VARINT_BYTES + 1;
+  private static final int MAX_HEADER_BYTES =
+      TrackStreamFormat.LENGTH_BYTES + 1 + 2 * MAX_VARINT_BYTES + 5 * MAX_INT_VARINT_BYTES;
+
+  private final Map<String, Integer> labelIndices = new HashMap<>();
+  private final List<byte[]> labels = new ArrayList<>();
+  private int labelTableBytes;
+  private ByteBuffer keyFrame = ByteBuffer.allocate(4096);
+  private ByteBuffer deltaFrame = ByteBuffer.allocate(4096);
+  private boolean hasDelta;
+  private long sequence;
+
+  // The previously encoded snapshot, the reference of delta frames.
+  private boolean hasReference;
+  private long referenceTimeMicros;
+  private int referenceWidth;
+  private int referenceHeight;
+  private int referenceOrientation;
+  private int referenceLabels;
+  private final IntIntMap referenceIndices = new IntIntMap(16);
+  private int[] referenceBoxes = new int[64];
+  private int[] boxes = new int[64];
+
+  /** Encodes the snapshot as the next frame of the stream. */
+  void encode(final TrackSnapshot snapshot, final long timeMicros) {
+    ++sequence;
+    final int count = snapshot.size();
+    for (int i = 0; i < count; ++i) {
+      final String title = snapshot.getTitle(i);
+      if (title != null && !labelIndices.containsKey(title)) {
+        labelIndices.put(title, labels.size());
+        final byte[] utf8 = title.getBytes(TrackStreamFormat.UTF_8);
+        labels.add(utf8);
+        labelTableBytes += MAX_INT_VARINT_BYTES + utf8.length;
+      }
+    }
+    if (boxes.length < 4 * count) {
+      boxes = new int[Math.max(4 * count, 2 * boxes.length)];
+    }
+    for (int i = 0; i < count; ++i) {
+      boxes[4 * i] = quantize(snapshot.getLeft(i));
+      boxes[4 * i + 1] = quantize(snapshot.getTop(i));
+      boxes[4 * i + 2] = quantize(snapshot.getRight(i));
+      boxes[4 * i + 3] = quantize(snapshot.getBottom(i));
+    }
+    final int bound = MAX_HEADER_BYTES + labelTableBytes + count * MAX_TRACK_BYTES;
+    if (keyFrame.capacity() < bound) {
+      keyFrame = ByteBuffer.allocate(Math.max(bound, 2 * keyFrame.capacity()));
+      deltaFrame = ByteBuffer.allocate(keyFrame.capacity());
+    }
+
+    keyFrame.clear();
+    final int keyStart = begin(keyFrame, TrackStreamFormat.TAG_KEY);
+    TrackStreamFormat.putVarint(keyFrame, timeMicros);
+    TrackStreamFormat.putVarint(keyFrame, snapshot.getFrameWidth());
+    TrackStreamFormat.putVarint(keyFrame, snapshot.getFrameHeight());
+    TrackStreamFormat.putVarint(keyFrame, snapshot.getSensorOrientation());
+    putLabels(keyFrame, 0);
+    putTracks(keyFrame, snapshot, false);
+    end(keyFrame, keyStart);
+
+    hasDelta =
+        hasReference
+            && snapshot.getFrameWidth() == referenceWidth
+            && snapshot.getFrameHeight() == referenceHeight
+            && snapshot.getSensorOrientation() == referenceOrientation;
+    if (hasDelta) {
+      deltaFrame.clear();
+      final int deltaStart = begin(deltaFrame, TrackStreamFormat.TAG_DELTA);
+      TrackStreamFormat.putVarint(
+          deltaFrame, TrackStreamFormat.zigzag(timeMicros - referenceTimeMicros));
+      putLabels(deltaFrame, referenceLabels);
+      putTracks(deltaFrame, snapshot, true);
+      end(deltaFrame, deltaStart);
+    }
+
+    // This snapshot is the reference of the next one.
+    hasReference = true;
+    referenceTimeMicros = timeMicros;
+    referenceWidth = snapshot.getFrameWidth();
+    referenceHeight = snapshot.getFrameHeight();
+    referenceOrientation = snapshot.getSensorOrientation();
+    referenceLabels = labels.size();
+    referenceIndices.clear();
+    for (int i = 0; i < count; ++i) {
+      referenceIndices.put(snapshot.getId(i), i);
+    }
+    final int[] swap = referenceBoxes;
+    referenceBoxes = boxes;
+    boxes = swap.length >= 4 * count ? swap : Arrays.copyOf(swap, 4 * count);
+  }
+
+  /** Sequence number of the last encoded frame, starting at 1. */
+  long getSequence() {
+    return sequence;
+  }
+
+  /** The last snapshot as a key frame, from position 0 to the limit. */
+  ByteBuffer getKeyFrame() {
+    return keyFrame;
+  }
+
+  /** Whether the last snapshot has a delta frame. */
+  boolean hasDeltaFrame() {
+    return hasDelta;
+  }
+
+  /** The last snapshot as a delta frame against the one before, from position 0 to the limit. */
+  ByteBuffer getDeltaFrame() {
+    return deltaFrame;
+  }
+
+  private int begin(final ByteBuffer frame, final byte tag) {
+    frame.putInt(0);
+    final int start = frame.position();
+    frame.put(tag);
+    TrackStreamFormat.putVarint(frame, sequence);
+    return start;
+  }
+
+  private static void end(final ByteBuffer frame, final int start) {
+    frame.putInt(0, frame.position() - start);
+    frame.flip();
+  }
+
+  private void putLabels(final ByteBuffer frame, final int from) {
+    TrackStreamFormat.putVarint(frame, labels.size() - from);
+    for (int i = from; i < labels.size(); ++i) {
+      final byte[] utf8 = labels.get(i);
+      TrackStreamFormat.putVarint(frame, utf8.length);
+      frame.put(utf8);
+    }
+  }
+
+  private void putTracks(
+      final ByteBuffer frame, final TrackSnapshot snapshot, final boolean delta) {
+    final int count = snapshot.size();
+    TrackStreamFormat.putVarint(frame, count);
+    int previousId = 0;
+    for (int i = 0; i < count; ++i) {
+      final int id = snapshot.getId(i);
+      TrackStreamFormat.putVarint(frame, TrackStreamFormat.zigzag(id - previousId));
+      previousId = id;
+      final int reference = delta ? referenceIndices.get(id, -1) : -1;
+      final String title = snapshot.getTitle(i);
+      final int label = title != null ? labelIndices.get(title) + 1 : 0;
+      TrackStreamFormat.putVarint(
+          frame,
+          ((long) label << TrackStreamFormat.FLAG_BITS)
+              | (reference >= 0 ? TrackStreamFormat.FLAG_DELTA : 0));
+      for (int k = 0; k < 4; ++k) {
+        final int value = boxes[4 * i + k];
+        TrackStreamFormat.putVarint(
+            frame,
+            TrackStreamFormat.zigzag(
+                reference >= 0 ? value - referenceBoxes[4 * reference + k] : value));
+      }
+      final int confidence =
+          Math.round(snapshot.getConfidence(i) * TrackStreamFormat.CONFIDENCE_SCALE);
+      frame.put((byte) Math.max(0, Math.min(255, confidence)));
+    }
+  }
+
+  private static int quantize(final float coordinate) {
+    return Math.round(coordinate * TrackStreamFormat.COORDINATE_SCALE);
+  }
+}
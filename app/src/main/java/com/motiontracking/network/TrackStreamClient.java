@@ -0,0 +1,272 @@
+package com.motiontracking.network;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the track stream of a {@link TrackStreamServer}, frame by frame, resolving delta frames
+ * against the frame before. Plain Java on a blocking socket, so tools on a desktop can subscribe
+ * too.
+ */
+public class TrackStreamClient implements Closeable {
+  private final Socket socket;
+  private final DataInputStream in;
+  private byte[] frameBytes = new byte[4096];
+
+  private final List<String> labels = new ArrayList<>();
+  private boolean hasFrame;
+  private long sequence;
+  private boolean keyFrame;
+  private long timeMicros;
+  private int frameWidth;
+  private int frameHeight;
+  private int sensorOrientation;
+  private int count;
+  private int[] ids = new int[16];
+  private int[] labelIndices = new int[16];
+  private int[] boxes = new int[64];
+  private int[] confidences = new int[16];
+  // The frame before, which delta frames refer to.
+  private int previousCount;
+  private int[] previousIds = new int[16];
+  private int[] previousBoxes = new int[64];
+
+  /** Connects to a server, usually on the loopback address. */
+  public TrackStreamClient(final String host, final int port) throws IOException {
+    this(new Socket(host, port));
+  }
+
+  private TrackStreamClient(final Socket socket) throws IOException {
+    this.socket = socket;
+    socket.setTcpNoDelay(true);
+    in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+  }
+
+  /** Reads a stream that was recorded or forwarded some other way. */
+  public TrackStreamClient(final InputStream stream) {
+    socket = null;
+    in = new DataInputStream(new BufferedInputStream(stream));
+  }
+
+  /**
+   * Reads the next frame, blocking until it arrives.
+   *
+   * @return False if the server closed the stream between frames.
+   * @throws IOException If the stream is corrupt, breaks off within a frame or sends a delta frame
+   *     that does not follow the frame before.
+   */
+  public boolean next() throws IOException {
+    final int length;
+    try {
+      length = in.readInt();
+    } catch (final EOFException e) {
+      return false;
+    }
+    if (length <= 0 || length > TrackStreamFormat.MAX_FRAME_BYTES) {
+      throw new IOException("Bad frame length " + length);
+    }
+    if (frameBytes.length < length) {
+      frameBytes = new byte[Math.max(length, 2 * frameBytes.length)];
+    }
+    in.readFully(frameBytes, 0, length);
+    final ByteBuffer frame = ByteBuffer.wrap(frameBytes, 0, length);
+
+    final byte tag = frame.get();
+    if (tag != TrackStreamFormat.TAG_KEY && tag != TrackStreamFormat.TAG_DELTA) {
+      throw new IOException("Unknown frame tag " + tag);
+    }
+    final long frameSequence = TrackStreamFormat.getVarint(frame);
+    keyFrame = tag == TrackStreamFormat.TAG_KEY;
+    final boolean follows = hasFrame && frameSequence == sequence + 1;
+    // The current frame becomes the reference of this one, and nothing is valid until it is read.
+    swapFrames();
+    hasFrame = false;
+    if (keyFrame) {
+      timeMicros = TrackStreamFormat.getVarint(frame);
+      frameWidth = (int) TrackStreamFormat.getVarint(frame);
+      frameHeight = (int) TrackStreamFormat.getVarint(frame);
+      sensorOrientation = (int) TrackStreamFormat.getVarint(frame);
+      labels.clear();
+    } else {
+      if (!follows) {
+        throw new IOException(
+            "Delta frame " + frameSequence + " does not follow frame " + sequence);
+      }
+      timeMicros += TrackStreamFormat.unzigzag(TrackStreamFormat.getVarint(frame));
+    }
+    readLabels(frame);
+    readTracks(frame);
+    if (frame.hasRemaining()) {
+      throw new IOException(frame.remaining() + " bytes left over in frame " + frameSequence);
+    }
+    sequence = frameSequence;
+    hasFrame = true;
+    return true;
+  }
+
+  /** Sequence number of the frame, one more than that of the frame the server published before. */
+  public long getSequence() {
+    return sequence;
+  }
+
+  public boolean isKeyFrame() {
+    return keyFrame;
+  }
+
+  /** Wall-clock time of the frame in microseconds since the epoch. */
+  public long getTimeMicros() {
+    return timeMicros;
+  }
+
+  public int getFrameWidth() {
+    return frameWidth;
+  }
+
+  public int getFrameHeight() {
+    return frameHeight;
+  }
+
+  public int getSensorOrientation() {
+    return sensorOrientation;
+  }
+
+  /** Number of tracks in the frame. */
+  public int size() {
+    return count;
+  }
+
+  public int getId(final int index) {
+    return ids[index];
+  }
+
+  /** Index of the track with the id in this frame, or -1. */
+  public int indexOf(final int id) {
+    for (int i = 0; i < count; ++i) {
+      if (ids[i] == id) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  public float getLeft(final int index) {
+    return boxes[4 * index] / TrackStreamFormat.COORDINATE_SCALE;
+  }
+
+  public float getTop(final int index) {
+    return boxes[4 * index + 1] / TrackStreamFormat.COORDINATE_SCALE;
+  }
+
+  public float getRight(final int index) {
+    return boxes[4 * index + 2] / TrackStreamFormat.COORDINATE_SCALE;
+  }
+
+  public float getBottom(final int index) {
+    return boxes[4 * index + 3] / TrackStreamFormat.COORDINATE_SCALE;
+  }
+
+  public float getConfidence(final int index) {
+    return confidences[index] / TrackStreamFormat.CONFIDENCE_SCALE;
+  }
+
+  /** The track's title, or null if it has none. */
+  public String getTitle(final int index) {
+    return labelIndices[index] > 0 ? labels.get(labelIndices[index] - 1) : null;
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (socket != null) {
+      socket.close();
+    } else {
+      in.close();
+    }
+  }
+
+  private void swapFrames() {
+    int[] swap = previousIds;
+    previousIds = ids;
+    ids = swap;
+    swap = previousBoxes;
+    previousBoxes = boxes;
+    boxes = swap;
+    previousCount = hasFrame ? count : 0;
+  }
+
+  private void readLabels(final ByteBuffer frame) throws IOException {
+    final long added = TrackStreamFormat.getVarint(frame);
+    for (long i = 0; i < added; ++i) {
+      final long length = TrackStreamFormat.getVarint(frame);
+      if (length < 0 || length > frame.remaining()) {
+        throw new IOException("Label of " + length + " bytes overruns the frame");
+      }
+      labels.add(
+          new String(
+              frame.array(),
+              frame.arrayOffset() + frame.position(),
+              (int) length,
+              TrackStreamFormat.UTF_8));
+      frame.position(frame.position() + (int) length);
+    }
+  }
+
+  private void readTracks(final ByteBuffer frame) throws IOException {
+    final long tracks = TrackStreamFormat.getVarint(frame);
+    // Every track takes at least seven bytes.
+    if (tracks < 0 || tracks > frame.remaining() / 7) {
+      throw new IOException(tracks + " tracks overrun the frame");
+    }
+    count = (int) tracks;
+    if (ids.length < count) {
+      ids = new int[Math.max(count, 2 * ids.length)];
+      boxes = new int[4 * ids.length];
+    }
+    if (labelIndices.length < count) {
+      labelIndices = new int[ids.length];
+      confidences = new int[ids.length];
+    }
+    int id = 0;
+    for (int i = 0; i < count; ++i) {
+      id += (int) TrackStreamFormat.unzigzag(TrackStreamFormat.getVarint(frame));
+      ids[i] = id;
+      final long flags = TrackStreamFormat.getVarint(frame);
+      final int label = (int) (flags >>> TrackStreamFormat.FLAG_BITS);
+      if (label > labels.size()) {
+        throw new IOException("Track " + id + " has unknown label " + label);
+      }
+      labelIndices[i] = label;
+      int reference = -1;
+      if ((flags & TrackStreamFormat.FLAG_DELTA) != 0) {
+        reference = previousIndexOf(id);
+        if (keyFrame || reference < 0) {
+          throw new IOException("Track " + id + " is a delta without a reference");
+        }
+      }
+      for (int k = 0; k < 4; ++k) {
+        final int value = (int) TrackStreamFormat.unzigzag(TrackStreamFormat.getVarint(frame));
+        boxes[4 * i + k] = reference >= 0 ? previousBoxes[4 * reference + k] + value : value;
+      }
+      if (!frame.hasRemaining()) {
+        throw new IOException("Frame ends within track " + id);
+      }
+      confidences[i] = frame.get() & 0xff;
+    }
+  }
+
+  private int previousIndexOf(final int id) {
+    for (int i = 0; i < previousCount; ++i) {
+      if (previousIds[i] == id) {
+        return i;
+      }
+    }
+    return -1;
+  }
+}
@@ -0,0 +1,69 @@
+package com.motiontracking.network;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Wire format of the track stream. The stream is a sequence of frames, each a 4-byte big-endian
+ * length followed by that many bytes: a tag byte, the version of the snapshot, and the snapshot.
+ *
+ * <p>Key frames hold the time in microseconds, the frame configuration, the whole label table and
+ * absolute boxes, so a subscriber can start decoding at any of them. Delta frames are only sent to
+ * a subscriber that was sent the snapshot published just before, whose version they repeat; they
+ * hold the time since that snapshot, the labels added since, and the boxes of continuing tracks as
+ * differences to that snapshot. Every frame lists all current tracks, so tracks missing from a
+ * frame have ended.
+ *
+ * <p>Integers are LEB128 varints, signed ones zigzag encoded; boxes are quantized to quarter
+ * pixels, confidences to a byte, as in the track log.
+ */
+final class TrackStreamFormat {
+  static final Charset UTF_8 = Charset.forName("UTF-8");
+  static final int LENGTH_BYTES = 4;
+  // Frames longer than this are rejected by the client as corrupt.
+  static final int MAX_FRAME_BYTES = 1 << 24;
+
+  static final byte TAG_KEY = 1;
+  static final byte TAG_DELTA = 2;
+
+  // Low bit of the per-track varint holding the label index plus one, zero for no title.
+  static final int FLAG_DELTA = 1;
+  static final int FLAG_BITS = 1;
+
+  static final float COORDINATE_SCALE = 4f;
+  static final float CONFIDENCE_SCALE = 255f;
+
+  private TrackStreamFormat() {}
+
+  static void putVarint(final ByteBuffer buffer, long value) {
+    while ((value & ~0x7fL) != 0) {
+      buffer.put((byte) ((value & 0x7f) | 0x80));
+      value >>>= 7;
+    }
+    buffer.put((byte) value);
+  }
+
+  static long getVarint(final ByteBuffer buffer) throws IOException {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      if (!buffer.hasRemaining()) {
+        throw new IOException("Truncated varint at " + buffer.position());
+      }
+      final byte b = buffer.get();
+      value |= (long) (b & 0x7f) << shift;
+      if (b >= 0) {
+        return value;
+      }
+    }
+    throw new IOException("Malformed varint at " + buffer.position());
+  }
+
+  static long zigzag(final long value) {
+    return (value << 1) ^ (value >> 63);
+  }
+
+  static long unzigzag(final long value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
+}
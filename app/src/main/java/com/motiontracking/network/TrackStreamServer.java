@@ -0,0 +1,458 @@
+package com.motiontracking.network;
+
+import com.motiontracking.tracking.TrackSnapshot;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Streams published tracks to any number of subscribers connected over TCP, typically services on
+ * the same device connecting to the loopback address, in the format of {@link TrackStreamFormat}.
+ *
+ * <p>{@link #publish} only queues the immutable snapshot and never blocks. A single I/O thread
+ * encodes the snapshots queued since it last woke up, each once as a key and once as a delta
+ * frame, appends them to the buffer of every subscriber and writes each buffer with one
+ * non-blocking write. A subscriber gets delta frames as long as it was sent the frame before, and
+ * a key frame on connecting and after frames were skipped.
+ *
+ * <p>A subscriber that reads slower than the tracks are published fills its buffer. What happens
+ * then depends on the {@link SlowSubscriberPolicy}: its queued frames are coalesced into the
+ * latest key frame, or it is disconnected. Either way the pipeline is never held up, and a
+ * subscriber that takes no bytes at all for {@link #STALL_TIMEOUT_NANOS} is disconnected.
+ */
+public class TrackStreamServer implements Closeable {
+  /** What to do with a subscriber whose buffer is full. */
+  public enum SlowSubscriberPolicy {
+    /** Drops its queued frames; it continues with a key frame of the latest snapshot. */
+    COALESCE,
+    /** Disconnects it. */
+    DISCONNECT
+  }
+
+  public static final long STALL_TIMEOUT_NANOS = 5_000_000_000L;
+  private static final int QUEUE_CAPACITY = 64;
+  private static final int MIN_SUBSCRIBER_BUFFER_BYTES = 1 << 12;
+
+  /** A connection and the bytes queued for it. */
+  private static final class Subscriber {
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    // Queued bytes from position 0 to the position; the first one is byte number sentBytes.
+    private final ByteBuffer out;
+    private long queuedBytes;
+    private long sentBytes;
+    // Stream offsets where the queued frames end, oldest first.
+    private long[] frameEnds = new long[16];
+    private int frameHead;
+    private int frameCount;
+    // Offset where the last frame that was sent completely ends.
+    private long sentFramesEnd;
+    // Sequence of the last frame queued, 0 for none.
+    private long lastSequence;
+    private long stalledSinceNanos = -1;
+
+    Subscriber(final SocketChannel channel, final SelectionKey key, final int bufferBytes) {
+      this.channel = channel;
+      this.key = key;
+      out = ByteBuffer.allocateDirect(bufferBytes);
+    }
+
+    boolean hasPending() {
+      return out.position() > 0;
+    }
+
+    void append(final ByteBuffer frame, final long sequence) {
+      final ByteBuffer source = frame.duplicate();
+      queuedBytes += source.remaining();
+      out.put(source);
+      if (frameCount == frameEnds.length) {
+        final long[] ends = new long[2 * frameEnds.length];
+        for (int i = 0; i < frameCount; ++i) {
+          ends[i] = frameEnds[(frameHead + i) % frameEnds.length];
+        }
+        frameEnds = ends;
+        frameHead = 0;
+      }
+      frameEnds[(frameHead + frameCount++) % frameEnds.length] = queuedBytes;
+      lastSequence = sequence;
+    }
+
+    /** Drops the queued frames but the rest of one being sent; returns the number dropped. */
+    int coalesce() {
+      int dropped = frameCount;
+      long keptEnd = sentBytes;
+      if (frameCount > 0 && sentBytes > sentFramesEnd) {
+        keptEnd = frameEnds[frameHead];
+        --dropped;
+      }
+      out.position((int) (keptEnd - sentBytes));
+      queuedBytes = keptEnd;
+      frameCount = dropped < frameCount ? 1 : 0;
+      lastSequence = 0;
+      return dropped;
+    }
+
+    /** Writes what the socket takes; returns the number of bytes written. */
+    int write() throws IOException {
+      out.flip();
+      final int written = channel.write(out);
+      out.compact();
+      sentBytes += written;
+      while (frameCount > 0 && frameEnds[frameHead] <= sentBytes) {
+        sentFramesEnd = frameEnds[frameHead];
+        frameHead = (frameHead + 1) % frameEnds.length;
+        --frameCount;
+      }
+      return written;
+    }
+  }
+
+  private final int subscriberBufferBytes;
+  private final SlowSubscriberPolicy policy;
+  private final long epochOffsetMicros;
+  private final ServerSocketChannel serverChannel;
+  private final Selector selector;
+  private final Thread thread;
+
+  // Queue of snapshots to send, guarded by lock.
+  private final Object lock = new Object();
+  private final TrackSnapshot[] queuedSnapshots = new TrackSnapshot[QUEUE_CAPACITY];
+  private final long[] queuedTimes = new long[QUEUE_CAPACITY];
+  private int queueHead;
+  private int queueCount;
+  private boolean closing;
+
+  private volatile int subscriberCount;
+  private volatile long framesPublished;
+  private volatile long framesSkipped;
+  private volatile long framesCoalesced;
+  private volatile long subscribersDropped;
+  private volatile long bytesSent;
+
+  // Owned by the I/O thread.
+  private final TrackFrameEncoder encoder = new TrackFrameEncoder();
+  private final List<Subscriber> subscribers = new ArrayList<>();
+  private final ByteBuffer readBuffer = ByteBuffer.allocate(256);
+
+  /**
+   * Listens on the address and starts the I/O thread.
+   *
+   * @param address Where to listen, usually the loopback address; port 0 picks a free port.
+   * @param subscriberBufferBytes Bytes queued per subscriber before it counts as slow, at least 4
+   *     KiB and enough for a key frame.
+   */
+  public TrackStreamServer(
+      final InetSocketAddress address,
+      final int subscriberBufferBytes,
+      final SlowSubscriberPolicy policy)
+      throws IOException {
+    if (subscriberBufferBytes < MIN_SUBSCRIBER_BUFFER_BYTES) {
+      throw new IllegalArgumentException(
+          "Subscriber buffers need at least 4 KiB: " + subscriberBufferBytes);
+    }
+    this.subscriberBufferBytes = subscriberBufferBytes;
+    this.policy = policy;
+    epochOffsetMicros = System.currentTimeMillis() * 1000 - System.nanoTime() / 1000;
+    selector = Selector.open();
+    serverChannel = ServerSocketChannel.open();
+    try {
+      serverChannel.socket().setReuseAddress(true);
+      serverChannel.socket().bind(address);
+      serverChannel.configureBlocking(false);
+      serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    } catch (final IOException e) {
+      serverChannel.close();
+      selector.close();
+      throw e;
+    }
+    thread =
+        new Thread(
+            new Runnable() {
+              @Override
+              public void run() {
+                ioLoop();
+              }
+            },
+            "TrackStreamServer");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /** The port the server listens on. */
+  public int getPort() {
+    return serverChannel.socket().getLocalPort();
+  }
+
+  /** Queues the snapshot, timed by its timestamp converted to wall-clock time. */
+  public void publish(final TrackSnapshot snapshot) {
+    publish(snapshot, epochOffsetMicros + snapshot.getTimestampNanos() / 1000);
+  }
+
+  /**
+   * Queues the snapshot with the given wall-clock time in microseconds since the epoch. If the I/O
+   * thread is so far behind that the queue is full, the oldest queued snapshot is skipped.
+   */
+  public void publish(final TrackSnapshot snapshot, final long timeMicros) {
+    synchronized (lock) {
+      if (closing) {
+        return;
+      }
+      if (queueCount == QUEUE_CAPACITY) {
+        queuedSnapshots[queueHead] = null;
+        queueHead = (queueHead + 1) % QUEUE_CAPACITY;
+        --queueCount;
+        ++framesSkipped;
+      }
+      final int slot = (queueHead + queueCount) % QUEUE_CAPACITY;
+      queuedSnapshots[slot] = snapshot;
+      queuedTimes[slot] = timeMicros;
+      ++queueCount;
+      ++framesPublished;
+      if (queueCount > 1) {
+        // The I/O thread was already woken up for the first one.
+        return;
+      }
+    }
+    selector.wakeup();
+  }
+
+  public int getSubscriberCount() {
+    return subscriberCount;
+  }
+
+  public long getFramesPublished() {
+    return framesPublished;
+  }
+
+  /** Snapshots never encoded because the I/O thread fell behind. */
+  public long getFramesSkipped() {
+    return framesSkipped;
+  }
+
+  /** Frames queued for slow subscribers and dropped before they were sent. */
+  public long getFramesCoalesced() {
+    return framesCoalesced;
+  }
+
+  /** Subscribers disconnected for being slow or stalled. */
+  public long getSubscribersDropped() {
+    return subscribersDropped;
+  }
+
+  public long getBytesSent() {
+    return bytesSent;
+  }
+
+  /** Stops the I/O thread and disconnects all subscribers; what is still queued is not sent. */
+  @Override
+  public void close() throws IOException {
+    synchronized (lock) {
+      if (closing) {
+        return;
+      }
+      closing = true;
+    }
+    selector.wakeup();
+    try {
+      thread.join();
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    for (final Subscriber subscriber : subscribers) {
+      subscriber.channel.close();
+    }
+    subscribers.clear();
+    subscriberCount = 0;
+    serverChannel.close();
+    selector.close();
+  }
+
+  private void ioLoop() {
+    final TrackSnapshot[] batch = new TrackSnapshot[QUEUE_CAPACITY];
+    final long[] batchTimes = new long[QUEUE_CAPACITY];
+    while (true) {
+      try {
+        selector.select(STALL_TIMEOUT_NANOS / 1_000_000);
+      } catch (final IOException e) {
+        return;
+      }
+      final int count;
+      synchronized (lock) {
+        if (closing) {
+          return;
+        }
+        count = queueCount;
+        for (int i = 0; i < count; ++i) {
+          final int slot = (queueHead + i) % QUEUE_CAPACITY;
+          batch[i] = queuedSnapshots[slot];
+          batchTimes[i] = queuedTimes[slot];
+          queuedSnapshots[slot] = null;
+        }
+        queueHead = (queueHead + count) % QUEUE_CAPACITY;
+        queueCount = 0;
+      }
+
+      final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+      while (keys.hasNext()) {
+        final SelectionKey key = keys.next();
+        keys.remove();
+        if (!key.isValid()) {
+          continue;
+        }
+        if (key.isAcceptable()) {
+          accept();
+          continue;
+        }
+        final Subscriber subscriber = (Subscriber) key.attachment();
+        if (key.isReadable() && !drainInput(subscriber)) {
+          disconnect(subscriber, false);
+        }
+      }
+
+      for (int i = 0; i < count; ++i) {
+        encoder.encode(batch[i], batchTimes[i]);
+        batch[i] = null;
+        for (int s = subscribers.size() - 1; s >= 0; --s) {
+          enqueue(subscribers.get(s));
+        }
+      }
+      final long now = System.nanoTime();
+      for (int s = subscribers.size() - 1; s >= 0; --s) {
+        flush(subscribers.get(s), now);
+      }
+    }
+  }
+
+  private void accept() {
+    SocketChannel channel = null;
+    try {
+      channel = serverChannel.accept();
+      if (channel == null) {
+        return;
+      }
+      channel.configureBlocking(false);
+      channel.socket().setTcpNoDelay(true);
+      final SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+      final Subscriber subscriber = new Subscriber(channel, key, subscriberBufferBytes);
+      key.attach(subscriber);
+      subscribers.add(subscriber);
+      subscriberCount = subscribers.size();
+      // A late subscriber starts with the latest tracks rather than waiting for the next ones.
+      if (encoder.getSequence() > 0) {
+        enqueue(subscriber);
+      }
+    } catch (final IOException e) {
+      if (channel != null) {
+        try {
+          channel.close();
+        } catch (final IOException ignored) {
+          // Never registered.
+        }
+      }
+    }
+  }
+
+  /** Reads and discards what the subscriber sent; returns false once it closed its side. */
+  private boolean drainInput(final Subscriber subscriber) {
+    try {
+      int read;
+      do {
+        readBuffer.clear();
+        read = subscriber.channel.read(readBuffer);
+      } while (read > 0);
+      return read == 0;
+    } catch (final IOException e) {
+      return false;
+    }
+  }
+
+  /** Queues the last encoded frame for the subscriber, as a delta frame if it can decode one. */
+  private void enqueue(final Subscriber subscriber) {
+    final long sequence = encoder.getSequence();
+    ByteBuffer frame =
+        encoder.hasDeltaFrame() && subscriber.lastSequence == sequence - 1
+            ? encoder.getDeltaFrame()
+            : encoder.getKeyFrame();
+    if (frame.remaining() > subscriber.out.remaining()) {
+      if (policy == SlowSubscriberPolicy.DISCONNECT) {
+        disconnect(subscriber, true);
+        return;
+      }
+      framesCoalesced += subscriber.coalesce();
+      frame = encoder.getKeyFrame();
+      if (frame.remaining() > subscriber.out.remaining()) {
+        disconnect(subscriber, true);
+        return;
+      }
+    }
+    subscriber.append(frame, sequence);
+  }
+
+  private void flush(final Subscriber subscriber, final long now) {
+    if (!subscriber.key.isValid()) {
+      return;
+    }
+    try {
+      if (subscriber.hasPending()) {
+        final int written = subscriber.write();
+        bytesSent += written;
+        if (written > 0 || !subscriber.hasPending()) {
+          subscriber.stalledSinceNanos = -1;
+        } else if (subscriber.stalledSinceNanos < 0) {
+          subscriber.stalledSinceNanos = now;
+        } else if (now - subscriber.stalledSinceNanos >= STALL_TIMEOUT_NANOS) {
+          disconnect(subscriber, true);
+          return;
+        }
+      }
+      subscriber.key.interestOps(
+          SelectionKey.OP_READ | (subscriber.hasPending() ? SelectionKey.OP_WRITE : 0));
+    } catch (final IOException e) {
+      disconnect(subscriber, false);
+    }
+  }
+
+  private void disconnect(final Subscriber subscriber, final boolean dropped) {
+    subscriber.key.cancel();
+    try {
+      subscriber.channel.close();
+    } catch (final IOException e) {
+      // Gone either way.
+    }
+    subscribers.remove(subscriber);
+    subscriberCount = subscribers.size();
+    if (dropped) {
+      ++subscribersDropped;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "TrackStreamServer{port="
+        + getPort()
+        + ", subscribers="
+        + subscriberCount
+        + ", published="
+        + framesPublished
+        + ", skipped="
+        + framesSkipped
+        + ", coalesced="
+        + framesCoalesced
+        + ", dropped="
+        + subscribersDropped
+        + ", bytes="
+        + bytesSent
+        + ", policy="
+        + policy
+        + "}";
+  }
+}
@@ -0,0 +1,110 @@
+package com.motiontracking.recording;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Layout of a raw capture. A capture is a directory of chunks {@code capture-<sequence>.yuv}, each
+ * starting with the magic {@code MTYC} and a format version, followed by frame records; a zero tag
+ * ends the chunk. A frame record holds the tag, the frame index and sensor timestamp, the size, and
+ * per plane its row and pixel stride, its length and its bytes, stored either as is or, with
+ * compression, as differences to the previous pixel of the same plane, deflated. Integers are big
+ * endian.
+ */
+final class CaptureFormat {
+  static final int MAGIC = 0x4d545943; // "MTYC"
+  static final int VERSION = 1;
+  static final int HEADER_BYTES = 8;
+
+  static final byte TAG_END = 0;
+  static final byte TAG_FRAME = 1;
+
+  static final byte STORED = 0;
+  static final byte DELTA_DEFLATED = 1;
+
+  // Tag, index, timestamp, width, height.
+  static final int FRAME_HEADER_BYTES = 1 + 8 + 8 + 4 + 4;
+  // Row stride, pixel stride, length, encoding, stored length.
+  static final int PLANE_HEADER_BYTES = 4 + 4 + 4 + 1 + 4;
+
+  private static final String CHUNK_PREFIX = "capture-";
+  private static final String CHUNK_SUFFIX = ".yuv";
+
+  private CaptureFormat() {}
+
+  static File chunkFile(final File directory, final long sequence) {
+    return new File(
+        directory, String.format(Locale.US, "%s%06d%s", CHUNK_PREFIX, sequence, CHUNK_SUFFIX));
+  }
+
+  static long sequenceOf(final File chunk) {
+    final String name = chunk.getName();
+    return Long.parseLong(
+        name.substring(CHUNK_PREFIX.length(), name.length() - CHUNK_SUFFIX.length()));
+  }
+
+  /** Chunks of the capture in the directory, oldest first. */
+  static List<File> listChunks(final File directory) {
+    final File[] files =
+        directory.listFiles(
+            new FileFilter() {
+              @Override
+              public boolean accept(final File file) {
+                final String name = file.getName();
+                return file.isFile()
+                    && name.startsWith(CHUNK_PREFIX)
+                    && name.endsWith(CHUNK_SUFFIX)
+                    && name.length() > CHUNK_PREFIX.length() + CHUNK_SUFFIX.length();
+              }
+            });
+    if (files == null) {
+      return new ArrayList<>();
+    }
+    // Sequences are zero padded, so names sort in order.
+    Arrays.sort(files);
+    return new ArrayList<>(Arrays.asList(files));
+  }
+
+  /**
+   * Replaces every byte of the plane by its difference to the previous pixel of the row, or to the
+   * pixel above for the first pixels of a row.
+   */
+  static void delta(
+      final byte[] plane,
+      final int length,
+      final int rowStride,
+      final int pixelStride,
+      final byte[] out) {
+    for (int row = 0; row < length; row += rowStride) {
+      final int end = Math.min(row + rowStride, length);
+      final int first = Math.min(row + pixelStride, end);
+      for (int i = row; i < first; ++i) {
+        out[i] = (byte) (row > 0 ? plane[i] - plane[i - rowStride] : plane[i]);
+      }
+      for (int i = first; i < end; ++i) {
+        out[i] = (byte) (plane[i] - plane[i - pixelStride]);
+      }
+    }
+  }
+
+  /** Undoes {@link #delta} in place. */
+  static void undelta(
+      final byte[] plane, final int length, final int rowStride, final int pixelStride) {
+    for (int row = 0; row < length; row += rowStride) {
+      final int end = Math.min(row + rowStride, length);
+      final int first = Math.min(row + pixelStride, end);
+      if (row > 0) {
+        for (int i = row; i < first; ++i) {
+          plane[i] += plane[i - rowStride];
+        }
+      }
+      for (int i = first; i < end; ++i) {
+        plane[i] += plane[i - pixelStride];
+      }
+    }
+  }
+}
@@ -0,0 +1,106 @@
+package com.motiontracking.recording;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/** Reads the frames of a capture written by {@link CaptureWriter}, oldest first. */
+public class CaptureReader implements Closeable {
+  private final List<File> chunks;
+  private final Inflater inflater = new Inflater();
+  private byte[] compressed = new byte[0];
+  private int chunk = -1;
+  private MappedByteBuffer data;
+
+  public CaptureReader(final File directory) {
+    chunks = CaptureFormat.listChunks(directory);
+  }
+
+  public int getChunkCount() {
+    return chunks.size();
+  }
+
+  /**
+   * Reads the next frame into {@code frame}.
+   *
+   * @return false after the last frame.
+   */
+  public boolean next(final YuvFrame frame) throws IOException {
+    while (data == null
+        || !data.hasRemaining()
+        || data.get(data.position()) == CaptureFormat.TAG_END) {
+      if (++chunk >= chunks.size()) {
+        data = null;
+        return false;
+      }
+      open(chunks.get(chunk));
+    }
+    try {
+      if (data.get() != CaptureFormat.TAG_FRAME) {
+        throw new IOException("Corrupt record in " + chunks.get(chunk));
+      }
+      final long index = data.getLong();
+      final long timestamp = data.getLong();
+      final int width = data.getInt();
+      final int height = data.getInt();
+      frame.setFormat(width, height, index, timestamp);
+      for (int i = 0; i < YuvFrame.PLANES; ++i) {
+        readPlane(frame, i);
+      }
+    } catch (final BufferUnderflowException e) {
+      throw new IOException("Truncated record in " + chunks.get(chunk));
+    }
+    return true;
+  }
+
+  private void readPlane(final YuvFrame frame, final int plane) throws IOException {
+    final int rowStride = data.getInt();
+    final int pixelStride = data.getInt();
+    final int length = data.getInt();
+    final byte encoding = data.get();
+    final int stored = data.getInt();
+    final byte[] bytes = frame.preparePlane(plane, length, rowStride, pixelStride);
+    if (encoding == CaptureFormat.STORED) {
+      data.get(bytes, 0, length);
+      return;
+    }
+    if (encoding != CaptureFormat.DELTA_DEFLATED) {
+      throw new IOException("Unknown plane encoding " + encoding);
+    }
+    if (compressed.length < stored) {
+      compressed = new byte[stored];
+    }
+    data.get(compressed, 0, stored);
+    inflater.reset();
+    inflater.setInput(compressed, 0, stored);
+    try {
+      if (inflater.inflate(bytes, 0, length) != length || !inflater.finished()) {
+        throw new IOException("Corrupt plane in " + chunks.get(chunk));
+      }
+    } catch (final DataFormatException e) {
+      throw new IOException("Corrupt plane in " + chunks.get(chunk), e);
+    }
+    CaptureFormat.undelta(bytes, length, rowStride, pixelStride);
+  }
+
+  private void open(final File file) throws IOException {
+    data = TrackLogFormat.map(file, FileChannel.MapMode.READ_ONLY, -1);
+    if (data.remaining() < CaptureFormat.HEADER_BYTES
+        || data.getInt() != CaptureFormat.MAGIC
+        || data.getInt() != CaptureFormat.VERSION) {
+      throw new IOException("Not a capture chunk: " + file);
+    }
+  }
+
+  @Override
+  public void close() {
+    inflater.end();
+    data = null;
+  }
+}
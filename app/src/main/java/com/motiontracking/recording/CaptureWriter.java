@@ -0,0 +1,329 @@
+package com.motiontracking.recording;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * Records camera frames as they arrive, see {@link CaptureFormat}, so field problems can be replayed
+ * with the exact input. {@link #capture} copies the planes into one of a fixed number of frame
+ * buffers and returns; an I/O thread writes the buffered frames into memory-mapped chunks,
+ * optionally compressed, and hands the buffers back. When every buffer is still waiting to be
+ * written, the frame is dropped and counted rather than delaying the camera.
+ *
+ * <p>Chunks are mapped at their full size up front, like track log segments.
+ */
+public class CaptureWriter implements Closeable {
+  private static final int MIN_CHUNK_BYTES = 1 << 20;
+
+  private final File directory;
+  private final int chunkBytes;
+  private final int maxChunks;
+  private final boolean compress;
+  private final Thread thread;
+
+  // Guarded by lock: free buffers on a stack, filled ones in a ring.
+  private final Object lock = new Object();
+  private final YuvFrame[] free;
+  private int freeCount;
+  private final YuvFrame[] queue;
+  private int queueHead;
+  private int queueCount;
+  private boolean closing;
+  private IOException failure;
+
+  // Owned by the capturing thread.
+  private long offered;
+
+  // Frame counts are updated under lock, byte counts by the I/O thread.
+  private volatile long framesWritten;
+  private volatile long framesDropped;
+  private volatile long rawBytes;
+  private volatile long bytesWritten;
+
+  // Owned by the I/O thread.
+  private long sequence;
+  private MappedByteBuffer data;
+  private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+  private byte[] filtered = new byte[0];
+  private byte[] deflated = new byte[0];
+
+  /**
+   * Opens a new chunk in the directory after any existing ones and starts the I/O thread.
+   *
+   * @param chunkBytes Size of a chunk, at least 1 MiB and more than a frame.
+   * @param maxChunks Number of chunks kept, the oldest ones are deleted.
+   * @param bufferedFrames Number of frames waiting to be written before frames are dropped.
+   * @param compress Whether planes are deflated, trading CPU time of the I/O thread for space.
+   */
+  public CaptureWriter(
+      final File directory,
+      final int chunkBytes,
+      final int maxChunks,
+      final int bufferedFrames,
+      final boolean compress)
+      throws IOException {
+    if (chunkBytes < MIN_CHUNK_BYTES) {
+      throw new IllegalArgumentException("Chunks must have at least 1 MiB: " + chunkBytes);
+    }
+    if (maxChunks < 1 || bufferedFrames < 1) {
+      throw new IllegalArgumentException(
+          "Invalid capture of " + maxChunks + " chunks buffering " + bufferedFrames + " frames");
+    }
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Cannot create " + directory);
+    }
+    this.directory = directory;
+    this.chunkBytes = chunkBytes;
+    this.maxChunks = maxChunks;
+    this.compress = compress;
+    free = new YuvFrame[bufferedFrames];
+    for (int i = 0; i < bufferedFrames; ++i) {
+      free[i] = new YuvFrame();
+    }
+    freeCount = bufferedFrames;
+    queue = new YuvFrame[bufferedFrames];
+    final List<File> existing = CaptureFormat.listChunks(directory);
+    sequence =
+        existing.isEmpty() ? 0 : CaptureFormat.sequenceOf(existing.get(existing.size() - 1)) + 1;
+    openChunk();
+    thread =
+        new Thread(
+            new Runnable() {
+              @Override
+              public void run() {
+                writeLoop();
+              }
+            },
+            "CaptureWriter");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Copies a frame for writing. The remaining bytes of each plane are copied; the positions of the
+   * buffers are left unchanged. Called from one capturing thread only.
+   *
+   * @return Whether the frame was buffered; false if it was dropped.
+   */
+  public boolean capture(
+      final long timestampNanos,
+      final int width,
+      final int height,
+      final ByteBuffer[] planes,
+      final int[] rowStrides,
+      final int[] pixelStrides) {
+    final long index = offered++;
+    final YuvFrame frame;
+    synchronized (lock) {
+      if (closing || failure != null || freeCount == 0) {
+        ++framesDropped;
+        return false;
+      }
+      frame = free[--freeCount];
+      free[freeCount] = null;
+    }
+    frame.setFormat(width, height, index, timestampNanos);
+    for (int i = 0; i < YuvFrame.PLANES; ++i) {
+      final ByteBuffer plane = planes[i];
+      final int position = plane.position();
+      final int length = plane.remaining();
+      final byte[] bytes =
+          frame.preparePlane(
+              i,
+              length,
+              rowStrides[i] > 0 ? rowStrides[i] : length,
+              Math.max(1, pixelStrides[i]));
+      plane.get(bytes, 0, length);
+      plane.position(position);
+    }
+    synchronized (lock) {
+      queue[(queueHead + queueCount) % queue.length] = frame;
+      if (++queueCount == 1) {
+        lock.notifyAll();
+      }
+    }
+    return true;
+  }
+
+  /** Writes what is buffered, finishes the current chunk and stops the I/O thread. */
+  @Override
+  public void close() throws IOException {
+    synchronized (lock) {
+      if (closing) {
+        return;
+      }
+      closing = true;
+      lock.notifyAll();
+    }
+    try {
+      thread.join();
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    deflater.end();
+    synchronized (lock) {
+      if (failure != null) {
+        throw failure;
+      }
+    }
+    finishChunk();
+  }
+
+  public long getFramesWritten() {
+    return framesWritten;
+  }
+
+  /** Frames dropped because the buffers were full or a frame did not fit into a chunk. */
+  public long getFramesDropped() {
+    return framesDropped;
+  }
+
+  /** Bytes of the planes written, before compression. */
+  public long getRawBytes() {
+    return rawBytes;
+  }
+
+  /** Bytes of records written, not counting the unused end of the current chunk. */
+  public long getBytesWritten() {
+    return bytesWritten;
+  }
+
+  private void writeLoop() {
+    while (true) {
+      final YuvFrame frame;
+      synchronized (lock) {
+        while (queueCount == 0 && !closing) {
+          try {
+            lock.wait();
+          } catch (final InterruptedException e) {
+            return;
+          }
+        }
+        if (queueCount == 0) {
+          return;
+        }
+        frame = queue[queueHead];
+        queue[queueHead] = null;
+        queueHead = (queueHead + 1) % queue.length;
+        --queueCount;
+      }
+
+      IOException error = null;
+      boolean written = false;
+      try {
+        written = encode(frame);
+      } catch (final IOException e) {
+        error = e;
+      }
+
+      synchronized (lock) {
+        if (written) {
+          ++framesWritten;
+        } else if (error == null) {
+          ++framesDropped;
+        }
+        free[freeCount++] = frame;
+        if (error != null) {
+          failure = error;
+          return;
+        }
+      }
+    }
+  }
+
+  /** Writes one frame, or returns false if it does not fit even into an empty chunk. */
+  private boolean encode(final YuvFrame frame) throws IOException {
+    int bound = CaptureFormat.FRAME_HEADER_BYTES;
+    for (int i = 0; i < YuvFrame.PLANES; ++i) {
+      bound += CaptureFormat.PLANE_HEADER_BYTES + frame.getPlaneLength(i);
+    }
+    if (bound > data.remaining()) {
+      finishChunk();
+      openChunk();
+      if (bound > data.remaining()) {
+        return false;
+      }
+    }
+
+    final int start = data.position();
+    // The tag is written last, so readers never see a partly written frame.
+    data.put(CaptureFormat.TAG_END);
+    data.putLong(frame.getIndex());
+    data.putLong(frame.getTimestampNanos());
+    data.putInt(frame.getWidth());
+    data.putInt(frame.getHeight());
+    long raw = 0;
+    for (int i = 0; i < YuvFrame.PLANES; ++i) {
+      final int length = frame.getPlaneLength(i);
+      data.putInt(frame.getRowStride(i));
+      data.putInt(frame.getPixelStride(i));
+      data.putInt(length);
+      final int stored = compress ? deflate(frame, i) : -1;
+      if (stored >= 0) {
+        data.put(CaptureFormat.DELTA_DEFLATED);
+        data.putInt(stored);
+        data.put(deflated, 0, stored);
+      } else {
+        data.put(CaptureFormat.STORED);
+        data.putInt(length);
+        data.put(frame.getPlane(i), 0, length);
+      }
+      raw += length;
+    }
+    data.put(start, CaptureFormat.TAG_FRAME);
+    rawBytes += raw;
+    bytesWritten += data.position() - start;
+    return true;
+  }
+
+  /**
+   * Deflates the differences between neighbouring pixels of the plane into {@link #deflated}.
+   *
+   * @return The deflated length, or -1 if deflating does not make the plane smaller.
+   */
+  private int deflate(final YuvFrame frame, final int plane) {
+    final int length = frame.getPlaneLength(plane);
+    if (filtered.length < length) {
+      filtered = new byte[length];
+      deflated = new byte[length];
+    }
+    CaptureFormat.delta(
+        frame.getPlane(plane),
+        length,
+        frame.getRowStride(plane),
+        frame.getPixelStride(plane),
+        filtered);
+    deflater.reset();
+    deflater.setInput(filtered, 0, length);
+    deflater.finish();
+    final int stored = deflater.deflate(deflated, 0, length);
+    return deflater.finished() && stored < length ? stored : -1;
+  }
+
+  private void openChunk() throws IOException {
+    final File file = CaptureFormat.chunkFile(directory, sequence++);
+    data = TrackLogFormat.map(file, FileChannel.MapMode.READ_WRITE, chunkBytes);
+    data.putInt(CaptureFormat.MAGIC);
+    data.putInt(CaptureFormat.VERSION);
+
+    final List<File> chunks = CaptureFormat.listChunks(directory);
+    for (int i = 0; i < chunks.size() - maxChunks; ++i) {
+      if (!chunks.get(i).delete()) {
+        throw new IOException("Cannot delete " + chunks.get(i));
+      }
+    }
+  }
+
+  private void finishChunk() {
+    if (data.hasRemaining()) {
+      data.put(data.position(), CaptureFormat.TAG_END);
+    }
+    data.force();
+  }
+}
@@ -0,0 +1,162 @@
+package com.motiontracking.recording;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Reads a clip saved by {@link PreEventRecorder}: a header with the frame size and the trigger,
+ * followed by downscaled luminance frames in time order and the tracks published meanwhile.
+ */
+public class ClipReader implements Closeable {
+  static final int MAGIC = 0x4d54434c; // "MTCL"
+  static final int VERSION = 1;
+  static final byte TAG_END = 0;
+  static final byte TAG_FRAME = 1;
+  static final byte TAG_TRACKS = 2;
+
+  public enum RecordType {
+    FRAME,
+    TRACKS
+  }
+
+  private final DataInputStream in;
+  private final int width;
+  private final int height;
+  private final long triggerNanos;
+  private final int triggerId;
+  private final String triggerTitle;
+
+  private final byte[] frame;
+  private long timestampNanos;
+  private int trackCount;
+  private int[] ids = new int[16];
+  private String[] titles = new String[16];
+  private float[] boxes = new float[64];
+  private float[] confidences = new float[16];
+
+  public ClipReader(final File file) throws IOException {
+    in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+    try {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        throw new IOException("Not a clip: " + file);
+      }
+      width = in.readInt();
+      height = in.readInt();
+      triggerNanos = in.readLong();
+      triggerId = in.readInt();
+      triggerTitle = in.readUTF();
+    } catch (final IOException e) {
+      in.close();
+      throw e;
+    }
+    frame = new byte[width * height];
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  public int getHeight() {
+    return height;
+  }
+
+  /** When the clip was triggered, on the clock of the frame timestamps. */
+  public long getTriggerNanos() {
+    return triggerNanos;
+  }
+
+  /** Track whose appearance triggered the clip. */
+  public int getTriggerId() {
+    return triggerId;
+  }
+
+  public String getTriggerTitle() {
+    return triggerTitle;
+  }
+
+  /** Reads the next record, or returns null at the end of the clip. */
+  public RecordType next() throws IOException {
+    final byte tag;
+    try {
+      tag = in.readByte();
+    } catch (final EOFException e) {
+      // The recorder stopped before finishing the clip.
+      return null;
+    }
+    switch (tag) {
+      case TAG_END:
+        return null;
+      case TAG_FRAME:
+        timestampNanos = in.readLong();
+        in.readFully(frame);
+        return RecordType.FRAME;
+      case TAG_TRACKS:
+        timestampNanos = in.readLong();
+        readTracks();
+        return RecordType.TRACKS;
+      default:
+        throw new IOException("Corrupt clip record " + tag);
+    }
+  }
+
+  private void readTracks() throws IOException {
+    trackCount = in.readInt();
+    if (trackCount > ids.length) {
+      ids = Arrays.copyOf(ids, trackCount);
+      titles = Arrays.copyOf(titles, trackCount);
+      boxes = Arrays.copyOf(boxes, trackCount * 4);
+      confidences = Arrays.copyOf(confidences, trackCount);
+    }
+    for (int i = 0; i < trackCount; ++i) {
+      ids[i] = in.readInt();
+      titles[i] = in.readUTF();
+      for (int k = 0; k < 4; ++k) {
+        boxes[i * 4 + k] = in.readFloat();
+      }
+      confidences[i] = in.readFloat();
+    }
+  }
+
+  /** Timestamp of the last record. */
+  public long getTimestampNanos() {
+    return timestampNanos;
+  }
+
+  /** Luminance of the last frame record, {@code width * height} bytes; reused by the reader. */
+  public byte[] getFrame() {
+    return frame;
+  }
+
+  /** Number of tracks of the last tracks record. */
+  public int getTrackCount() {
+    return trackCount;
+  }
+
+  public int getTrackId(final int i) {
+    return ids[i];
+  }
+
+  public String getTrackTitle(final int i) {
+    return titles[i];
+  }
+
+  /** Box of the track in the coordinates of the full camera frame: left, top, right, bottom. */
+  public float getTrackBox(final int i, final int side) {
+    return boxes[i * 4 + side];
+  }
+
+  public float getTrackConfidence(final int i) {
+    return confidences[i];
+  }
+
+  @Override
+  public void close() throws IOException {
+    in.close();
+  }
+}
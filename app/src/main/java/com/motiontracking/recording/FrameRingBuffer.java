@@ -0,0 +1,108 @@
+package com.motiontracking.recording;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The most recent frames of equal size in a fixed, off-heap memory budget. Frames are numbered by a
+ * sequence; writing frame {@code n} overwrites frame {@code n - capacity}. One thread writes while
+ * another reads; each slot has its own lock, so the writer only ever waits for a reader copying the
+ * very slot it is about to overwrite.
+ */
+final class FrameRingBuffer {
+  private final int frameBytes;
+  private final int capacity;
+  // Each of the two threads positions its own view of the shared memory.
+  private final ByteBuffer writeView;
+  private final ByteBuffer readView;
+  private final Object[] slotLocks;
+  // Guarded by the slot locks.
+  private final long[] sequences;
+  private final long[] timestamps;
+  private volatile long nextSequence;
+
+  FrameRingBuffer(final int frameBytes, final int budgetBytes) {
+    if (frameBytes <= 0 || budgetBytes < frameBytes) {
+      throw new IllegalArgumentException(
+          "A budget of " + budgetBytes + " bytes holds no frame of " + frameBytes);
+    }
+    this.frameBytes = frameBytes;
+    capacity = budgetBytes / frameBytes;
+    final ByteBuffer memory = ByteBuffer.allocateDirect(capacity * frameBytes);
+    writeView = memory.duplicate();
+    readView = memory.duplicate();
+    slotLocks = new Object[capacity];
+    sequences = new long[capacity];
+    timestamps = new long[capacity];
+    for (int i = 0; i < capacity; ++i) {
+      slotLocks[i] = new Object();
+      sequences[i] = -1;
+    }
+  }
+
+  int getFrameBytes() {
+    return frameBytes;
+  }
+
+  int getCapacity() {
+    return capacity;
+  }
+
+  /** Sequence the next frame written gets. */
+  long getNextSequence() {
+    return nextSequence;
+  }
+
+  /** Sequence of the oldest frame still held. */
+  long getOldestSequence() {
+    return Math.max(0, nextSequence - capacity);
+  }
+
+  /** Appends a frame of {@link #getFrameBytes()} bytes. Called by the writing thread only. */
+  void write(final byte[] frame, final long timestampNanos) {
+    final long sequence = nextSequence;
+    final int slot = (int) (sequence % capacity);
+    synchronized (slotLocks[slot]) {
+      writeView.position(slot * frameBytes);
+      writeView.put(frame, 0, frameBytes);
+      sequences[slot] = sequence;
+      timestamps[slot] = timestampNanos;
+    }
+    nextSequence = sequence + 1;
+  }
+
+  /**
+   * Copies the frame into {@code frame}. Called by the reading thread only.
+   *
+   * @return The timestamp of the frame, or -1 if it was overwritten or not written yet.
+   */
+  long read(final long sequence, final byte[] frame) {
+    final int slot = (int) (sequence % capacity);
+    synchronized (slotLocks[slot]) {
+      if (sequences[slot] != sequence) {
+        return -1;
+      }
+      readView.position(slot * frameBytes);
+      readView.get(frame, 0, frameBytes);
+      return timestamps[slot];
+    }
+  }
+
+  /** Timestamp of the frame, or -1 if it was overwritten or not written yet. */
+  long timestampOf(final long sequence) {
+    final int slot = (int) (sequence % capacity);
+    synchronized (slotLocks[slot]) {
+      return sequences[slot] == sequence ? timestamps[slot] : -1;
+    }
+  }
+
+  /** The oldest frame held taken at or after the time, or the next sequence if there is none. */
+  long findAtOrAfter(final long timestampNanos) {
+    final long end = nextSequence;
+    for (long sequence = getOldestSequence(); sequence < end; ++sequence) {
+      if (timestampOf(sequence) >= timestampNanos) {
+        return sequence;
+      }
+    }
+    return end;
+  }
+}
@@ -0,0 +1,109 @@
+package com.motiontracking.recording;
+
+import java.util.Arrays;
+
+/**
+ * One frame read back from the track log: the tracks at the time of the frame and the lifecycle
+ * events since the previous logged frame. Reused by the reader for every frame, so copy out what
+ * is kept.
+ */
+public final class LoggedFrame {
+  long timeMicros;
+  boolean sync;
+  int frameWidth;
+  int frameHeight;
+  int sensorOrientation;
+  int count;
+  int[] ids = new int[16];
+  String[] titles = new String[16];
+  // left, top, right, bottom per track.
+  float[] boxes = new float[64];
+  float[] confidences = new float[16];
+  boolean[] appeared = new boolean[16];
+  int disappearedCount;
+  int[] disappeared = new int[16];
+
+  void reset(final int tracks, final int gone) {
+    if (tracks > ids.length) {
+      final int capacity = Math.max(tracks, ids.length * 2);
+      ids = Arrays.copyOf(ids, capacity);
+      titles = Arrays.copyOf(titles, capacity);
+      boxes = Arrays.copyOf(boxes, capacity * 4);
+      confidences = Arrays.copyOf(confidences, capacity);
+      appeared = Arrays.copyOf(appeared, capacity);
+    }
+    if (gone > disappeared.length) {
+      disappeared = Arrays.copyOf(disappeared, Math.max(gone, disappeared.length * 2));
+    }
+    count = tracks;
+    disappearedCount = gone;
+  }
+
+  /** Wall-clock time of the frame in microseconds since the epoch. */
+  public long getTimeMicros() {
+    return timeMicros;
+  }
+
+  /** Whether the frame was stored without reference to the previous one. */
+  public boolean isSync() {
+    return sync;
+  }
+
+  public int getFrameWidth() {
+    return frameWidth;
+  }
+
+  public int getFrameHeight() {
+    return frameHeight;
+  }
+
+  public int getSensorOrientation() {
+    return sensorOrientation;
+  }
+
+  public int size() {
+    return count;
+  }
+
+  public int getId(final int i) {
+    return ids[i];
+  }
+
+  public String getTitle(final int i) {
+    return titles[i];
+  }
+
+  public float getLeft(final int i) {
+    return boxes[i * 4];
+  }
+
+  public float getTop(final int i) {
+    return boxes[i * 4 + 1];
+  }
+
+  public float getRight(final int i) {
+    return boxes[i * 4 + 2];
+  }
+
+  public float getBottom(final int i) {
+    return boxes[i * 4 + 3];
+  }
+
+  public float getConfidence(final int i) {
+    return confidences[i];
+  }
+
+  /** Whether the track was not in the previous logged frame. */
+  public boolean isAppeared(final int i) {
+    return appeared[i];
+  }
+
+  /** Number of tracks of the previous logged frame that are gone in this one. */
+  public int getDisappearedCount() {
+    return disappearedCount;
+  }
+
+  public int getDisappearedId(final int i) {
+    return disappeared[i];
+  }
+}
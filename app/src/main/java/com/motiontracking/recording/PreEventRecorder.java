@@ -0,0 +1,464 @@
+package com.motiontracking.recording;
+
+import com.motiontracking.tracking.TrackSnapshot;
+import com.motiontracking.utils.LumaPyramid;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Saves the frames around the appearance of a tracked object of a trigger class. The camera thread
+ * keeps the last seconds of downscaled luminance in an off-heap {@link FrameRingBuffer} of a fixed
+ * budget; when a track of a trigger class appears, a clip thread copies the frames from {@code
+ * preNanos} before to {@code postNanos} after the appearance, interleaved with the published
+ * tracks, into a clip file read by {@link ClipReader}. Appearances during a clip extend it.
+ *
+ * <p>The camera thread never waits for the disk: it only waits for a slot lock while the clip
+ * thread copies that very slot out of the ring. Frames overwritten before the clip thread copied
+ * them are left out of the clip and counted as lost.
+ *
+ * <p>Published tracks wait in a ring of their own, twice as many as there are frames, until they
+ * are written to a clip or are too old to start one. If the clip thread falls that far behind, the
+ * oldest tracks are left out of the clip.
+ */
+public class PreEventRecorder implements Closeable {
+  private static final String CLIP_FILE_FORMAT = "clip-%d-%s.clip";
+  // How long the clip thread waits for new frames before it ends a clip early, e.g. when the
+  // camera stops.
+  private static final long FRAME_TIMEOUT_NANOS = 2_000_000_000L;
+  private static final long PARK_NANOS = 20_000_000L;
+  private static final int SNAPSHOTS_PER_FRAME = 2;
+
+  private final File directory;
+  private final int downscale;
+  private final int width;
+  private final int height;
+  private final long preNanos;
+  private final long postNanos;
+  private final FrameRingBuffer ring;
+  private final Thread thread;
+  private volatile Set<String> triggerClasses;
+
+  // Owned by the camera thread.
+  private final int[] rowSums;
+  private final byte[] scaled;
+
+  // Owned by the clip thread: the tracks taken out of the ring to be written.
+  private final TrackSnapshot[] pendingSnapshots;
+  private final long[] pendingTimes;
+
+  // Guarded by lock. Tracks not written to a clip yet, oldest first, from snapshotHead on.
+  private final Object lock = new Object();
+  private final TrackSnapshot[] snapshots;
+  private final long[] snapshotTimes;
+  private int snapshotHead;
+  private int snapshotCount;
+  private TrackSnapshot previousSnapshot;
+  private boolean triggered;
+  private long triggerNanos;
+  private int triggerId;
+  private String triggerTitle;
+  private long clipStartNanos;
+  private long clipStartSequence;
+  private long clipEndNanos;
+  private long savedUpToNanos = Long.MIN_VALUE;
+  private boolean closing;
+
+  private volatile boolean clipActive;
+  private volatile long clipsSaved;
+  private volatile long framesSaved;
+  private volatile long framesLost;
+  private volatile IOException failure;
+
+  /**
+   * @param width Width of the camera frames.
+   * @param height Height of the camera frames.
+   * @param downscale Factor the frames are shrunk by in each dimension, averaging the pixels.
+   * @param budgetBytes Memory held for the ring of recent frames.
+   * @param triggerClasses Classes whose appearance saves a clip.
+   */
+  public PreEventRecorder(
+      final File directory,
+      final int width,
+      final int height,
+      final int downscale,
+      final int budgetBytes,
+      final long preNanos,
+      final long postNanos,
+      final Set<String> triggerClasses)
+      throws IOException {
+    if (downscale < 1 || width < downscale || height < downscale) {
+      throw new IllegalArgumentException(
+          "Cannot downscale " + width + "x" + height + " by " + downscale);
+    }
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Cannot create " + directory);
+    }
+    this.directory = directory;
+    this.downscale = downscale;
+    this.width = width / downscale;
+    this.height = height / downscale;
+    this.preNanos = preNanos;
+    this.postNanos = postNanos;
+    this.triggerClasses = triggerClasses;
+    ring = new FrameRingBuffer(this.width * this.height, budgetBytes);
+    rowSums = new int[this.width];
+    scaled = new byte[this.width * this.height];
+    final int snapshotCapacity = SNAPSHOTS_PER_FRAME * ring.getCapacity();
+    snapshots = new TrackSnapshot[snapshotCapacity];
+    snapshotTimes = new long[snapshotCapacity];
+    pendingSnapshots = new TrackSnapshot[snapshotCapacity];
+    pendingTimes = new long[snapshotCapacity];
+    thread =
+        new Thread(
+            new Runnable() {
+              @Override
+              public void run() {
+                clipLoop();
+              }
+            },
+            "PreEventRecorder");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /** Width of the saved frames. */
+  public int getWidth() {
+    return width;
+  }
+
+  /** Height of the saved frames. */
+  public int getHeight() {
+    return height;
+  }
+
+  /** Number of frames the ring holds, which bounds how far back a clip starts. */
+  public int getCapacity() {
+    return ring.getCapacity();
+  }
+
+  public void setTriggerClasses(final Set<String> triggerClasses) {
+    this.triggerClasses = triggerClasses;
+  }
+
+  public long getClipsSaved() {
+    return clipsSaved;
+  }
+
+  public long getFramesSaved() {
+    return framesSaved;
+  }
+
+  /** Frames of clips overwritten in the ring before the clip thread copied them. */
+  public long getFramesLost() {
+    return framesLost;
+  }
+
+  /** Number of published tracks held for clips. */
+  int getBufferedSnapshots() {
+    synchronized (lock) {
+      return snapshotCount;
+    }
+  }
+
+  /**
+   * Adds a camera frame. Called from the camera thread only.
+   *
+   * @param luma Luminance plane of the frame, of the size given to the constructor.
+   */
+  public void onFrame(final byte[] luma, final int rowStride, final long timestampNanos) {
+    final int area = downscale * downscale;
+    for (int y = 0; y < height; ++y) {
+      for (int x = 0; x < width; ++x) {
+        rowSums[x] = 0;
+      }
+      for (int dy = 0; dy < downscale; ++dy) {
+        int offset = (y * downscale + dy) * rowStride;
+        for (int x = 0; x < width; ++x) {
+          int sum = 0;
+          for (int dx = 0; dx < downscale; ++dx) {
+            sum += luma[offset++] & 0xff;
+          }
+          rowSums[x] += sum;
+        }
+      }
+      final int row = y * width;
+      for (int x = 0; x < width; ++x) {
+        scaled[row + x] = (byte) ((rowSums[x] + area / 2) / area);
+      }
+    }
+    add(scaled, timestampNanos);
+  }
+
+  /**
+   * Adds a camera frame, taking the downscaled frame from its pyramid if the factor is a power of
+   * two within it. Called from the camera thread only.
+   */
+  public void onFrame(final LumaPyramid pyramid, final long timestampNanos) {
+    final int level = Integer.numberOfTrailingZeros(downscale);
+    if (Integer.bitCount(downscale) != 1 || level == 0 || level > pyramid.getMaxLevel()) {
+      final LumaPyramid.Level base = pyramid.getLevel(0);
+      onFrame(base.getPixels(), base.getStride(), timestampNanos);
+      return;
+    }
+    final LumaPyramid.Level scaledLevel = pyramid.getLevel(level);
+    if (scaledLevel.getWidth() != width || scaledLevel.getHeight() != height) {
+      throw new IllegalArgumentException(
+          "Frame of " + scaledLevel.getWidth() + "x" + scaledLevel.getHeight() + " downscaled, "
+              + width + "x" + height + " expected");
+    }
+    add(scaledLevel.getPixels(), timestampNanos);
+  }
+
+  private void add(final byte[] scaled, final long timestampNanos) {
+    ring.write(scaled, timestampNanos);
+    if (clipActive) {
+      LockSupport.unpark(thread);
+    }
+  }
+
+  /** Adds the tracks at their own timestamp. */
+  public void onTracks(final TrackSnapshot snapshot) {
+    onTracks(snapshot, snapshot.getTimestampNanos());
+  }
+
+  /**
+   * Adds the tracks published at the time, on the clock of the frame timestamps, and starts or
+   * extends a clip if a track of a trigger class appeared. Called from the tracking thread only.
+   */
+  public void onTracks(final TrackSnapshot snapshot, final long timeNanos) {
+    final Set<String> classes = triggerClasses;
+    synchronized (lock) {
+      if (snapshot == previousSnapshot || closing) {
+        return;
+      }
+      if (snapshotCount == snapshots.length) {
+        removeFirstSnapshot();
+      }
+      final int tail = (snapshotHead + snapshotCount++) % snapshots.length;
+      snapshots[tail] = snapshot;
+      snapshotTimes[tail] = timeNanos;
+      // Tracks older than any clip could start are of no use.
+      while (snapshotCount > 0
+          && snapshotTimes[snapshotHead] < timeNanos - preNanos
+          && (!triggered || snapshotTimes[snapshotHead] < clipStartNanos)) {
+        removeFirstSnapshot();
+      }
+      for (int i = 0; i < snapshot.size(); ++i) {
+        if (classes == null
+            || !classes.contains(snapshot.getTitle(i))
+            || (previousSnapshot != null && previousSnapshot.indexOf(snapshot.getId(i)) >= 0)) {
+          continue;
+        }
+        if (triggered) {
+          clipEndNanos = Math.max(clipEndNanos, timeNanos + postNanos);
+        } else {
+          triggered = true;
+          triggerNanos = timeNanos;
+          triggerId = snapshot.getId(i);
+          triggerTitle = snapshot.getTitle(i);
+          // Frames already in the previous clip are not saved again.
+          clipStartNanos = Math.max(timeNanos - preNanos, savedUpToNanos + 1);
+          // Found now, so frames overwritten before the clip thread wakes up count as lost.
+          clipStartSequence = ring.findAtOrAfter(clipStartNanos);
+          clipEndNanos = timeNanos + postNanos;
+          clipActive = true;
+          lock.notifyAll();
+        }
+      }
+      previousSnapshot = snapshot;
+    }
+  }
+
+  /** Finishes the current clip with the frames received so far and stops the clip thread. */
+  @Override
+  public void close() throws IOException {
+    synchronized (lock) {
+      closing = true;
+      lock.notifyAll();
+    }
+    LockSupport.unpark(thread);
+    try {
+      thread.join();
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  private void clipLoop() {
+    final byte[] frame = new byte[width * height];
+    while (true) {
+      final long start;
+      final long startSequence;
+      final String name;
+      synchronized (lock) {
+        while (!triggered && !closing) {
+          try {
+            lock.wait();
+          } catch (final InterruptedException e) {
+            return;
+          }
+        }
+        if (!triggered) {
+          return;
+        }
+        start = clipStartNanos;
+        startSequence = clipStartSequence;
+        name =
+            String.format(
+                Locale.US, CLIP_FILE_FORMAT, triggerNanos / 1_000_000, sanitize(triggerTitle));
+      }
+      try {
+        saveClip(new File(directory, name), start, startSequence, frame);
+      } catch (final IOException e) {
+        failure = e;
+      }
+      synchronized (lock) {
+        triggered = false;
+        clipActive = false;
+      }
+    }
+  }
+
+  private void saveClip(
+      final File file, final long start, final long startSequence, final byte[] frame)
+      throws IOException {
+    final DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+    try {
+      out.writeInt(ClipReader.MAGIC);
+      out.writeInt(ClipReader.VERSION);
+      out.writeInt(width);
+      out.writeInt(height);
+      synchronized (lock) {
+        out.writeLong(triggerNanos);
+        out.writeInt(triggerId);
+        out.writeUTF(triggerTitle != null ? triggerTitle : "");
+      }
+      long sequence = startSequence;
+      long lastFrameNanos = start - 1;
+      long lastTracksNanos = start - 1;
+      long waitingSince = System.nanoTime();
+      while (true) {
+        final long oldest = ring.getOldestSequence();
+        if (sequence < oldest) {
+          framesLost += oldest - sequence;
+          sequence = oldest;
+        }
+        if (sequence < ring.getNextSequence()) {
+          final long timestamp = ring.read(sequence, frame);
+          ++sequence;
+          if (timestamp < 0) {
+            ++framesLost;
+            continue;
+          }
+          waitingSince = System.nanoTime();
+          if (timestamp > endOfClip()) {
+            break;
+          }
+          lastTracksNanos = writeTracks(out, lastTracksNanos, timestamp);
+          out.writeByte(ClipReader.TAG_FRAME);
+          out.writeLong(timestamp);
+          out.write(frame);
+          lastFrameNanos = timestamp;
+          ++framesSaved;
+          continue;
+        }
+        synchronized (lock) {
+          if (closing) {
+            break;
+          }
+        }
+        if (System.nanoTime() - waitingSince > FRAME_TIMEOUT_NANOS) {
+          break;
+        }
+        LockSupport.parkNanos(PARK_NANOS);
+      }
+      final long end = endOfClip();
+      writeTracks(out, lastTracksNanos, end);
+      out.writeByte(ClipReader.TAG_END);
+      synchronized (lock) {
+        savedUpToNanos = Math.max(lastFrameNanos, end);
+      }
+    } finally {
+      out.close();
+    }
+    ++clipsSaved;
+  }
+
+  private long endOfClip() {
+    synchronized (lock) {
+      return clipEndNanos;
+    }
+  }
+
+  /**
+   * Writes the tracks timed after {@code afterNanos} up to {@code upToNanos} and drops them, along
+   * with the older ones. Tracks usually arrive after their frame, so they may follow a later frame
+   * in the clip.
+   *
+   * @return The time of the last tracks written, or {@code afterNanos} if there were none.
+   */
+  private long writeTracks(final DataOutputStream out, final long afterNanos, final long upToNanos)
+      throws IOException {
+    int pending = 0;
+    synchronized (lock) {
+      while (snapshotCount > 0 && snapshotTimes[snapshotHead] <= upToNanos) {
+        final long time = snapshotTimes[snapshotHead];
+        if (time > afterNanos) {
+          pendingSnapshots[pending] = snapshots[snapshotHead];
+          pendingTimes[pending++] = time;
+        }
+        removeFirstSnapshot();
+      }
+    }
+    long last = afterNanos;
+    for (int p = 0; p < pending; ++p) {
+      final TrackSnapshot snapshot = pendingSnapshots[p];
+      pendingSnapshots[p] = null;
+      last = pendingTimes[p];
+      out.writeByte(ClipReader.TAG_TRACKS);
+      out.writeLong(last);
+      out.writeInt(snapshot.size());
+      for (int i = 0; i < snapshot.size(); ++i) {
+        out.writeInt(snapshot.getId(i));
+        out.writeUTF(snapshot.getTitle(i) != null ? snapshot.getTitle(i) : "");
+        out.writeFloat(snapshot.getLeft(i));
+        out.writeFloat(snapshot.getTop(i));
+        out.writeFloat(snapshot.getRight(i));
+        out.writeFloat(snapshot.getBottom(i));
+        out.writeFloat(snapshot.getConfidence(i));
+      }
+    }
+    return last;
+  }
+
+  /** Drops the oldest buffered tracks. Called under lock. */
+  private void removeFirstSnapshot() {
+    snapshots[snapshotHead] = null;
+    snapshotHead = (snapshotHead + 1) % snapshots.length;
+    --snapshotCount;
+  }
+
+  private static String sanitize(final String title) {
+    if (title == null || title.isEmpty()) {
+      return "object";
+    }
+    final StringBuilder name = new StringBuilder(title.length());
+    for (int i = 0; i < title.length(); ++i) {
+      final char c = title.charAt(i);
+      name.append(Character.isLetterOrDigit(c) ? c : '_');
+    }
+    return name.toString();
+  }
+}
@@ -0,0 +1,146 @@
+package com.motiontracking.recording;
+
+import com.motiontracking.utils.IntIntMap;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/** Decodes the records of one segment in order, starting at the header or at a sync frame. */
+final class SegmentDecoder {
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private final ByteBuffer data;
+  private final List<String> labels = new ArrayList<>();
+  private int frameOffset;
+  private boolean haveReference;
+  private long lastTimeMicros;
+
+  // Index by identifier and quantized boxes of the tracks of the previous frame, the reference of
+  // delta frames.
+  private final IntIntMap previousIndices = new IntIntMap(16);
+  private int[] previousBoxes = new int[64];
+  private int[] currentBoxes = new int[64];
+
+  SegmentDecoder(final ByteBuffer segment) throws IOException {
+    data = segment.duplicate();
+    if (data.remaining() < TrackLogFormat.HEADER_BYTES
+        || data.getInt(0) != TrackLogFormat.SEGMENT_MAGIC
+        || data.getInt(4) != TrackLogFormat.VERSION) {
+      throw new IOException("Not a track log segment");
+    }
+    data.position(TrackLogFormat.HEADER_BYTES);
+  }
+
+  /** Continues at the sync frame, or the labels preceding it, at the offset. */
+  void seek(final int offset) {
+    data.position(offset);
+    haveReference = false;
+  }
+
+  /** Offset of the records of the frame returned last, including the labels preceding it. */
+  int getFrameOffset() {
+    return frameOffset;
+  }
+
+  /** Decodes the next frame, or returns false at the end of the segment. */
+  boolean next(final LoggedFrame frame) throws IOException {
+    frameOffset = data.position();
+    while (data.hasRemaining()) {
+      final int tagPosition = data.position();
+      final byte tag = data.get();
+      switch (tag) {
+        case TrackLogFormat.TAG_END:
+          // Stay before the end so records appended later are read by the next call.
+          data.position(tagPosition);
+          return false;
+        case TrackLogFormat.TAG_LABEL:
+          readLabel();
+          break;
+        case TrackLogFormat.TAG_SYNC:
+        case TrackLogFormat.TAG_FRAME:
+          readFrame(tag == TrackLogFormat.TAG_SYNC, frame);
+          return true;
+        default:
+          throw new IOException("Corrupt track log record " + tag + " at " + tagPosition);
+      }
+    }
+    return false;
+  }
+
+  private void readLabel() throws IOException {
+    final int index = (int) TrackLogFormat.getVarint(data);
+    final byte[] utf8 = new byte[(int) TrackLogFormat.getVarint(data)];
+    data.get(utf8);
+    while (labels.size() <= index) {
+      labels.add(null);
+    }
+    labels.set(index, new String(utf8, UTF_8));
+  }
+
+  private void readFrame(final boolean sync, final LoggedFrame frame) throws IOException {
+    if (sync) {
+      lastTimeMicros = TrackLogFormat.getVarint(data);
+      frame.frameWidth = (int) TrackLogFormat.getVarint(data);
+      frame.frameHeight = (int) TrackLogFormat.getVarint(data);
+      frame.sensorOrientation = (int) TrackLogFormat.getVarint(data);
+      haveReference = true;
+    } else if (!haveReference) {
+      throw new IOException("Delta frame without a sync frame at " + frameOffset);
+    } else {
+      lastTimeMicros += TrackLogFormat.getVarint(data);
+    }
+    frame.timeMicros = lastTimeMicros;
+    frame.sync = sync;
+
+    final int count = (int) TrackLogFormat.getVarint(data);
+    frame.reset(count, 0);
+    if (currentBoxes.length < count * 4) {
+      currentBoxes = new int[Math.max(count * 4, currentBoxes.length * 2)];
+    }
+    int id = 0;
+    for (int i = 0; i < count; ++i) {
+      id += (int) TrackLogFormat.unzigzag(TrackLogFormat.getVarint(data));
+      final int labelAndFlags = (int) TrackLogFormat.getVarint(data);
+      final int label = labelAndFlags >>> TrackLogFormat.FLAG_BITS;
+      final int reference =
+          (labelAndFlags & TrackLogFormat.FLAG_DELTA) != 0 ? previousIndices.get(id, -1) : -1;
+      if ((labelAndFlags & TrackLogFormat.FLAG_DELTA) != 0 && reference < 0) {
+        throw new IOException("Delta box of unknown track " + id + " at " + frameOffset);
+      }
+      for (int k = 0; k < 4; ++k) {
+        int value = (int) TrackLogFormat.unzigzag(TrackLogFormat.getVarint(data));
+        if (reference >= 0) {
+          value += previousBoxes[reference * 4 + k];
+        }
+        currentBoxes[i * 4 + k] = value;
+        frame.boxes[i * 4 + k] = value / TrackLogFormat.COORDINATE_SCALE;
+      }
+      frame.ids[i] = id;
+      // Label 0 is a track without a title.
+      frame.titles[i] = label > 0 && label <= labels.size() ? labels.get(label - 1) : null;
+      frame.confidences[i] = (data.get() & 0xff) / TrackLogFormat.CONFIDENCE_SCALE;
+      frame.appeared[i] = (labelAndFlags & TrackLogFormat.FLAG_APPEARED) != 0;
+    }
+
+    final int gone = (int) TrackLogFormat.getVarint(data);
+    frame.reset(count, gone);
+    id = 0;
+    for (int i = 0; i < gone; ++i) {
+      id += (int) TrackLogFormat.unzigzag(TrackLogFormat.getVarint(data));
+      frame.disappeared[i] = id;
+    }
+
+    // This frame is the reference of the next one.
+    previousIndices.clear();
+    for (int i = 0; i < count; ++i) {
+      previousIndices.put(frame.ids[i], i);
+    }
+    final int[] swap = previousBoxes;
+    previousBoxes = currentBoxes;
+    currentBoxes = swap.length >= count * 4 ? swap : Arrays.copyOf(swap, count * 4);
+  }
+}
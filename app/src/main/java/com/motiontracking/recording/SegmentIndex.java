@@ -0,0 +1,116 @@
+package com.motiontracking.recording;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Times and offsets of the sync frames of one segment, plus the time of its last frame. Written
+ * next to a segment when it is finished and rebuilt by scanning segments without one, such as the
+ * segment being written or one left behind by a crash.
+ */
+final class SegmentIndex {
+  private long[] times = new long[64];
+  private int[] offsets = new int[64];
+  private int count;
+  private long lastTimeMicros = Long.MIN_VALUE;
+
+  void add(final long timeMicros, final int offset) {
+    if (count == times.length) {
+      times = Arrays.copyOf(times, count * 2);
+      offsets = Arrays.copyOf(offsets, count * 2);
+    }
+    times[count] = timeMicros;
+    offsets[count] = offset;
+    ++count;
+  }
+
+  void setLastTimeMicros(final long timeMicros) {
+    lastTimeMicros = timeMicros;
+  }
+
+  int size() {
+    return count;
+  }
+
+  long getFirstTimeMicros() {
+    return count > 0 ? times[0] : Long.MAX_VALUE;
+  }
+
+  long getLastTimeMicros() {
+    return lastTimeMicros;
+  }
+
+  /** Offset of the last sync frame at or before the time, or of the first one. */
+  int seek(final long timeMicros) {
+    int lo = 0;
+    int hi = count - 1;
+    while (lo < hi) {
+      final int mid = (lo + hi + 1) >>> 1;
+      if (times[mid] <= timeMicros) {
+        lo = mid;
+      } else {
+        hi = mid - 1;
+      }
+    }
+    return offsets[lo];
+  }
+
+  void write(final File file) throws IOException {
+    final DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+    try {
+      out.writeInt(TrackLogFormat.INDEX_MAGIC);
+      out.writeInt(TrackLogFormat.VERSION);
+      out.writeLong(lastTimeMicros);
+      out.writeInt(count);
+      for (int i = 0; i < count; ++i) {
+        out.writeLong(times[i]);
+        out.writeInt(offsets[i]);
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  static SegmentIndex read(final File file) throws IOException {
+    final DataInputStream in =
+        new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    try {
+      if (in.readInt() != TrackLogFormat.INDEX_MAGIC
+          || in.readInt() != TrackLogFormat.VERSION) {
+        throw new IOException("Not a track log index: " + file);
+      }
+      final SegmentIndex index = new SegmentIndex();
+      index.lastTimeMicros = in.readLong();
+      final int count = in.readInt();
+      for (int i = 0; i < count; ++i) {
+        index.add(in.readLong(), in.readInt());
+      }
+      return index;
+    } finally {
+      in.close();
+    }
+  }
+
+  /** Rebuilds the index by decoding the whole segment. */
+  static SegmentIndex scan(final ByteBuffer segment) throws IOException {
+    final SegmentIndex index = new SegmentIndex();
+    final SegmentDecoder decoder = new SegmentDecoder(segment);
+    final LoggedFrame frame = new LoggedFrame();
+    while (decoder.next(frame)) {
+      if (frame.isSync()) {
+        index.add(frame.getTimeMicros(), decoder.getFrameOffset());
+      }
+      index.lastTimeMicros = frame.getTimeMicros();
+    }
+    return index;
+  }
+}
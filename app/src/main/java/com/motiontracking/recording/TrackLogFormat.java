@@ -0,0 +1,140 @@
+package com.motiontracking.recording;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Layout of the track log. A log is a directory of segments {@code tracks-<sequence>.log}, each
+ * optionally accompanied by a time index {@code tracks-<sequence>.idx} written when the segment is
+ * finished.
+ *
+ * <p>A segment starts with the magic {@code MTTL} and a format version, followed by records that
+ * each start with a tag byte; a zero tag ends the segment. Label records assign a label index to a
+ * title. Frame records hold the time, the tracks and the ids of the tracks that disappeared since the
+ * previous frame. Sync frames hold the absolute time and absolute boxes and are preceded by the
+ * whole label table, so decoding can start at any of them; the frames in between hold the time and
+ * the boxes of continuing tracks as deltas to the previous frame. Integers are LEB128 varints,
+ * signed ones zigzag encoded; boxes are quantized to quarter pixels, confidences to a byte.
+ */
+final class TrackLogFormat {
+  static final int SEGMENT_MAGIC = 0x4d54544c; // "MTTL"
+  static final int INDEX_MAGIC = 0x4d545449; // "MTTI"
+  static final int VERSION = 2;
+  static final int HEADER_BYTES = 8;
+
+  static final byte TAG_END = 0;
+  static final byte TAG_LABEL = 1;
+  static final byte TAG_SYNC = 2;
+  static final byte TAG_FRAME = 3;
+
+  // Low bits of the per-track varint holding the label index plus one, 0 for no title.
+  static final int FLAG_APPEARED = 1;
+  static final int FLAG_DELTA = 2;
+  static final int FLAG_BITS = 2;
+
+  static final float COORDINATE_SCALE = 4f;
+  static final float CONFIDENCE_SCALE = 255f;
+
+  // Longest run of delta frames; also the granularity of time range queries.
+  static final long SYNC_INTERVAL_MICROS = 1_000_000L;
+
+  private static final String SEGMENT_PREFIX = "tracks-";
+  private static final String SEGMENT_SUFFIX = ".log";
+  private static final String INDEX_SUFFIX = ".idx";
+
+  private TrackLogFormat() {}
+
+  static File segmentFile(final File directory, final long sequence) {
+    return new File(
+        directory,
+        String.format(Locale.US, "%s%010d%s", SEGMENT_PREFIX, sequence, SEGMENT_SUFFIX));
+  }
+
+  static File indexFile(final File segment) {
+    final String name = segment.getName();
+    return new File(
+        segment.getParentFile(),
+        name.substring(0, name.length() - SEGMENT_SUFFIX.length()) + INDEX_SUFFIX);
+  }
+
+  static long sequenceOf(final File segment) {
+    final String name = segment.getName();
+    return Long.parseLong(
+        name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+  }
+
+  /** Segments of the log in the directory, oldest first. */
+  static List<File> listSegments(final File directory) {
+    final File[] files =
+        directory.listFiles(
+            new FileFilter() {
+              @Override
+              public boolean accept(final File file) {
+                final String name = file.getName();
+                return file.isFile()
+                    && name.startsWith(SEGMENT_PREFIX)
+                    && name.endsWith(SEGMENT_SUFFIX)
+                    && name.length() > SEGMENT_PREFIX.length() + SEGMENT_SUFFIX.length();
+              }
+            });
+    if (files == null) {
+      return new ArrayList<>();
+    }
+    // Sequences are zero padded, so names sort in order.
+    Arrays.sort(files);
+    return new ArrayList<>(Arrays.asList(files));
+  }
+
+  /**
+   * Maps a segment. The mapping stays valid after the file is closed.
+   *
+   * @param size Bytes to map, extending the file if needed, or -1 for the whole file.
+   */
+  static MappedByteBuffer map(final File file, final FileChannel.MapMode mode, final long size)
+      throws IOException {
+    final RandomAccessFile raf =
+        new RandomAccessFile(file, mode == FileChannel.MapMode.READ_ONLY ? "r" : "rw");
+    try {
+      return raf.getChannel().map(mode, 0, size >= 0 ? size : raf.length());
+    } finally {
+      raf.close();
+    }
+  }
+
+  static void putVarint(final ByteBuffer buffer, long value) {
+    while ((value & ~0x7fL) != 0) {
+      buffer.put((byte) ((value & 0x7f) | 0x80));
+      value >>>= 7;
+    }
+    buffer.put((byte) value);
+  }
+
+  static long getVarint(final ByteBuffer buffer) throws IOException {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      final byte b = buffer.get();
+      value |= (long) (b & 0x7f) << shift;
+      if (b >= 0) {
+        return value;
+      }
+    }
+    throw new IOException("Malformed varint at " + buffer.position());
+  }
+
+  static long zigzag(final long value) {
+    return (value << 1) ^ (value >> 63);
+  }
+
+  static long unzigzag(final long value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
+}
@@ -0,0 +1,130 @@
+package com.motiontracking.recording;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the track log written by {@link TrackLogWriter}. Opening the log reads the index of every
+ * finished segment; segments without one are scanned once. A time range query then skips the
+ * segments outside the range and starts decoding at the last sync frame before the range, so
+ * reading a few minutes out of hours of history decodes little more than those minutes.
+ *
+ * <p>The segment being written can be read while the writer is running; reading it ends at the
+ * last frame written when the cursor gets there.
+ */
+public class TrackLogReader {
+  private final List<Segment> segments = new ArrayList<>();
+
+  public TrackLogReader(final File directory) throws IOException {
+    for (final File file : TrackLogFormat.listSegments(directory)) {
+      final File indexFile = TrackLogFormat.indexFile(file);
+      final boolean finished = indexFile.isFile();
+      final SegmentIndex index =
+          finished
+              ? SegmentIndex.read(indexFile)
+              : SegmentIndex.scan(TrackLogFormat.map(file, FileChannel.MapMode.READ_ONLY, -1));
+      if (index.size() > 0) {
+        segments.add(new Segment(file, index, finished));
+      }
+    }
+  }
+
+  public int getSegmentCount() {
+    return segments.size();
+  }
+
+  /** Time of the first logged frame, or Long.MAX_VALUE for an empty log. */
+  public long getFirstTimeMicros() {
+    return segments.isEmpty() ? Long.MAX_VALUE : segments.get(0).index.getFirstTimeMicros();
+  }
+
+  /** Time of the last frame logged when the log was opened, or Long.MIN_VALUE if empty. */
+  public long getLastTimeMicros() {
+    return segments.isEmpty()
+        ? Long.MIN_VALUE
+        : segments.get(segments.size() - 1).index.getLastTimeMicros();
+  }
+
+  /** Reads the frames with times from {@code fromMicros} to {@code toMicros}, both inclusive. */
+  public Cursor read(final long fromMicros, final long toMicros) {
+    return new Cursor(fromMicros, toMicros);
+  }
+
+  /** Reads all frames. */
+  public Cursor readAll() {
+    return new Cursor(Long.MIN_VALUE, Long.MAX_VALUE);
+  }
+
+  /** Iterates over the frames of a time range in order. */
+  public final class Cursor {
+    private final long fromMicros;
+    private final long toMicros;
+    private int segment;
+    private SegmentDecoder decoder;
+    private boolean done;
+    // Frames decoded, including those before the range.
+    long framesDecoded;
+
+    private Cursor(final long fromMicros, final long toMicros) {
+      this.fromMicros = fromMicros;
+      this.toMicros = toMicros;
+    }
+
+    /** Reads the next frame of the range into {@code frame}, or returns false at its end. */
+    public boolean next(final LoggedFrame frame) throws IOException {
+      while (!done) {
+        if (decoder == null && !openNextSegment()) {
+          done = true;
+          break;
+        }
+        while (decoder.next(frame)) {
+          ++framesDecoded;
+          if (frame.getTimeMicros() > toMicros) {
+            done = true;
+            return false;
+          }
+          if (frame.getTimeMicros() >= fromMicros) {
+            return true;
+          }
+        }
+        decoder = null;
+        ++segment;
+      }
+      return false;
+    }
+
+    private boolean openNextSegment() throws IOException {
+      for (; segment < segments.size(); ++segment) {
+        final Segment candidate = segments.get(segment);
+        // The index of a segment still being written may be behind.
+        if (candidate.finished && candidate.index.getLastTimeMicros() < fromMicros) {
+          continue;
+        }
+        if (candidate.index.getFirstTimeMicros() > toMicros) {
+          return false;
+        }
+        decoder =
+            new SegmentDecoder(
+                TrackLogFormat.map(candidate.file, FileChannel.MapMode.READ_ONLY, -1));
+        decoder.seek(candidate.index.seek(fromMicros));
+        return true;
+      }
+      return false;
+    }
+  }
+
+  private static final class Segment {
+    final File file;
+    final SegmentIndex index;
+    final boolean finished;
+
+    Segment(final File file, final SegmentIndex index, final boolean finished) {
+      this.file = file;
+      this.index = index;
+      this.finished = finished;
+    }
+  }
+}
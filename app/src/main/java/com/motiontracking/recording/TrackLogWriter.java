@@ -0,0 +1,457 @@
+package com.motiontracking.recording;
+
+import com.motiontracking.tracking.TrackSnapshot;
+import com.motiontracking.utils.IntIntMap;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Appends tracks to the track log, see {@link TrackLogFormat}. {@link #log} only queues the
+ * immutable snapshot; a writer thread encodes the queued snapshots in batches into a memory-mapped
+ * segment and starts a new segment when the current one is full, deleting the oldest segments
+ * beyond the retention limit. When the writer thread falls behind, snapshots are dropped rather
+ * than blocking the caller.
+ *
+ * <p>Segments are mapped at their full size up front; unused space at the end of a segment is
+ * zeros and is not allocated on disk by file systems supporting sparse files.
+ */
+public class TrackLogWriter implements Closeable {
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final int QUEUE_CAPACITY = 256;
+  private static final int MIN_SEGMENT_BYTES = 1 << 16;
+  // Upper bounds of varint sizes, for the space check before encoding a frame.
+  private static final int MAX_VARINT_BYTES = 10;
+  private static final int MAX_INT_VARINT_BYTES = 5;
+  private static final int MAX_TRACK_BYTES = 2 * MAX_INT_VARINT_BYTES + 4 * MAX_INT_VARINT_BYTES + 1;
+
+  private final File directory;
+  private final int segmentBytes;
+  private final int maxSegments;
+  private final long epochOffsetMicros;
+  private final Thread thread;
+
+  // Queue of snapshots to write, guarded by lock.
+  private final Object lock = new Object();
+  private final TrackSnapshot[] queuedSnapshots = new TrackSnapshot[QUEUE_CAPACITY];
+  private final long[] queuedTimes = new long[QUEUE_CAPACITY];
+  private int queueHead;
+  private int queueCount;
+  private long submitted;
+  private long processed;
+  private long forcedUpTo;
+  private boolean flushRequested;
+  private boolean closing;
+  private boolean closed;
+  private IOException failure;
+  // Dropped by log() when the queue is full and by the writer thread when a frame does not fit.
+  private long framesDropped;
+
+  private volatile long framesLogged;
+  private volatile long bytesWritten;
+
+  // Owned by the writer thread.
+  private long sequence;
+  private MappedByteBuffer data;
+  private SegmentIndex index;
+  private final Map<String, Integer> labelIndices = new HashMap<>();
+  private final List<byte[]> labels = new ArrayList<>();
+  private int labelTableBytes;
+  private long lastTimeMicros = Long.MIN_VALUE;
+  private long lastSyncMicros;
+  private int frameWidth;
+  private int frameHeight;
+  private int sensorOrientation;
+  private int previousCount;
+  private int[] previousIds = new int[16];
+  // Index of each track in the previous and in the current frame, by identifier.
+  private IntIntMap previousIndices = new IntIntMap(16);
+  private IntIntMap currentIndices = new IntIntMap(16);
+  private int[] previousBoxes = new int[64];
+  private int[] currentBoxes = new int[64];
+  private final int[] box = new int[4];
+
+  /**
+   * Opens a new segment in the directory after any existing ones and starts the writer thread.
+   *
+   * @param segmentBytes Size of a segment, at least 64 KiB.
+   * @param maxSegments Number of segments kept, the oldest ones are deleted.
+   */
+  public TrackLogWriter(final File directory, final int segmentBytes, final int maxSegments)
+      throws IOException {
+    if (segmentBytes < MIN_SEGMENT_BYTES) {
+      throw new IllegalArgumentException("Segments must have at least 64 KiB: " + segmentBytes);
+    }
+    if (maxSegments < 1) {
+      throw new IllegalArgumentException("At least one segment must be kept: " + maxSegments);
+    }
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Cannot create " + directory);
+    }
+    this.directory = directory;
+    this.segmentBytes = segmentBytes;
+    this.maxSegments = maxSegments;
+    epochOffsetMicros = System.currentTimeMillis() * 1000 - System.nanoTime() / 1000;
+    final List<File> existing = TrackLogFormat.listSegments(directory);
+    sequence =
+        existing.isEmpty()
+            ? 0
+            : TrackLogFormat.sequenceOf(existing.get(existing.size() - 1)) + 1;
+    openSegment();
+    thread =
+        new Thread(
+            new Runnable() {
+              @Override
+              public void run() {
+                writeLoop();
+              }
+            },
+            "TrackLogWriter");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /** Queues the snapshot, timed by its timestamp converted to wall-clock time. */
+  public boolean log(final TrackSnapshot snapshot) {
+    return log(snapshot, epochOffsetMicros + snapshot.getTimestampNanos() / 1000);
+  }
+
+  /**
+   * Queues the snapshot with the given wall-clock time in microseconds since the epoch. Times
+   * earlier than the previous one are logged as the previous one.
+   *
+   * @return Whether the snapshot was queued; false if the writer is behind, failed or closed.
+   */
+  public boolean log(final TrackSnapshot snapshot, final long timeMicros) {
+    synchronized (lock) {
+      if (closing || failure != null) {
+        return false;
+      }
+      if (queueCount == QUEUE_CAPACITY) {
+        ++framesDropped;
+        return false;
+      }
+      final int slot = (queueHead + queueCount) % QUEUE_CAPACITY;
+      queuedSnapshots[slot] = snapshot;
+      queuedTimes[slot] = timeMicros;
+      ++queueCount;
+      ++submitted;
+      if (queueCount == 1) {
+        lock.notifyAll();
+      }
+      return true;
+    }
+  }
+
+  /** Waits until everything queued so far is written and forced to storage. */
+  public void flush() throws IOException {
+    synchronized (lock) {
+      final long target = submitted;
+      flushRequested = true;
+      lock.notifyAll();
+      while (forcedUpTo < target && failure == null && !closed) {
+        try {
+          lock.wait();
+        } catch (final InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IOException("Interrupted while flushing the track log");
+        }
+      }
+      if (failure != null) {
+        throw failure;
+      }
+    }
+  }
+
+  /** Writes what is queued, finishes the current segment and stops the writer thread. */
+  @Override
+  public void close() throws IOException {
+    synchronized (lock) {
+      if (closing) {
+        return;
+      }
+      closing = true;
+      lock.notifyAll();
+    }
+    try {
+      thread.join();
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    synchronized (lock) {
+      closed = true;
+      lock.notifyAll();
+      if (failure != null) {
+        throw failure;
+      }
+    }
+    finishSegment();
+  }
+
+  public long getFramesLogged() {
+    return framesLogged;
+  }
+
+  public long getFramesDropped() {
+    synchronized (lock) {
+      return framesDropped;
+    }
+  }
+
+  /** Bytes of records written, not counting the unused end of the current segment. */
+  public long getBytesWritten() {
+    return bytesWritten;
+  }
+
+  private void writeLoop() {
+    final TrackSnapshot[] batch = new TrackSnapshot[QUEUE_CAPACITY];
+    final long[] batchTimes = new long[QUEUE_CAPACITY];
+    while (true) {
+      final int count;
+      final boolean force;
+      synchronized (lock) {
+        while (queueCount == 0 && !flushRequested && !closing) {
+          try {
+            lock.wait();
+          } catch (final InterruptedException e) {
+            return;
+          }
+        }
+        if (queueCount == 0 && closing) {
+          return;
+        }
+        count = queueCount;
+        for (int i = 0; i < count; ++i) {
+          final int slot = (queueHead + i) % QUEUE_CAPACITY;
+          batch[i] = queuedSnapshots[slot];
+          batchTimes[i] = queuedTimes[slot];
+          queuedSnapshots[slot] = null;
+        }
+        queueHead = (queueHead + count) % QUEUE_CAPACITY;
+        queueCount = 0;
+        force = flushRequested;
+        flushRequested = false;
+      }
+
+      IOException error = null;
+      int dropped = 0;
+      try {
+        for (int i = 0; i < count; ++i) {
+          if (encode(batch[i], batchTimes[i])) {
+            ++framesLogged;
+          } else {
+            ++dropped;
+          }
+          batch[i] = null;
+        }
+        if (force) {
+          data.force();
+        }
+      } catch (final IOException e) {
+        error = e;
+      }
+
+      synchronized (lock) {
+        processed += count;
+        framesDropped += dropped;
+        if (force) {
+          forcedUpTo = processed;
+        }
+        if (error != null) {
+          failure = error;
+        }
+        lock.notifyAll();
+        if (error != null) {
+          return;
+        }
+      }
+    }
+  }
+
+  /** Encodes one frame, or returns false if it does not fit even into an empty segment. */
+  private boolean encode(final TrackSnapshot snapshot, final long requestedTimeMicros)
+      throws IOException {
+    final long timeMicros = Math.max(requestedTimeMicros, lastTimeMicros);
+    final int count = snapshot.size();
+
+    final int firstNewLabel = labels.size();
+    for (int i = 0; i < count; ++i) {
+      final String title = snapshot.getTitle(i);
+      if (title != null && !labelIndices.containsKey(title)) {
+        labelIndices.put(title, labels.size());
+        final byte[] utf8 = title.getBytes(UTF_8);
+        labels.add(utf8);
+        labelTableBytes += labelRecordBound(utf8);
+      }
+    }
+
+    boolean sync =
+        data.position() == TrackLogFormat.HEADER_BYTES
+            || snapshot.getFrameWidth() != frameWidth
+            || snapshot.getFrameHeight() != frameHeight
+            || snapshot.getSensorOrientation() != sensorOrientation
+            || timeMicros - lastSyncMicros >= TrackLogFormat.SYNC_INTERVAL_MICROS;
+    int newLabelBytes = 0;
+    for (int i = firstNewLabel; i < labels.size(); ++i) {
+      newLabelBytes += labelRecordBound(labels.get(i));
+    }
+    final int frameBound =
+        1
+            + 4 * MAX_VARINT_BYTES
+            + 2 * MAX_INT_VARINT_BYTES
+            + count * MAX_TRACK_BYTES
+            + previousCount * MAX_INT_VARINT_BYTES;
+    if (frameBound + (sync ? labelTableBytes : newLabelBytes) > data.remaining()) {
+      finishSegment();
+      openSegment();
+      sync = true;
+      if (frameBound + labelTableBytes > data.remaining()) {
+        return false;
+      }
+    }
+
+    final int start = data.position();
+    if (sync) {
+      index.add(timeMicros, start);
+    }
+    for (int i = sync ? 0 : firstNewLabel; i < labels.size(); ++i) {
+      writeLabel(i);
+    }
+
+    // The tag is written last, so readers never see a partly written frame.
+    final int tagPosition = data.position();
+    data.put(TrackLogFormat.TAG_END);
+    if (sync) {
+      frameWidth = snapshot.getFrameWidth();
+      frameHeight = snapshot.getFrameHeight();
+      sensorOrientation = snapshot.getSensorOrientation();
+      TrackLogFormat.putVarint(data, timeMicros);
+      TrackLogFormat.putVarint(data, frameWidth);
+      TrackLogFormat.putVarint(data, frameHeight);
+      TrackLogFormat.putVarint(data, sensorOrientation);
+      lastSyncMicros = timeMicros;
+    } else {
+      TrackLogFormat.putVarint(data, timeMicros - lastTimeMicros);
+    }
+    lastTimeMicros = timeMicros;
+
+    TrackLogFormat.putVarint(data, count);
+    if (currentBoxes.length < count * 4) {
+      currentBoxes = new int[Math.max(count * 4, currentBoxes.length * 2)];
+    }
+    currentIndices.clear();
+    int previousId = 0;
+    for (int i = 0; i < count; ++i) {
+      final int id = snapshot.getId(i);
+      currentIndices.put(id, i);
+      TrackLogFormat.putVarint(data, TrackLogFormat.zigzag(id - previousId));
+      previousId = id;
+      box[0] = quantize(snapshot.getLeft(i));
+      box[1] = quantize(snapshot.getTop(i));
+      box[2] = quantize(snapshot.getRight(i));
+      box[3] = quantize(snapshot.getBottom(i));
+      final int reference = previousIndices.get(id, -1);
+      final boolean delta = !sync && reference >= 0;
+      final String title = snapshot.getTitle(i);
+      final int label = title != null ? labelIndices.get(title) + 1 : 0;
+      TrackLogFormat.putVarint(
+          data,
+          ((long) label << TrackLogFormat.FLAG_BITS)
+              | (reference < 0 ? TrackLogFormat.FLAG_APPEARED : 0)
+              | (delta ? TrackLogFormat.FLAG_DELTA : 0));
+      for (int k = 0; k < 4; ++k) {
+        TrackLogFormat.putVarint(
+            data,
+            TrackLogFormat.zigzag(delta ? box[k] - previousBoxes[reference * 4 + k] : box[k]));
+        currentBoxes[i * 4 + k] = box[k];
+      }
+      final int confidence =
+          Math.round(snapshot.getConfidence(i) * TrackLogFormat.CONFIDENCE_SCALE);
+      data.put((byte) Math.max(0, Math.min(255, confidence)));
+    }
+
+    int gone = 0;
+    for (int i = 0; i < previousCount; ++i) {
+      if (currentIndices.get(previousIds[i], -1) < 0) {
+        ++gone;
+      }
+    }
+    TrackLogFormat.putVarint(data, gone);
+    previousId = 0;
+    for (int i = 0; i < previousCount; ++i) {
+      if (currentIndices.get(previousIds[i], -1) < 0) {
+        TrackLogFormat.putVarint(data, TrackLogFormat.zigzag(previousIds[i] - previousId));
+        previousId = previousIds[i];
+      }
+    }
+    data.put(tagPosition, sync ? TrackLogFormat.TAG_SYNC : TrackLogFormat.TAG_FRAME);
+    index.setLastTimeMicros(timeMicros);
+    bytesWritten += data.position() - start;
+
+    // This frame is the reference of the next one.
+    if (previousIds.length < count) {
+      previousIds = new int[Math.max(count, previousIds.length * 2)];
+    }
+    for (int i = 0; i < count; ++i) {
+      previousIds[i] = snapshot.getId(i);
+    }
+    final IntIntMap swapIndices = previousIndices;
+    previousIndices = currentIndices;
+    currentIndices = swapIndices;
+    final int[] swap = previousBoxes;
+    previousBoxes = currentBoxes;
+    currentBoxes = swap.length >= count * 4 ? swap : Arrays.copyOf(swap, count * 4);
+    previousCount = count;
+    return true;
+  }
+
+  private void writeLabel(final int label) {
+    final byte[] utf8 = labels.get(label);
+    final int tagPosition = data.position();
+    data.put(TrackLogFormat.TAG_END);
+    TrackLogFormat.putVarint(data, label);
+    TrackLogFormat.putVarint(data, utf8.length);
+    data.put(utf8);
+    data.put(tagPosition, TrackLogFormat.TAG_LABEL);
+  }
+
+  private static int labelRecordBound(final byte[] utf8) {
+    return 1 + 2 * MAX_INT_VARINT_BYTES + utf8.length;
+  }
+
+  private static int quantize(final float coordinate) {
+    return Math.round(coordinate * TrackLogFormat.COORDINATE_SCALE);
+  }
+
+  private void openSegment() throws IOException {
+    final File file = TrackLogFormat.segmentFile(directory, sequence);
+    data = TrackLogFormat.map(file, FileChannel.MapMode.READ_WRITE, segmentBytes);
+    data.putInt(TrackLogFormat.SEGMENT_MAGIC);
+    data.putInt(TrackLogFormat.VERSION);
+    index = new SegmentIndex();
+    bytesWritten += TrackLogFormat.HEADER_BYTES;
+
+    final List<File> segments = TrackLogFormat.listSegments(directory);
+    for (int i = 0; i < segments.size() - maxSegments; ++i) {
+      final File old = segments.get(i);
+      TrackLogFormat.indexFile(old).delete();
+      old.delete();
+    }
+  }
+
+  /** Forces the segment to storage and writes its index, after which readers need not scan it. */
+  private void finishSegment() throws IOException {
+    data.force();
+    index.write(TrackLogFormat.indexFile(TrackLogFormat.segmentFile(directory, sequence)));
+    ++sequence;
+  }
+}
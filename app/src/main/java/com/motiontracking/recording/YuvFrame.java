@@ -0,0 +1,79 @@
+package com.motiontracking.recording;
+
+/**
+ * A camera frame as captured: the Y, U and V planes with their strides and the sensor timestamp.
+ * Buffers are reused from frame to frame and only grow.
+ */
+public final class YuvFrame {
+  public static final int PLANES = 3;
+
+  private final byte[][] planes = {new byte[0], new byte[0], new byte[0]};
+  private final int[] lengths = new int[PLANES];
+  private final int[] rowStrides = new int[PLANES];
+  private final int[] pixelStrides = new int[PLANES];
+  private int width;
+  private int height;
+  private long index;
+  private long timestampNanos;
+
+  public int getWidth() {
+    return width;
+  }
+
+  public int getHeight() {
+    return height;
+  }
+
+  /** Number of frames offered to the recorder before this one; gaps are dropped frames. */
+  public long getIndex() {
+    return index;
+  }
+
+  /** Timestamp of the sensor, in nanoseconds on the camera's clock. */
+  public long getTimestampNanos() {
+    return timestampNanos;
+  }
+
+  /** Bytes of the plane as laid out by the camera, of which {@link #getPlaneLength} are valid. */
+  public byte[] getPlane(final int plane) {
+    return planes[plane];
+  }
+
+  public int getPlaneLength(final int plane) {
+    return lengths[plane];
+  }
+
+  public int getRowStride(final int plane) {
+    return rowStrides[plane];
+  }
+
+  public int getPixelStride(final int plane) {
+    return pixelStrides[plane];
+  }
+
+  /** Copies the luminance into {@code luma} row by row with a stride of the width. */
+  public void copyLuma(final byte[] luma) {
+    for (int y = 0; y < height; ++y) {
+      System.arraycopy(planes[0], y * rowStrides[0], luma, y * width, width);
+    }
+  }
+
+  void setFormat(final int width, final int height, final long index, final long timestampNanos) {
+    this.width = width;
+    this.height = height;
+    this.index = index;
+    this.timestampNanos = timestampNanos;
+  }
+
+  /** Prepares the plane for {@code length} bytes and returns its buffer. */
+  byte[] preparePlane(
+      final int plane, final int length, final int rowStride, final int pixelStride) {
+    if (planes[plane].length < length) {
+      planes[plane] = new byte[length];
+    }
+    lengths[plane] = length;
+    rowStrides[plane] = rowStride;
+    pixelStrides[plane] = pixelStride;
+    return planes[plane];
+  }
+}
@@ -0,0 +1,122 @@
+package com.motiontracking.stream;
+
+/**
+ * Streams the frames of a live camera. The camera thread {@link #offer offers} the luminance plane
+ * of each frame it receives and {@link #read} hands out the newest one; a frame offered while the
+ * previous one is still unread replaces it, so a stream that falls behind skips frames rather than
+ * holding up the camera.
+ *
+ * <p>Frames go through three buffers: the camera copies into its own, which then trades places
+ * with the pending frame, and the reader trades the pending frame for its own buffer before copying
+ * it out. Neither side copies while holding the lock, and after the first frames nothing is
+ * allocated.
+ */
+public class CameraFrameSource implements FrameSource {
+  private final String name;
+  private final int width;
+  private final int height;
+  private final Object lock = new Object();
+  // Written by the camera thread, the newest unread frame, and read by the reader.
+  private byte[] offered;
+  private byte[] pending;
+  private byte[] reading;
+  private boolean hasPending;
+  private long pendingNanos;
+  private boolean closed;
+  private long index;
+  private long framesSkipped;
+
+  /** @param width Width and height of the frames the camera delivers. */
+  public CameraFrameSource(final String name, final int width, final int height) {
+    this.name = name;
+    this.width = width;
+    this.height = height;
+    offered = new byte[width * height];
+    pending = new byte[width * height];
+    reading = new byte[width * height];
+  }
+
+  @Override
+  public String getName() {
+    return name;
+  }
+
+  @Override
+  public int getWidth() {
+    return width;
+  }
+
+  @Override
+  public int getHeight() {
+    return height;
+  }
+
+  /**
+   * Hands a frame to the stream. Called on the camera thread, which keeps the plane; it is copied
+   * before this returns. Frames offered after {@link #close} are ignored.
+   *
+   * @param rowStride Bytes between the starts of consecutive rows of the plane.
+   */
+  public void offer(final byte[] luma, final int rowStride) {
+    final long nanos = System.nanoTime();
+    final byte[] target = offered;
+    if (rowStride == width) {
+      System.arraycopy(luma, 0, target, 0, width * height);
+    } else {
+      for (int y = 0; y < height; ++y) {
+        System.arraycopy(luma, y * rowStride, target, y * width, width);
+      }
+    }
+    synchronized (lock) {
+      if (closed) {
+        return;
+      }
+      if (hasPending) {
+        ++framesSkipped;
+      }
+      offered = pending;
+      pending = target;
+      pendingNanos = nanos;
+      hasPending = true;
+      lock.notifyAll();
+    }
+  }
+
+  /** Blocks until the camera offers a frame; returns false once the source is closed. */
+  @Override
+  public boolean read(final StreamFrame out) throws InterruptedException {
+    final long nanos;
+    synchronized (lock) {
+      while (!hasPending && !closed) {
+        lock.wait();
+      }
+      if (closed) {
+        return false;
+      }
+      final byte[] frame = pending;
+      pending = reading;
+      reading = frame;
+      nanos = pendingNanos;
+      hasPending = false;
+    }
+    System.arraycopy(reading, 0, out.prepare(width, height), 0, width * height);
+    out.setTiming(index++, nanos);
+    return true;
+  }
+
+  /** Frames replaced by a newer one before they were read. */
+  public long getFramesSkipped() {
+    synchronized (lock) {
+      return framesSkipped;
+    }
+  }
+
+  /** Ends the stream: a blocked {@link #read} returns false, and further frames are ignored. */
+  @Override
+  public void close() {
+    synchronized (lock) {
+      closed = true;
+      lock.notifyAll();
+    }
+  }
+}
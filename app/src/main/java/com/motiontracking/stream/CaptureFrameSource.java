@@ -0,0 +1,73 @@
+package com.motiontracking.stream;
+
+import com.motiontracking.recording.CaptureReader;
+import com.motiontracking.recording.YuvFrame;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Replays the luminance of a raw capture written by {@link
+ * com.motiontracking.recording.CaptureWriter}. A paced source delivers the frames at the intervals
+ * of their sensor timestamps, otherwise as fast as they can be read.
+ */
+public class CaptureFrameSource implements FrameSource {
+  private final File directory;
+  private final boolean paced;
+  private final CaptureReader reader;
+  private final YuvFrame frame = new YuvFrame();
+  private boolean pending;
+  private long index;
+  private long firstTimestampNanos;
+  private long startNanos;
+
+  public CaptureFrameSource(final File directory, final boolean paced) throws IOException {
+    this.directory = directory;
+    this.paced = paced;
+    reader = new CaptureReader(directory);
+    // The first frame tells the size of the stream.
+    pending = reader.next(frame);
+  }
+
+  @Override
+  public String getName() {
+    return directory.getName();
+  }
+
+  @Override
+  public int getWidth() {
+    return frame.getWidth();
+  }
+
+  @Override
+  public int getHeight() {
+    return frame.getHeight();
+  }
+
+  @Override
+  public boolean read(final StreamFrame out) throws IOException, InterruptedException {
+    if (!pending && !reader.next(frame)) {
+      return false;
+    }
+    pending = false;
+    frame.copyLuma(out.prepare(frame.getWidth(), frame.getHeight()));
+
+    if (index == 0) {
+      startNanos = System.nanoTime();
+      firstTimestampNanos = frame.getTimestampNanos();
+    } else if (paced) {
+      final long wait =
+          startNanos + frame.getTimestampNanos() - firstTimestampNanos - System.nanoTime();
+      if (wait > 0) {
+        Thread.sleep(wait / 1_000_000L, (int) (wait % 1_000_000L));
+      }
+    }
+    out.setTiming(index++, System.nanoTime());
+    return true;
+  }
+
+  @Override
+  public void close() {
+    reader.close();
+  }
+}
@@ -0,0 +1,24 @@
+package com.motiontracking.stream;
+
+import java.io.IOException;
+
+/**
+ * A video feed processed by a {@link StreamHost}: a camera, a replayed recording or a synthetic
+ * generator. Each source is read by a thread of its own and may block until its next frame is due.
+ */
+public interface FrameSource {
+  String getName();
+
+  int getWidth();
+
+  int getHeight();
+
+  /**
+   * Fills the next frame, blocking until it is available.
+   *
+   * @return false once the source is exhausted.
+   */
+  boolean read(StreamFrame frame) throws IOException, InterruptedException;
+
+  void close() throws IOException;
+}
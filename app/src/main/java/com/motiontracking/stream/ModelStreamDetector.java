@@ -0,0 +1,168 @@
+package com.motiontracking.stream;
+
+import com.motiontracking.tflite.BatchDetector;
+import com.motiontracking.tflite.DetectorSlot;
+import com.motiontracking.tflite.Detections;
+import com.motiontracking.tflite.ModelSpec;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.List;
+
+/**
+ * Runs a {@link BatchDetector}, such as a {@link
+ * com.motiontracking.tflite.TFLiteObjectDetectionAPIModel}, on the frames of a stream. Frames are
+ * luminance only, so each is sampled down to the model's input at the centers of the input pixels
+ * and its gray values are given to all three color channels; the boxes the model finds are scaled
+ * back to frame coordinates.
+ *
+ * <p>Each detector holds a model of its own, so the detectors of a {@link StreamHost} pool run side
+ * by side. The sampling positions are computed once per frame size and the input tensor is reused,
+ * so a detection allocates nothing beyond what the model does.
+ *
+ * @param <T> The model type.
+ */
+public class ModelStreamDetector<T extends BatchDetector> implements StreamDetector {
+  private final DetectorSlot.Loader<T> loader;
+  private final T model;
+  private final ModelSpec spec;
+  private final List<String> labels;
+  private final ByteBuffer input;
+  private final ByteBuffer[] inputs;
+  private final Detections found;
+  private final Detections[] outputs;
+  // Row of the input tensor, and the normalized values of the 256 gray levels for float models.
+  private final byte[] quantizedRow;
+  private final float[] floatRow;
+  private final FloatBuffer floatInput;
+  private final float[] table;
+  // Frame column and row sampled by each input column and row, for frames of the last size seen.
+  private final int[] columns;
+  private final int[] rows;
+  private int frameWidth;
+  private int frameHeight;
+
+  /**
+   * Creates the detectors of a pool, each with a model loaded by the loader. This is how a device
+   * runs its real models in a {@link StreamHost}, for instance with {@link
+   * DetectorSlot#tfliteLoader}.
+   */
+  public static <T extends BatchDetector> StreamDetector.Factory factory(
+      final DetectorSlot.Loader<T> loader, final ModelSpec spec) {
+    return new StreamDetector.Factory() {
+      @Override
+      public StreamDetector create() throws Exception {
+        return new ModelStreamDetector<>(loader, loader.load(spec));
+      }
+    };
+  }
+
+  /** @param loader Closes the model when the detector is closed. */
+  public ModelStreamDetector(final DetectorSlot.Loader<T> loader, final T model) {
+    this.loader = loader;
+    this.model = model;
+    spec = model.getSpec();
+    // Detections report classes without the label offset, so the labels are the lines after it.
+    final List<String> lines = model.getLabels();
+    labels = lines.subList(Math.min(spec.getLabelOffset(), lines.size()), lines.size());
+    input = ByteBuffer.allocateDirect(spec.getInputBytes()).order(ByteOrder.nativeOrder());
+    inputs = new ByteBuffer[] {input};
+    found = new Detections(spec.getMaxDetections());
+    outputs = new Detections[] {found};
+    final int width = spec.getInputWidth();
+    columns = new int[width];
+    rows = new int[spec.getInputHeight()];
+    if (spec.isQuantized()) {
+      quantizedRow = new byte[3 * width];
+      floatRow = null;
+      floatInput = null;
+      table = null;
+    } else {
+      quantizedRow = null;
+      floatRow = new float[3 * width];
+      floatInput = input.asFloatBuffer();
+      table = new float[256];
+      for (int value = 0; value < 256; ++value) {
+        table[value] = (value - spec.getImageMean()) / spec.getImageStd();
+      }
+    }
+  }
+
+  @Override
+  public List<String> getLabels() {
+    return labels;
+  }
+
+  @Override
+  public void detect(final StreamFrame frame, final Detections out) {
+    final int width = frame.getWidth();
+    final int height = frame.getHeight();
+    if (width != frameWidth || height != frameHeight) {
+      sample(columns, width);
+      sample(rows, height);
+      frameWidth = width;
+      frameHeight = height;
+    }
+    fill(frame.getLuma(), width);
+    found.clear();
+    model.detect(inputs, 1, outputs);
+    // Boxes come back normalized to the input, which covers the whole frame.
+    out.clear();
+    for (int i = 0; i < found.size(); ++i) {
+      out.add(
+          found.getTop(i) * height,
+          found.getLeft(i) * width,
+          found.getBottom(i) * height,
+          found.getRight(i) * width,
+          found.getClassIndex(i),
+          found.getScore(i));
+    }
+  }
+
+  @Override
+  public void close() {
+    loader.close(model);
+  }
+
+  /** Sets each position of the input to the frame position under the center of its pixel. */
+  private static void sample(final int[] positions, final int frameSize) {
+    for (int i = 0; i < positions.length; ++i) {
+      positions[i] =
+          Math.min(frameSize - 1, (int) ((i + 0.5f) * frameSize / positions.length));
+    }
+  }
+
+  private void fill(final byte[] luma, final int stride) {
+    final int[] columns = this.columns;
+    input.clear();
+    if (quantizedRow != null) {
+      final byte[] row = quantizedRow;
+      for (final int y : rows) {
+        final int offset = y * stride;
+        for (int x = 0, i = 0; x < columns.length; ++x, i += 3) {
+          final byte gray = luma[offset + columns[x]];
+          row[i] = gray;
+          row[i + 1] = gray;
+          row[i + 2] = gray;
+        }
+        input.put(row);
+      }
+    } else {
+      final float[] row = floatRow;
+      final FloatBuffer view = floatInput;
+      view.clear();
+      for (final int y : rows) {
+        final int offset = y * stride;
+        for (int x = 0, i = 0; x < columns.length; ++x, i += 3) {
+          final float gray = table[luma[offset + columns[x]] & 0xff];
+          row[i] = gray;
+          row[i + 1] = gray;
+          row[i + 2] = gray;
+        }
+        view.put(row);
+      }
+    }
+    input.rewind();
+  }
+}
@@ -0,0 +1,149 @@
+package com.motiontracking.stream;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Replays a file of raw luminance frames. The file starts with a header of the magic {@code MTRF},
+ * a format version, width, height and the frame interval in nanoseconds, followed by the frames of
+ * {@code width * height} bytes each.
+ *
+ * <p>Frames are delivered at the recorded rate when the source is paced, otherwise as fast as they
+ * can be read. A looping source starts over at the end of the file.
+ */
+public class RawFrameFileSource implements FrameSource {
+  private static final int MAGIC = 0x4d545246; // "MTRF"
+  private static final int VERSION = 1;
+
+  private final File file;
+  private final boolean paced;
+  private final boolean loop;
+  private final int width;
+  private final int height;
+  private final long frameIntervalNanos;
+  private DataInputStream in;
+  private long index;
+  private long startNanos;
+
+  public RawFrameFileSource(final File file, final boolean paced, final boolean loop)
+      throws IOException {
+    this.file = file;
+    this.paced = paced;
+    this.loop = loop;
+    in = open();
+    width = in.readInt();
+    height = in.readInt();
+    frameIntervalNanos = in.readLong();
+  }
+
+  private DataInputStream open() throws IOException {
+    final DataInputStream stream =
+        new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+    try {
+      if (stream.readInt() != MAGIC || stream.readInt() != VERSION) {
+        throw new IOException("Not a raw frame file: " + file);
+      }
+    } catch (final IOException e) {
+      stream.close();
+      throw e;
+    }
+    return stream;
+  }
+
+  @Override
+  public String getName() {
+    return file.getName();
+  }
+
+  @Override
+  public int getWidth() {
+    return width;
+  }
+
+  @Override
+  public int getHeight() {
+    return height;
+  }
+
+  public long getFrameIntervalNanos() {
+    return frameIntervalNanos;
+  }
+
+  @Override
+  public boolean read(final StreamFrame frame) throws IOException, InterruptedException {
+    final byte[] luma = frame.prepare(width, height);
+    try {
+      in.readFully(luma, 0, width * height);
+    } catch (final EOFException e) {
+      if (!loop) {
+        return false;
+      }
+      in.close();
+      in = open();
+      // Skips the rest of the header.
+      in.readInt();
+      in.readInt();
+      in.readLong();
+      in.readFully(luma, 0, width * height);
+    }
+
+    if (index == 0) {
+      startNanos = System.nanoTime();
+    } else if (paced) {
+      final long wait = startNanos + index * frameIntervalNanos - System.nanoTime();
+      if (wait > 0) {
+        Thread.sleep(wait / 1_000_000L, (int) (wait % 1_000_000L));
+      }
+    }
+    frame.setTiming(index++, System.nanoTime());
+    return true;
+  }
+
+  @Override
+  public void close() throws IOException {
+    in.close();
+  }
+
+  /** Writes files read by {@link RawFrameFileSource}. */
+  public static class Writer implements Closeable {
+    private final DataOutputStream out;
+    private final int width;
+    private final int height;
+
+    public Writer(final File file, final int width, final int height, final long frameIntervalNanos)
+        throws IOException {
+      this.width = width;
+      this.height = height;
+      out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(width);
+      out.writeInt(height);
+      out.writeLong(frameIntervalNanos);
+    }
+
+    /** Appends a frame of {@code width * height} bytes, row by row. */
+    public void write(final byte[] luma) throws IOException {
+      if (luma.length < width * height) {
+        throw new IllegalArgumentException(
+            String.format(
+                Locale.ENGLISH, "Frame of %d bytes, expected %dx%d", luma.length, width, height));
+      }
+      out.write(luma, 0, width * height);
+    }
+
+    @Override
+    public void close() throws IOException {
+      out.close();
+    }
+  }
+}
@@ -0,0 +1,29 @@
+package com.motiontracking.stream;
+
+import com.motiontracking.tflite.Detections;
+
+import java.util.List;
+
+/**
+ * A detector instance of the pool shared by the streams of a {@link StreamHost}. An instance is only
+ * ever used by one thread at a time, so implementations may keep per-instance buffers and
+ * interpreters that are not thread-safe.
+ */
+public interface StreamDetector {
+  /** Creates the instances of the pool. */
+  interface Factory {
+    StreamDetector create() throws Exception;
+  }
+
+  /** Titles of the class indices reported in {@link Detections}. */
+  List<String> getLabels();
+
+  /**
+   * Detects objects in the frame.
+   *
+   * @param out Receives the boxes in frame coordinates.
+   */
+  void detect(StreamFrame frame, Detections out);
+
+  void close();
+}
@@ -0,0 +1,56 @@
+package com.motiontracking.stream;
+
+/**
+ * A luminance frame of a video stream. Frames are buffers owned by their stream and refilled by its
+ * {@link FrameSource}, so consumers must not keep references beyond the call they were handed in.
+ */
+public final class StreamFrame {
+  private byte[] luma = new byte[0];
+  private int width;
+  private int height;
+  private long index;
+  private long timestampNanos;
+
+  /**
+   * Prepares the frame for {@code width} by {@code height} pixels, reallocating the buffer only if
+   * it is too small, and returns the buffer to fill row by row.
+   */
+  public byte[] prepare(final int width, final int height) {
+    if (luma.length < width * height) {
+      luma = new byte[width * height];
+    }
+    this.width = width;
+    this.height = height;
+    return luma;
+  }
+
+  /**
+   * @param index Position of the frame in its stream.
+   * @param timestampNanos {@link System#nanoTime()} at which the frame was captured or read.
+   */
+  public void setTiming(final long index, final long timestampNanos) {
+    this.index = index;
+    this.timestampNanos = timestampNanos;
+  }
+
+  /** Pixels row by row with a stride of {@link #getWidth()}. */
+  public byte[] getLuma() {
+    return luma;
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  public int getHeight() {
+    return height;
+  }
+
+  public long getIndex() {
+    return index;
+  }
+
+  public long getTimestampNanos() {
+    return timestampNanos;
+  }
+}
@@ -0,0 +1,260 @@
+package com.motiontracking.stream;
+
+import com.motiontracking.tflite.Detections;
+import com.motiontracking.tracking.DetectionTracker;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Runs several video streams through one bounded pool of detectors. Every stream is read by its own
+ * thread and keeps its own tracks; each detector instance is owned by one worker thread, which
+ * repeatedly asks the {@link StreamScheduler} for the stream to serve next. Streams thus share the
+ * detectors by weight, while a minimum detection rate per stream takes precedence over the weights.
+ *
+ * <p>Plain Java, so the same host runs on a device or headless on a server or in tests.
+ */
+public class StreamHost {
+  private static final int MAX_DETECTIONS_PER_FRAME = 100;
+
+  private final Object lock = new Object();
+  private final StreamDetector.Factory detectorFactory;
+  private final int poolSize;
+  private final StreamScheduler scheduler;
+  private final List<VideoStream> streams = new ArrayList<>();
+  private final List<StreamDetector> detectors = new ArrayList<>();
+  private final List<Thread> workers = new ArrayList<>();
+  private List<String> labels;
+  private boolean running;
+
+  /**
+   * @param detectorFactory Creates the detector instances when the host starts.
+   * @param poolSize Number of detector instances, and of frames detected concurrently.
+   */
+  public StreamHost(final StreamDetector.Factory detectorFactory, final int poolSize) {
+    if (poolSize <= 0) {
+      throw new IllegalArgumentException("Pool size must be positive: " + poolSize);
+    }
+    this.detectorFactory = detectorFactory;
+    this.poolSize = poolSize;
+    scheduler = new StreamScheduler(poolSize);
+  }
+
+  /**
+   * Registers a source, before or after the host was started.
+   *
+   * @param weight Share of detector time relative to the other streams.
+   * @param minDetectionFps Detection rate the stream gets ahead of the weights, 0 for none.
+   */
+  public VideoStream addStream(
+      final FrameSource source, final int weight, final float minDetectionFps) {
+    final VideoStream stream = new VideoStream(source, weight, minDetectionFps);
+    synchronized (lock) {
+      streams.add(stream);
+      if (running) {
+        startStream(stream);
+      }
+    }
+    return stream;
+  }
+
+  /** Creates the detectors and starts reading and detecting. */
+  public void start() throws Exception {
+    synchronized (lock) {
+      if (running) {
+        return;
+      }
+      try {
+        for (int i = 0; i < poolSize; ++i) {
+          detectors.add(detectorFactory.create());
+        }
+      } catch (final Exception e) {
+        closeDetectors();
+        throw e;
+      }
+      labels = detectors.get(0).getLabels();
+      running = true;
+      for (int i = 0; i < poolSize; ++i) {
+        final StreamDetector detector = detectors.get(i);
+        final Thread worker =
+            new Thread(
+                new Runnable() {
+                  @Override
+                  public void run() {
+                    detectLoop(detector);
+                  }
+                },
+                "StreamHost-detector-" + i);
+        workers.add(worker);
+        worker.start();
+      }
+      for (final VideoStream stream : streams) {
+        startStream(stream);
+      }
+    }
+  }
+
+  /** Stops all threads and closes the detectors and sources. */
+  public void stop() throws InterruptedException {
+    final List<Thread> threads = new ArrayList<>();
+    synchronized (lock) {
+      if (!running) {
+        return;
+      }
+      running = false;
+      lock.notifyAll();
+      threads.addAll(workers);
+      workers.clear();
+      for (final VideoStream stream : streams) {
+        if (stream.reader != null) {
+          // Readers may be waiting for the next frame of a paced source.
+          stream.reader.interrupt();
+          threads.add(stream.reader);
+          stream.reader = null;
+        }
+      }
+    }
+    for (final Thread thread : threads) {
+      thread.join();
+    }
+    synchronized (lock) {
+      closeDetectors();
+      for (final VideoStream stream : streams) {
+        try {
+          stream.source.close();
+        } catch (final IOException e) {
+          // Nothing left to read from it anyway.
+        }
+      }
+    }
+  }
+
+  public List<VideoStream> getStreams() {
+    synchronized (lock) {
+      return Collections.unmodifiableList(new ArrayList<>(streams));
+    }
+  }
+
+  public List<StreamStats> getStats() {
+    final long now = System.nanoTime();
+    final List<StreamStats> stats = new ArrayList<>();
+    synchronized (lock) {
+      for (final VideoStream stream : streams) {
+        stats.add(stream.getStats(now));
+      }
+    }
+    return stats;
+  }
+
+  private void closeDetectors() {
+    for (final StreamDetector detector : detectors) {
+      detector.close();
+    }
+    detectors.clear();
+  }
+
+  private void startStream(final VideoStream stream) {
+    final DetectionTracker tracker = new DetectionTracker(labels);
+    tracker.setFrameConfiguration(stream.source.getWidth(), stream.source.getHeight(), 0);
+    stream.tracker = tracker;
+    stream.startNanos = System.nanoTime();
+    stream.lastDetectionNanos = stream.startNanos;
+    stream.lastActiveNanos = stream.startNanos;
+    stream.reader =
+        new Thread(
+            new Runnable() {
+              @Override
+              public void run() {
+                readLoop(stream);
+              }
+            },
+            "StreamHost-reader-" + stream.name);
+    stream.reader.start();
+  }
+
+  private void readLoop(final VideoStream stream) {
+    while (true) {
+      final StreamFrame frame;
+      synchronized (lock) {
+        if (!running) {
+          return;
+        }
+        frame = stream.free.poll();
+      }
+      boolean read;
+      try {
+        read = stream.source.read(frame);
+      } catch (final InterruptedException e) {
+        read = false;
+      } catch (final IOException e) {
+        read = false;
+      }
+      synchronized (lock) {
+        if (!read) {
+          stream.free.add(frame);
+          stream.finished = true;
+          return;
+        }
+        ++stream.framesRead;
+        if (stream.pending != null) {
+          stream.free.add(stream.pending);
+          ++stream.framesDropped;
+        } else {
+          scheduler.onReady(stream, streams, System.nanoTime());
+        }
+        stream.pending = frame;
+        lock.notifyAll();
+      }
+    }
+  }
+
+  private void detectLoop(final StreamDetector detector) {
+    final Detections detections = new Detections(MAX_DETECTIONS_PER_FRAME);
+    while (true) {
+      final VideoStream stream;
+      final StreamFrame frame;
+      synchronized (lock) {
+        VideoStream next;
+        while ((next = scheduler.pick(streams, System.nanoTime())) == null && running) {
+          try {
+            lock.wait();
+          } catch (final InterruptedException e) {
+            return;
+          }
+        }
+        if (!running) {
+          return;
+        }
+        stream = next;
+        frame = stream.pending;
+        stream.pending = null;
+        stream.busy = true;
+      }
+
+      final long start = System.nanoTime();
+      boolean failed = false;
+      try {
+        detections.clear();
+        detector.detect(frame, detections);
+        stream.tracker.update(detections);
+      } catch (final RuntimeException e) {
+        failed = true;
+      }
+      final long end = System.nanoTime();
+
+      synchronized (lock) {
+        stream.busy = false;
+        stream.free.add(frame);
+        scheduler.charge(stream, start, end);
+        if (failed) {
+          ++stream.failures;
+        } else {
+          stream.recordDetection(end - frame.getTimestampNanos(), end - start);
+        }
+        lock.notifyAll();
+      }
+    }
+  }
+}
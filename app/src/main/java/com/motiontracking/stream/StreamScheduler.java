@@ -0,0 +1,87 @@
+package com.motiontracking.stream;
+
+import java.util.List;
+
+/**
+ * Decides which stream a free detector serves next. Streams that would miss their minimum detection
+ * rate if they waited for another detection go first, most urgent first. Otherwise detector time is
+ * shared in proportion to the stream weights: each stream's virtual time advances by the detector
+ * time it used divided by its weight, and the ready stream with the smallest virtual time is served.
+ *
+ * <p>Not thread-safe; the host calls it under its lock.
+ */
+class StreamScheduler {
+  // Streams without frames for longer than this lose the detector time they did not use.
+  private static final long IDLE_NANOS = 500_000_000L;
+
+  private final int detectors;
+
+  /** @param detectors Number of detectors picking streams, which sets how often one frees up. */
+  StreamScheduler(final int detectors) {
+    this.detectors = detectors;
+  }
+
+  /** Returns the stream to serve now, or null if no stream has a frame waiting. */
+  VideoStream pick(final List<VideoStream> streams, final long nowNanos) {
+    VideoStream overdue = null;
+    long mostLate = 0;
+    VideoStream fairest = null;
+    for (int i = 0; i < streams.size(); ++i) {
+      final VideoStream stream = streams.get(i);
+      if (stream.pending == null || stream.busy) {
+        continue;
+      }
+      if (stream.minIntervalNanos > 0) {
+        // Due once waiting for the next detector to free up would stretch the interval between
+        // the starts of two detections of the stream beyond the minimum rate.
+        final long late =
+            nowNanos
+                + stream.costEstimateNanos / detectors
+                - stream.lastDetectionNanos
+                - stream.minIntervalNanos;
+        if (late >= 0 && (overdue == null || late > mostLate)) {
+          overdue = stream;
+          mostLate = late;
+        }
+      }
+      if (fairest == null || stream.virtualTime < fairest.virtualTime) {
+        fairest = stream;
+      }
+    }
+    return overdue != null ? overdue : fairest;
+  }
+
+  /**
+   * Called when a stream gets a frame waiting after having none. Streams are briefly without a
+   * frame between every two frames they deliver, which does not cost them their share. A stream
+   * that was idle for longer does not get to catch up on the detector time it did not ask for: it
+   * starts no further behind than the streams that kept competing.
+   */
+  void onReady(final VideoStream stream, final List<VideoStream> streams, final long nowNanos) {
+    final boolean idle = nowNanos - stream.lastActiveNanos > IDLE_NANOS;
+    stream.lastActiveNanos = nowNanos;
+    if (!idle) {
+      return;
+    }
+    double competing = Double.POSITIVE_INFINITY;
+    for (int i = 0; i < streams.size(); ++i) {
+      final VideoStream other = streams.get(i);
+      if (other != stream && (other.pending != null || other.busy)) {
+        competing = Math.min(competing, other.virtualTime);
+      }
+    }
+    if (competing != Double.POSITIVE_INFINITY) {
+      stream.virtualTime = Math.max(stream.virtualTime, competing);
+    }
+  }
+
+  /** Accounts a detection of a frame of the stream. */
+  void charge(final VideoStream stream, final long startNanos, final long endNanos) {
+    final long cost = endNanos - startNanos;
+    stream.virtualTime += cost / (double) stream.weight;
+    stream.lastDetectionNanos = startNanos;
+    stream.lastActiveNanos = endNanos;
+    final long estimate = stream.costEstimateNanos;
+    stream.costEstimateNanos = estimate == 0 ? cost : estimate + (cost - estimate) / 8;
+  }
+}
@@ -0,0 +1,105 @@
+package com.motiontracking.stream;
+
+import java.util.Locale;
+
+/** Throughput and latency of one stream of a {@link StreamHost} since the host was started. */
+public final class StreamStats {
+  private final String name;
+  private final long framesRead;
+  private final long framesDetected;
+  private final long framesDropped;
+  private final long failures;
+  private final long elapsedNanos;
+  private final double meanDetectionMillis;
+  private final double latencyP50Millis;
+  private final double latencyP95Millis;
+  private final double latencyMaxMillis;
+
+  StreamStats(
+      final String name,
+      final long framesRead,
+      final long framesDetected,
+      final long framesDropped,
+      final long failures,
+      final long elapsedNanos,
+      final double meanDetectionMillis,
+      final double latencyP50Millis,
+      final double latencyP95Millis,
+      final double latencyMaxMillis) {
+    this.name = name;
+    this.framesRead = framesRead;
+    this.framesDetected = framesDetected;
+    this.framesDropped = framesDropped;
+    this.failures = failures;
+    this.elapsedNanos = elapsedNanos;
+    this.meanDetectionMillis = meanDetectionMillis;
+    this.latencyP50Millis = latencyP50Millis;
+    this.latencyP95Millis = latencyP95Millis;
+    this.latencyMaxMillis = latencyMaxMillis;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public long getFramesRead() {
+    return framesRead;
+  }
+
+  public long getFramesDetected() {
+    return framesDetected;
+  }
+
+  /** Frames replaced by a newer frame of the same stream before a detector got to them. */
+  public long getFramesDropped() {
+    return framesDropped;
+  }
+
+  /** Detections that threw. */
+  public long getFailures() {
+    return failures;
+  }
+
+  public double getInputFps() {
+    return elapsedNanos > 0 ? framesRead * 1e9 / elapsedNanos : 0;
+  }
+
+  public double getDetectionFps() {
+    return elapsedNanos > 0 ? framesDetected * 1e9 / elapsedNanos : 0;
+  }
+
+  /** Mean time a detector spent on a frame of this stream. */
+  public double getMeanDetectionMillis() {
+    return meanDetectionMillis;
+  }
+
+  /** Median time from reading a frame to publishing its tracks, over recent detections. */
+  public double getLatencyP50Millis() {
+    return latencyP50Millis;
+  }
+
+  public double getLatencyP95Millis() {
+    return latencyP95Millis;
+  }
+
+  public double getLatencyMaxMillis() {
+    return latencyMaxMillis;
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        Locale.ENGLISH,
+        "%s: %.1f fps in, %.1f fps detected (%d dropped, %d failed), detection %.1f ms, "
+            + "latency p50 %.1f ms, p95 %.1f ms, max %.1f ms",
+        name,
+        getInputFps(),
+        getDetectionFps(),
+        framesDropped,
+        failures,
+        meanDetectionMillis,
+        latencyP50Millis,
+        latencyP95Millis,
+        latencyMaxMillis);
+  }
+}
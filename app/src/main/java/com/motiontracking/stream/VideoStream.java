@@ -0,0 +1,94 @@
+package com.motiontracking.stream;
+
+import com.motiontracking.tracking.DetectionTracker;
+import com.motiontracking.tracking.TrackSnapshot;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * A source registered with a {@link StreamHost}, with its own tracks and statistics. Only the
+ * newest frame of a stream waits for a detector; a frame that is replaced before a detector takes
+ * it counts as dropped. Scheduling state is guarded by the host's lock.
+ */
+public final class VideoStream {
+  // Frames being read, waiting and being detected.
+  private static final int FRAME_BUFFERS = 3;
+  private static final int LATENCY_SAMPLES = 512;
+
+  final String name;
+  final FrameSource source;
+  final int weight;
+  final long minIntervalNanos;
+  final ArrayDeque<StreamFrame> free = new ArrayDeque<>(FRAME_BUFFERS);
+  volatile DetectionTracker tracker;
+  Thread reader;
+
+  // Guarded by the host's lock.
+  StreamFrame pending;
+  boolean busy;
+  boolean finished;
+  double virtualTime;
+  // Start of the last detection, or when the stream was started.
+  long lastDetectionNanos;
+  long costEstimateNanos;
+  // Last time the stream had a frame waiting or detected.
+  long lastActiveNanos;
+  long startNanos;
+  long framesRead;
+  long framesDetected;
+  long framesDropped;
+  long failures;
+  long detectionNanos;
+  final long[] latencies = new long[LATENCY_SAMPLES];
+
+  VideoStream(final FrameSource source, final int weight, final float minDetectionFps) {
+    if (weight <= 0) {
+      throw new IllegalArgumentException("Stream weight must be positive: " + weight);
+    }
+    this.name = source.getName();
+    this.source = source;
+    this.weight = weight;
+    this.minIntervalNanos = minDetectionFps > 0 ? (long) (1e9 / minDetectionFps) : 0;
+    for (int i = 0; i < FRAME_BUFFERS; ++i) {
+      free.add(new StreamFrame());
+    }
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public int getWeight() {
+    return weight;
+  }
+
+  /** Latest tracks of this stream. */
+  public TrackSnapshot getSnapshot() {
+    final DetectionTracker current = tracker;
+    return current != null ? current.getSnapshot() : TrackSnapshot.EMPTY;
+  }
+
+  void recordDetection(final long latencyNanos, final long durationNanos) {
+    latencies[(int) (framesDetected % LATENCY_SAMPLES)] = latencyNanos;
+    ++framesDetected;
+    detectionNanos += durationNanos;
+  }
+
+  StreamStats getStats(final long nowNanos) {
+    final int samples = (int) Math.min(framesDetected, LATENCY_SAMPLES);
+    final long[] sorted = Arrays.copyOf(latencies, samples);
+    Arrays.sort(sorted);
+    return new StreamStats(
+        name,
+        framesRead,
+        framesDetected,
+        framesDropped,
+        failures,
+        startNanos > 0 ? nowNanos - startNanos : 0,
+        framesDetected > 0 ? detectionNanos / 1e6 / framesDetected : 0,
+        samples > 0 ? sorted[samples / 2] / 1e6 : 0,
+        samples > 0 ? sorted[Math.min(samples - 1, samples * 95 / 100)] / 1e6 : 0,
+        samples > 0 ? sorted[samples - 1] / 1e6 : 0);
+  }
+}
@@ -0,0 +1,26 @@
+package com.motiontracking.tflite;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * A detector that runs inputs which were already converted to its input tensor, several per call.
+ * This is what a model shared between processes needs: clients preprocess their frames, and the
+ * process holding the model runs whatever inputs arrived together.
+ */
+public interface BatchDetector {
+  /** The model; inputs hold {@link ModelSpec#getInputBytes()} bytes in native byte order. */
+  ModelSpec getSpec();
+
+  /** Lines of the label file, indexed by label index. */
+  List<String> getLabels();
+
+  /**
+   * Detects objects in the inputs, in order. Not thread-safe; calls must not overlap.
+   *
+   * @param inputs Direct buffers holding one input tensor each from position 0.
+   * @param outputs Receive the detections of the input at the same index, boxes normalized to [0,
+   *     1] of the input.
+   */
+  void detect(ByteBuffer[] inputs, int count, Detections[] outputs);
+}
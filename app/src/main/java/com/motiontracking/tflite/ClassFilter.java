@@ -0,0 +1,66 @@
+package com.motiontracking.tflite;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable selection of label indices, each with its own minimum confidence, compiled into a
+ * bitset so that detectors can test it in their decode loop. Filters are replaced as a whole, never
+ * modified, so publishing a new one is a single reference write.
+ */
+public final class ClassFilter {
+  private final long[] enabled;
+  private final float[] thresholds;
+
+  private ClassFilter(final long[] enabled, final float[] thresholds) {
+    this.enabled = enabled;
+    this.thresholds = thresholds;
+  }
+
+  /** Accepts every label of a label file with {@code numLabels} lines above the same threshold. */
+  public static ClassFilter all(final int numLabels, final float threshold) {
+    final long[] enabled = new long[(numLabels + 63) >>> 6];
+    Arrays.fill(enabled, -1L);
+    final float[] thresholds = new float[numLabels];
+    Arrays.fill(thresholds, threshold);
+    return new ClassFilter(enabled, thresholds);
+  }
+
+  /**
+   * Accepts only the given labels.
+   *
+   * @param labels The lines of the model's label file.
+   * @param thresholds Minimum confidence per enabled label name. Names missing from the label file
+   *     are ignored.
+   */
+  public static ClassFilter forLabels(
+      final List<String> labels, final Map<String, Float> thresholds) {
+    final long[] enabled = new long[(labels.size() + 63) >>> 6];
+    final float[] compiled = new float[labels.size()];
+    Arrays.fill(compiled, Float.POSITIVE_INFINITY);
+    for (int i = 0; i < labels.size(); ++i) {
+      final Float threshold = thresholds.get(labels.get(i));
+      if (threshold != null) {
+        enabled[i >>> 6] |= 1L << i;
+        compiled[i] = threshold;
+      }
+    }
+    return new ClassFilter(enabled, compiled);
+  }
+
+  public boolean isEnabled(final int labelIndex) {
+    return labelIndex >= 0
+        && labelIndex < thresholds.length
+        && (enabled[labelIndex >>> 6] & (1L << labelIndex)) != 0;
+  }
+
+  /** Minimum confidence of the label, infinite if it is disabled. */
+  public float getThreshold(final int labelIndex) {
+    return isEnabled(labelIndex) ? thresholds[labelIndex] : Float.POSITIVE_INFINITY;
+  }
+
+  public boolean accepts(final int labelIndex, final float score) {
+    return isEnabled(labelIndex) && score >= thresholds[labelIndex];
+  }
+}
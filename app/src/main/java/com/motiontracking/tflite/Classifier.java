@@ -24,6 +24,17 @@ import java.util.List;
 public interface Classifier {
   List<Recognition> recognizeImage(Bitmap bitmap);
 
+  /** Lines of the label file, indexed by label index. */
+  List<String> getLabels();
+
+  /**
+   * Restricts recognition to the labels enabled in the filter, each above its own confidence.
+   * Safe to call from any thread; the filter applies from the next recognition on.
+   */
+  void setClassFilter(ClassFilter filter);
+
+  /** Releases the native resources held by the recognition engine. */
+  void close();
 
   /** An immutable result returned by a Classifier describing what was recognized. */
   public class Recognition {
@@ -0,0 +1,77 @@
+package com.motiontracking.tflite;
+
+/**
+ * A reusable, fixed-capacity list of detections kept in primitive arrays. Boxes are stored as
+ * {@code top, left, bottom, right} in the coordinates the producer documents.
+ */
+public final class Detections {
+  private final float[] boxes;
+  private final int[] classes;
+  private final float[] scores;
+  private int count;
+
+  public Detections(final int capacity) {
+    boxes = new float[4 * capacity];
+    classes = new int[capacity];
+    scores = new float[capacity];
+  }
+
+  public int capacity() {
+    return classes.length;
+  }
+
+  public int size() {
+    return count;
+  }
+
+  public void clear() {
+    count = 0;
+  }
+
+  /** Appends a detection. Returns false if the list is full. */
+  public boolean add(
+      final float top,
+      final float left,
+      final float bottom,
+      final float right,
+      final int classIndex,
+      final float score) {
+    if (count == classes.length) {
+      return false;
+    }
+    final int b = 4 * count;
+    boxes[b] = top;
+    boxes[b + 1] = left;
+    boxes[b + 2] = bottom;
+    boxes[b + 3] = right;
+    classes[count] = classIndex;
+    scores[count] = score;
+    ++count;
+    return true;
+  }
+
+  public float getTop(final int i) {
+    return boxes[4 * i];
+  }
+
+  public float getLeft(final int i) {
+    return boxes[4 * i + 1];
+  }
+
+  public float getBottom(final int i) {
+    return boxes[4 * i + 2];
+  }
+
+  public float getRight(final int i) {
+    return boxes[4 * i + 3];
+  }
+
+  /** Class index of the detection, without the model's label offset. */
+  public int getClassIndex(final int i) {
+    return classes[i];
+  }
+
+  public float getScore(final int i) {
+    return scores[i];
+  }
+}
@@ -0,0 +1,159 @@
+package com.motiontracking.tflite;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Holds the detector a pipeline stage runs on and switches it without stalling frames. A new model
+ * is tuned and loaded on a loader thread while the stage keeps running the old one; the swap is a
+ * single reference update and the old detector is closed on the stage's own thread, once it is
+ * guaranteed not to be in use anymore.
+ *
+ * @param <T> The detector type.
+ */
+public class DetectorSlot<T> {
+  private static final String TAG = DetectorSlot.class.getSimpleName();
+
+  /** Creates and closes the detectors of a slot. */
+  public interface Loader<T> {
+    /** Creates a detector for the model. Called on the loader thread. */
+    T load(ModelSpec spec) throws IOException;
+
+    void close(T detector);
+
+    /** Called on the loader thread when a model could not be loaded; the slot keeps its detector. */
+    void onLoadFailed(ModelSpec spec, Exception e);
+  }
+
+  private final Loader<T> loader;
+  private final ExecutorService executor;
+  private final AtomicReference<T> current = new AtomicReference<>();
+  private final List<T> retired = new ArrayList<>();
+  // Incremented per request, so a slow load never replaces a newer one.
+  private final AtomicInteger generation = new AtomicInteger();
+
+  /**
+   * @param loader Creates the detectors, on a thread of the slot.
+   * @param name Name of the loader thread.
+   */
+  public DetectorSlot(final Loader<T> loader, final String name) {
+    this.loader = loader;
+    this.executor = Executors.newSingleThreadExecutor(
+        new ThreadFactory() {
+          @Override
+          public Thread newThread(final Runnable r) {
+            return new Thread(r, name + "-loader");
+          }
+        });
+  }
+
+  /**
+   * A slot of TensorFlow Lite models, each run with the interpreter configuration tuned for it.
+   *
+   * @param context Context used to reach the assets and stored interpreter configurations.
+   * @param name Name of the loader thread.
+   * @param maxThreads Upper bound on interpreter threads, so that slots running side by side do
+   *     not compete for the same cores.
+   */
+  public static DetectorSlot<TFLiteObjectDetectionAPIModel> create(
+      final Context context, final String name, final int maxThreads) {
+    return new DetectorSlot<>(tfliteLoader(context, maxThreads), name);
+  }
+
+  /**
+   * Loads TensorFlow Lite models with the interpreter configuration tuned for each, for a slot or
+   * for anything else that runs the models, such as the detectors of a stream host.
+   */
+  public static Loader<TFLiteObjectDetectionAPIModel> tfliteLoader(
+      final Context context, final int maxThreads) {
+    final Context appContext = context.getApplicationContext();
+    return new Loader<TFLiteObjectDetectionAPIModel>() {
+      @Override
+      public TFLiteObjectDetectionAPIModel load(final ModelSpec spec) throws IOException {
+        final InterpreterConfig config =
+            new InterpreterConfigTuner(appContext).select(spec).withMaxThreads(maxThreads);
+        final TFLiteObjectDetectionAPIModel detector =
+            TFLiteObjectDetectionAPIModel.create(appContext.getAssets(), spec, config);
+        Log.i(TAG, "Loaded " + spec + " with " + config);
+        return detector;
+      }
+
+      @Override
+      public void close(final TFLiteObjectDetectionAPIModel detector) {
+        detector.close();
+      }
+
+      @Override
+      public void onLoadFailed(final ModelSpec spec, final Exception e) {
+        Log.e(TAG, "Could not load " + spec, e);
+      }
+    };
+  }
+
+  /** Loads the model in the background and makes it current once it is ready. */
+  public void load(final ModelSpec spec) {
+    final int requested = generation.incrementAndGet();
+    executor.execute(
+        new Runnable() {
+          @Override
+          public void run() {
+            try {
+              final T detector = loader.load(spec);
+              final T previous;
+              synchronized (DetectorSlot.this) {
+                if (requested != generation.get()) {
+                  loader.close(detector);
+                  return;
+                }
+                previous = current.getAndSet(detector);
+              }
+              if (previous != null) {
+                synchronized (retired) {
+                  retired.add(previous);
+                }
+              }
+            } catch (final IOException | RuntimeException e) {
+              loader.onLoadFailed(spec, e);
+            }
+          }
+        });
+  }
+
+  /**
+   * Returns the current detector, or null while the first model is still loading. Must be called
+   * from the thread that runs the detector: detectors replaced since the previous call are closed
+   * here, which is safe because that thread is not using them anymore.
+   */
+  public T acquire() {
+    synchronized (retired) {
+      for (final T detector : retired) {
+        loader.close(detector);
+      }
+      retired.clear();
+    }
+    return current.get();
+  }
+
+  /** Stops loading and closes all detectors. The stage must not run detections anymore. */
+  public void close() {
+    executor.shutdownNow();
+    final T last;
+    synchronized (this) {
+      generation.incrementAndGet();
+      last = current.getAndSet(null);
+    }
+    acquire();
+    if (last != null) {
+      loader.close(last);
+    }
+  }
+}
@@ -0,0 +1,290 @@
+package com.motiontracking.tflite;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+
+/**
+ * Fills the input tensor of a model with ARGB pixels: three bytes per pixel for quantized models,
+ * three floats normalized with the model's mean and standard deviation for float models. The
+ * kernel for the input type is picked once when the model is loaded, so the pixel loop does not
+ * test the type, and the float kernel looks the normalized values up in a table of the 256 byte
+ * values instead of dividing.
+ *
+ * <p>Rows are converted into a row array and written to the input buffer with one bulk put each.
+ * Large inputs are split into bands of rows that run in parallel, each writing through its own view
+ * of the buffer. Every band but the first has a worker thread of its own that waits for the next
+ * fill, so a fill hands out the bands and waits for them on one monitor without allocating.
+ */
+final class InputKernel {
+  // Inputs with fewer pixels are filled on the calling thread; handing bands to other threads costs
+  // more than converting them there.
+  static final int MIN_PARALLEL_PIXELS = 512 * 512;
+  // Rows per parallel band, as in the image resampler.
+  private static final int MIN_ROWS_PER_BAND = 16;
+
+  /** Rows of the input converted by one thread. */
+  private abstract static class Band implements Runnable {
+    final int width;
+    final int start;
+    final int end;
+    // The pixels of the current fill, set before the band runs.
+    int[] pixels;
+
+    Band(final int width, final int start, final int end) {
+      this.width = width;
+      this.start = start;
+      this.end = end;
+    }
+  }
+
+  private static final class QuantizedBand extends Band {
+    private final ByteBuffer view;
+    private final byte[] row;
+
+    QuantizedBand(final ByteBuffer input, final int width, final int start, final int end) {
+      super(width, start, end);
+      view = input.duplicate();
+      row = new byte[3 * width];
+    }
+
+    @Override
+    public void run() {
+      final int[] pixels = this.pixels;
+      final byte[] row = this.row;
+      view.position(3 * width * start);
+      for (int y = start; y < end; ++y) {
+        final int offset = y * width;
+        for (int x = 0, i = 0; x < width; ++x, i += 3) {
+          final int pixel = pixels[offset + x];
+          row[i] = (byte) (pixel >> 16);
+          row[i + 1] = (byte) (pixel >> 8);
+          row[i + 2] = (byte) pixel;
+        }
+        view.put(row);
+      }
+    }
+  }
+
+  private static final class FloatBand extends Band {
+    private final FloatBuffer view;
+    private final float[] row;
+    private final float[] table;
+
+    FloatBand(
+        final FloatBuffer input,
+        final float[] table,
+        final int width,
+        final int start,
+        final int end) {
+      super(width, start, end);
+      view = input.duplicate();
+      row = new float[3 * width];
+      this.table = table;
+    }
+
+    @Override
+    public void run() {
+      final int[] pixels = this.pixels;
+      final float[] row = this.row;
+      final float[] table = this.table;
+      view.position(3 * width * start);
+      for (int y = start; y < end; ++y) {
+        final int offset = y * width;
+        for (int x = 0, i = 0; x < width; ++x, i += 3) {
+          final int pixel = pixels[offset + x];
+          row[i] = table[(pixel >> 16) & 0xff];
+          row[i + 1] = table[(pixel >> 8) & 0xff];
+          row[i + 2] = table[pixel & 0xff];
+        }
+        view.put(row);
+      }
+    }
+  }
+
+  private final int width;
+  private final int height;
+  private final boolean quantized;
+  private final Band[] bands;
+  // Guarded by lock: the number of the current fill, the bands of it the workers have not finished
+  // yet, the first failure of one of them, and whether the workers are to stop.
+  private final Object lock = new Object();
+  private long fills;
+  private int pending;
+  private Throwable failure;
+  private boolean closed;
+
+  private InputKernel(
+      final int width, final int height, final boolean quantized, final Band[] bands) {
+    this.width = width;
+    this.height = height;
+    this.quantized = quantized;
+    this.bands = bands;
+    for (int b = 1; b < bands.length; ++b) {
+      final Band band = bands[b];
+      final Thread worker =
+          new Thread(
+              new Runnable() {
+                @Override
+                public void run() {
+                  work(band);
+                }
+              },
+              "InputKernel");
+      worker.setDaemon(true);
+      worker.start();
+    }
+  }
+
+  /** Runs the band once for every fill until the kernel is closed. */
+  private void work(final Band band) {
+    long done = 0;
+    while (true) {
+      synchronized (lock) {
+        try {
+          while (fills == done && !closed) {
+            lock.wait();
+          }
+        } catch (final InterruptedException e) {
+          return;
+        }
+        if (closed) {
+          return;
+        }
+        done = fills;
+      }
+      Throwable error = null;
+      try {
+        band.run();
+      } catch (final RuntimeException | Error e) {
+        error = e;
+      }
+      synchronized (lock) {
+        if (error != null && failure == null) {
+          failure = error;
+        }
+        if (--pending == 0) {
+          lock.notifyAll();
+        }
+      }
+    }
+  }
+
+  /**
+   * Creates the kernel for a model input.
+   *
+   * @param input The input tensor's buffer, in native byte order, with room for {@code width} by
+   *     {@code height} pixels of three bytes or three floats.
+   * @param quantized Whether the model takes bytes; mean and standard deviation only apply to
+   *     floats.
+   * @param threads At most this many threads fill inputs of {@link #MIN_PARALLEL_PIXELS} or more.
+   */
+  static InputKernel create(
+      final ByteBuffer input,
+      final int width,
+      final int height,
+      final boolean quantized,
+      final float mean,
+      final float std,
+      final int threads) {
+    final int bytes = 3 * width * height * (quantized ? 1 : 4);
+    if (input.capacity() < bytes) {
+      throw new IllegalArgumentException(
+          "Input buffer of " + input.capacity() + " bytes, " + bytes + " needed");
+    }
+    final int bandCount =
+        width * height < MIN_PARALLEL_PIXELS
+            ? 1
+            : Math.max(1, Math.min(threads, height / MIN_ROWS_PER_BAND));
+    final Band[] bands = new Band[bandCount];
+    if (quantized) {
+      for (int b = 0; b < bandCount; ++b) {
+        bands[b] =
+            new QuantizedBand(
+                input, width, height * b / bandCount, height * (b + 1) / bandCount);
+      }
+    } else {
+      final float[] table = new float[256];
+      for (int value = 0; value < table.length; ++value) {
+        table[value] = (value - mean) / std;
+      }
+      final FloatBuffer floats = input.asFloatBuffer();
+      for (int b = 0; b < bandCount; ++b) {
+        bands[b] =
+            new FloatBand(
+                floats, table, width, height * b / bandCount, height * (b + 1) / bandCount);
+      }
+    }
+    return new InputKernel(width, height, quantized, bands);
+  }
+
+  boolean isQuantized() {
+    return quantized;
+  }
+
+  /** Number of threads, the calling one included, that fill the input. */
+  int getThreads() {
+    return bands.length;
+  }
+
+  /**
+   * Converts the pixels into the input buffer, whose position and limit are left alone.
+   *
+   * @param pixels {@code width} by {@code height} ARGB pixels, row by row.
+   */
+  void fill(final int[] pixels) {
+    if (pixels.length < width * height) {
+      throw new IllegalArgumentException(
+          pixels.length + " pixels for a " + width + "x" + height + " input");
+    }
+    for (final Band band : bands) {
+      band.pixels = pixels;
+    }
+    if (bands.length > 1) {
+      synchronized (lock) {
+        if (closed) {
+          throw new IllegalStateException("Input kernel closed");
+        }
+        pending = bands.length - 1;
+        failure = null;
+        ++fills;
+        lock.notifyAll();
+      }
+    }
+    boolean interrupted = false;
+    final Throwable error;
+    try {
+      // The calling thread takes the first band instead of waiting idle.
+      bands[0].run();
+    } finally {
+      // The workers read the pixels until they are done, even if the first band failed.
+      synchronized (lock) {
+        while (pending > 0) {
+          try {
+            lock.wait();
+          } catch (final InterruptedException e) {
+            interrupted = true;
+          }
+        }
+        error = failure;
+        failure = null;
+      }
+      for (final Band band : bands) {
+        band.pixels = null;
+      }
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    if (error != null) {
+      throw new IllegalStateException("Filling the input failed", error);
+    }
+  }
+
+  /** Stops the worker threads; the kernel cannot fill inputs anymore. */
+  void close() {
+    synchronized (lock) {
+      closed = true;
+      lock.notifyAll();
+    }
+  }
+}
@@ -0,0 +1,150 @@
+package com.motiontracking.tflite;
+
+import org.tensorflow.lite.Interpreter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * An immutable set of {@link Interpreter} options. Configurations can be enumerated for a model,
+ * benchmarked against each other and persisted as a short string.
+ */
+public final class InterpreterConfig {
+  /** Options matching the interpreter setup used before configurations were tunable. */
+  public static final InterpreterConfig DEFAULT = new InterpreterConfig(4, false, false);
+
+  private static final int[] THREAD_COUNTS = {1, 2, 4};
+
+  private final int numThreads;
+  private final boolean useXnnpack;
+  private final boolean allowFp16;
+
+  public InterpreterConfig(final int numThreads, final boolean useXnnpack, final boolean allowFp16) {
+    if (numThreads < 1) {
+      throw new IllegalArgumentException("numThreads must be positive: " + numThreads);
+    }
+    this.numThreads = numThreads;
+    this.useXnnpack = useXnnpack;
+    this.allowFp16 = allowFp16;
+  }
+
+  public int getNumThreads() {
+    return numThreads;
+  }
+
+  public boolean isUseXnnpack() {
+    return useXnnpack;
+  }
+
+  public boolean isAllowFp16() {
+    return allowFp16;
+  }
+
+  /** Returns this configuration with the thread count capped at {@code maxThreads}. */
+  public InterpreterConfig withMaxThreads(final int maxThreads) {
+    if (numThreads <= maxThreads) {
+      return this;
+    }
+    return new InterpreterConfig(Math.max(1, maxThreads), useXnnpack, allowFp16);
+  }
+
+  /**
+   * Builds interpreter options for this configuration. Options the linked runtime does not know
+   * about are skipped, so the result may be less specific than requested.
+   */
+  public Interpreter.Options toOptions() {
+    final Interpreter.Options options = new Interpreter.Options();
+    options.setNumThreads(numThreads);
+    try {
+      options.setUseXNNPACK(useXnnpack);
+    } catch (final NoSuchMethodError e) {
+      // Older runtimes have no XNNPACK switch and always use the default CPU kernels.
+    }
+    if (allowFp16) {
+      allowFp16(options);
+    }
+    return options;
+  }
+
+  // Deprecated in favor of delegate options, but still the only CPU switch for FP16 in this runtime.
+  @SuppressWarnings("deprecation")
+  private static void allowFp16(final Interpreter.Options options) {
+    options.setAllowFp16PrecisionForFp32(true);
+  }
+
+  /**
+   * Enumerates the configurations worth benchmarking for a model. FP16 relaxation only matters for
+   * float models, so it is never combined with a quantized one.
+   *
+   * @param isQuantized Whether the model runs on quantized inputs.
+   * @param availableCores Number of cores the interpreter may use.
+   */
+  public static List<InterpreterConfig> candidates(
+      final boolean isQuantized, final int availableCores) {
+    final List<Integer> threadCounts = new ArrayList<>();
+    for (final int threads : THREAD_COUNTS) {
+      if (threads <= availableCores) {
+        threadCounts.add(threads);
+      }
+    }
+    if (!threadCounts.contains(availableCores) && availableCores > 0) {
+      threadCounts.add(availableCores);
+    }
+
+    final List<InterpreterConfig> candidates = new ArrayList<>();
+    for (final int threads : threadCounts) {
+      for (final boolean xnnpack : new boolean[] {false, true}) {
+        candidates.add(new InterpreterConfig(threads, xnnpack, false));
+        if (!isQuantized) {
+          candidates.add(new InterpreterConfig(threads, xnnpack, true));
+        }
+      }
+    }
+    return candidates;
+  }
+
+  /** Encodes this configuration so that it can be restored with {@link #decode(String)}. */
+  public String encode() {
+    return String.format(Locale.ENGLISH, "%d;%b;%b", numThreads, useXnnpack, allowFp16);
+  }
+
+  /** Restores a configuration written by {@link #encode()}, or returns null if it is malformed. */
+  public static InterpreterConfig decode(final String encoded) {
+    if (encoded == null) {
+      return null;
+    }
+    final String[] parts = encoded.split(";");
+    if (parts.length != 3) {
+      return null;
+    }
+    try {
+      return new InterpreterConfig(
+          Integer.parseInt(parts[0]), Boolean.parseBoolean(parts[1]), Boolean.parseBoolean(parts[2]));
+    } catch (final IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  @Override
+  public boolean equals(final Object o) {
+    if (!(o instanceof InterpreterConfig)) {
+      return false;
+    }
+    final InterpreterConfig other = (InterpreterConfig) o;
+    return numThreads == other.numThreads
+        && useXnnpack == other.useXnnpack
+        && allowFp16 == other.allowFp16;
+  }
+
+  @Override
+  public int hashCode() {
+    return (numThreads * 31 + (useXnnpack ? 1 : 0)) * 31 + (allowFp16 ? 1 : 0);
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        Locale.ENGLISH, "threads=%d xnnpack=%b fp16=%b", numThreads, useXnnpack, allowFp16);
+  }
+}
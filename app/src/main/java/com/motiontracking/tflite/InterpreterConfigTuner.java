@@ -0,0 +1,131 @@
+package com.motiontracking.tflite;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.graphics.Bitmap;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+/**
+ * Picks the fastest {@link InterpreterConfig} for a model on the current device. The first launch
+ * runs a short calibration benchmark over all candidate configurations; the winner is stored in
+ * shared preferences, keyed by device and model hash, and reused on later starts.
+ */
+public class InterpreterConfigTuner {
+  private static final String TAG = InterpreterConfigTuner.class.getSimpleName();
+  private static final String PREFERENCES_NAME = "interpreter_config";
+
+  private static final int WARMUP_RUNS = 2;
+  private static final int TIMED_RUNS = 5;
+
+  private final Context context;
+
+  public InterpreterConfigTuner(final Context context) {
+    this.context = context.getApplicationContext();
+  }
+
+  /** Returns the stored configuration for the model, calibrating one first if there is none. */
+  public InterpreterConfig select(final ModelSpec spec) throws IOException {
+    final SharedPreferences preferences =
+        context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    final String key = preferenceKey(spec.getModelFile());
+
+    final InterpreterConfig stored = InterpreterConfig.decode(preferences.getString(key, null));
+    if (stored != null) {
+      return stored;
+    }
+
+    final InterpreterConfig best = calibrate(spec);
+    preferences.edit().putString(key, best.encode()).apply();
+    return best;
+  }
+
+  /** Forgets the stored configuration so that the next {@link #select} calibrates again. */
+  public void reset(final String modelFilename) throws IOException {
+    context
+        .getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE)
+        .edit()
+        .remove(preferenceKey(modelFilename))
+        .apply();
+  }
+
+  private InterpreterConfig calibrate(final ModelSpec spec) throws IOException {
+    final List<InterpreterConfig> candidates =
+        InterpreterConfig.candidates(
+            spec.isQuantized(), Runtime.getRuntime().availableProcessors());
+    final Bitmap input =
+        Bitmap.createBitmap(
+            spec.getInputWidth(), spec.getInputHeight(), Bitmap.Config.ARGB_8888);
+
+    InterpreterConfig best = InterpreterConfig.DEFAULT;
+    long bestNanos = Long.MAX_VALUE;
+    for (final InterpreterConfig candidate : candidates) {
+      final long nanos;
+      try {
+        nanos = benchmark(candidate, spec, input);
+      } catch (final RuntimeException | LinkageError e) {
+        Log.w(TAG, "Skipping unsupported configuration " + candidate, e);
+        continue;
+      }
+      Log.d(TAG, String.format(Locale.ENGLISH, "%s: %.2f ms", candidate, nanos / 1e6));
+      if (nanos < bestNanos) {
+        bestNanos = nanos;
+        best = candidate;
+      }
+    }
+    input.recycle();
+    Log.i(TAG, "Selected " + best + " for " + spec);
+    return best;
+  }
+
+  /** Returns the median inference time of the configuration in nanoseconds. */
+  private long benchmark(
+      final InterpreterConfig config, final ModelSpec spec, final Bitmap input)
+      throws IOException {
+    final Classifier detector =
+        TFLiteObjectDetectionAPIModel.create(context.getAssets(), spec, config);
+    try {
+      for (int i = 0; i < WARMUP_RUNS; ++i) {
+        detector.recognizeImage(input);
+      }
+      final long[] timings = new long[TIMED_RUNS];
+      for (int i = 0; i < TIMED_RUNS; ++i) {
+        final long start = SystemClock.elapsedRealtimeNanos();
+        detector.recognizeImage(input);
+        timings[i] = SystemClock.elapsedRealtimeNanos() - start;
+      }
+      Arrays.sort(timings);
+      return timings[TIMED_RUNS / 2];
+    } finally {
+      detector.close();
+    }
+  }
+
+  private String preferenceKey(final String modelFilename) throws IOException {
+    final MappedByteBuffer model =
+        TFLiteObjectDetectionAPIModel.loadModelFile(context.getAssets(), modelFilename);
+    final CRC32 crc = new CRC32();
+    final byte[] chunk = new byte[64 * 1024];
+    while (model.hasRemaining()) {
+      final int length = Math.min(chunk.length, model.remaining());
+      model.get(chunk, 0, length);
+      crc.update(chunk, 0, length);
+    }
+    return String.format(
+        Locale.ENGLISH,
+        "%s/%s/%d/%s/%08x",
+        Build.MANUFACTURER,
+        Build.MODEL,
+        Build.VERSION.SDK_INT,
+        modelFilename,
+        crc.getValue());
+  }
+}
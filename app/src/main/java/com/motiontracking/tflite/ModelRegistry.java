@@ -0,0 +1,117 @@
+package com.motiontracking.tflite;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The set of detection models the pipeline can run. The bundled {@code models.json} asset is read
+ * first; a {@code models.json} in the app's external files directory, if present, adds models or
+ * replaces them by name and may choose different primary and secondary models, so deployments can
+ * trade latency for accuracy without rebuilding the APK.
+ *
+ * <p>Registry files look like:
+ *
+ * <pre>
+ * {
+ *   "primary": "ssd_mobilenet_v1",
+ *   "secondary": null,
+ *   "models": [ { "name": "ssd_mobilenet_v1", "model": "detect.tflite", ... } ]
+ * }
+ * </pre>
+ *
+ * See {@link ModelSpec#fromJson} for the per-model fields.
+ */
+public class ModelRegistry {
+  private static final String TAG = ModelRegistry.class.getSimpleName();
+  private static final String REGISTRY_FILE = "models.json";
+
+  private final Map<String, ModelSpec> models = new LinkedHashMap<>();
+  private String primaryName;
+  private String secondaryName;
+
+  private ModelRegistry() {}
+
+  /** Loads the bundled registry and applies the external overrides, if any. */
+  public static ModelRegistry load(final Context context) throws IOException {
+    final ModelRegistry registry = new ModelRegistry();
+    try {
+      registry.merge(readJson(context.getAssets().open(REGISTRY_FILE)));
+
+      final File externalDir = context.getExternalFilesDir(null);
+      final File override = externalDir != null ? new File(externalDir, REGISTRY_FILE) : null;
+      if (override != null && override.isFile()) {
+        Log.i(TAG, "Applying model registry overrides from " + override);
+        registry.merge(readJson(new FileInputStream(override)));
+      }
+    } catch (final JSONException e) {
+      throw new IOException("Malformed model registry", e);
+    }
+
+    if (registry.getPrimary() == null) {
+      throw new IOException("Model registry names no known primary model");
+    }
+    return registry;
+  }
+
+  private void merge(final JSONObject json) throws JSONException {
+    final JSONArray entries = json.optJSONArray("models");
+    if (entries != null) {
+      for (int i = 0; i < entries.length(); ++i) {
+        final ModelSpec spec = ModelSpec.fromJson(entries.getJSONObject(i));
+        models.put(spec.getName(), spec);
+      }
+    }
+    if (json.has("primary")) {
+      primaryName = json.isNull("primary") ? null : json.getString("primary");
+    }
+    if (json.has("secondary")) {
+      secondaryName = json.isNull("secondary") ? null : json.getString("secondary");
+    }
+  }
+
+  private static JSONObject readJson(final InputStream input) throws IOException, JSONException {
+    final StringBuilder content = new StringBuilder();
+    try (BufferedReader reader = new BufferedReader(new InputStreamReader(input, "UTF-8"))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        content.append(line).append('\n');
+      }
+    }
+    return new JSONObject(content.toString());
+  }
+
+  /** Returns the model with the given name, or null if it is not registered. */
+  public ModelSpec get(final String name) {
+    return name == null ? null : models.get(name);
+  }
+
+  /** The model run on every frame the pipeline accepts. */
+  public ModelSpec getPrimary() {
+    return get(primaryName);
+  }
+
+  /** An optional second model run alongside the primary one on its own thread, or null. */
+  public ModelSpec getSecondary() {
+    return get(secondaryName);
+  }
+
+  public List<String> getNames() {
+    return Collections.unmodifiableList(new ArrayList<>(models.keySet()));
+  }
+}
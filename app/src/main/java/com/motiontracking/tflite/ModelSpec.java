@@ -0,0 +1,248 @@
+package com.motiontracking.tflite;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Describes a detection model: where to load it from, the shape and type of its input, how pixels
+ * are normalized and how its outputs are laid out.
+ */
+public final class ModelSpec {
+  /** How the detection outputs of a model are arranged. */
+  public enum OutputLayout {
+    /** Boxes, classes, scores and count produced by the TFLite detection post-processing op. */
+    POSTPROCESSED,
+    /** Box encodings and class scores per anchor, decoded by {@link SsdAnchorDecoder}. */
+    RAW
+  }
+
+  /** How to decode the outputs of a {@link OutputLayout#RAW} model. */
+  public static final class RawOutput {
+    private final String anchorsFile;
+    private final int backgroundClasses;
+    private final boolean scoresAreLogits;
+    private final float iouThreshold;
+    private final int maxPerClass;
+
+    /**
+     * @param anchorsFile Anchor file, see {@link SsdAnchorDecoder#readAnchors}, or null for the SSD
+     *     MobileNet v1 anchors.
+     * @param backgroundClasses Number of leading background score columns.
+     * @param scoresAreLogits Whether scores still have to go through a sigmoid.
+     * @param iouThreshold Intersection over union from which on non-maximum suppression drops a box.
+     * @param maxPerClass Maximum number of boxes kept per class.
+     */
+    public RawOutput(
+        final String anchorsFile,
+        final int backgroundClasses,
+        final boolean scoresAreLogits,
+        final float iouThreshold,
+        final int maxPerClass) {
+      this.anchorsFile = anchorsFile;
+      this.backgroundClasses = backgroundClasses;
+      this.scoresAreLogits = scoresAreLogits;
+      this.iouThreshold = iouThreshold;
+      this.maxPerClass = maxPerClass;
+    }
+
+    static RawOutput fromJson(final JSONObject json) {
+      return new RawOutput(
+          json.isNull("anchors") ? null : json.optString("anchors", null),
+          json.optInt("backgroundClasses", 1),
+          json.optBoolean("scoresAreLogits", true),
+          (float) json.optDouble("iouThreshold", 0.6),
+          json.optInt("maxPerClass", 100));
+    }
+
+    public String getAnchorsFile() {
+      return anchorsFile;
+    }
+
+    public int getBackgroundClasses() {
+      return backgroundClasses;
+    }
+
+    public boolean isScoresAreLogits() {
+      return scoresAreLogits;
+    }
+
+    public float getIouThreshold() {
+      return iouThreshold;
+    }
+
+    public int getMaxPerClass() {
+      return maxPerClass;
+    }
+  }
+
+  private final String name;
+  private final String modelFile;
+  private final String labelFile;
+  private final int inputWidth;
+  private final int inputHeight;
+  private final boolean quantized;
+  private final float imageMean;
+  private final float imageStd;
+  private final int labelOffset;
+  private final OutputLayout outputLayout;
+  private final RawOutput rawOutput;
+  private final int maxDetections;
+  private final float minimumConfidence;
+  private final Map<String, Float> classThresholds;
+
+  public ModelSpec(
+      final String name,
+      final String modelFile,
+      final String labelFile,
+      final int inputWidth,
+      final int inputHeight,
+      final boolean quantized,
+      final float imageMean,
+      final float imageStd,
+      final int labelOffset,
+      final OutputLayout outputLayout,
+      final RawOutput rawOutput,
+      final int maxDetections,
+      final float minimumConfidence,
+      final Map<String, Float> classThresholds) {
+    if (inputWidth <= 0 || inputHeight <= 0) {
+      throw new IllegalArgumentException(
+          String.format(Locale.ENGLISH, "Invalid input size %dx%d", inputWidth, inputHeight));
+    }
+    if (outputLayout == OutputLayout.RAW && rawOutput == null) {
+      throw new IllegalArgumentException("Raw output models need decoding parameters");
+    }
+    this.name = name;
+    this.modelFile = modelFile;
+    this.labelFile = labelFile;
+    this.inputWidth = inputWidth;
+    this.inputHeight = inputHeight;
+    this.quantized = quantized;
+    this.imageMean = imageMean;
+    this.imageStd = imageStd;
+    this.labelOffset = labelOffset;
+    this.outputLayout = outputLayout;
+    this.rawOutput = rawOutput;
+    this.maxDetections = maxDetections;
+    this.minimumConfidence = minimumConfidence;
+    this.classThresholds = Collections.unmodifiableMap(new HashMap<>(classThresholds));
+  }
+
+  /**
+   * Reads a model description from the registry format. Only name, model and labels are required,
+   * the remaining fields default to the values of the bundled quantized SSD model.
+   */
+  public static ModelSpec fromJson(final JSONObject json) throws JSONException {
+    final int inputSize = json.optInt("inputSize", 300);
+    final JSONObject raw = json.optJSONObject("rawOutput");
+    final Map<String, Float> classThresholds = new HashMap<>();
+    final JSONObject thresholds = json.optJSONObject("classThresholds");
+    if (thresholds != null) {
+      final Iterator<String> labels = thresholds.keys();
+      while (labels.hasNext()) {
+        final String label = labels.next();
+        classThresholds.put(label, (float) thresholds.getDouble(label));
+      }
+    }
+    return new ModelSpec(
+        json.getString("name"),
+        json.getString("model"),
+        json.getString("labels"),
+        json.optInt("inputWidth", inputSize),
+        json.optInt("inputHeight", inputSize),
+        json.optBoolean("quantized", true),
+        (float) json.optDouble("imageMean", 128.0),
+        (float) json.optDouble("imageStd", 128.0),
+        json.optInt("labelOffset", 1),
+        OutputLayout.valueOf(json.optString("outputLayout", OutputLayout.POSTPROCESSED.name())),
+        raw != null ? RawOutput.fromJson(raw) : null,
+        json.optInt("maxDetections", 10),
+        (float) json.optDouble("minimumConfidence", 0.5),
+        classThresholds);
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public String getModelFile() {
+    return modelFile;
+  }
+
+  public String getLabelFile() {
+    return labelFile;
+  }
+
+  public int getInputWidth() {
+    return inputWidth;
+  }
+
+  public int getInputHeight() {
+    return inputHeight;
+  }
+
+  public boolean isQuantized() {
+    return quantized;
+  }
+
+  public float getImageMean() {
+    return imageMean;
+  }
+
+  public float getImageStd() {
+    return imageStd;
+  }
+
+  /** Size of the input tensor: three bytes per pixel for quantized models, three floats else. */
+  public int getInputBytes() {
+    return 3 * inputWidth * inputHeight * (quantized ? 1 : 4);
+  }
+
+  /** Offset between the class index reported by the model and its line in the label file. */
+  public int getLabelOffset() {
+    return labelOffset;
+  }
+
+  public OutputLayout getOutputLayout() {
+    return outputLayout;
+  }
+
+  /** Decoding parameters of a {@link OutputLayout#RAW} model, null for other layouts. */
+  public RawOutput getRawOutput() {
+    return rawOutput;
+  }
+
+  /** Maximum number of detections returned per frame. */
+  public int getMaxDetections() {
+    return maxDetections;
+  }
+
+  /** Minimum detection confidence to track a detection of this model. */
+  public float getMinimumConfidence() {
+    return minimumConfidence;
+  }
+
+  /** Minimum detection confidence for a label, {@link #getMinimumConfidence()} unless overridden. */
+  public float getMinimumConfidence(final String label) {
+    final Float threshold = classThresholds.get(label);
+    return threshold != null ? threshold : minimumConfidence;
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        Locale.ENGLISH,
+        "%s (%s, %dx%d, %s)",
+        name,
+        modelFile,
+        inputWidth,
+        inputHeight,
+        quantized ? "quantized" : "float");
+  }
+}
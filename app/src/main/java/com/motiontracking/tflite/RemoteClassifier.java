@@ -0,0 +1,139 @@
+package com.motiontracking.tflite;
+
+import android.graphics.Bitmap;
+import android.graphics.RectF;
+import android.util.Log;
+
+import com.motiontracking.network.InferenceClient;
+import com.motiontracking.network.InferenceServer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Recognizes images with a model served by an {@link InferenceServer}, so a pipeline can switch
+ * between running its own model and sharing one with other processes. Images are converted to the
+ * served model's input here, with the same kernels as a model of its own, and only the tensor is
+ * sent.
+ *
+ * <p>The server's model applies its own class filter; the filter set here narrows the results down
+ * further. If the connection fails, recognition returns no results and {@link #isConnected()}
+ * turns false, and the caller can connect a new classifier.
+ */
+public class RemoteClassifier implements Classifier {
+  private static final String TAG = RemoteClassifier.class.getSimpleName();
+
+  private final InferenceClient client;
+  private final ModelSpec spec;
+  private final List<String> labels;
+  private final int[] intValues;
+  private final ByteBuffer imgData;
+  private final InputKernel inputKernel;
+  private final Detections detections;
+  private volatile ClassFilter classFilter;
+  private volatile boolean connected = true;
+
+  private RemoteClassifier(final InferenceClient client, final int threads) {
+    this.client = client;
+    spec = client.getSpec();
+    labels = client.getLabels();
+    classFilter = ClassFilter.all(labels.size(), 0);
+    intValues = new int[spec.getInputWidth() * spec.getInputHeight()];
+    imgData = ByteBuffer.allocateDirect(spec.getInputBytes()).order(ByteOrder.nativeOrder());
+    inputKernel =
+        InputKernel.create(
+            imgData,
+            spec.getInputWidth(),
+            spec.getInputHeight(),
+            spec.isQuantized(),
+            spec.getImageMean(),
+            spec.getImageStd(),
+            threads);
+    detections = new Detections(spec.getMaxDetections());
+  }
+
+  /**
+   * Connects to a server, usually on the loopback address. Must not be called on the main thread.
+   *
+   * @param threads Threads that convert large images to the model's input.
+   */
+  public static RemoteClassifier connect(final String host, final int port, final int threads)
+      throws IOException {
+    return new RemoteClassifier(new InferenceClient(host, port), threads);
+  }
+
+  /** The served model; images are recognized at its input size. */
+  public ModelSpec getSpec() {
+    return spec;
+  }
+
+  /** False once a request failed; the classifier then returns no results. */
+  public boolean isConnected() {
+    return connected;
+  }
+
+  @Override
+  public List<String> getLabels() {
+    return labels;
+  }
+
+  @Override
+  public void setClassFilter(final ClassFilter filter) {
+    classFilter = filter;
+  }
+
+  @Override
+  public List<Recognition> recognizeImage(final Bitmap bitmap) {
+    if (!connected) {
+      return Collections.emptyList();
+    }
+    bitmap.getPixels(intValues, 0, bitmap.getWidth(), 0, 0, bitmap.getWidth(), bitmap.getHeight());
+    inputKernel.fill(intValues);
+    imgData.rewind();
+    try {
+      client.detect(imgData, detections);
+    } catch (final IOException e) {
+      Log.e(TAG, "Served inference failed", e);
+      connected = false;
+      return Collections.emptyList();
+    }
+
+    final ClassFilter filter = classFilter;
+    final int labelOffset = spec.getLabelOffset();
+    final int inputWidth = spec.getInputWidth();
+    final int inputHeight = spec.getInputHeight();
+    final ArrayList<Recognition> recognitions = new ArrayList<>(detections.size());
+    for (int i = 0; i < detections.size(); ++i) {
+      final int labelIndex = detections.getClassIndex(i) + labelOffset;
+      if (!filter.accepts(labelIndex, detections.getScore(i))) {
+        continue;
+      }
+      recognitions.add(
+          new Recognition(
+              "" + i,
+              labels.get(labelIndex),
+              detections.getScore(i),
+              new RectF(
+                  detections.getLeft(i) * inputWidth,
+                  detections.getTop(i) * inputHeight,
+                  detections.getRight(i) * inputWidth,
+                  detections.getBottom(i) * inputHeight)));
+    }
+    return recognitions;
+  }
+
+  @Override
+  public void close() {
+    connected = false;
+    try {
+      client.close();
+    } catch (final IOException e) {
+      Log.w(TAG, "Connection could not be closed", e);
+    }
+    inputKernel.close();
+  }
+}
@@ -0,0 +1,398 @@
+package com.motiontracking.tflite;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.Arrays;
+
+/**
+ * Turns the raw outputs of an SSD model, box encodings relative to a fixed set of anchors and one
+ * score per anchor and class, into a list of detections. This replaces the TFLite detection
+ * post-processing op for models exported without it.
+ *
+ * <p>All work happens on flat primitive arrays that are reused between frames. Disabled classes are
+ * not looked at at all, the scores of the others are compared against per-class thresholds before
+ * anything else, in logit space for models that output logits, so that only the few surviving
+ * candidates pay for the sigmoid, the box decoding and the non-maximum suppression.
+ */
+public class SsdAnchorDecoder {
+  // Box coder scales of the TensorFlow Object Detection API SSD models.
+  private static final float Y_SCALE = 10.0f;
+  private static final float X_SCALE = 10.0f;
+  private static final float H_SCALE = 5.0f;
+  private static final float W_SCALE = 5.0f;
+
+  private final int numAnchors;
+  private final float[] anchorCy;
+  private final float[] anchorCx;
+  private final float[] anchorH;
+  private final float[] anchorW;
+  private final int numColumns;
+  private final int backgroundClasses;
+  private final boolean scoresAreLogits;
+  private final float iouThreshold;
+  private final int maxPerClass;
+  private final int maxDetections;
+
+  // Reused scratch space.
+  private final float[] columnThresholds;
+  private final int[] activeColumns;
+  private int[] candidateAnchors = new int[256];
+  private int[] candidateClasses = new int[256];
+  private float[] candidateScores = new float[256];
+  private final int[] classOffsets;
+  private final int[] classFill;
+  private long[] sortKeys = new long[256];
+  private int[] segment = new int[256];
+  private final float[] keptBoxes;
+  private final float[] keptAreas;
+  private final float[] resultBoxes;
+  private final int[] resultClasses;
+  private final float[] resultScores;
+  private final long[] resultKeys;
+
+  /**
+   * @param anchors Anchors as consecutive {@code cy, cx, h, w} quadruples in normalized coordinates.
+   * @param numColumns Number of score columns per anchor, including background columns.
+   * @param backgroundClasses Number of leading background columns, which are never reported.
+   * @param scoresAreLogits Whether scores have to go through a sigmoid to become probabilities.
+   * @param iouThreshold Intersection over union from which on a box suppresses a weaker one.
+   * @param maxPerClass Maximum number of boxes kept per class.
+   * @param maxDetections Maximum number of detections returned, over all classes.
+   */
+  public SsdAnchorDecoder(
+      final float[] anchors,
+      final int numColumns,
+      final int backgroundClasses,
+      final boolean scoresAreLogits,
+      final float iouThreshold,
+      final int maxPerClass,
+      final int maxDetections) {
+    if (anchors.length % 4 != 0) {
+      throw new IllegalArgumentException("Anchors must come in cy, cx, h, w quadruples");
+    }
+    numAnchors = anchors.length / 4;
+    anchorCy = new float[numAnchors];
+    anchorCx = new float[numAnchors];
+    anchorH = new float[numAnchors];
+    anchorW = new float[numAnchors];
+    for (int i = 0; i < numAnchors; ++i) {
+      anchorCy[i] = anchors[4 * i];
+      anchorCx[i] = anchors[4 * i + 1];
+      anchorH[i] = anchors[4 * i + 2];
+      anchorW[i] = anchors[4 * i + 3];
+    }
+    this.numColumns = numColumns;
+    this.backgroundClasses = backgroundClasses;
+    this.scoresAreLogits = scoresAreLogits;
+    this.iouThreshold = iouThreshold;
+    this.maxPerClass = maxPerClass;
+    this.maxDetections = maxDetections;
+
+    columnThresholds = new float[numColumns];
+    activeColumns = new int[numColumns];
+    classOffsets = new int[numColumns + 1];
+    classFill = new int[numColumns];
+    keptBoxes = new float[4 * maxPerClass];
+    keptAreas = new float[maxPerClass];
+    final int maxKept = maxPerClass * (numColumns - backgroundClasses);
+    resultBoxes = new float[4 * maxKept];
+    resultClasses = new int[maxKept];
+    resultScores = new float[maxKept];
+    resultKeys = new long[maxKept];
+  }
+
+  public int getNumAnchors() {
+    return numAnchors;
+  }
+
+  public int getNumClasses() {
+    return numColumns - backgroundClasses;
+  }
+
+  /**
+   * Decodes one frame.
+   *
+   * @param boxEncodings {@code ty, tx, th, tw} per anchor.
+   * @param scores {@code numColumns} scores per anchor.
+   * @param classThresholds Minimum score per class, background excluded. Classes with a threshold
+   *     above 1 are disabled and skipped entirely.
+   * @param out Receives at most {@code maxDetections} detections, sorted by decreasing score, with
+   *     boxes in normalized {@code top, left, bottom, right} coordinates.
+   */
+  public void decode(
+      final float[] boxEncodings,
+      final float[] scores,
+      final float[] classThresholds,
+      final Detections out) {
+    out.clear();
+    int active = 0;
+    for (int c = backgroundClasses; c < numColumns; ++c) {
+      final float threshold = classThresholds[c - backgroundClasses];
+      if (threshold <= 1) {
+        columnThresholds[c] = toScoreSpace(threshold);
+        activeColumns[active++] = c;
+      }
+    }
+
+    // Early pruning: one comparison per score of an enabled class, in the model's score space.
+    int candidates = 0;
+    for (int i = 0, base = 0; i < numAnchors; ++i, base += numColumns) {
+      for (int a = 0; a < active; ++a) {
+        final int c = activeColumns[a];
+        final float score = scores[base + c];
+        if (score > columnThresholds[c]) {
+          if (candidates == candidateAnchors.length) {
+            growCandidates();
+          }
+          candidateAnchors[candidates] = i;
+          candidateClasses[candidates] = c - backgroundClasses;
+          candidateScores[candidates] = scoresAreLogits ? sigmoid(score) : score;
+          ++candidates;
+        }
+      }
+    }
+    if (candidates == 0) {
+      return;
+    }
+
+    // Group candidates by class with a counting sort.
+    final int numClasses = numColumns - backgroundClasses;
+    Arrays.fill(classOffsets, 0);
+    for (int k = 0; k < candidates; ++k) {
+      ++classOffsets[candidateClasses[k] + 1];
+    }
+    for (int c = 0; c < numClasses; ++c) {
+      classOffsets[c + 1] += classOffsets[c];
+    }
+    if (segment.length < candidates) {
+      segment = new int[candidates];
+      sortKeys = new long[candidates];
+    }
+    System.arraycopy(classOffsets, 0, classFill, 0, numClasses);
+    for (int k = 0; k < candidates; ++k) {
+      segment[classFill[candidateClasses[k]]++] = k;
+    }
+
+    int kept = 0;
+    for (int c = 0; c < numClasses; ++c) {
+      final int from = classOffsets[c];
+      final int to = classOffsets[c + 1];
+      if (from != to) {
+        kept = suppress(c, from, to, boxEncodings, kept);
+      }
+    }
+
+    // Best detections over all classes.
+    for (int k = 0; k < kept; ++k) {
+      resultKeys[k] = descendingKey(resultScores[k], k);
+    }
+    Arrays.sort(resultKeys, 0, kept);
+    final int count = Math.min(kept, Math.min(maxDetections, out.capacity()));
+    for (int n = 0; n < count; ++n) {
+      final int k = (int) resultKeys[n];
+      out.add(
+          resultBoxes[4 * k],
+          resultBoxes[4 * k + 1],
+          resultBoxes[4 * k + 2],
+          resultBoxes[4 * k + 3],
+          resultClasses[k],
+          resultScores[k]);
+    }
+  }
+
+  /** Greedy non-maximum suppression over the candidates of one class. */
+  private int suppress(
+      final int classIndex,
+      final int from,
+      final int to,
+      final float[] boxEncodings,
+      int kept) {
+    final int n = to - from;
+    for (int j = 0; j < n; ++j) {
+      final int k = segment[from + j];
+      sortKeys[j] = descendingKey(candidateScores[k], k);
+    }
+    Arrays.sort(sortKeys, 0, n);
+
+    int keptInClass = 0;
+    for (int j = 0; j < n && keptInClass < maxPerClass; ++j) {
+      final int k = (int) sortKeys[j];
+      final int anchor = candidateAnchors[k];
+      final int e = 4 * anchor;
+      final float cy = boxEncodings[e] / Y_SCALE * anchorH[anchor] + anchorCy[anchor];
+      final float cx = boxEncodings[e + 1] / X_SCALE * anchorW[anchor] + anchorCx[anchor];
+      final float halfH = (float) Math.exp(boxEncodings[e + 2] / H_SCALE) * anchorH[anchor] / 2;
+      final float halfW = (float) Math.exp(boxEncodings[e + 3] / W_SCALE) * anchorW[anchor] / 2;
+      final float top = cy - halfH;
+      final float left = cx - halfW;
+      final float bottom = cy + halfH;
+      final float right = cx + halfW;
+      final float area = (bottom - top) * (right - left);
+
+      boolean suppressed = false;
+      for (int m = 0; m < keptInClass && !suppressed; ++m) {
+        final int b = 4 * m;
+        final float h = Math.min(bottom, keptBoxes[b + 2]) - Math.max(top, keptBoxes[b]);
+        final float w = Math.min(right, keptBoxes[b + 3]) - Math.max(left, keptBoxes[b + 1]);
+        if (h > 0 && w > 0) {
+          final float intersection = h * w;
+          suppressed = intersection > iouThreshold * (area + keptAreas[m] - intersection);
+        }
+      }
+      if (suppressed) {
+        continue;
+      }
+
+      final int b = 4 * keptInClass;
+      keptBoxes[b] = top;
+      keptBoxes[b + 1] = left;
+      keptBoxes[b + 2] = bottom;
+      keptBoxes[b + 3] = right;
+      keptAreas[keptInClass] = area;
+      ++keptInClass;
+
+      final int r = 4 * kept;
+      resultBoxes[r] = top;
+      resultBoxes[r + 1] = left;
+      resultBoxes[r + 2] = bottom;
+      resultBoxes[r + 3] = right;
+      resultClasses[kept] = classIndex;
+      resultScores[kept] = candidateScores[k];
+      ++kept;
+    }
+    return kept;
+  }
+
+  /** Sort key ordering by decreasing non-negative score, carrying the index in the low bits. */
+  private static long descendingKey(final float score, final int index) {
+    final int bits = Float.floatToIntBits(Math.max(score, 0.0f));
+    return ((long) (Integer.MAX_VALUE - bits) << 32) | index;
+  }
+
+  private float toScoreSpace(final float probability) {
+    if (!scoresAreLogits) {
+      return probability;
+    }
+    if (probability <= 0) {
+      return Float.NEGATIVE_INFINITY;
+    }
+    if (probability >= 1) {
+      return Float.POSITIVE_INFINITY;
+    }
+    return (float) Math.log(probability / (1 - probability));
+  }
+
+  private static float sigmoid(final float logit) {
+    return (float) (1.0 / (1.0 + Math.exp(-logit)));
+  }
+
+  private void growCandidates() {
+    final int size = 2 * candidateAnchors.length;
+    candidateAnchors = Arrays.copyOf(candidateAnchors, size);
+    candidateClasses = Arrays.copyOf(candidateClasses, size);
+    candidateScores = Arrays.copyOf(candidateScores, size);
+  }
+
+  /**
+   * Generates the anchors of the TensorFlow Object Detection API {@code ssd_anchor_generator} with
+   * {@code reduce_boxes_in_lowest_layer} and one interpolated scale per layer, as used by the SSD
+   * MobileNet models.
+   *
+   * @param featureMapSizes Width and height of each (square) feature map, from the lowest layer up.
+   * @param minScale Anchor scale of the lowest layer.
+   * @param maxScale Anchor scale of the highest layer.
+   * @param aspectRatios Aspect ratios of the anchors on all but the lowest layer.
+   * @return Anchors as consecutive {@code cy, cx, h, w} quadruples.
+   */
+  public static float[] generateAnchors(
+      final int[] featureMapSizes,
+      final float minScale,
+      final float maxScale,
+      final float[] aspectRatios) {
+    final int layers = featureMapSizes.length;
+    final float[] scales = new float[layers + 1];
+    for (int i = 0; i < layers; ++i) {
+      scales[i] = layers == 1 ? minScale : minScale + (maxScale - minScale) * i / (layers - 1);
+    }
+    scales[layers] = 1.0f;
+
+    int total = 0;
+    for (int l = 0; l < layers; ++l) {
+      final int boxes = l == 0 ? 3 : aspectRatios.length + 1;
+      total += featureMapSizes[l] * featureMapSizes[l] * boxes;
+    }
+
+    final float[] anchors = new float[4 * total];
+    int a = 0;
+    for (int l = 0; l < layers; ++l) {
+      final float[] boxScales;
+      final float[] boxRatios;
+      if (l == 0) {
+        boxScales = new float[] {0.1f, scales[0], scales[0]};
+        boxRatios = new float[] {1.0f, 2.0f, 0.5f};
+      } else {
+        boxScales = new float[aspectRatios.length + 1];
+        boxRatios = new float[aspectRatios.length + 1];
+        for (int r = 0; r < aspectRatios.length; ++r) {
+          boxScales[r] = scales[l];
+          boxRatios[r] = aspectRatios[r];
+        }
+        boxScales[aspectRatios.length] = (float) Math.sqrt(scales[l] * scales[l + 1]);
+        boxRatios[aspectRatios.length] = 1.0f;
+      }
+
+      final int size = featureMapSizes[l];
+      for (int y = 0; y < size; ++y) {
+        for (int x = 0; x < size; ++x) {
+          for (int b = 0; b < boxScales.length; ++b) {
+            final float ratio = (float) Math.sqrt(boxRatios[b]);
+            anchors[a++] = (y + 0.5f) / size;
+            anchors[a++] = (x + 0.5f) / size;
+            anchors[a++] = boxScales[b] / ratio;
+            anchors[a++] = boxScales[b] * ratio;
+          }
+        }
+      }
+    }
+    return anchors;
+  }
+
+  /** Anchors of SSD MobileNet v1 for a 300x300 input, 1917 in total. */
+  public static float[] generateSsdMobileNetAnchors() {
+    return generateAnchors(
+        new int[] {19, 10, 5, 3, 2, 1},
+        0.2f,
+        0.95f,
+        new float[] {1.0f, 2.0f, 0.5f, 3.0f, 1.0f / 3.0f});
+  }
+
+  /** Reads anchors from a text file with one {@code cy,cx,h,w} line per anchor. */
+  public static float[] readAnchors(final InputStream input) throws IOException {
+    float[] anchors = new float[4 * 2048];
+    int n = 0;
+    try (BufferedReader reader = new BufferedReader(new InputStreamReader(input, "UTF-8"))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        line = line.trim();
+        if (line.isEmpty() || line.startsWith("#")) {
+          continue;
+        }
+        final String[] values = line.split("[,\\s]+");
+        if (values.length != 4) {
+          throw new IOException("Expected cy,cx,h,w but got: " + line);
+        }
+        if (n + 4 > anchors.length) {
+          anchors = Arrays.copyOf(anchors, 2 * anchors.length);
+        }
+        for (final String value : values) {
+          anchors[n++] = Float.parseFloat(value);
+        }
+      }
+    } catch (final NumberFormatException e) {
+      throw new IOException("Malformed anchor file", e);
+    }
+    return Arrays.copyOf(anchors, n);
+  }
+}
@@ -20,8 +20,11 @@ import android.content.res.AssetManager;
 import android.graphics.Bitmap;
 import android.graphics.RectF;
 import android.os.Trace;
+import android.util.Log;
 
+import org.tensorflow.lite.DataType;
 import org.tensorflow.lite.Interpreter;
+import org.tensorflow.lite.Tensor;
 
 import java.io.BufferedReader;
 import java.io.FileInputStream;
@@ -30,9 +33,11 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -44,22 +49,26 @@ import java.util.Vector;
  * Wrapper for frozen detection models trained using the Tensorflow Object Detection API:
  * github.com/tensorflow/models/tree/master/research/object_detection
  */
-public class TFLiteObjectDetectionAPIModel implements Classifier {
+public class TFLiteObjectDetectionAPIModel implements Classifier, BatchDetector {
 //  private static final Logger LOGGER = new Logger();
+  private static final String TAG = TFLiteObjectDetectionAPIModel.class.getSimpleName();
 
-  // Only return this many results.
+  // Only return this many results, unless the model spec says otherwise.
   private static final int NUM_DETECTIONS = 10;
-  // Float model
-  private static final float IMAGE_MEAN = 128.0f;
-  private static final float IMAGE_STD = 128.0f;
-  // Number of threads in the java app
-  private static final int NUM_THREADS = 4;
-  private boolean isModelQuantized;
+  private static final String ASSET_PREFIX = "file:///android_asset/";
+  // Preprocessing threads for large inputs; the interpreter's threads are idle meanwhile.
+  private static final int MAX_PREPROCESS_THREADS = 4;
+  private ModelSpec spec;
   // Config values.
-  private int inputSize;
+  private int inputWidth;
+  private int inputHeight;
   // Pre-allocated buffers.
   private Vector<String> labels = new Vector<String>();
+  private volatile ClassFilter classFilter;
   private int[] intValues;
+  // Decoded detections of the last frame, normalized to [0, 1].
+  private Detections detections;
+  // Post-processed models.
   // outputLocations: array of shape [Batchsize, NUM_DETECTIONS,4]
   // contains the location of detected boxes
   private float[][][] outputLocations;
@@ -72,16 +81,45 @@ public class TFLiteObjectDetectionAPIModel implements Classifier {
   // numDetections: array of shape [Batchsize]
   // contains the number of detected boxes
   private float[] numDetections;
+  // Raw output models.
+  // boxEncodings: anchors x 4 box encodings relative to the anchors
+  // classScores: anchors x columns class scores, background columns included
+  private SsdAnchorDecoder decoder;
+  private Tensor boxTensor;
+  private Tensor scoreTensor;
+  private ByteBuffer boxOutput;
+  private ByteBuffer scoreOutput;
+  private FloatBuffer boxFloats;
+  private FloatBuffer scoreFloats;
+  private float[] boxEncodings;
+  private float[] classScores;
+  private byte[] quantizedOutput;
+  private float[] classThresholds;
+  private ClassFilter compiledFilter;
 
   private ByteBuffer imgData;
+  // Fills imgData for the model's input type.
+  private InputKernel inputKernel;
+  // Inputs and outputs of the interpreter, wired up once so running the model allocates nothing.
+  private Object[] inputArray;
+  private final Map<Integer, Object> outputMap = new HashMap<>();
 
   private Interpreter tfLite;
 
   private TFLiteObjectDetectionAPIModel() {}
 
-  /** Memory-map the model file in Assets. */
-  private static MappedByteBuffer loadModelFile(AssetManager assets, String modelFilename)
+  /**
+   * Memory-map the model file. Absolute paths are read from the file system, anything else from
+   * Assets.
+   */
+  static MappedByteBuffer loadModelFile(AssetManager assets, String modelFilename)
       throws IOException {
+    if (modelFilename.startsWith("/")) {
+      try (FileInputStream inputStream = new FileInputStream(modelFilename)) {
+        FileChannel fileChannel = inputStream.getChannel();
+        return fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileChannel.size());
+      }
+    }
     AssetFileDescriptor fileDescriptor = assets.openFd(modelFilename);
     FileInputStream inputStream = new FileInputStream(fileDescriptor.getFileDescriptor());
     FileChannel fileChannel = inputStream.getChannel();
@@ -90,6 +128,15 @@ public class TFLiteObjectDetectionAPIModel implements Classifier {
     return fileChannel.map(FileChannel.MapMode.READ_ONLY, startOffset, declaredLength);
   }
 
+  /** Opens a label file, either an Assets URI or an absolute path on the file system. */
+  private static InputStream openLabelFile(AssetManager assets, String labelFilename)
+      throws IOException {
+    if (labelFilename.startsWith(ASSET_PREFIX)) {
+      return assets.open(labelFilename.substring(ASSET_PREFIX.length()));
+    }
+    return new FileInputStream(labelFilename);
+  }
+
   /**
    * Initializes a native TensorFlow session for classifying images.
    *
@@ -106,48 +153,175 @@ public class TFLiteObjectDetectionAPIModel implements Classifier {
       final int inputSize,
       final boolean isQuantized)
       throws IOException {
+    final ModelSpec spec =
+        new ModelSpec(
+            modelFilename,
+            modelFilename,
+            labelFilename,
+            inputSize,
+            inputSize,
+            isQuantized,
+            128.0f,
+            128.0f,
+            1,
+            ModelSpec.OutputLayout.POSTPROCESSED,
+            null,
+            NUM_DETECTIONS,
+            0.5f,
+            Collections.<String, Float>emptyMap());
+    return create(assetManager, spec, InterpreterConfig.DEFAULT);
+  }
+
+  /**
+   * Initializes a native TensorFlow session for the described model with the given interpreter
+   * options. If the runtime rejects the options, the session falls back to {@link
+   * InterpreterConfig#DEFAULT}.
+   *
+   * @param assetManager The asset manager to be used to load assets.
+   * @param spec The model to load.
+   * @param config The interpreter options to run the model with.
+   */
+  public static TFLiteObjectDetectionAPIModel create(
+      final AssetManager assetManager, final ModelSpec spec, final InterpreterConfig config)
+      throws IOException {
     final TFLiteObjectDetectionAPIModel d = new TFLiteObjectDetectionAPIModel();
+    d.spec = spec;
 
-    InputStream labelsInput = null;
-    String actualFilename = labelFilename.split("file:///android_asset/")[1];
-    labelsInput = assetManager.open(actualFilename);
-    BufferedReader br = null;
-    br = new BufferedReader(new InputStreamReader(labelsInput));
+    BufferedReader br =
+        new BufferedReader(new InputStreamReader(openLabelFile(assetManager, spec.getLabelFile())));
     String line;
     while ((line = br.readLine()) != null) {
 //      LOGGER.w(line);
       d.labels.add(line);
     }
     br.close();
+    d.classFilter = ClassFilter.all(d.labels.size(), spec.getMinimumConfidence());
 
-    d.inputSize = inputSize;
+    d.inputWidth = spec.getInputWidth();
+    d.inputHeight = spec.getInputHeight();
 
+    final MappedByteBuffer model = loadModelFile(assetManager, spec.getModelFile());
     try {
-      d.tfLite = new Interpreter(loadModelFile(assetManager, modelFilename));
+      d.tfLite = new Interpreter(model, config.toOptions());
     } catch (Exception e) {
-      throw new RuntimeException(e);
+      if (config.equals(InterpreterConfig.DEFAULT)) {
+        throw new RuntimeException(e);
+      }
+      Log.w(TAG, "Interpreter rejected " + config + ", falling back to defaults", e);
+      try {
+        d.tfLite = new Interpreter(model, InterpreterConfig.DEFAULT.toOptions());
+      } catch (Exception fallbackException) {
+        throw new RuntimeException(fallbackException);
+      }
     }
 
-    d.isModelQuantized = isQuantized;
     // Pre-allocate buffers.
     int numBytesPerChannel;
-    if (isQuantized) {
+    if (spec.isQuantized()) {
       numBytesPerChannel = 1; // Quantized
     } else {
       numBytesPerChannel = 4; // Floating point
     }
-    d.imgData = ByteBuffer.allocateDirect(1 * d.inputSize * d.inputSize * 3 * numBytesPerChannel);
+    d.imgData =
+        ByteBuffer.allocateDirect(1 * d.inputWidth * d.inputHeight * 3 * numBytesPerChannel);
     d.imgData.order(ByteOrder.nativeOrder());
-    d.intValues = new int[d.inputSize * d.inputSize];
+    d.intValues = new int[d.inputWidth * d.inputHeight];
+    d.inputKernel =
+        InputKernel.create(
+            d.imgData,
+            d.inputWidth,
+            d.inputHeight,
+            spec.isQuantized(),
+            spec.getImageMean(),
+            spec.getImageStd(),
+            Math.min(MAX_PREPROCESS_THREADS, config.getNumThreads()));
+    d.inputArray = new Object[] {d.imgData};
 
-    d.tfLite.setNumThreads(NUM_THREADS);
-    d.outputLocations = new float[1][NUM_DETECTIONS][4];
-    d.outputClasses = new float[1][NUM_DETECTIONS];
-    d.outputScores = new float[1][NUM_DETECTIONS];
-    d.numDetections = new float[1];
+    d.detections = new Detections(spec.getMaxDetections());
+    if (spec.getOutputLayout() == ModelSpec.OutputLayout.RAW) {
+      d.prepareRawOutputs(assetManager);
+    } else {
+      final int modelDetections = d.tfLite.getOutputTensor(0).shape()[1];
+      d.outputLocations = new float[1][modelDetections][4];
+      d.outputClasses = new float[1][modelDetections];
+      d.outputScores = new float[1][modelDetections];
+      d.numDetections = new float[1];
+      d.outputMap.put(0, d.outputLocations);
+      d.outputMap.put(1, d.outputClasses);
+      d.outputMap.put(2, d.outputScores);
+      d.outputMap.put(3, d.numDetections);
+    }
     return d;
   }
 
+  private void prepareRawOutputs(final AssetManager assetManager) throws IOException {
+    final ModelSpec.RawOutput raw = spec.getRawOutput();
+    final float[] anchors;
+    if (raw.getAnchorsFile() != null) {
+      try (InputStream input = openLabelFile(assetManager, raw.getAnchorsFile())) {
+        anchors = SsdAnchorDecoder.readAnchors(input);
+      }
+    } else {
+      anchors = SsdAnchorDecoder.generateSsdMobileNetAnchors();
+    }
+
+    // Box encodings end in 4 values per anchor; if both outputs do, the first one holds the boxes.
+    int boxIndex = 0;
+    if (tfLite.getOutputTensorCount() < 2) {
+      throw new IOException("Raw SSD models need box encoding and class score outputs");
+    }
+    final int[] firstShape = tfLite.getOutputTensor(0).shape();
+    if (firstShape[firstShape.length - 1] != 4) {
+      boxIndex = 1;
+    }
+    boxTensor = tfLite.getOutputTensor(boxIndex);
+    scoreTensor = tfLite.getOutputTensor(1 - boxIndex);
+    final int[] scoreShape = scoreTensor.shape();
+    final int numAnchors = boxTensor.numElements() / 4;
+    final int numColumns = scoreShape[scoreShape.length - 1];
+    if (numAnchors != anchors.length / 4 || scoreTensor.numElements() != numAnchors * numColumns) {
+      throw new IOException(
+          "Model outputs " + numAnchors + " boxes but has " + anchors.length / 4 + " anchors");
+    }
+
+    decoder =
+        new SsdAnchorDecoder(
+            anchors,
+            numColumns,
+            raw.getBackgroundClasses(),
+            raw.isScoresAreLogits(),
+            raw.getIouThreshold(),
+            raw.getMaxPerClass(),
+            spec.getMaxDetections());
+    boxOutput = ByteBuffer.allocateDirect(boxTensor.numBytes()).order(ByteOrder.nativeOrder());
+    scoreOutput = ByteBuffer.allocateDirect(scoreTensor.numBytes()).order(ByteOrder.nativeOrder());
+    boxFloats = boxOutput.asFloatBuffer();
+    scoreFloats = scoreOutput.asFloatBuffer();
+    outputMap.put(boxIndex, boxOutput);
+    outputMap.put(1 - boxIndex, scoreOutput);
+    boxEncodings = new float[boxTensor.numElements()];
+    classScores = new float[scoreTensor.numElements()];
+    if (boxTensor.dataType() == DataType.UINT8 || scoreTensor.dataType() == DataType.UINT8) {
+      quantizedOutput = new byte[Math.max(boxTensor.numElements(), scoreTensor.numElements())];
+    }
+    classThresholds = new float[decoder.getNumClasses()];
+  }
+
+  @Override
+  public ModelSpec getSpec() {
+    return spec;
+  }
+
+  @Override
+  public List<String> getLabels() {
+    return Collections.unmodifiableList(labels);
+  }
+
+  @Override
+  public void setClassFilter(final ClassFilter filter) {
+    classFilter = filter;
+  }
+
   @Override
   public List<Recognition> recognizeImage(final Bitmap bitmap) {
     // Log this method so that it can be analyzed with systrace.
@@ -158,67 +332,149 @@ public class TFLiteObjectDetectionAPIModel implements Classifier {
     // on the provided parameters.
     bitmap.getPixels(intValues, 0, bitmap.getWidth(), 0, 0, bitmap.getWidth(), bitmap.getHeight());
 
+    inputKernel.fill(intValues);
     imgData.rewind();
-    for (int i = 0; i < inputSize; ++i) {
-      for (int j = 0; j < inputSize; ++j) {
-        int pixelValue = intValues[i * inputSize + j];
-        if (isModelQuantized) {
-          // Quantized model
-          imgData.put((byte) ((pixelValue >> 16) & 0xFF));
-          imgData.put((byte) ((pixelValue >> 8) & 0xFF));
-          imgData.put((byte) (pixelValue & 0xFF));
-        } else { // Float model
-          imgData.putFloat((((pixelValue >> 16) & 0xFF) - IMAGE_MEAN) / IMAGE_STD);
-          imgData.putFloat((((pixelValue >> 8) & 0xFF) - IMAGE_MEAN) / IMAGE_STD);
-          imgData.putFloat(((pixelValue & 0xFF) - IMAGE_MEAN) / IMAGE_STD);
-        }
-      }
-    }
     Trace.endSection(); // preprocessBitmap
 
-    // Copy the input data into TensorFlow.
-    Trace.beginSection("feed");
-    outputLocations = new float[1][NUM_DETECTIONS][4];
-    outputClasses = new float[1][NUM_DETECTIONS];
-    outputScores = new float[1][NUM_DETECTIONS];
-    numDetections = new float[1];
-
-    Object[] inputArray = {imgData};
-    Map<Integer, Object> outputMap = new HashMap<>();
-    outputMap.put(0, outputLocations);
-    outputMap.put(1, outputClasses);
-    outputMap.put(2, outputScores);
-    outputMap.put(3, numDetections);
-    Trace.endSection();
-
-    // Run the inference call.
-    Trace.beginSection("run");
-    tfLite.runForMultipleInputsOutputs(inputArray, outputMap);
-    Trace.endSection();
+    final ClassFilter filter = classFilter;
+    if (decoder != null) {
+      runRaw(filter);
+    } else {
+      runPostprocessed(filter);
+    }
 
     // Show the best detections.
     // after scaling them back to the input size.
-    final ArrayList<Recognition> recognitions = new ArrayList<>(NUM_DETECTIONS);
-    for (int i = 0; i < NUM_DETECTIONS; ++i) {
+    final int count = detections.size();
+    final ArrayList<Recognition> recognitions = new ArrayList<>(count);
+    for (int i = 0; i < count; ++i) {
       final RectF detection =
           new RectF(
-              outputLocations[0][i][1] * inputSize,
-              outputLocations[0][i][0] * inputSize,
-              outputLocations[0][i][3] * inputSize,
-              outputLocations[0][i][2] * inputSize);
+              detections.getLeft(i) * inputWidth,
+              detections.getTop(i) * inputHeight,
+              detections.getRight(i) * inputWidth,
+              detections.getBottom(i) * inputHeight);
       // SSD Mobilenet V1 Model assumes class 0 is background class
       // in label file and class labels start from 1 to number_of_classes+1,
       // while outputClasses correspond to class index from 0 to number_of_classes
-      int labelOffset = 1;
+      int labelOffset = spec.getLabelOffset();
       recognitions.add(
           new Recognition(
               "" + i,
-              labels.get((int) outputClasses[0][i] + labelOffset),
-              outputScores[0][i],
+              labels.get(detections.getClassIndex(i) + labelOffset),
+              detections.getScore(i),
               detection));
     }
     Trace.endSection(); // "recognizeImage"
     return recognitions;
   }
 
+  /**
+   * Runs the inputs one after another on the interpreter: the model's input has a batch size of
+   * one. Must not overlap with {@link #recognizeImage}.
+   */
+  @Override
+  public void detect(final ByteBuffer[] inputs, final int count, final Detections[] outputs) {
+    final ClassFilter filter = classFilter;
+    try {
+      for (int k = 0; k < count; ++k) {
+        inputs[k].rewind();
+        inputArray[0] = inputs[k];
+        if (decoder != null) {
+          runRaw(filter);
+        } else {
+          runPostprocessed(filter);
+        }
+        final Detections out = outputs[k];
+        out.clear();
+        for (int i = 0; i < detections.size(); ++i) {
+          out.add(
+              detections.getTop(i),
+              detections.getLeft(i),
+              detections.getBottom(i),
+              detections.getRight(i),
+              detections.getClassIndex(i),
+              detections.getScore(i));
+        }
+      }
+    } finally {
+      inputArray[0] = imgData;
+    }
+  }
+
+  private void runPostprocessed(final ClassFilter filter) {
+    final int modelDetections = outputScores[0].length;
+
+    // Run the inference call; the interpreter overwrites the output arrays.
+    Trace.beginSection("run");
+    tfLite.runForMultipleInputsOutputs(inputArray, outputMap);
+    Trace.endSection();
+
+    detections.clear();
+    final int labelOffset = spec.getLabelOffset();
+    final int count = Math.min((int) numDetections[0], modelDetections);
+    for (int i = 0; i < count; ++i) {
+      if (!filter.accepts((int) outputClasses[0][i] + labelOffset, outputScores[0][i])) {
+        continue;
+      }
+      detections.add(
+          outputLocations[0][i][0],
+          outputLocations[0][i][1],
+          outputLocations[0][i][2],
+          outputLocations[0][i][3],
+          (int) outputClasses[0][i],
+          outputScores[0][i]);
+    }
+  }
+
+  private void runRaw(final ClassFilter filter) {
+    if (filter != compiledFilter) {
+      // Disabled labels get an infinite threshold, which the decoder skips entirely.
+      for (int c = 0; c < classThresholds.length; ++c) {
+        classThresholds[c] = filter.getThreshold(c + spec.getLabelOffset());
+      }
+      compiledFilter = filter;
+    }
+
+    Trace.beginSection("run");
+    boxOutput.rewind();
+    scoreOutput.rewind();
+    tfLite.runForMultipleInputsOutputs(inputArray, outputMap);
+    Trace.endSection();
+
+    Trace.beginSection("decode");
+    readOutput(boxTensor, boxOutput, boxFloats, boxEncodings);
+    readOutput(scoreTensor, scoreOutput, scoreFloats, classScores);
+    decoder.decode(boxEncodings, classScores, classThresholds, detections);
+    Trace.endSection();
+  }
+
+  /** Copies an output tensor into a float array, dequantizing it if necessary. */
+  private void readOutput(
+      final Tensor tensor, final ByteBuffer buffer, final FloatBuffer floats, final float[] out) {
+    buffer.rewind();
+    if (tensor.dataType() == DataType.UINT8) {
+      final Tensor.QuantizationParams params = tensor.quantizationParams();
+      final float scale = params.getScale();
+      final int zeroPoint = params.getZeroPoint();
+      buffer.get(quantizedOutput, 0, out.length);
+      for (int i = 0; i < out.length; ++i) {
+        out[i] = scale * ((quantizedOutput[i] & 0xFF) - zeroPoint);
+      }
+    } else {
+      floats.rewind();
+      floats.get(out);
+    }
+  }
+
+  @Override
+  public void close() {
+    if (tfLite != null) {
+      tfLite.close();
+      tfLite = null;
+    }
+    if (inputKernel != null) {
+      inputKernel.close();
+    }
+  }
 }
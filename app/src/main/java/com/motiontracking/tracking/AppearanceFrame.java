@@ -0,0 +1,109 @@
+package com.motiontracking.tracking;
+
+/**
+ * A coarse copy of a camera frame from which appearance signatures of tracked objects are
+ * computed. Every {@link #STEP}th pixel of every {@link #STEP}th row is kept, already reduced to its
+ * bin of a joint histogram of 4 luminance by 4 by 4 chrominance levels, so a signature is one
+ * counting pass over the samples under a box.
+ *
+ * <p>A signature is the square root of the normalized histogram, so the similarity of two
+ * signatures, the Bhattacharyya coefficient of their histograms, is their dot product. Signatures
+ * are meant to tell apart objects of different colors after an occlusion, not individuals wearing
+ * similar clothes.
+ *
+ * <p>Thread-safe; the camera thread sets frames while the tracking thread computes signatures.
+ */
+public class AppearanceFrame {
+  public static final int SIGNATURE_LENGTH = 64;
+  // Sample spacing in pixels.
+  static final int STEP = 4;
+  // Fewest samples under a box for a signature to mean anything.
+  private static final int MIN_SAMPLES = 16;
+
+  private byte[] bins = new byte[0];
+  private int columns;
+  private int rows;
+  private final int[] counts = new int[SIGNATURE_LENGTH];
+
+  /** Samples a YUV 4:2:0 frame. */
+  public synchronized void set(
+      final byte[] yPlane,
+      final byte[] uPlane,
+      final byte[] vPlane,
+      final int width,
+      final int height,
+      final int yRowStride,
+      final int uvRowStride,
+      final int uvPixelStride) {
+    columns = width / STEP;
+    rows = height / STEP;
+    if (bins.length < columns * rows) {
+      bins = new byte[columns * rows];
+    }
+    for (int row = 0; row < rows; ++row) {
+      final int y = row * STEP + STEP / 2;
+      final int lumaRow = y * yRowStride;
+      final int chromaRow = (y >> 1) * uvRowStride;
+      for (int column = 0; column < columns; ++column) {
+        final int x = column * STEP + STEP / 2;
+        final int chroma = chromaRow + (x >> 1) * uvPixelStride;
+        bins[row * columns + column] =
+            (byte)
+                (((yPlane[lumaRow + x] & 0xff) >> 6) << 4
+                    | chromaLevel(uPlane[chroma]) << 2
+                    | chromaLevel(vPlane[chroma]));
+      }
+    }
+  }
+
+  /**
+   * Computes the signature of the part of the frame inside the box, in frame coordinates.
+   *
+   * @return false if no frame was set or the box covers too few samples.
+   */
+  public synchronized boolean computeSignature(
+      final float left,
+      final float top,
+      final float right,
+      final float bottom,
+      final float[] signature,
+      final int offset) {
+    final int firstColumn = Math.max(0, (int) Math.ceil(left / STEP - 0.5f));
+    final int lastColumn = Math.min(columns - 1, (int) Math.floor(right / STEP - 0.5f));
+    final int firstRow = Math.max(0, (int) Math.ceil(top / STEP - 0.5f));
+    final int lastRow = Math.min(rows - 1, (int) Math.floor(bottom / STEP - 0.5f));
+    final int samples = (lastColumn - firstColumn + 1) * (lastRow - firstRow + 1);
+    if (lastColumn < firstColumn || lastRow < firstRow || samples < MIN_SAMPLES) {
+      return false;
+    }
+    for (int i = 0; i < SIGNATURE_LENGTH; ++i) {
+      counts[i] = 0;
+    }
+    for (int row = firstRow; row <= lastRow; ++row) {
+      final int end = row * columns + lastColumn;
+      for (int i = row * columns + firstColumn; i <= end; ++i) {
+        ++counts[bins[i]];
+      }
+    }
+    final float scale = 1f / samples;
+    for (int i = 0; i < SIGNATURE_LENGTH; ++i) {
+      signature[offset + i] = (float) Math.sqrt(counts[i] * scale);
+    }
+    return true;
+  }
+
+  /** Similarity of two signatures, from 0 for nothing in common to 1 for the same histogram. */
+  public static float similarity(
+      final float[] a, final int aOffset, final float[] b, final int bOffset) {
+    float sum = 0;
+    for (int i = 0; i < SIGNATURE_LENGTH; ++i) {
+      sum += a[aOffset + i] * b[bOffset + i];
+    }
+    return sum;
+  }
+
+  // Chrominance mostly stays close to neutral, so its levels are finer there.
+  private static int chromaLevel(final byte value) {
+    return Math.max(0, Math.min(3, ((value & 0xff) - 64) >> 5));
+  }
+}
@@ -0,0 +1,165 @@
+package com.motiontracking.tracking;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Finds the boxes of a class that may overlap a given box without comparing it with every box.
+ * Boxes are entered into the cells of a uniform grid they cover, hashed together with their class
+ * into buckets, so a query only looks at the boxes of the cells it covers. With cells about as large
+ * as the boxes, a box covers at most four cells and a query costs the same for ten boxes as for ten
+ * thousand.
+ *
+ * <p>Classes are titles numbered by the grid, so candidates are told apart by an int comparison.
+ * A box touching a query box counts as a candidate; callers still test the overlap they need.
+ *
+ * <p>Rebuilt for every set of boxes with {@link #reset} and {@link #add}; allocates only when a set
+ * is larger than any before. Not thread-safe.
+ */
+final class BoxGrid {
+  private static final float MIN_CELL_SIZE = 8;
+
+  private final Map<String, Integer> classes = new HashMap<>();
+  private float cellSize = MIN_CELL_SIZE;
+  private int mask;
+  // First entry of each bucket, -1 if none; entries of a bucket are chained through next.
+  private int[] heads = new int[16];
+  private int[] next = new int[64];
+  private int[] entryBoxes = new int[64];
+  private int entryCount;
+  // Class of each box, and the query that last returned it.
+  private int[] boxClasses = new int[16];
+  private int[] seen = new int[16];
+  private int boxCount;
+  private int query;
+  private int[] results = new int[16];
+
+  /** Number of the title's class; stays the same for the life of the grid. */
+  int classOf(final String title) {
+    final Integer known = classes.get(title);
+    if (known != null) {
+      return known;
+    }
+    final int added = classes.size();
+    classes.put(title, added);
+    return added;
+  }
+
+  /**
+   * Empties the grid for a new set of boxes.
+   *
+   * @param expectedBoxes Number of boxes about to be added, which sizes the buckets.
+   * @param typicalSize Typical width or height of the boxes, which becomes the cell size.
+   */
+  void reset(final int expectedBoxes, final float typicalSize) {
+    cellSize = Math.max(MIN_CELL_SIZE, typicalSize);
+    final int buckets = Integer.highestOneBit(Math.max(16, 8 * expectedBoxes - 1)) << 1;
+    if (heads.length < buckets) {
+      heads = new int[buckets];
+    }
+    mask = buckets - 1;
+    Arrays.fill(heads, 0, buckets, -1);
+    entryCount = 0;
+    boxCount = 0;
+  }
+
+  /** Adds a box and returns its index, which counts up from 0 and is what {@link #get} reports. */
+  int add(
+      final float left,
+      final float top,
+      final float right,
+      final float bottom,
+      final int classId) {
+    final int index = boxCount++;
+    if (boxClasses.length == index) {
+      boxClasses = Arrays.copyOf(boxClasses, 2 * index);
+      seen = Arrays.copyOf(seen, 2 * index);
+    }
+    boxClasses[index] = classId;
+    final int firstColumn = cell(left);
+    final int lastColumn = cell(right);
+    final int firstRow = cell(top);
+    final int lastRow = cell(bottom);
+    for (int row = firstRow; row <= lastRow; ++row) {
+      for (int column = firstColumn; column <= lastColumn; ++column) {
+        if (entryCount == next.length) {
+          next = Arrays.copyOf(next, 2 * entryCount);
+          entryBoxes = Arrays.copyOf(entryBoxes, 2 * entryCount);
+        }
+        final int bucket = bucket(classId, column, row);
+        entryBoxes[entryCount] = index;
+        next[entryCount] = heads[bucket];
+        heads[bucket] = entryCount++;
+      }
+    }
+    return index;
+  }
+
+  /**
+   * Collects the boxes of the class that share a cell with the box, each once, in no particular
+   * order.
+   *
+   * @return The number of boxes found, see {@link #get}.
+   */
+  int query(
+      final float left,
+      final float top,
+      final float right,
+      final float bottom,
+      final int classId) {
+    if (++query == 0) {
+      Arrays.fill(seen, 0);
+      query = 1;
+    }
+    int found = 0;
+    final int firstColumn = cell(left);
+    final int lastColumn = cell(right);
+    final int firstRow = cell(top);
+    final int lastRow = cell(bottom);
+    // A box over most of the grid is compared with every box rather than looked up cell by cell.
+    if ((long) (lastColumn - firstColumn + 1) * (lastRow - firstRow + 1) > boxCount) {
+      for (int i = 0; i < boxCount; ++i) {
+        if (boxClasses[i] == classId && seen[i] != query) {
+          found = collect(found, i);
+        }
+      }
+      return found;
+    }
+    for (int row = firstRow; row <= lastRow; ++row) {
+      for (int column = firstColumn; column <= lastColumn; ++column) {
+        for (int e = heads[bucket(classId, column, row)]; e >= 0; e = next[e]) {
+          final int box = entryBoxes[e];
+          // Other classes and cells can share a bucket.
+          if (boxClasses[box] == classId && seen[box] != query) {
+            found = collect(found, box);
+          }
+        }
+      }
+    }
+    return found;
+  }
+
+  /** Index of the {@code i}th box found by the last {@link #query}. */
+  int get(final int i) {
+    return results[i];
+  }
+
+  private int collect(final int found, final int box) {
+    seen[box] = query;
+    if (found == results.length) {
+      results = Arrays.copyOf(results, 2 * found);
+    }
+    results[found] = box;
+    return found + 1;
+  }
+
+  private int cell(final float coordinate) {
+    return (int) Math.floor(coordinate / cellSize);
+  }
+
+  private int bucket(final int classId, final int column, final int row) {
+    final int hash = classId * 0x9E3779B1 ^ column * 0x85EBCA6B ^ row * 0xC2B2AE35;
+    return (hash ^ hash >>> 16) & mask;
+  }
+}
@@ -0,0 +1,193 @@
+package com.motiontracking.tracking;
+
+import com.motiontracking.utils.IntIntMap;
+
+import java.util.Arrays;
+
+/**
+ * Moves tracked boxes smoothly from one {@link TrackSnapshot} to the next at display rate. When a
+ * new snapshot arrives, each of its tracks starts at the position the same track is currently shown
+ * at and reaches its new position after the interval that passed between the two snapshots, so the
+ * overlay keeps up with the detector without jumping at detection rate.
+ *
+ * <p>Also tracks what was drawn last, so that a renderer only has to invalidate the union of the
+ * old and new boxes. Not thread-safe; all calls come from the thread that renders.
+ *
+ * <p>Tracks of a new snapshot are matched with the current ones through a map of their identifiers,
+ * and the position arrays of the two snapshots are swapped rather than reallocated, so an update
+ * costs time linear in the number of tracks and allocates only when there are more than ever.
+ */
+public class BoxInterpolator {
+  /** Animations shorter than this are not worth a frame. */
+  private static final long MIN_DURATION_NANOS = 16_000_000L;
+  /** Caps the animation after a long pause between detections. */
+  private static final long MAX_DURATION_NANOS = 500_000_000L;
+
+  private TrackSnapshot target = TrackSnapshot.EMPTY;
+  private long startNanos;
+  private long durationNanos;
+  private boolean changed;
+  private boolean animating;
+
+  // Start positions of the animation, per track of the target snapshot.
+  private float[] from = new float[0];
+  // Positions at the last call to advance(), per track of the target snapshot.
+  private float[] shown = new float[0];
+  // The arrays of the previous target, which the next update fills.
+  private float[] spareFrom = new float[0];
+  private float[] spareShown = new float[0];
+  // Index of each track of the target snapshot by identifier.
+  private final IntIntMap targetIndices = new IntIntMap(16);
+  // Boxes covered by the last frame, possibly of an older target.
+  private float[] drawn = new float[0];
+  private int drawnCount;
+
+  /**
+   * Starts animating towards the snapshot if it is newer than the current target.
+   *
+   * @return true if the snapshot was new.
+   */
+  public boolean update(final TrackSnapshot snapshot) {
+    if (snapshot.getVersion() == target.getVersion()) {
+      return false;
+    }
+    final int count = snapshot.size();
+    if (spareFrom.length < 4 * count) {
+      spareFrom = new float[4 * count];
+      spareShown = new float[4 * count];
+    }
+    final float[] nextFrom = spareFrom;
+    final float[] nextShown = spareShown;
+    boolean moving = false;
+    for (int i = 0; i < count; ++i) {
+      final int b = 4 * i;
+      final int previous = targetIndices.get(snapshot.getId(i), -1);
+      if (previous >= 0) {
+        System.arraycopy(shown, 4 * previous, nextFrom, b, 4);
+      } else {
+        nextFrom[b] = snapshot.getLeft(i);
+        nextFrom[b + 1] = snapshot.getTop(i);
+        nextFrom[b + 2] = snapshot.getRight(i);
+        nextFrom[b + 3] = snapshot.getBottom(i);
+      }
+      moving |=
+          nextFrom[b] != snapshot.getLeft(i)
+              || nextFrom[b + 1] != snapshot.getTop(i)
+              || nextFrom[b + 2] != snapshot.getRight(i)
+              || nextFrom[b + 3] != snapshot.getBottom(i);
+      System.arraycopy(nextFrom, b, nextShown, b, 4);
+    }
+    final long interval = snapshot.getTimestampNanos() - target.getTimestampNanos();
+    durationNanos =
+        target.getVersion() == 0
+            ? MIN_DURATION_NANOS
+            : Math.max(MIN_DURATION_NANOS, Math.min(MAX_DURATION_NANOS, interval));
+    startNanos = snapshot.getTimestampNanos();
+    target = snapshot;
+    spareFrom = from;
+    spareShown = shown;
+    from = nextFrom;
+    shown = nextShown;
+    targetIndices.clear();
+    for (int i = 0; i < count; ++i) {
+      targetIndices.put(snapshot.getId(i), i);
+    }
+    animating = moving;
+    changed = true;
+    return true;
+  }
+
+  /**
+   * Moves the shown boxes to their position at {@code nowNanos}.
+   *
+   * @param dirty Receives left, top, right and bottom of the union of everything drawn before and
+   *     after this step, in frame coordinates.
+   * @return true if the overlay has to be redrawn; {@code dirty} is only written in that case.
+   */
+  public boolean advance(final long nowNanos, final float[] dirty) {
+    if (!changed && !animating) {
+      return false;
+    }
+    if (animating) {
+      final float alpha =
+          Math.min(1f, Math.max(0f, (nowNanos - startNanos) / (float) durationNanos));
+      for (int i = 0; i < target.size(); ++i) {
+        final int b = 4 * i;
+        shown[b] = lerp(from[b], target.getLeft(i), alpha);
+        shown[b + 1] = lerp(from[b + 1], target.getTop(i), alpha);
+        shown[b + 2] = lerp(from[b + 2], target.getRight(i), alpha);
+        shown[b + 3] = lerp(from[b + 3], target.getBottom(i), alpha);
+      }
+      animating = alpha < 1f;
+    }
+    changed = false;
+
+    float left = Float.POSITIVE_INFINITY;
+    float top = Float.POSITIVE_INFINITY;
+    float right = Float.NEGATIVE_INFINITY;
+    float bottom = Float.NEGATIVE_INFINITY;
+    for (int b = 0; b < 4 * drawnCount; b += 4) {
+      left = Math.min(left, drawn[b]);
+      top = Math.min(top, drawn[b + 1]);
+      right = Math.max(right, drawn[b + 2]);
+      bottom = Math.max(bottom, drawn[b + 3]);
+    }
+    final int count = target.size();
+    for (int b = 0; b < 4 * count; b += 4) {
+      left = Math.min(left, shown[b]);
+      top = Math.min(top, shown[b + 1]);
+      right = Math.max(right, shown[b + 2]);
+      bottom = Math.max(bottom, shown[b + 3]);
+    }
+    if (drawn.length < 4 * count) {
+      drawn = Arrays.copyOf(shown, 4 * count);
+    } else {
+      System.arraycopy(shown, 0, drawn, 0, 4 * count);
+    }
+    drawnCount = count;
+
+    if (left > right || top > bottom) {
+      // Nothing was drawn before and nothing is drawn now.
+      return false;
+    }
+    dirty[0] = left;
+    dirty[1] = top;
+    dirty[2] = right;
+    dirty[3] = bottom;
+    return true;
+  }
+
+  /** Whether boxes are still moving towards the target snapshot. */
+  public boolean isAnimating() {
+    return animating;
+  }
+
+  /** The snapshot the boxes are moving to; titles, colors and confidences are taken from it. */
+  public TrackSnapshot getTarget() {
+    return target;
+  }
+
+  public int size() {
+    return target.size();
+  }
+
+  public float getLeft(final int i) {
+    return shown[4 * i];
+  }
+
+  public float getTop(final int i) {
+    return shown[4 * i + 1];
+  }
+
+  public float getRight(final int i) {
+    return shown[4 * i + 2];
+  }
+
+  public float getBottom(final int i) {
+    return shown[4 * i + 3];
+  }
+
+  private static float lerp(final float a, final float b, final float alpha) {
+    return a + (b - a) * alpha;
+  }
+}
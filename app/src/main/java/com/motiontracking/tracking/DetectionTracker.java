@@ -0,0 +1,85 @@
+package com.motiontracking.tracking;
+
+import com.motiontracking.tflite.Detections;
+
+import java.util.List;
+
+/**
+ * Turns the {@link Detections} of consecutive frames of one video source into tracks with stable
+ * identifiers and publishes them as {@link TrackSnapshot}s. Plain Java counterpart of {@link
+ * MultiBoxTracker} for sources that are processed without a view, such as the streams of a {@link
+ * com.motiontracking.stream.StreamHost}.
+ *
+ * <p>Tracks live in a {@link TrackStore}, which every frame predicts and associates detections
+ * with. By default a track ends with the first frame it is not detected in; with coasting, it
+ * carries on along its predicted motion for a number of frames, so a detection missed now and then
+ * does not cut it short.
+ *
+ * <p>Updates must not overlap; snapshots can be read from any thread.
+ */
+public class DetectionTracker {
+  private static final float MIN_ASSOCIATION_IOU = 0.3f;
+
+  private final List<String> labels;
+  private final TrackAssociator associator = new TrackAssociator(MIN_ASSOCIATION_IOU);
+  private final TrackSnapshot.Builder builder = new TrackSnapshot.Builder();
+  private final TrackSnapshotPublisher publisher = new TrackSnapshotPublisher();
+  private final TrackStore store =
+      new TrackStore(64, Runtime.getRuntime().availableProcessors());
+  private final int maxMisses;
+
+  /** @param labels Titles of the class indices reported by the detector. */
+  public DetectionTracker(final List<String> labels) {
+    this(labels, 0);
+  }
+
+  /** @param maxMisses Frames a track coasts without being detected before it ends. */
+  public DetectionTracker(final List<String> labels, final int maxMisses) {
+    this.labels = labels;
+    this.maxMisses = maxMisses;
+  }
+
+  public void setFrameConfiguration(
+      final int width, final int height, final int sensorOrientation) {
+    builder.setFrameConfiguration(width, height, sensorOrientation);
+    publisher.publish(builder);
+  }
+
+  /**
+   * Continues the tracks with the detections of a new frame.
+   *
+   * @param detections Boxes in frame coordinates.
+   */
+  public TrackSnapshot update(final Detections detections) {
+    store.age();
+    store.predict(0, 0);
+    associator.begin(store, System.nanoTime());
+    for (int i = 0; i < detections.size(); ++i) {
+      final int classIndex = detections.getClassIndex(i);
+      final String title =
+          classIndex >= 0 && classIndex < labels.size() ? labels.get(classIndex) : null;
+      final float left = detections.getLeft(i);
+      final float top = detections.getTop(i);
+      final float right = detections.getRight(i);
+      final float bottom = detections.getBottom(i);
+      store.put(
+          associator.associate(left, top, right, bottom, title),
+          left,
+          top,
+          right,
+          bottom,
+          detections.getScore(i),
+          title,
+          0);
+    }
+    associator.end(maxMisses);
+    store.cullExpired(maxMisses);
+    builder.clear();
+    store.writeTo(builder);
+    return publisher.publish(builder);
+  }
+
+  public TrackSnapshot getSnapshot() {
+    return publisher.latest();
+  }
+}
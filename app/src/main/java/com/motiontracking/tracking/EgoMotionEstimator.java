@@ -0,0 +1,250 @@
+package com.motiontracking.tracking;
+
+import com.motiontracking.utils.LumaPyramid;
+
+/**
+ * Estimates how far the camera moved the whole image between two frames, so tracks can be
+ * predicted where camera shake or panning carried them before detections are associated with
+ * them. Each frame, at a reduced resolution taken from its {@link LumaPyramid}, is reduced further
+ * to the mean luminance of its columns and of its rows; the horizontal shift is the offset at which the column profiles of two frames match best,
+ * the vertical shift the one of the row profiles, refined to a fraction of a sample from the costs
+ * of the neighbouring offsets.
+ *
+ * <p>Only translation is estimated: rotation and zoom between two frames of a shaking camera are
+ * small next to its translation. Objects moving in front of a still camera shift the profiles
+ * little, as long as they cover a small part of the frame. Frames without enough contrast for a
+ * reliable estimate count as not moved.
+ *
+ * <p>A 640x480 frame takes well under a millisecond. Not thread-safe; used by the camera thread
+ * only.
+ */
+public class EgoMotionEstimator {
+  // Lowest standard deviation of a profile, in luminance levels, for it to be matched.
+  private static final float MIN_CONTRAST = 2f;
+  // Part of the profile that must overlap at any tested offset.
+  private static final float MIN_OVERLAP = 0.5f;
+
+  private final int sampleStep;
+  private final int level;
+  private final int maxShift;
+  private LumaPyramid ownPyramid;
+
+  private int width;
+  private int height;
+  private float[] columns = new float[0];
+  private float[] rows = new float[0];
+  private float[] previousColumns = new float[0];
+  private float[] previousRows = new float[0];
+  private int[] sums = new int[0];
+  private float[] costs = new float[0];
+  private boolean hasPrevious;
+  private boolean valid;
+  private float shiftX;
+  private float shiftY;
+  private float positionX;
+  private float positionY;
+
+  /**
+   * @param sampleStep Distance in pixels between two samples of a row or column, each the mean of
+   *     the pixels around it; a power of two from 2.
+   * @param maxShift Largest shift between two frames in pixels in each direction.
+   */
+  public EgoMotionEstimator(final int sampleStep, final int maxShift) {
+    if (sampleStep < 2 || Integer.bitCount(sampleStep) != 1 || maxShift < sampleStep) {
+      throw new IllegalArgumentException(
+          "Invalid sample step " + sampleStep + " for shifts up to " + maxShift);
+    }
+    this.sampleStep = sampleStep;
+    this.level = Integer.numberOfTrailingZeros(sampleStep);
+    this.maxShift = maxShift;
+  }
+
+  /**
+   * Estimates the shift of a frame relative to the previous one, for callers without a pyramid.
+   *
+   * @param luma Y plane of the frame.
+   * @param rowStride Distance between two rows of the Y plane in bytes.
+   * @see #update(LumaPyramid)
+   */
+  public boolean update(final byte[] luma, final int width, final int height, final int rowStride) {
+    if (ownPyramid == null) {
+      ownPyramid = new LumaPyramid(level);
+    }
+    ownPyramid.setFrame(luma, width, height, rowStride);
+    return update(ownPyramid);
+  }
+
+  /**
+   * Estimates the shift of the frame relative to the previous one.
+   *
+   * @param pyramid Pyramid set to the frame.
+   * @return false if there was no previous frame of the same size or too little contrast, in which
+   *     case the shift is zero.
+   */
+  public boolean update(final LumaPyramid pyramid) {
+    final LumaPyramid.Level samples = pyramid.getLevel(level);
+    final int width = samples.getWidth();
+    final int height = samples.getHeight();
+    if (width != this.width || height != this.height) {
+      this.width = width;
+      this.height = height;
+      columns = new float[width];
+      rows = new float[height];
+      previousColumns = new float[columns.length];
+      previousRows = new float[rows.length];
+      sums = new int[columns.length];
+      hasPrevious = false;
+    }
+    project(samples.getPixels(), samples.getStride());
+
+    shiftX = 0;
+    shiftY = 0;
+    valid = false;
+    if (hasPrevious) {
+      final float x = match(previousColumns, columns);
+      final float y = match(previousRows, rows);
+      if (!Float.isNaN(x) && !Float.isNaN(y)) {
+        shiftX = x * sampleStep;
+        shiftY = y * sampleStep;
+        positionX += shiftX;
+        positionY += shiftY;
+        valid = true;
+      }
+    }
+
+    float[] swap = previousColumns;
+    previousColumns = columns;
+    columns = swap;
+    swap = previousRows;
+    previousRows = rows;
+    rows = swap;
+    hasPrevious = true;
+    return valid;
+  }
+
+  /** Forgets the previous frame, so the next one is not compared with it. */
+  public void reset() {
+    hasPrevious = false;
+    valid = false;
+    shiftX = 0;
+    shiftY = 0;
+  }
+
+  /** Whether the last update estimated a shift. */
+  public boolean isValid() {
+    return valid;
+  }
+
+  /** Horizontal shift of the image content from the previous frame to the last one, in pixels. */
+  public float getShiftX() {
+    return shiftX;
+  }
+
+  /** Vertical shift of the image content from the previous frame to the last one, in pixels. */
+  public float getShiftY() {
+    return shiftY;
+  }
+
+  /**
+   * Sum of all horizontal shifts. The image content of an earlier frame moved by the difference of
+   * this position now and then.
+   */
+  public float getPositionX() {
+    return positionX;
+  }
+
+  /** Sum of all vertical shifts, see {@link #getPositionX()}. */
+  public float getPositionY() {
+    return positionY;
+  }
+
+  /** Mean luminance of the columns and rows of the samples, zero-mean. */
+  private void project(final byte[] samples, final int stride) {
+    final int columnCount = columns.length;
+    final int rowCount = rows.length;
+    for (int x = 0; x < columnCount; ++x) {
+      sums[x] = 0;
+    }
+    for (int y = 0; y < rowCount; ++y) {
+      int p = y * stride;
+      int rowSum = 0;
+      for (int x = 0; x < columnCount; ++x, ++p) {
+        final int value = samples[p] & 0xFF;
+        rowSum += value;
+        sums[x] += value;
+      }
+      rows[y] = rowSum / (float) columnCount;
+    }
+    for (int x = 0; x < columnCount; ++x) {
+      columns[x] = sums[x] / (float) rowCount;
+    }
+    removeMean(columns);
+    removeMean(rows);
+  }
+
+  private static void removeMean(final float[] profile) {
+    float sum = 0;
+    for (final float value : profile) {
+      sum += value;
+    }
+    final float mean = sum / profile.length;
+    for (int i = 0; i < profile.length; ++i) {
+      profile[i] -= mean;
+    }
+  }
+
+  /**
+   * Finds the offset, in samples, by which {@code current} is {@code previous} shifted.
+   *
+   * @return The offset, or NaN if the profiles have too little contrast.
+   */
+  private float match(final float[] previous, final float[] current) {
+    final int length = current.length;
+    if (deviation(previous) < MIN_CONTRAST || deviation(current) < MIN_CONTRAST) {
+      return Float.NaN;
+    }
+    final int range = Math.min(maxShift / sampleStep, (int) (length * (1 - MIN_OVERLAP)));
+    if (costs.length < 2 * range + 1) {
+      costs = new float[2 * range + 1];
+    }
+    int best = 0;
+    for (int i = 0; i <= 2 * range; ++i) {
+      costs[i] = cost(previous, current, i - range);
+      if (costs[i] < costs[best]) {
+        best = i;
+      }
+    }
+    if (best == 0 || best == 2 * range) {
+      return best - range;
+    }
+    // Absolute differences grow linearly away from the true offset, so the costs around it form a
+    // V whose tip is the fractional offset.
+    final float before = costs[best - 1];
+    final float after = costs[best + 1];
+    final float slope = Math.max(before, after) - costs[best];
+    if (slope <= 0) {
+      return best - range;
+    }
+    return best - range + Math.max(-0.5f, Math.min(0.5f, (before - after) / (2 * slope)));
+  }
+
+  /** Mean absolute difference of the overlapping parts with {@code current[i + shift]}. */
+  private static float cost(final float[] previous, final float[] current, final int shift) {
+    final int start = Math.max(0, -shift);
+    final int end = Math.min(previous.length, current.length - shift);
+    float sum = 0;
+    for (int i = start; i < end; ++i) {
+      final float d = current[i + shift] - previous[i];
+      sum += d < 0 ? -d : d;
+    }
+    return sum / (end - start);
+  }
+
+  private static float deviation(final float[] profile) {
+    float sum = 0;
+    for (final float value : profile) {
+      sum += value * value;
+    }
+    return (float) Math.sqrt(sum / profile.length);
+  }
+}
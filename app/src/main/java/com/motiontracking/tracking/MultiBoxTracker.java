@@ -23,29 +23,34 @@ import android.graphics.Paint;
 import android.graphics.Paint.Cap;
 import android.graphics.Paint.Join;
 import android.graphics.Paint.Style;
+import android.graphics.Rect;
 import android.graphics.RectF;
 import android.text.TextUtils;
-import android.util.Log;
 import android.util.TypedValue;
 
+import com.motiontracking.analytics.HeatmapOverlay;
 import com.motiontracking.databinding.ActivityMainBinding;
 import com.motiontracking.tflite.Classifier;
 import com.motiontracking.tflite.Classifier.Recognition;
 import com.motiontracking.utils.ImageUtils;
 
 import java.util.ArrayList;
-import java.util.Comparator;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Locale;
 import java.util.Queue;
-import java.util.stream.Collectors;
 
 
 /** A tracker that handles non-max suppression and matches existing objects to new detections. */
 public class MultiBoxTracker {
   private static final float TEXT_SIZE_DIP = 18;
   private static final float MIN_SIZE = 16.0f;
+  // Minimum intersection over union for a detection to continue a track of the previous update.
+  private static final float MIN_ASSOCIATION_IOU = 0.3f;
+  // Lost tracks re-identified by appearance, see ReidCache.
+  private static final int REID_CAPACITY = 32;
+  private static final long REID_MAX_AGE_NANOS = 3_000_000_000L;
+  private static final float REID_MIN_SIMILARITY = 0.85f;
   private static final int[] COLORS = {
     Color.BLUE,
     Color.RED,
@@ -63,14 +68,51 @@ public class MultiBoxTracker {
     Color.parseColor("#AA33AA"),
     Color.parseColor("#0D0068")
   };
+  // Box colors of the classes that can be selected.
+  private static final int PERSON_COLOR = Color.parseColor("#3F51B5");
+  private static final int BICYCLE_COLOR = Color.parseColor("#8BC34A");
+  private static final int CAR_COLOR = Color.parseColor("#E91E63");
+  private static final int TRUCK_COLOR = Color.parseColor("#FF9800");
+  private static final int BUS_COLOR = Color.parseColor("#9C27B0");
+  private static final int TRAIN_COLOR = Color.parseColor("#00BCD4");
   private final Queue<Integer> availableColors = new LinkedList<Integer>();
-  private final List<TrackedRecognition> trackedObjects = new LinkedList<TrackedRecognition>();
+  // Written under writeLock by whichever thread delivers results, read lock-free by draw().
+  private final Object writeLock = new Object();
+  private final TrackSnapshot.Builder trackedObjects = new TrackSnapshot.Builder();
+  // The live tracks, which trackedObjects is copied from after every update. Lost tracks are left
+  // to the re-identification cache, so tracks end when they are not detected.
+  private final TrackStore store =
+      new TrackStore(64, Runtime.getRuntime().availableProcessors());
+  private final TrackSnapshotPublisher publisher = new TrackSnapshotPublisher();
+  private final TrackAssociator associator =
+      new TrackAssociator(
+          MIN_ASSOCIATION_IOU,
+          new ReidCache(REID_CAPACITY, REID_MAX_AGE_NANOS, REID_MIN_SIMILARITY));
+  private final float[] signature = new float[AppearanceFrame.SIGNATURE_LENGTH];
+  private final List<Recognition> filteredResults = new ArrayList<>();
+  private final List<AppearanceFrame> filteredAppearances = new ArrayList<>();
+  private final BoxGrid overlapGrid = new BoxGrid();
+  private RectF[] locations = new RectF[16];
+  private int[] classes = new int[16];
+  private final RectF detectionFrameRect = new RectF();
+  // Camera position of the frame of the last update, see EgoMotionEstimator. Guarded by writeLock.
+  private float cameraX;
+  private float cameraY;
+  // Render state, only touched on the UI thread.
+  private final BoxInterpolator interpolator = new BoxInterpolator();
+  private final float[] dirtyFrameRect = new float[4];
+  private final RectF dirtyCanvasRect = new RectF();
   private final Paint boxPaint = new Paint();
+  private final Paint interiorPaint = new Paint();
+  private final Paint exteriorPaint = new Paint();
+  private final StringBuilder label = new StringBuilder();
+  private final RectF trackedPos = new RectF();
   private final float textSizePx;
+  private float maxLabelWidthPx;
   private Matrix frameToCanvasMatrix;
-  private int frameWidth;
-  private int frameHeight;
-  private int sensorOrientation;
+  private final int[] canvasGeometry = new int[5];
+  private boolean geometryChanged;
+  private HeatmapOverlay heatmapOverlay;
 
   public MultiBoxTracker(final Context context) {
     for (final int color : COLORS) {
@@ -87,31 +129,116 @@ public class MultiBoxTracker {
     textSizePx =
         TypedValue.applyDimension(
             TypedValue.COMPLEX_UNIT_DIP, TEXT_SIZE_DIP, context.getResources().getDisplayMetrics());
+    boxPaint.setTextSize(textSizePx);
+
+    interiorPaint.setTextSize(textSizePx);
+    interiorPaint.setColor(Color.WHITE);
+    interiorPaint.setStyle(Style.FILL);
+    interiorPaint.setAntiAlias(false);
+    interiorPaint.setAlpha(255);
+
+    exteriorPaint.setTextSize(textSizePx);
+    exteriorPaint.setColor(Color.BLACK);
+    exteriorPaint.setStyle(Style.FILL_AND_STROKE);
+    exteriorPaint.setStrokeWidth(textSizePx / 8);
+    exteriorPaint.setAntiAlias(false);
+    exteriorPaint.setAlpha(255);
   }
 
-  public synchronized void setFrameConfiguration(
+  public void setFrameConfiguration(
       final int width, final int height, final int sensorOrientation) {
-    frameWidth = width;
-    frameHeight = height;
-    this.sensorOrientation = sensorOrientation;
+    synchronized (writeLock) {
+      trackedObjects.setFrameConfiguration(width, height, sensorOrientation);
+      publisher.publish(trackedObjects);
+    }
+  }
+
+
+  public void trackResults(final List<Recognition> results) {
+    synchronized (writeLock) {
+      trackResults(results, cameraX, cameraY);
+    }
   }
 
+  /**
+   * Tracks results detected in a frame taken at the camera position, the {@link
+   * EgoMotionEstimator#getPositionX() position} of its ego-motion estimator at that frame. Tracks
+   * are predicted to have moved with the image since the previous update before the results are
+   * associated with them.
+   */
+  public void trackResults(
+      final List<Recognition> results, final float cameraX, final float cameraY) {
+    trackResults(results, null, cameraX, cameraY);
+  }
+
+  /**
+   * Tracks results as {@link #trackResults(List, float, float)} does, telling them apart by how
+   * they look in the frames they were detected in.
+   *
+   * @param appearances The frame of each result, at the same index, or null to associate results
+   *     by position only.
+   */
+  public void trackResults(
+      final List<Recognition> results,
+      final List<AppearanceFrame> appearances,
+      final float cameraX,
+      final float cameraY) {
+    synchronized (writeLock) {
+      processResults(results, appearances, cameraX - this.cameraX, cameraY - this.cameraY);
+      this.cameraX = cameraX;
+      this.cameraY = cameraY;
+      publisher.publish(trackedObjects);
+    }
+  }
+
+  /** Returns the number of objects currently tracked. */
+  public int getTrackedCount() {
+    return publisher.latest().size();
+  }
 
-  public synchronized void trackResults(final List<Recognition> results) {
-    processResults(results);
+  /** Returns the most recently published tracks without blocking the tracking thread. */
+  public TrackSnapshot getSnapshot() {
+    return publisher.latest();
   }
 
   private Matrix getFrameToCanvasMatrix() {
     return frameToCanvasMatrix;
   }
 
-  public synchronized void draw(final Canvas canvas, ActivityMainBinding binding) {
+  /**
+   * Recomputes the frame to canvas transformation if the frame configuration or the canvas size
+   * changed since the last call.
+   *
+   * @return false if the frame configuration is not known yet.
+   */
+  private boolean updateFrameToCanvasMatrix(
+      final TrackSnapshot snapshot, final int canvasWidth, final int canvasHeight) {
+    final int frameWidth = snapshot.getFrameWidth();
+    final int frameHeight = snapshot.getFrameHeight();
+    final int sensorOrientation = snapshot.getSensorOrientation();
+    if (frameWidth == 0 || frameHeight == 0) {
+      return false;
+    }
+    if (frameToCanvasMatrix != null
+        && canvasGeometry[0] == frameWidth
+        && canvasGeometry[1] == frameHeight
+        && canvasGeometry[2] == sensorOrientation
+        && canvasGeometry[3] == canvasWidth
+        && canvasGeometry[4] == canvasHeight) {
+      return true;
+    }
+    canvasGeometry[0] = frameWidth;
+    canvasGeometry[1] = frameHeight;
+    canvasGeometry[2] = sensorOrientation;
+    canvasGeometry[3] = canvasWidth;
+    canvasGeometry[4] = canvasHeight;
+    geometryChanged = true;
 
     final boolean rotated = sensorOrientation % 180 == 90;
     final float multiplier =
         Math.min(
-            canvas.getHeight() / (float) (rotated ? frameWidth : frameHeight),
-            canvas.getWidth() / (float) (rotated ? frameHeight : frameWidth));
+            canvasHeight / (float) (rotated ? frameWidth : frameHeight),
+            canvasWidth / (float) (rotated ? frameHeight : frameWidth));
 
     frameToCanvasMatrix =
         ImageUtils.getTransformationMatrix(
@@ -121,42 +248,91 @@ public class MultiBoxTracker {
             (int) (multiplier * (rotated ? frameWidth : frameHeight)),
             sensorOrientation,
             false);
+    return true;
+  }
+
+  /**
+   * Moves the overlay to the display frame at {@code frameTimeNanos}, picking up the latest tracks.
+   * Must be called on the UI thread.
+   *
+   * @param dirty Receives the part of the canvas that has to be redrawn.
+   * @return false if the overlay looks the same as after the previous call.
+   */
+  public boolean advance(
+      final long frameTimeNanos, final int canvasWidth, final int canvasHeight, final Rect dirty) {
+    interpolator.update(publisher.latest());
+    if (!updateFrameToCanvasMatrix(interpolator.getTarget(), canvasWidth, canvasHeight)) {
+      return false;
+    }
+    final boolean moved = interpolator.advance(frameTimeNanos, dirtyFrameRect);
+    if (geometryChanged
+        || (heatmapOverlay != null && heatmapOverlay.isRefreshDue(frameTimeNanos))) {
+      geometryChanged = false;
+      dirty.set(0, 0, canvasWidth, canvasHeight);
+      return true;
+    }
+    if (!moved) {
+      return false;
+    }
+    dirtyCanvasRect.set(dirtyFrameRect[0], dirtyFrameRect[1], dirtyFrameRect[2], dirtyFrameRect[3]);
+    getFrameToCanvasMatrix().mapRect(dirtyCanvasRect);
+    // Box strokes extend beyond the box, labels are drawn above its top left corner.
+    final float margin = boxPaint.getStrokeWidth() / 2 + textSizePx / 8 + 1;
+    dirty.set(
+        (int) Math.floor(dirtyCanvasRect.left - margin),
+        (int) Math.floor(dirtyCanvasRect.top - margin - textSizePx),
+        (int) Math.ceil(
+            Math.max(dirtyCanvasRect.right, dirtyCanvasRect.left + maxLabelWidthPx) + margin),
+        (int) Math.ceil(dirtyCanvasRect.bottom + margin));
+    return true;
+  }
+
+  /** Shows a heatmap under the boxes, or none if null. Must be called on the UI thread. */
+  public void setHeatmapOverlay(final HeatmapOverlay overlay) {
+    heatmapOverlay = overlay;
+    geometryChanged = true;
+  }
+
+  /** Whether boxes are still moving towards the latest tracks. Must be called on the UI thread. */
+  public boolean isAnimating() {
+    return interpolator.isAnimating();
+  }
+
+  /** Draws the boxes at the position of the last {@link #advance} call on the UI thread. */
+  public void draw(final Canvas canvas, ActivityMainBinding binding) {
+    final TrackSnapshot snapshot = interpolator.getTarget();
+    if (!updateFrameToCanvasMatrix(snapshot, canvas.getWidth(), canvas.getHeight())) {
+      return;
+    }
+    if (heatmapOverlay != null) {
+      heatmapOverlay.draw(
+          canvas, getFrameToCanvasMatrix(), snapshot.getFrameWidth(), snapshot.getFrameHeight());
+    }
 
-    for (final TrackedRecognition recognition : trackedObjects) {
-      final RectF trackedPos = new RectF(recognition.location);
+    for (int i = 0; i < snapshot.size(); ++i) {
+      final String title = snapshot.getTitle(i);
+      final float detectionConfidence = snapshot.getConfidence(i);
+      trackedPos.set(
+          interpolator.getLeft(i),
+          interpolator.getTop(i),
+          interpolator.getRight(i),
+          interpolator.getBottom(i));
 
       getFrameToCanvasMatrix().mapRect(trackedPos);
       boxPaint.setColor(Color.BLACK);
-      boxPaint.setTextSize(textSizePx);
-      Paint interiorPaint;
-      Paint exteriorPaint;
-      interiorPaint = new Paint();
-      interiorPaint.setTextSize(textSizePx);
-      interiorPaint.setColor(Color.WHITE);
-      interiorPaint.setStyle(Style.FILL);
-      interiorPaint.setAntiAlias(false);
-      interiorPaint.setAlpha(255);
-
-      exteriorPaint = new Paint();
-      exteriorPaint.setTextSize(textSizePx);
-      exteriorPaint.setColor(Color.BLACK);
-      exteriorPaint.setStyle(Style.FILL_AND_STROKE);
-      exteriorPaint.setStrokeWidth(textSizePx / 8);
-      exteriorPaint.setAntiAlias(false);
-      exteriorPaint.setAlpha(255);
-
-      if ("person".equals(recognition.title) && binding.checkboxPerson.isChecked()) {
-        boxPaint.setColor(Color.parseColor("#3F51B5"));
-      } else if ("bicycle".equals(recognition.title) && binding.checkboxBicycle.isChecked()) {
-        boxPaint.setColor(Color.parseColor("#8BC34A"));
-      } else if ("car".equals(recognition.title) && binding.checkboxCar.isChecked()) {
-        boxPaint.setColor(Color.parseColor("#E91E63"));
-      } else if ("truck".equals(recognition.title) && binding.checkboxTruck.isChecked()) {
-        boxPaint.setColor(Color.parseColor("#FF9800"));
-      } else if ("bus".equals(recognition.title) && binding.checkboxBus.isChecked()) {
-        boxPaint.setColor(Color.parseColor("#9C27B0"));
-      } else if ("train".equals(recognition.title) && binding.checkboxTrain.isChecked()) {
-        boxPaint.setColor(Color.parseColor("#00BCD4"));
+
+      if ("person".equals(title) && binding.checkboxPerson.isChecked()) {
+        boxPaint.setColor(PERSON_COLOR);
+      } else if ("bicycle".equals(title) && binding.checkboxBicycle.isChecked()) {
+        boxPaint.setColor(BICYCLE_COLOR);
+      } else if ("car".equals(title) && binding.checkboxCar.isChecked()) {
+        boxPaint.setColor(CAR_COLOR);
+      } else if ("truck".equals(title) && binding.checkboxTruck.isChecked()) {
+        boxPaint.setColor(TRUCK_COLOR);
+      } else if ("bus".equals(title) && binding.checkboxBus.isChecked()) {
+        boxPaint.setColor(BUS_COLOR);
+      } else if ("train".equals(title) && binding.checkboxTrain.isChecked()) {
+        boxPaint.setColor(TRAIN_COLOR);
       }
 
       if(boxPaint.getColor()==Color.BLACK){
@@ -165,17 +341,29 @@ public class MultiBoxTracker {
 
       canvas.drawRect(trackedPos, boxPaint);
 
-      final String labelString =
-          !TextUtils.isEmpty(recognition.title)
-              ? String.format(Locale.ENGLISH,"%s %.2f", recognition.title, (100 * recognition.detectionConfidence))
-              : String.format(Locale.ENGLISH,"%.2f", (100 * recognition.detectionConfidence));
-      canvas.drawText(labelString + "%" ,trackedPos.left, trackedPos.top, exteriorPaint);
-      canvas.drawText(labelString + "%" ,trackedPos.left, trackedPos.top, interiorPaint);
+      formatLabel(title, detectionConfidence);
+      final int length = label.length();
+      maxLabelWidthPx = Math.max(maxLabelWidthPx, exteriorPaint.measureText(label, 0, length));
+      canvas.drawText(label, 0, length, trackedPos.left, trackedPos.top, exteriorPaint);
+      canvas.drawText(label, 0, length, trackedPos.left, trackedPos.top, interiorPaint);
 
     }
   }
+  /** Writes the title and the confidence as a percentage with two decimals to the label. */
+  private void formatLabel(final String title, final float confidence) {
+    label.setLength(0);
+    if (!TextUtils.isEmpty(title)) {
+      label.append(title).append(' ');
+    }
+    final int hundredths = Math.round(10000 * confidence);
+    label.append(hundredths / 100).append('.');
+    if (hundredths % 100 < 10) {
+      label.append('0');
+    }
+    label.append(hundredths % 100).append('%');
+  }
+
   private boolean isOverlapping(final RectF rect1, final RectF rect2, float ratio){
-    Log.d("top, bottom: ",  rect1.top +" " + rect1.bottom);
     float x_diff = ratio*Math.min(rect1.right-rect1.left, rect2.right-rect2.left);
     float y_diff = ratio*Math.min(rect1.top-rect1.bottom, rect2.top-rect2.bottom);
 
@@ -183,71 +371,107 @@ public class MultiBoxTracker {
             Math.min(rect1.bottom, rect2.bottom) - y_diff < Math.max(rect1.top, rect2.top)); // top is always less than bottom
   }
 
-  private int getArea(RectF location){
-    return (int)((location.right - location.left) * (location.bottom - location.top));
-  }
-  private List<Recognition> removeOverlappingResults(final List<Recognition> rects){
-    List<Recognition> sorted = rects; /*rects.stream().sorted(new Comparator<Recognition>() {
-      @Override
-      public int compare(Recognition o1, Recognition o2) {
-        return getArea(o1.getLocation()) - getArea(o2.getLocation());
-      }
-    }).collect(Collectors.toList());
-
-    for(int i=0; i<sorted.size(); i++){
-      Log.d("field: ", getArea(sorted.get(i).getLocation()) + "");
+  /**
+   * Drops every result that touches a later result of the same title. Keeps the results and, if
+   * given, their appearance frames in filteredAppearances. The later results are looked up in a
+   * grid, so each result is compared with its neighbors only.
+   */
+  private List<Recognition> removeOverlappingResults(
+      final List<Recognition> rects, final List<AppearanceFrame> appearances){
+    filteredResults.clear();
+    filteredAppearances.clear();
+    final int count = rects.size();
+    if (locations.length < count) {
+      locations = new RectF[count];
+      classes = new int[count];
+    }
+    float sizes = 0;
+    for (int i = 0; i < count; ++i) {
+      final Recognition result = rects.get(i);
+      locations[i] = result.getLocation();
+      classes[i] = overlapGrid.classOf(result.getTitle());
+      sizes += Math.max(locations[i].width(), locations[i].height());
+    }
+    overlapGrid.reset(count, count > 0 ? sizes / count : 0);
+    for (int i = 0; i < count; ++i) {
+      final RectF location = locations[i];
+      overlapGrid.add(location.left, location.top, location.right, location.bottom, classes[i]);
     }
-    */
-    List<Recognition> filteredResults = new ArrayList<>();
-
 
-    for(int i=0; i<sorted.size(); i++){
+    for (int i = 0; i < count; ++i) {
+      final RectF location = locations[i];
+      final int found =
+          overlapGrid.query(
+              location.left, location.top, location.right, location.bottom, classes[i]);
       boolean overlapping = false;
-      for(int j=i+1; j<sorted.size(); j++){
-        if(sorted.get(i).getTitle().equals(sorted.get(j).getTitle()) && isOverlapping(sorted.get(i).getLocation(), sorted.get(j).getLocation(), 0)){
-          overlapping = true;
-          break;
-        }
+      for (int k = 0; k < found && !overlapping; ++k) {
+        final int j = overlapGrid.get(k);
+        overlapping = j > i && isOverlapping(location, locations[j], 0);
       }
 
       if (!overlapping){
         filteredResults.add(rects.get(i));
+        filteredAppearances.add(appearances != null ? appearances.get(i) : null);
       }
     }
+    Arrays.fill(locations, 0, count, null);
     return filteredResults;
   }
 
-  private void processResults(final List<Recognition> results) {
-    List<Recognition> filteredResults = removeOverlappingResults(results);
+  private void processResults(
+      final List<Recognition> results,
+      final List<AppearanceFrame> appearances,
+      final float shiftX,
+      final float shiftY) {
+    final List<Recognition> filteredResults = removeOverlappingResults(results, appearances);
 
-    trackedObjects.clear();
+    store.age();
+    store.predict(shiftX, shiftY);
+    associator.begin(store, System.nanoTime());
 
-    for (final Classifier.Recognition result : filteredResults) {
+    for (int i = 0; i < filteredResults.size(); ++i) {
+      final Recognition result = filteredResults.get(i);
+      final AppearanceFrame appearance = filteredAppearances.get(i);
 
-      final RectF detectionFrameRect = new RectF(result.getLocation());
+      detectionFrameRect.set(result.getLocation());
 
       if (detectionFrameRect.width() < MIN_SIZE || detectionFrameRect.height() < MIN_SIZE) {
         continue;
       }
 
-      final TrackedRecognition trackedRecognition = new TrackedRecognition();
-      trackedRecognition.detectionConfidence = result.getConfidence();
-      trackedRecognition.location = new RectF(result.getLocation());
-      trackedRecognition.title = result.getTitle();
-      trackedRecognition.color = COLORS[trackedObjects.size()];
-      trackedObjects.add(trackedRecognition);
-
-      if (trackedObjects.size() >= COLORS.length) {
-        break;
-      }
+      final boolean signed =
+          appearance != null
+              && appearance.computeSignature(
+                  detectionFrameRect.left,
+                  detectionFrameRect.top,
+                  detectionFrameRect.right,
+                  detectionFrameRect.bottom,
+                  signature,
+                  0);
+      final int id =
+          associator.associate(
+              detectionFrameRect.left,
+              detectionFrameRect.top,
+              detectionFrameRect.right,
+              detectionFrameRect.bottom,
+              result.getTitle(),
+              signed ? signature : null,
+              0);
+      final int slot =
+          store.put(
+              id,
+              detectionFrameRect.left,
+              detectionFrameRect.top,
+              detectionFrameRect.right,
+              detectionFrameRect.bottom,
+              result.getConfidence(),
+              result.getTitle(),
+              COLORS[(id & Integer.MAX_VALUE) % COLORS.length]);
+      store.setSignature(slot, signed ? signature : null, 0);
     }
-
-  }
-
-  private static class TrackedRecognition {
-    RectF location;
-    float detectionConfidence;
-    int color;
-    String title;
+    associator.end(0);
+    store.cullExpired(0);
+    trackedObjects.clear();
+    store.writeTo(trackedObjects);
   }
 }
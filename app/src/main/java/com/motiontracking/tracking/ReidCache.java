@@ -0,0 +1,126 @@
+package com.motiontracking.tracking;
+
+/**
+ * Appearance signatures of recently lost tracks, see {@link AppearanceFrame}, so a detection that
+ * starts no track by overlap can take over the identifier of a lost track of the same class that
+ * looks alike. Entries expire after a maximum age; when the cache is full, a new entry replaces the
+ * oldest one. A match removes the entry, so an identifier is never handed out twice.
+ *
+ * <p>Entries live in flat arrays and lookups compare against every entry of the class, which for
+ * a few dozen entries takes microseconds. Not thread-safe; used by the tracking thread only.
+ */
+public class ReidCache {
+  private static final int LENGTH = AppearanceFrame.SIGNATURE_LENGTH;
+
+  private final int capacity;
+  private final long maxAgeNanos;
+  private final float minSimilarity;
+  private final int[] ids;
+  private final String[] titles;
+  private final long[] lostNanos;
+  private final float[] signatures;
+  private int size;
+
+  /**
+   * @param capacity Number of lost tracks remembered.
+   * @param maxAgeNanos How long a lost track can be re-identified.
+   * @param minSimilarity Lowest {@link AppearanceFrame#similarity} of a match.
+   */
+  public ReidCache(final int capacity, final long maxAgeNanos, final float minSimilarity) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("Invalid capacity " + capacity);
+    }
+    this.capacity = capacity;
+    this.maxAgeNanos = maxAgeNanos;
+    this.minSimilarity = minSimilarity;
+    ids = new int[capacity];
+    titles = new String[capacity];
+    lostNanos = new long[capacity];
+    signatures = new float[capacity * LENGTH];
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public void clear() {
+    for (int i = 0; i < size; ++i) {
+      titles[i] = null;
+    }
+    size = 0;
+  }
+
+  /** Remembers a track lost at the time. */
+  public void put(
+      final int id,
+      final String title,
+      final float[] signature,
+      final int offset,
+      final long timeNanos) {
+    evict(timeNanos);
+    int slot = size;
+    if (size == capacity) {
+      slot = 0;
+      for (int i = 1; i < size; ++i) {
+        if (lostNanos[i] < lostNanos[slot]) {
+          slot = i;
+        }
+      }
+    } else {
+      ++size;
+    }
+    ids[slot] = id;
+    titles[slot] = title;
+    lostNanos[slot] = timeNanos;
+    System.arraycopy(signature, offset, signatures, slot * LENGTH, LENGTH);
+  }
+
+  /**
+   * Finds the lost track of the class that looks most like the signature and forgets it.
+   *
+   * @return Its identifier, or -1 if no lost track is similar enough.
+   */
+  public int match(
+      final String title, final float[] signature, final int offset, final long timeNanos) {
+    evict(timeNanos);
+    int best = -1;
+    float bestSimilarity = minSimilarity;
+    for (int i = 0; i < size; ++i) {
+      if (title == null ? titles[i] != null : !title.equals(titles[i])) {
+        continue;
+      }
+      final float similarity =
+          AppearanceFrame.similarity(signature, offset, signatures, i * LENGTH);
+      if (similarity >= bestSimilarity) {
+        best = i;
+        bestSimilarity = similarity;
+      }
+    }
+    if (best < 0) {
+      return -1;
+    }
+    final int id = ids[best];
+    remove(best);
+    return id;
+  }
+
+  private void evict(final long timeNanos) {
+    for (int i = size - 1; i >= 0; --i) {
+      if (timeNanos - lostNanos[i] > maxAgeNanos) {
+        remove(i);
+      }
+    }
+  }
+
+  /** Moves the last entry into the slot. */
+  private void remove(final int slot) {
+    final int last = --size;
+    if (slot != last) {
+      ids[slot] = ids[last];
+      titles[slot] = titles[last];
+      lostNanos[slot] = lostNanos[last];
+      System.arraycopy(signatures, last * LENGTH, signatures, slot * LENGTH, LENGTH);
+    }
+    titles[last] = null;
+  }
+}
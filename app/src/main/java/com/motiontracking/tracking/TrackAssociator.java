@@ -0,0 +1,174 @@
+package com.motiontracking.tracking;
+
+import java.util.Arrays;
+
+/**
+ * Gives detections the identifiers of the tracks they continue. Each detection takes over the
+ * unclaimed track of a {@link TrackStore} with the same title that overlaps it most, provided the
+ * intersection over union reaches a minimum; otherwise it starts a new track.
+ *
+ * <p>Detections are compared with the boxes the store holds when the update begins, so tracks
+ * should be {@link TrackStore#predict predicted} first: a track that moves, or that coasts through
+ * frames it was missed in, is then matched where it is expected rather than where it was last seen.
+ * When the camera moves, the prediction includes the shift of the image, see {@link
+ * EgoMotionEstimator}. The tracks are looked up in a {@link BoxGrid}, so an update with thousands
+ * of tracks compares each detection with the few tracks around it only.
+ *
+ * <p>With a {@link ReidCache}, detections carry appearance signatures, which the caller keeps with
+ * the tracks in the store. Tracks that end with the update are remembered in the cache, and a
+ * detection that would start a new track first looks for a lost track that looks alike, so objects
+ * keep their identifier across short occlusions.
+ *
+ * <p>Used by one writer at a time: {@link #begin} with the store, {@link #associate} for every
+ * detection of the update followed by its {@link TrackStore#put}, and {@link #end} before the
+ * store culls the tracks that ended.
+ */
+public class TrackAssociator {
+  private static final int LENGTH = AppearanceFrame.SIGNATURE_LENGTH;
+
+  private final float minIou;
+  private final ReidCache reidCache;
+  private final BoxGrid grid = new BoxGrid();
+  private TrackStore store;
+  // Slot of each track in the grid, and whether a detection of the update continues it.
+  private int[] slots = new int[16];
+  private boolean[] claimed = new boolean[16];
+  private int count;
+  private int nextId;
+  private long timeNanos;
+
+  /** @param minIou Minimum intersection over union for a detection to continue a track. */
+  public TrackAssociator(final float minIou) {
+    this(minIou, null);
+  }
+
+  /** @param reidCache Lost tracks to re-identify by appearance, or null for none. */
+  public TrackAssociator(final float minIou, final ReidCache reidCache) {
+    this.minIou = minIou;
+    this.reidCache = reidCache;
+  }
+
+  /**
+   * Starts an update at the time, which ages the lost tracks of the re-identification cache, that
+   * continues the live tracks of the store at their current boxes.
+   */
+  public void begin(final TrackStore store, final long timeNanos) {
+    this.store = store;
+    this.timeNanos = timeNanos;
+    count = store.size();
+    if (slots.length < count) {
+      slots = new int[count];
+      claimed = new boolean[count];
+    } else {
+      Arrays.fill(claimed, 0, count, false);
+    }
+    float sizes = 0;
+    for (int i = 0; i < count; ++i) {
+      final int slot = store.getSlot(i);
+      sizes +=
+          Math.max(
+              store.getRight(slot) - store.getLeft(slot),
+              store.getBottom(slot) - store.getTop(slot));
+    }
+    grid.reset(count, count > 0 ? sizes / count : 0);
+    for (int i = 0; i < count; ++i) {
+      final int slot = store.getSlot(i);
+      slots[i] = slot;
+      grid.add(
+          store.getLeft(slot),
+          store.getTop(slot),
+          store.getRight(slot),
+          store.getBottom(slot),
+          grid.classOf(store.getTitle(slot)));
+    }
+  }
+
+  /** Returns the identifier of the track the detection continues, or a new identifier. */
+  public int associate(
+      final float left,
+      final float top,
+      final float right,
+      final float bottom,
+      final String title) {
+    return associate(left, top, right, bottom, title, null, 0);
+  }
+
+  /**
+   * Returns the identifier of the track the detection continues, of a lost track it looks like, or
+   * a new identifier.
+   *
+   * @param signature Appearance of the detection at {@code offset}, or null if unknown.
+   */
+  public int associate(
+      final float left,
+      final float top,
+      final float right,
+      final float bottom,
+      final String title,
+      final float[] signature,
+      final int offset) {
+    int best = -1;
+    float bestIou = minIou;
+    final int found = grid.query(left, top, right, bottom, grid.classOf(title));
+    for (int k = 0; k < found; ++k) {
+      final int i = grid.get(k);
+      if (claimed[i]) {
+        continue;
+      }
+      final float iou = intersectionOverUnion(store, slots[i], left, top, right, bottom);
+      if (iou >= bestIou) {
+        best = i;
+        bestIou = iou;
+      }
+    }
+    if (best < 0) {
+      if (reidCache != null && signature != null) {
+        final int id = reidCache.match(title, signature, offset, timeNanos);
+        if (id >= 0) {
+          return id;
+        }
+      }
+      return nextId++;
+    }
+    claimed[best] = true;
+    return store.getId(slots[best]);
+  }
+
+  /**
+   * Ends the update, remembering the tracks that went undetected for more than {@code maxMisses}
+   * updates, which the store is about to {@link TrackStore#cullExpired cull}, as lost.
+   */
+  public void end(final int maxMisses) {
+    if (reidCache == null) {
+      return;
+    }
+    final float[] signatures = store.getSignatures();
+    for (int i = 0; i < count; ++i) {
+      final int slot = slots[i];
+      if (!claimed[i] && store.getMisses(slot) > maxMisses && store.hasSignature(slot)) {
+        reidCache.put(
+            store.getId(slot), store.getTitle(slot), signatures, slot * LENGTH, timeNanos);
+      }
+    }
+  }
+
+  static float intersectionOverUnion(
+      final TrackStore store,
+      final int slot,
+      final float left,
+      final float top,
+      final float right,
+      final float bottom) {
+    final float interLeft = Math.max(store.getLeft(slot), left);
+    final float interTop = Math.max(store.getTop(slot), top);
+    final float interRight = Math.min(store.getRight(slot), right);
+    final float interBottom = Math.min(store.getBottom(slot), bottom);
+    if (interRight <= interLeft || interBottom <= interTop) {
+      return 0;
+    }
+    final float intersection = (interRight - interLeft) * (interBottom - interTop);
+    final float area =
+        (store.getRight(slot) - store.getLeft(slot)) * (store.getBottom(slot) - store.getTop(slot));
+    return intersection / (area + (right - left) * (bottom - top) - intersection);
+  }
+}
@@ -0,0 +1,202 @@
+package com.motiontracking.tracking;
+
+import java.util.Arrays;
+
+/**
+ * An immutable view of all tracked objects at one point in time, together with the frame geometry
+ * they refer to. Snapshots are built by the tracking thread and handed to the renderer through a
+ * {@link TrackSnapshotPublisher}; since nothing in a published snapshot ever changes, readers need
+ * no locks.
+ */
+public final class TrackSnapshot {
+  public static final TrackSnapshot EMPTY =
+      new TrackSnapshot(
+          0, 0, 0, 0, 0, 0, new int[0], new float[0], new float[0], new String[0], new int[0]);
+
+  private final long version;
+  private final long timestampNanos;
+  private final int frameWidth;
+  private final int frameHeight;
+  private final int sensorOrientation;
+  private final int count;
+  private final int[] ids;
+  // left, top, right, bottom per track, in frame coordinates.
+  private final float[] boxes;
+  private final float[] confidences;
+  private final String[] titles;
+  private final int[] colors;
+
+  private TrackSnapshot(
+      final long version,
+      final long timestampNanos,
+      final int frameWidth,
+      final int frameHeight,
+      final int sensorOrientation,
+      final int count,
+      final int[] ids,
+      final float[] boxes,
+      final float[] confidences,
+      final String[] titles,
+      final int[] colors) {
+    this.version = version;
+    this.timestampNanos = timestampNanos;
+    this.frameWidth = frameWidth;
+    this.frameHeight = frameHeight;
+    this.sensorOrientation = sensorOrientation;
+    this.count = count;
+    this.ids = ids;
+    this.boxes = boxes;
+    this.confidences = confidences;
+    this.titles = titles;
+    this.colors = colors;
+  }
+
+  /** Increases with every published snapshot. */
+  public long getVersion() {
+    return version;
+  }
+
+  /** {@link System#nanoTime()} at which the snapshot was published. */
+  public long getTimestampNanos() {
+    return timestampNanos;
+  }
+
+  public int getFrameWidth() {
+    return frameWidth;
+  }
+
+  public int getFrameHeight() {
+    return frameHeight;
+  }
+
+  public int getSensorOrientation() {
+    return sensorOrientation;
+  }
+
+  public int size() {
+    return count;
+  }
+
+  /** Identifier of the track, stable across snapshots for as long as the object is tracked. */
+  public int getId(final int i) {
+    return ids[i];
+  }
+
+  /** Index of the track with the given identifier, -1 if it is not part of this snapshot. */
+  public int indexOf(final int id) {
+    for (int i = 0; i < count; ++i) {
+      if (ids[i] == id) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  public float getLeft(final int i) {
+    return boxes[4 * i];
+  }
+
+  public float getTop(final int i) {
+    return boxes[4 * i + 1];
+  }
+
+  public float getRight(final int i) {
+    return boxes[4 * i + 2];
+  }
+
+  public float getBottom(final int i) {
+    return boxes[4 * i + 3];
+  }
+
+  public float getConfidence(final int i) {
+    return confidences[i];
+  }
+
+  public String getTitle(final int i) {
+    return titles[i];
+  }
+
+  public int getColor(final int i) {
+    return colors[i];
+  }
+
+  /**
+   * Collects the state of the next snapshot. A builder belongs to the tracking thread and is reused
+   * from update to update; {@link #build} copies its contents, so the builder can be cleared and
+   * refilled right after.
+   */
+  public static final class Builder {
+    private int frameWidth;
+    private int frameHeight;
+    private int sensorOrientation;
+    private int count;
+    private int[] ids = new int[16];
+    private float[] boxes = new float[4 * 16];
+    private float[] confidences = new float[16];
+    private String[] titles = new String[16];
+    private int[] colors = new int[16];
+
+    public Builder setFrameConfiguration(
+        final int width, final int height, final int sensorOrientation) {
+      frameWidth = width;
+      frameHeight = height;
+      this.sensorOrientation = sensorOrientation;
+      return this;
+    }
+
+    public int size() {
+      return count;
+    }
+
+    public Builder clear() {
+      Arrays.fill(titles, 0, count, null);
+      count = 0;
+      return this;
+    }
+
+    public Builder add(
+        final int id,
+        final float left,
+        final float top,
+        final float right,
+        final float bottom,
+        final float confidence,
+        final String title,
+        final int color) {
+      if (count == colors.length) {
+        final int capacity = 2 * count;
+        ids = Arrays.copyOf(ids, capacity);
+        boxes = Arrays.copyOf(boxes, 4 * capacity);
+        confidences = Arrays.copyOf(confidences, capacity);
+        titles = Arrays.copyOf(titles, capacity);
+        colors = Arrays.copyOf(colors, capacity);
+      }
+      final int b = 4 * count;
+      ids[count] = id;
+      boxes[b] = left;
+      boxes[b + 1] = top;
+      boxes[b + 2] = right;
+      boxes[b + 3] = bottom;
+      confidences[count] = confidence;
+      titles[count] = title;
+      colors[count] = color;
+      ++count;
+      return this;
+    }
+
+    TrackSnapshot build(final long version, final long timestampNanos) {
+      return new TrackSnapshot(
+          version,
+          timestampNanos,
+          frameWidth,
+          frameHeight,
+          sensorOrientation,
+          count,
+          Arrays.copyOf(ids, count),
+          Arrays.copyOf(boxes, 4 * count),
+          Arrays.copyOf(confidences, count),
+          Arrays.copyOf(titles, count),
+          Arrays.copyOf(colors, count));
+    }
+  }
+}
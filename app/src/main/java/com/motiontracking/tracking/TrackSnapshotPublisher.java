@@ -0,0 +1,29 @@
+package com.motiontracking.tracking;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Hands {@link TrackSnapshot}s from the tracking thread to any number of readers. Publishing builds
+ * a new immutable snapshot and swaps a single reference; reading is a single volatile load. Neither
+ * side ever blocks the other.
+ */
+public class TrackSnapshotPublisher {
+  private final AtomicReference<TrackSnapshot> latest =
+      new AtomicReference<>(TrackSnapshot.EMPTY);
+  private long version;
+
+  /**
+   * Publishes the builder's current contents. Calls must not overlap; a single tracking thread, or
+   * writers serialized by the caller, publish while readers call {@link #latest()} concurrently.
+   */
+  public TrackSnapshot publish(final TrackSnapshot.Builder builder) {
+    final TrackSnapshot snapshot = builder.build(++version, System.nanoTime());
+    latest.set(snapshot);
+    return snapshot;
+  }
+
+  /** The most recently published snapshot, never null. */
+  public TrackSnapshot latest() {
+    return latest.get();
+  }
+}
@@ -0,0 +1,464 @@
+package com.motiontracking.tracking;
+
+import com.motiontracking.utils.IntIntMap;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The live tracks of a tracker, for anything from a handful to many thousands of them. Every track
+ * occupies a slot in parallel primitive arrays: identifier, box, velocity, confidence, color,
+ * appearance, age and the number of consecutive updates it went undetected. A slot keeps its index for the life of
+ * the track, and an index from identifier to slot finds the track of a detection without a scan.
+ * Slots of removed tracks go on a free list and are handed out again before the arrays grow, so the
+ * live slots stay packed at the start of the arrays.
+ *
+ * <p>The live slots are also listed densely, which is what the bulk operations, {@link #predict},
+ * {@link #age} and {@link #cullExpired}, and the {@link #writeTo copy} into a snapshot iterate.
+ * Prediction and aging touch every track and nothing else, so with more than one thread large
+ * stores are split into bands of tracks that are processed in parallel.
+ *
+ * <p>Worker threads are only started once a store is large enough to be split, and stop again when
+ * it has not been for a while, so a store sized for the device's cores costs nothing while it holds
+ * a few dozen tracks.
+ *
+ * <p>Velocities are in frame pixels per update. A track's velocity is corrected by the difference
+ * between where it was predicted and where it was detected, as in an alpha-beta filter that trusts
+ * detections fully for the position.
+ *
+ * <p>Not thread-safe; used by the tracking thread only.
+ */
+public final class TrackStore {
+  // Tracks per parallel band; fewer are moved on the calling thread faster than handed over.
+  private static final int MIN_TRACKS_PER_BAND = 4096;
+  // Share of the prediction error that corrects the velocity.
+  private static final float VELOCITY_GAIN = 0.5f;
+  private static final long WORKER_KEEP_ALIVE_SECONDS = 10;
+  private static final int SIGNATURE_LENGTH = AppearanceFrame.SIGNATURE_LENGTH;
+
+  /** Runs over a range of the dense list. */
+  private interface Operation {
+    void run(int start, int end);
+  }
+
+  private final int threads;
+  private final ExecutorService executor;
+  private final Future<?>[] futures;
+  private final IntIntMap slots;
+  private int capacity;
+  private int[] ids;
+  // left, top, right, bottom per slot, in frame coordinates.
+  private float[] boxes;
+  // x and y per slot.
+  private float[] velocities;
+  private float[] confidences;
+  private String[] titles;
+  private int[] colors;
+  private int[] ages;
+  private int[] misses;
+  // Appearance per slot, allocated with the first signature; see AppearanceFrame.
+  private float[] signatures;
+  private boolean[] signed;
+  // Live slots, and the position of each live slot in that list.
+  private int[] dense;
+  private int[] positions;
+  private int size;
+  private int[] free;
+  private int freeCount;
+  // Slots handed out at least once.
+  private int used;
+  // Arguments of the running prediction.
+  private float shiftX;
+  private float shiftY;
+
+  private final Operation predictOperation =
+      new Operation() {
+        @Override
+        public void run(final int start, final int end) {
+          predictRange(start, end);
+        }
+      };
+  private final Operation ageOperation =
+      new Operation() {
+        @Override
+        public void run(final int start, final int end) {
+          ageRange(start, end);
+        }
+      };
+
+  /**
+   * @param initialCapacity Tracks held before the arrays grow.
+   * @param threads Number of threads to split bulk operations over; 1 runs them inline.
+   */
+  public TrackStore(final int initialCapacity, final int threads) {
+    this.threads = Math.max(1, threads);
+    capacity = Math.max(16, initialCapacity);
+    slots = new IntIntMap(capacity);
+    ids = new int[capacity];
+    boxes = new float[4 * capacity];
+    velocities = new float[2 * capacity];
+    confidences = new float[capacity];
+    titles = new String[capacity];
+    colors = new int[capacity];
+    ages = new int[capacity];
+    misses = new int[capacity];
+    dense = new int[capacity];
+    positions = new int[capacity];
+    free = new int[capacity];
+    futures = new Future<?>[this.threads];
+    signed = new boolean[capacity];
+    if (this.threads > 1) {
+      final ThreadPoolExecutor pool =
+          new ThreadPoolExecutor(
+              this.threads - 1,
+              this.threads - 1,
+              WORKER_KEEP_ALIVE_SECONDS,
+              TimeUnit.SECONDS,
+              new LinkedBlockingQueue<Runnable>(),
+              new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                  final Thread thread = new Thread(r, "TrackStore");
+                  thread.setDaemon(true);
+                  return thread;
+                }
+              });
+      pool.allowCoreThreadTimeOut(true);
+      executor = pool;
+    } else {
+      executor = null;
+    }
+  }
+
+  /** Stops the worker threads. */
+  public void close() {
+    if (executor != null) {
+      executor.shutdown();
+    }
+  }
+
+  /** Number of live tracks. */
+  public int size() {
+    return size;
+  }
+
+  /** Slot of the {@code i}th live track, for {@code i} below {@link #size()}. */
+  public int getSlot(final int i) {
+    return dense[i];
+  }
+
+  /** Slot of the track with the identifier, -1 if there is none. */
+  public int slotOf(final int id) {
+    return slots.get(id, -1);
+  }
+
+  /** Number of slots ever handed out, live or free; the arrays are at least this long. */
+  public int getSlotCount() {
+    return used;
+  }
+
+  public int getId(final int slot) {
+    return ids[slot];
+  }
+
+  public float getLeft(final int slot) {
+    return boxes[4 * slot];
+  }
+
+  public float getTop(final int slot) {
+    return boxes[4 * slot + 1];
+  }
+
+  public float getRight(final int slot) {
+    return boxes[4 * slot + 2];
+  }
+
+  public float getBottom(final int slot) {
+    return boxes[4 * slot + 3];
+  }
+
+  public float getVelocityX(final int slot) {
+    return velocities[2 * slot];
+  }
+
+  public float getVelocityY(final int slot) {
+    return velocities[2 * slot + 1];
+  }
+
+  public float getConfidence(final int slot) {
+    return confidences[slot];
+  }
+
+  public String getTitle(final int slot) {
+    return titles[slot];
+  }
+
+  public int getColor(final int slot) {
+    return colors[slot];
+  }
+
+  /** Whether the track's last detection came with an appearance signature. */
+  public boolean hasSignature(final int slot) {
+    return signed[slot];
+  }
+
+  /**
+   * Appearance signatures of all slots, {@link AppearanceFrame#SIGNATURE_LENGTH} values from
+   * {@code slot * SIGNATURE_LENGTH}; valid for the slots that {@link #hasSignature have one}.
+   */
+  float[] getSignatures() {
+    return signatures;
+  }
+
+  /**
+   * Sets the appearance of the track's last detection.
+   *
+   * @param signature Signature at {@code offset}, or null if the detection had none.
+   */
+  public void setSignature(final int slot, final float[] signature, final int offset) {
+    signed[slot] = signature != null;
+    if (signature == null) {
+      return;
+    }
+    if (signatures == null) {
+      signatures = new float[SIGNATURE_LENGTH * capacity];
+    }
+    System.arraycopy(signature, offset, signatures, slot * SIGNATURE_LENGTH, SIGNATURE_LENGTH);
+  }
+
+  /** Number of times the track was {@link #age aged} since it started. */
+  public int getAge(final int slot) {
+    return ages[slot];
+  }
+
+  /** Number of times the track was aged since it was last detected. */
+  public int getMisses(final int slot) {
+    return misses[slot];
+  }
+
+  /**
+   * Records a detection of the track with the identifier, starting the track if there is none.
+   * The box replaces the predicted one and the track counts as detected again.
+   *
+   * @param color Color of a new track; a continued track keeps its own.
+   * @return The slot of the track.
+   */
+  public int put(
+      final int id,
+      final float left,
+      final float top,
+      final float right,
+      final float bottom,
+      final float confidence,
+      final String title,
+      final int color) {
+    int slot = slots.get(id, -1);
+    final int b;
+    if (slot < 0) {
+      slot = allocate();
+      slots.put(id, slot);
+      ids[slot] = id;
+      colors[slot] = color;
+      ages[slot] = 0;
+      signed[slot] = false;
+      velocities[2 * slot] = 0;
+      velocities[2 * slot + 1] = 0;
+      b = 4 * slot;
+    } else {
+      b = 4 * slot;
+      // Twice the distance between the detected and the predicted centers.
+      final float errorX = left + right - boxes[b] - boxes[b + 2];
+      final float errorY = top + bottom - boxes[b + 1] - boxes[b + 3];
+      velocities[2 * slot] += VELOCITY_GAIN / 2 * errorX;
+      velocities[2 * slot + 1] += VELOCITY_GAIN / 2 * errorY;
+    }
+    boxes[b] = left;
+    boxes[b + 1] = top;
+    boxes[b + 2] = right;
+    boxes[b + 3] = bottom;
+    confidences[slot] = confidence;
+    titles[slot] = title;
+    misses[slot] = 0;
+    return slot;
+  }
+
+  /** Removes the track with the identifier, returning false if there is none. */
+  public boolean remove(final int id) {
+    final int slot = slots.get(id, -1);
+    if (slot < 0) {
+      return false;
+    }
+    release(slot);
+    return true;
+  }
+
+  public void clear() {
+    Arrays.fill(titles, 0, used, null);
+    slots.clear();
+    size = 0;
+    freeCount = 0;
+    used = 0;
+  }
+
+  /**
+   * Moves every track by its velocity and by the shift of the image since the previous update, in
+   * frame coordinates.
+   */
+  public void predict(final float shiftX, final float shiftY) {
+    this.shiftX = shiftX;
+    this.shiftY = shiftY;
+    forEachBand(predictOperation);
+  }
+
+  /** Counts an update for every track, as one more it went undetected until it is {@link #put}. */
+  public void age() {
+    forEachBand(ageOperation);
+  }
+
+  /**
+   * Removes the tracks that went undetected for more than {@code maxMisses} updates.
+   *
+   * @return The number of tracks removed.
+   */
+  public int cullExpired(final int maxMisses) {
+    final int before = size;
+    // Backwards, so the track moved into a released position has been looked at already.
+    for (int i = size - 1; i >= 0; --i) {
+      final int slot = dense[i];
+      if (misses[slot] > maxMisses) {
+        release(slot);
+      }
+    }
+    return before - size;
+  }
+
+  /** Adds every live track to the builder, in dense order. */
+  public void writeTo(final TrackSnapshot.Builder builder) {
+    for (int i = 0; i < size; ++i) {
+      final int slot = dense[i];
+      final int b = 4 * slot;
+      builder.add(
+          ids[slot],
+          boxes[b],
+          boxes[b + 1],
+          boxes[b + 2],
+          boxes[b + 3],
+          confidences[slot],
+          titles[slot],
+          colors[slot]);
+    }
+  }
+
+  private void predictRange(final int start, final int end) {
+    final int[] dense = this.dense;
+    final float[] boxes = this.boxes;
+    final float[] velocities = this.velocities;
+    final float shiftX = this.shiftX;
+    final float shiftY = this.shiftY;
+    for (int i = start; i < end; ++i) {
+      final int slot = dense[i];
+      final float dx = velocities[2 * slot] + shiftX;
+      final float dy = velocities[2 * slot + 1] + shiftY;
+      final int b = 4 * slot;
+      boxes[b] += dx;
+      boxes[b + 1] += dy;
+      boxes[b + 2] += dx;
+      boxes[b + 3] += dy;
+    }
+  }
+
+  private void ageRange(final int start, final int end) {
+    final int[] dense = this.dense;
+    final int[] ages = this.ages;
+    final int[] misses = this.misses;
+    for (int i = start; i < end; ++i) {
+      final int slot = dense[i];
+      ++ages[slot];
+      ++misses[slot];
+    }
+  }
+
+  private void forEachBand(final Operation operation) {
+    final int bands = Math.min(threads, Math.max(1, size / MIN_TRACKS_PER_BAND));
+    if (bands == 1) {
+      operation.run(0, size);
+      return;
+    }
+    for (int band = 1; band < bands; ++band) {
+      final int start = size * band / bands;
+      final int end = size * (band + 1) / bands;
+      futures[band] =
+          executor.submit(
+              new Runnable() {
+                @Override
+                public void run() {
+                  operation.run(start, end);
+                }
+              });
+    }
+    // The calling thread takes the first band instead of waiting idle.
+    operation.run(0, size / bands);
+    try {
+      for (int band = 1; band < bands; ++band) {
+        futures[band].get();
+        futures[band] = null;
+      }
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while updating tracks", e);
+    } catch (final ExecutionException e) {
+      throw new IllegalStateException("Updating tracks failed", e.getCause());
+    }
+  }
+
+  private int allocate() {
+    final int slot;
+    if (freeCount > 0) {
+      slot = free[--freeCount];
+    } else {
+      if (used == capacity) {
+        grow();
+      }
+      slot = used++;
+    }
+    dense[size] = slot;
+    positions[slot] = size;
+    ++size;
+    return slot;
+  }
+
+  private void release(final int slot) {
+    slots.remove(ids[slot], -1);
+    titles[slot] = null;
+    final int position = positions[slot];
+    final int last = dense[--size];
+    dense[position] = last;
+    positions[last] = position;
+    free[freeCount++] = slot;
+  }
+
+  private void grow() {
+    capacity *= 2;
+    ids = Arrays.copyOf(ids, capacity);
+    boxes = Arrays.copyOf(boxes, 4 * capacity);
+    velocities = Arrays.copyOf(velocities, 2 * capacity);
+    confidences = Arrays.copyOf(confidences, capacity);
+    titles = Arrays.copyOf(titles, capacity);
+    colors = Arrays.copyOf(colors, capacity);
+    ages = Arrays.copyOf(ages, capacity);
+    misses = Arrays.copyOf(misses, capacity);
+    signed = Arrays.copyOf(signed, capacity);
+    if (signatures != null) {
+      signatures = Arrays.copyOf(signatures, SIGNATURE_LENGTH * capacity);
+    }
+    dense = Arrays.copyOf(dense, capacity);
+    positions = Arrays.copyOf(positions, capacity);
+    free = Arrays.copyOf(free, capacity);
+  }
+}
@@ -0,0 +1,144 @@
+package com.motiontracking.utils;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts the bytes each stage of the frame pipeline allocates, to find the stages that feed the
+ * garbage collector frame after frame. A stage is measured between {@link #start()} and {@link
+ * #stop}, on one thread; stages may run on different threads, and the same stage on several.
+ *
+ * <p>The bytes come from a {@link Counter} of the calling thread's allocations, which the platform
+ * provides: the runtime's allocation counting on the device, the thread management bean on a
+ * desktop JVM. Whatever the counter itself allocates per measurement is measured when the meter is
+ * created and subtracted. With {@link Counter#NONE} measuring costs nothing, so the calls can stay
+ * in the frame path when the instrumentation is off.
+ */
+public final class AllocationMeter {
+  /** Bytes the calling thread allocated since some fixed point, or a negative value if unknown. */
+  public interface Counter {
+    Counter NONE =
+        new Counter() {
+          @Override
+          public long getAllocatedBytes() {
+            return -1;
+          }
+        };
+
+    long getAllocatedBytes();
+  }
+
+  private static final int CALIBRATION_ROUNDS = 16;
+
+  private final Counter counter;
+  private final String[] stages;
+  private final long overhead;
+  private final AtomicLongArray bytes;
+  private final AtomicLongArray calls;
+  private final AtomicLong frames = new AtomicLong();
+
+  /** @param stages Names of the stages, which are then referred to by their index. */
+  public AllocationMeter(final Counter counter, final String... stages) {
+    this.counter = counter;
+    this.stages = stages.clone();
+    bytes = new AtomicLongArray(stages.length);
+    calls = new AtomicLongArray(stages.length);
+    long overhead = Long.MAX_VALUE;
+    for (int i = 0; i < CALIBRATION_ROUNDS; ++i) {
+      final long start = counter.getAllocatedBytes();
+      overhead = Math.min(overhead, counter.getAllocatedBytes() - start);
+    }
+    this.overhead = Math.max(0, overhead);
+  }
+
+  /** Whether the counter measures anything. */
+  public boolean isEnabled() {
+    return counter.getAllocatedBytes() >= 0;
+  }
+
+  public int getStageCount() {
+    return stages.length;
+  }
+
+  public String getStageName(final int stage) {
+    return stages[stage];
+  }
+
+  /** Starts measuring a stage on the calling thread; the result goes to {@link #stop}. */
+  public long start() {
+    return counter.getAllocatedBytes();
+  }
+
+  /** Adds what the calling thread allocated since {@code start} to the stage. */
+  public void stop(final int stage, final long start) {
+    if (start < 0) {
+      return;
+    }
+    final long allocated = counter.getAllocatedBytes() - start - overhead;
+    bytes.addAndGet(stage, Math.max(0, allocated));
+    calls.incrementAndGet(stage);
+  }
+
+  /** Counts a frame, whichever of the stages ran for it. */
+  public void endFrame() {
+    frames.incrementAndGet();
+  }
+
+  public long getFrames() {
+    return frames.get();
+  }
+
+  public long getBytes(final int stage) {
+    return bytes.get(stage);
+  }
+
+  public long getCalls(final int stage) {
+    return calls.get(stage);
+  }
+
+  /** Bytes the stage allocated per frame, counting the frames the stage skipped. */
+  public double getBytesPerFrame(final int stage) {
+    final long counted = frames.get();
+    return counted > 0 ? bytes.get(stage) / (double) counted : 0;
+  }
+
+  /** Bytes all stages allocated per frame. */
+  public double getTotalBytesPerFrame() {
+    double total = 0;
+    for (int i = 0; i < stages.length; ++i) {
+      total += getBytesPerFrame(i);
+    }
+    return total;
+  }
+
+  /** Forgets the measurements so far, for instance once the pipeline has warmed up. */
+  public void reset() {
+    for (int i = 0; i < stages.length; ++i) {
+      bytes.set(i, 0);
+      calls.set(i, 0);
+    }
+    frames.set(0);
+  }
+
+  @Override
+  public String toString() {
+    final StringBuilder builder =
+        new StringBuilder(
+            String.format(
+                Locale.ENGLISH,
+                "%.0f B/frame over %d frames:",
+                getTotalBytesPerFrame(),
+                frames.get()));
+    for (int i = 0; i < stages.length; ++i) {
+      builder.append(
+          String.format(
+              Locale.ENGLISH,
+              " %s %.0f B/frame (%d runs)",
+              stages[i],
+              getBytesPerFrame(i),
+              calls.get(i)));
+    }
+    return builder.toString();
+  }
+}
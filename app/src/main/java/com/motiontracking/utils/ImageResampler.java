@@ -0,0 +1,728 @@
+package com.motiontracking.utils;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Crops, rotates by multiples of 90 degrees and scales ARGB images in plain Java, using the same
+ * geometry as {@link ImageUtils#getTransformationMatrix}: a destination pixel gets the color of the
+ * source point its center maps to under the inverse of that transformation.
+ *
+ * <p>For every geometry a plan of per-column and per-row source offsets and fixed-point weights is
+ * computed once and cached, so resampling a frame is a table lookup per pixel. Rotations only swap
+ * which table indexes source rows and which source columns. Destination rows are split into bands
+ * that run in parallel when the resampler was created with more than one thread.
+ */
+public class ImageResampler {
+  /** How destination pixels are computed from the source pixels they cover. */
+  public enum Filter {
+    /** The source pixel the destination pixel center falls into. */
+    NEAREST,
+    /** Bilinear interpolation between the four source pixels nearest to the center. */
+    BILINEAR,
+    /** Average of all source pixels covered by the destination pixel, weighted by coverage. */
+    AREA
+  }
+
+  /** Color of destination pixels whose center maps outside the source image. */
+  public static final int OUTSIDE_COLOR = 0xff000000;
+
+  private static final int MAX_CACHED_PLANS = 16;
+  // Rows per parallel band; smaller bands cost more in scheduling than they gain.
+  private static final int MIN_ROWS_PER_BAND = 16;
+  private static final int BILINEAR_BITS = 8;
+  private static final int BILINEAR_ONE = 1 << BILINEAR_BITS;
+  private static final int AREA_BITS = 12;
+  private static final int AREA_ONE = 1 << AREA_BITS;
+  // Bits kept from the horizontal pass of the area filter for the vertical one.
+  private static final int AREA_INTERMEDIATE_BITS = 8;
+
+  /**
+   * Where a resampled image comes from and what it looks like. Two geometries with equal values
+   * share a cached plan. The source region can be moved, so that a pipeline cropping a different
+   * part of every frame reuses one geometry; the cache keeps copies.
+   */
+  public static final class Geometry {
+    private final int srcWidth;
+    private final int srcHeight;
+    private int regionLeft;
+    private int regionTop;
+    private int regionWidth;
+    private int regionHeight;
+    private final int dstWidth;
+    private final int dstHeight;
+    private final int rotation;
+    private final boolean maintainAspectRatio;
+    private final Filter filter;
+
+    /**
+     * @param srcWidth Width and row stride of the source pixels.
+     * @param srcHeight Height of the source pixels.
+     * @param regionLeft Left edge of the part of the source to transform.
+     * @param regionTop Top edge of the part of the source to transform.
+     * @param regionWidth Width of the part of the source to transform.
+     * @param regionHeight Height of the part of the source to transform.
+     * @param dstWidth Width of the destination.
+     * @param dstHeight Height of the destination.
+     * @param rotation Rotation from source to destination, a multiple of 90 degrees.
+     * @param maintainAspectRatio Whether to scale both axes alike, cropping the region if needed.
+     * @param filter How to sample the source.
+     */
+    public Geometry(
+        final int srcWidth,
+        final int srcHeight,
+        final int regionLeft,
+        final int regionTop,
+        final int regionWidth,
+        final int regionHeight,
+        final int dstWidth,
+        final int dstHeight,
+        final int rotation,
+        final boolean maintainAspectRatio,
+        final Filter filter) {
+      if (rotation % 90 != 0) {
+        throw new IllegalArgumentException("Rotation " + rotation + " is not a multiple of 90");
+      }
+      if (srcWidth <= 0
+          || srcHeight <= 0
+          || regionWidth <= 0
+          || regionHeight <= 0
+          || dstWidth <= 0
+          || dstHeight <= 0) {
+        throw new IllegalArgumentException(
+            String.format(
+                Locale.ENGLISH,
+                "Invalid geometry: source %dx%d, region %dx%d, destination %dx%d",
+                srcWidth,
+                srcHeight,
+                regionWidth,
+                regionHeight,
+                dstWidth,
+                dstHeight));
+      }
+      this.srcWidth = srcWidth;
+      this.srcHeight = srcHeight;
+      this.regionLeft = regionLeft;
+      this.regionTop = regionTop;
+      this.regionWidth = regionWidth;
+      this.regionHeight = regionHeight;
+      this.dstWidth = dstWidth;
+      this.dstHeight = dstHeight;
+      this.rotation = rotation;
+      this.maintainAspectRatio = maintainAspectRatio;
+      this.filter = filter;
+    }
+
+    private Geometry(final Geometry other) {
+      this(
+          other.srcWidth,
+          other.srcHeight,
+          other.regionLeft,
+          other.regionTop,
+          other.regionWidth,
+          other.regionHeight,
+          other.dstWidth,
+          other.dstHeight,
+          other.rotation,
+          other.maintainAspectRatio,
+          other.filter);
+    }
+
+    /** Transforms the whole source image. */
+    public Geometry(
+        final int srcWidth,
+        final int srcHeight,
+        final int dstWidth,
+        final int dstHeight,
+        final int rotation,
+        final boolean maintainAspectRatio,
+        final Filter filter) {
+      this(
+          srcWidth,
+          srcHeight,
+          0,
+          0,
+          srcWidth,
+          srcHeight,
+          dstWidth,
+          dstHeight,
+          rotation,
+          maintainAspectRatio,
+          filter);
+    }
+
+    /**
+     * Moves the part of the source to transform. Must not be called while an image is resampled
+     * with this geometry.
+     */
+    public void setRegion(final int left, final int top, final int width, final int height) {
+      if (width <= 0 || height <= 0) {
+        throw new IllegalArgumentException("Invalid region " + width + "x" + height);
+      }
+      regionLeft = left;
+      regionTop = top;
+      regionWidth = width;
+      regionHeight = height;
+    }
+
+    /**
+     * Moves the part of the source to transform to cover the bounds, with its origin and size
+     * rounded to multiples of {@code grid} pixels and clipped to the source, so that a region
+     * moving or resizing by a few pixels keeps its plan.
+     */
+    public void setRegion(
+        final float left, final float top, final float right, final float bottom, final int grid) {
+      final int snappedLeft = clamp((int) Math.floor(left / grid) * grid, 0, srcWidth - 1);
+      final int snappedTop = clamp((int) Math.floor(top / grid) * grid, 0, srcHeight - 1);
+      final int width = (int) Math.ceil((right - snappedLeft) / grid) * grid;
+      final int height = (int) Math.ceil((bottom - snappedTop) / grid) * grid;
+      setRegion(
+          snappedLeft,
+          snappedTop,
+          clamp(width, 1, srcWidth - snappedLeft),
+          clamp(height, 1, srcHeight - snappedTop));
+    }
+
+    private static int clamp(final int value, final int min, final int max) {
+      return Math.max(min, Math.min(max, value));
+    }
+
+    public int getRegionLeft() {
+      return regionLeft;
+    }
+
+    public int getRegionTop() {
+      return regionTop;
+    }
+
+    public int getRegionWidth() {
+      return regionWidth;
+    }
+
+    public int getRegionHeight() {
+      return regionHeight;
+    }
+
+    public int getDstWidth() {
+      return dstWidth;
+    }
+
+    public int getDstHeight() {
+      return dstHeight;
+    }
+
+    public Filter getFilter() {
+      return filter;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof Geometry)) {
+        return false;
+      }
+      final Geometry other = (Geometry) o;
+      return srcWidth == other.srcWidth
+          && srcHeight == other.srcHeight
+          && regionLeft == other.regionLeft
+          && regionTop == other.regionTop
+          && regionWidth == other.regionWidth
+          && regionHeight == other.regionHeight
+          && dstWidth == other.dstWidth
+          && dstHeight == other.dstHeight
+          && rotation == other.rotation
+          && maintainAspectRatio == other.maintainAspectRatio
+          && filter == other.filter;
+    }
+
+    @Override
+    public int hashCode() {
+      int hash = srcWidth;
+      hash = 31 * hash + srcHeight;
+      hash = 31 * hash + regionLeft;
+      hash = 31 * hash + regionTop;
+      hash = 31 * hash + regionWidth;
+      hash = 31 * hash + regionHeight;
+      hash = 31 * hash + dstWidth;
+      hash = 31 * hash + dstHeight;
+      hash = 31 * hash + rotation;
+      hash = 31 * hash + (maintainAspectRatio ? 1 : 0);
+      return 31 * hash + filter.hashCode();
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          Locale.ENGLISH,
+          "%dx%d[%d,%d %dx%d] -> %dx%d, %d deg%s, %s",
+          srcWidth,
+          srcHeight,
+          regionLeft,
+          regionTop,
+          regionWidth,
+          regionHeight,
+          dstWidth,
+          dstHeight,
+          rotation,
+          maintainAspectRatio ? ", aspect" : "",
+          filter);
+    }
+  }
+
+  /**
+   * Source sampling positions along one destination axis. Offsets are premultiplied with the
+   * stride of the source axis the destination axis maps to, so rotations need no special cases.
+   */
+  private static final class Axis {
+    // Per destination index: whether its center maps inside the source.
+    final boolean[] valid;
+    // NEAREST: the offset. BILINEAR: first and second tap. AREA: index of the first tap.
+    final int[] offset0;
+    final int[] offset1;
+    // BILINEAR: weight of the second tap. AREA: number of taps.
+    final int[] weight;
+    // AREA only: offsets and weights of all taps.
+    final int[] tapOffsets;
+    final int[] tapWeights;
+
+    Axis(
+        final boolean[] valid,
+        final int[] offset0,
+        final int[] offset1,
+        final int[] weight,
+        final int[] tapOffsets,
+        final int[] tapWeights) {
+      this.valid = valid;
+      this.offset0 = offset0;
+      this.offset1 = offset1;
+      this.weight = weight;
+      this.tapOffsets = tapOffsets;
+      this.tapWeights = tapWeights;
+    }
+  }
+
+  /** Tables for one geometry. Immutable, shared between threads. */
+  private static final class Plan {
+    final Geometry geometry;
+    final Axis columns;
+    final Axis rows;
+
+    Plan(final Geometry geometry, final Axis columns, final Axis rows) {
+      this.geometry = geometry;
+      this.columns = columns;
+      this.rows = rows;
+    }
+  }
+
+  private final ExecutorService executor;
+  private final int threads;
+  private final Map<Geometry, Plan> plans =
+      new LinkedHashMap<Geometry, Plan>(MAX_CACHED_PLANS, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<Geometry, Plan> eldest) {
+          return size() > MAX_CACHED_PLANS;
+        }
+      };
+
+  /** @param threads Number of threads to split destination rows over; 1 resamples inline. */
+  public ImageResampler(final int threads) {
+    this.threads = Math.max(1, threads);
+    executor =
+        this.threads > 1
+            ? Executors.newFixedThreadPool(
+                this.threads - 1,
+                new ThreadFactory() {
+                  @Override
+                  public Thread newThread(final Runnable r) {
+                    final Thread thread = new Thread(r, "ImageResampler");
+                    thread.setDaemon(true);
+                    return thread;
+                  }
+                })
+            : null;
+  }
+
+  /** Stops the worker threads. */
+  public void close() {
+    if (executor != null) {
+      executor.shutdown();
+    }
+  }
+
+  /**
+   * Resamples {@code src} into {@code dst} according to the geometry.
+   *
+   * @param src ARGB pixels of {@code srcWidth} by {@code srcHeight}, row by row.
+   * @param dst Receives {@code dstWidth} by {@code dstHeight} ARGB pixels, row by row.
+   */
+  public void resample(final int[] src, final Geometry geometry, final int[] dst) {
+    if (src.length < geometry.srcWidth * geometry.srcHeight
+        || dst.length < geometry.dstWidth * geometry.dstHeight) {
+      throw new IllegalArgumentException("Pixel buffers too small for " + geometry);
+    }
+    final Plan plan = getPlan(geometry);
+    final int height = geometry.dstHeight;
+    final int bands = Math.min(threads, Math.max(1, height / MIN_ROWS_PER_BAND));
+    if (bands == 1) {
+      resampleRows(plan, src, dst, 0, height);
+      return;
+    }
+
+    final List<Future<?>> futures = new ArrayList<>(bands - 1);
+    for (int band = 1; band < bands; ++band) {
+      final int start = height * band / bands;
+      final int end = height * (band + 1) / bands;
+      futures.add(
+          executor.submit(
+              new Callable<Void>() {
+                @Override
+                public Void call() {
+                  resampleRows(plan, src, dst, start, end);
+                  return null;
+                }
+              }));
+    }
+    // The calling thread takes the first band instead of waiting idle.
+    resampleRows(plan, src, dst, 0, height / bands);
+    try {
+      for (final Future<?> future : futures) {
+        future.get();
+      }
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while resampling", e);
+    } catch (final ExecutionException e) {
+      throw new IllegalStateException("Resampling failed", e.getCause());
+    }
+  }
+
+  private Plan getPlan(final Geometry geometry) {
+    synchronized (plans) {
+      Plan plan = plans.get(geometry);
+      if (plan == null) {
+        // Keyed by a copy, the caller may move the region of its geometry later.
+        final Geometry key = new Geometry(geometry);
+        plan = createPlan(key);
+        plans.put(key, plan);
+      }
+      return plan;
+    }
+  }
+
+  private static Plan createPlan(final Geometry g) {
+    final int rotation = ((g.rotation % 360) + 360) % 360;
+    final boolean transpose = rotation == 90 || rotation == 270;
+    final int inWidth = transpose ? g.regionHeight : g.regionWidth;
+    final int inHeight = transpose ? g.regionWidth : g.regionHeight;
+
+    double scaleX = 1;
+    double scaleY = 1;
+    if (inWidth != g.dstWidth || inHeight != g.dstHeight) {
+      scaleX = g.dstWidth / (double) inWidth;
+      scaleY = g.dstHeight / (double) inHeight;
+      if (g.maintainAspectRatio) {
+        scaleX = scaleY = Math.max(scaleX, scaleY);
+      }
+    }
+
+    // getTransformationMatrix only rotates around the centers if the rotation is nonzero.
+    final boolean centered = g.rotation != 0;
+    final double dstCenterX = centered ? g.dstWidth / 2.0 : 0;
+    final double dstCenterY = centered ? g.dstHeight / 2.0 : 0;
+    final double regionCenterX = centered ? g.regionWidth / 2.0 : 0;
+    final double regionCenterY = centered ? g.regionHeight / 2.0 : 0;
+
+    // Undoing the rotation maps destination x to +-source x (0, 180) or +-source y (90, 270), and
+    // destination y to the other source axis.
+    final int columnSign = rotation == 0 || rotation == 270 ? 1 : -1;
+    final int rowSign = rotation == 0 || rotation == 90 ? 1 : -1;
+    final Axis columns;
+    final Axis rows;
+    if (transpose) {
+      columns =
+          createAxis(
+              g.filter,
+              g.dstWidth,
+              dstCenterX,
+              scaleX,
+              columnSign,
+              g.regionTop + regionCenterY,
+              g.srcHeight,
+              g.srcWidth);
+      rows =
+          createAxis(
+              g.filter,
+              g.dstHeight,
+              dstCenterY,
+              scaleY,
+              rowSign,
+              g.regionLeft + regionCenterX,
+              g.srcWidth,
+              1);
+    } else {
+      columns =
+          createAxis(
+              g.filter,
+              g.dstWidth,
+              dstCenterX,
+              scaleX,
+              columnSign,
+              g.regionLeft + regionCenterX,
+              g.srcWidth,
+              1);
+      rows =
+          createAxis(
+              g.filter,
+              g.dstHeight,
+              dstCenterY,
+              scaleY,
+              rowSign,
+              g.regionTop + regionCenterY,
+              g.srcHeight,
+              g.srcWidth);
+    }
+    return new Plan(g, columns, rows);
+  }
+
+  /**
+   * Computes the sampling table of one destination axis, whose position {@code d} maps to source
+   * position {@code srcCenter + sign * (d - dstCenter) / scale}.
+   *
+   * @param srcLength Number of pixels along the source axis.
+   * @param stride Distance between neighboring pixels along the source axis.
+   */
+  private static Axis createAxis(
+      final Filter filter,
+      final int dstLength,
+      final double dstCenter,
+      final double scale,
+      final int sign,
+      final double srcCenter,
+      final int srcLength,
+      final int stride) {
+    final boolean[] valid = new boolean[dstLength];
+    final int[] offset0 = new int[dstLength];
+    final int[] offset1 = new int[dstLength];
+    final int[] weight = new int[dstLength];
+    final List<int[]> taps = filter == Filter.AREA ? new ArrayList<int[]>() : null;
+    int tapCount = 0;
+
+    for (int d = 0; d < dstLength; ++d) {
+      final double center = srcCenter + sign * (d + 0.5 - dstCenter) / scale;
+      valid[d] = center >= 0 && center < srcLength;
+      if (!valid[d]) {
+        continue;
+      }
+      switch (filter) {
+        case NEAREST:
+          offset0[d] = (int) Math.floor(center) * stride;
+          break;
+        case BILINEAR:
+          {
+            final double position = center - 0.5;
+            int first = (int) Math.floor(position);
+            int fraction = (int) Math.round((position - first) * BILINEAR_ONE);
+            if (fraction == BILINEAR_ONE) {
+              ++first;
+              fraction = 0;
+            }
+            offset0[d] = clamp(first, srcLength) * stride;
+            offset1[d] = clamp(first + 1, srcLength) * stride;
+            weight[d] = fraction;
+            break;
+          }
+        case AREA:
+          {
+            final double a = srcCenter + sign * (d - dstCenter) / scale;
+            final double b = srcCenter + sign * (d + 1 - dstCenter) / scale;
+            final double low = Math.max(0, Math.min(a, b));
+            final double high = Math.min(srcLength, Math.max(a, b));
+            final int first = (int) Math.floor(low);
+            final int end = Math.max(first + 1, (int) Math.ceil(high));
+            final int[] tap = new int[2 * (end - first)];
+            int total = 0;
+            int largest = 0;
+            for (int i = first; i < end; ++i) {
+              final double overlap = Math.min(high, i + 1) - Math.max(low, i);
+              final int w = (int) Math.round(overlap / (high - low) * AREA_ONE);
+              tap[2 * (i - first)] = i * stride;
+              tap[2 * (i - first) + 1] = w;
+              total += w;
+              if (w > tap[2 * largest + 1]) {
+                largest = i - first;
+              }
+            }
+            // Rounding must not change the brightness.
+            tap[2 * largest + 1] += AREA_ONE - total;
+            offset0[d] = tapCount;
+            weight[d] = end - first;
+            tapCount += end - first;
+            taps.add(tap);
+            break;
+          }
+      }
+    }
+
+    int[] tapOffsets = null;
+    int[] tapWeights = null;
+    if (taps != null) {
+      tapOffsets = new int[tapCount];
+      tapWeights = new int[tapCount];
+      int t = 0;
+      for (final int[] tap : taps) {
+        for (int i = 0; i < tap.length; i += 2) {
+          tapOffsets[t] = tap[i];
+          tapWeights[t++] = tap[i + 1];
+        }
+      }
+    }
+    return new Axis(valid, offset0, offset1, weight, tapOffsets, tapWeights);
+  }
+
+  private static int clamp(final int index, final int length) {
+    return index < 0 ? 0 : (index >= length ? length - 1 : index);
+  }
+
+  private static void resampleRows(
+      final Plan plan, final int[] src, final int[] dst, final int start, final int end) {
+    final int width = plan.geometry.dstWidth;
+    for (int y = start; y < end; ++y) {
+      final int out = y * width;
+      if (!plan.rows.valid[y]) {
+        for (int x = 0; x < width; ++x) {
+          dst[out + x] = OUTSIDE_COLOR;
+        }
+        continue;
+      }
+      switch (plan.geometry.filter) {
+        case NEAREST:
+          nearestRow(plan.columns, plan.rows.offset0[y], src, dst, out, width);
+          break;
+        case BILINEAR:
+          bilinearRow(plan.columns, plan.rows, y, src, dst, out, width);
+          break;
+        case AREA:
+          areaRow(plan.columns, plan.rows, y, src, dst, out, width);
+          break;
+      }
+    }
+  }
+
+  private static void nearestRow(
+      final Axis columns,
+      final int rowOffset,
+      final int[] src,
+      final int[] dst,
+      final int out,
+      final int width) {
+    final boolean[] valid = columns.valid;
+    final int[] offsets = columns.offset0;
+    for (int x = 0; x < width; ++x) {
+      dst[out + x] = valid[x] ? src[rowOffset + offsets[x]] : OUTSIDE_COLOR;
+    }
+  }
+
+  private static void bilinearRow(
+      final Axis columns,
+      final Axis rows,
+      final int y,
+      final int[] src,
+      final int[] dst,
+      final int out,
+      final int width) {
+    final int row0 = rows.offset0[y];
+    final int row1 = rows.offset1[y];
+    final int wy = rows.weight[y];
+    final int wy0 = BILINEAR_ONE - wy;
+    final boolean[] valid = columns.valid;
+    for (int x = 0; x < width; ++x) {
+      if (!valid[x]) {
+        dst[out + x] = OUTSIDE_COLOR;
+        continue;
+      }
+      final int col0 = columns.offset0[x];
+      final int col1 = columns.offset1[x];
+      final int wx = columns.weight[x];
+      final int wx0 = BILINEAR_ONE - wx;
+      final int p00 = src[row0 + col0];
+      final int p01 = src[row0 + col1];
+      final int p10 = src[row1 + col0];
+      final int p11 = src[row1 + col1];
+      int pixel = 0;
+      for (int shift = 0; shift < 32; shift += 8) {
+        final int top = ((p00 >>> shift) & 0xff) * wx0 + ((p01 >>> shift) & 0xff) * wx;
+        final int bottom = ((p10 >>> shift) & 0xff) * wx0 + ((p11 >>> shift) & 0xff) * wx;
+        final int value =
+            (top * wy0 + bottom * wy + (1 << (2 * BILINEAR_BITS - 1))) >>> (2 * BILINEAR_BITS);
+        pixel |= value << shift;
+      }
+      dst[out + x] = pixel;
+    }
+  }
+
+  private static void areaRow(
+      final Axis columns,
+      final Axis rows,
+      final int y,
+      final int[] src,
+      final int[] dst,
+      final int out,
+      final int width) {
+    final int rowFirst = rows.offset0[y];
+    final int rowTaps = rows.weight[y];
+    final boolean[] valid = columns.valid;
+    final int horizontalShift = AREA_BITS - AREA_INTERMEDIATE_BITS;
+    final int horizontalRound = 1 << (horizontalShift - 1);
+    final int finalShift = AREA_BITS + AREA_INTERMEDIATE_BITS;
+    final int finalRound = 1 << (finalShift - 1);
+    for (int x = 0; x < width; ++x) {
+      if (!valid[x]) {
+        dst[out + x] = OUTSIDE_COLOR;
+        continue;
+      }
+      final int columnFirst = columns.offset0[x];
+      final int columnTaps = columns.weight[x];
+      int a = 0;
+      int r = 0;
+      int g = 0;
+      int b = 0;
+      for (int j = rowFirst; j < rowFirst + rowTaps; ++j) {
+        final int rowOffset = rows.tapOffsets[j];
+        int rowA = 0;
+        int rowR = 0;
+        int rowG = 0;
+        int rowB = 0;
+        for (int i = columnFirst; i < columnFirst + columnTaps; ++i) {
+          final int p = src[rowOffset + columns.tapOffsets[i]];
+          final int w = columns.tapWeights[i];
+          rowA += (p >>> 24) * w;
+          rowR += ((p >> 16) & 0xff) * w;
+          rowG += ((p >> 8) & 0xff) * w;
+          rowB += (p & 0xff) * w;
+        }
+        // Keep 8 fractional bits, so that the vertical pass cannot overflow.
+        final int w = rows.tapWeights[j];
+        a += ((rowA + horizontalRound) >>> horizontalShift) * w;
+        r += ((rowR + horizontalRound) >>> horizontalShift) * w;
+        g += ((rowG + horizontalRound) >>> horizontalShift) * w;
+        b += ((rowB + horizontalRound) >>> horizontalShift) * w;
+      }
+      dst[out + x] =
+          (((a + finalRound) >>> finalShift) << 24)
+              | (((r + finalRound) >>> finalShift) << 16)
+              | (((g + finalRound) >>> finalShift) << 8)
+              | ((b + finalRound) >>> finalShift);
+    }
+  }
+}
@@ -91,7 +91,25 @@ public class ImageUtils {
       final int dstHeight,
       final int applyRotation,
       final boolean maintainAspectRatio) {
-    final Matrix matrix = new Matrix();
+    return getTransformationMatrix(
+        srcWidth, srcHeight, dstWidth, dstHeight, applyRotation, maintainAspectRatio, new Matrix());
+  }
+
+  /**
+   * Sets {@code matrix} to the transformation {@link #getTransformationMatrix(int, int, int, int,
+   * int, boolean)} returns, without allocating.
+   *
+   * @return The matrix.
+   */
+  public static Matrix getTransformationMatrix(
+      final int srcWidth,
+      final int srcHeight,
+      final int dstWidth,
+      final int dstHeight,
+      final int applyRotation,
+      final boolean maintainAspectRatio,
+      final Matrix matrix) {
+    matrix.reset();
 
     if (applyRotation != 0) {
       if (applyRotation % 90 != 0) {
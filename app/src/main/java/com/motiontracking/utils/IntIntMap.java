@@ -0,0 +1,106 @@
+package com.motiontracking.utils;
+
+import java.util.Arrays;
+
+/**
+ * A map from int keys to int values with open addressing and linear probing, for per-frame lookups
+ * by track id without boxing. Not thread-safe.
+ */
+public final class IntIntMap {
+  private int[] keys;
+  private int[] values;
+  private boolean[] used;
+  private int mask;
+  private int size;
+
+  public IntIntMap(final int expectedSize) {
+    allocate(Integer.highestOneBit(Math.max(4, expectedSize * 2 - 1)) << 1);
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public void clear() {
+    Arrays.fill(used, false);
+    size = 0;
+  }
+
+  /** The value of the key, or {@code missing} if the key is absent. */
+  public int get(final int key, final int missing) {
+    for (int slot = slotOf(key); used[slot]; slot = (slot + 1) & mask) {
+      if (keys[slot] == key) {
+        return values[slot];
+      }
+    }
+    return missing;
+  }
+
+  public void put(final int key, final int value) {
+    int slot = slotOf(key);
+    for (; used[slot]; slot = (slot + 1) & mask) {
+      if (keys[slot] == key) {
+        values[slot] = value;
+        return;
+      }
+    }
+    used[slot] = true;
+    keys[slot] = key;
+    values[slot] = value;
+    if (++size * 2 > keys.length) {
+      rehash();
+    }
+  }
+
+  /** Removes the key and returns its value, or {@code missing} if the key was absent. */
+  public int remove(final int key, final int missing) {
+    int slot = slotOf(key);
+    for (; used[slot]; slot = (slot + 1) & mask) {
+      if (keys[slot] == key) {
+        break;
+      }
+    }
+    if (!used[slot]) {
+      return missing;
+    }
+    final int value = values[slot];
+    // Shift later entries of the probe sequence back into the gap.
+    int gap = slot;
+    for (int next = (gap + 1) & mask; used[next]; next = (next + 1) & mask) {
+      final int home = slotOf(keys[next]);
+      if (((next - home) & mask) >= ((next - gap) & mask)) {
+        keys[gap] = keys[next];
+        values[gap] = values[next];
+        gap = next;
+      }
+    }
+    used[gap] = false;
+    --size;
+    return value;
+  }
+
+  private int slotOf(final int key) {
+    final int h = key * 0x9e3779b9;
+    return (h ^ (h >>> 16)) & mask;
+  }
+
+  private void allocate(final int capacity) {
+    keys = new int[capacity];
+    values = new int[capacity];
+    used = new boolean[capacity];
+    mask = capacity - 1;
+  }
+
+  private void rehash() {
+    final int[] oldKeys = keys;
+    final int[] oldValues = values;
+    final boolean[] oldUsed = used;
+    allocate(keys.length * 2);
+    size = 0;
+    for (int i = 0; i < oldKeys.length; ++i) {
+      if (oldUsed[i]) {
+        put(oldKeys[i], oldValues[i]);
+      }
+    }
+  }
+}
@@ -0,0 +1,189 @@
+package com.motiontracking.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Downscaled copies of the luminance of the current frame, shared by the analyses that look at it
+ * at a lower resolution, so each of them does not subsample the Y plane on its own. Level 0 is the
+ * Y plane itself; each further level halves the one before in both dimensions, averaging blocks of
+ * 2x2 pixels. A level is computed when it is first asked for in a frame, from the level before, so
+ * only the levels someone needs are computed, and each at most once per frame.
+ *
+ * <p>Levels live in pooled buffers. When the next frame is set, the levels of the current one go
+ * back to the pool, unless a consumer {@link Level#retain() retained} them, for instance to compare
+ * the next frame with this one; retained levels go back to the pool when {@link Level#release()
+ * released}. In the steady state a frame allocates nothing.
+ *
+ * <p>Not thread-safe; used by the camera thread only.
+ */
+public class LumaPyramid {
+  // Free buffers kept beyond the ones the levels of a frame need are dropped.
+  private static final int MAX_POOLED = 8;
+
+  /** One level of the pyramid, {@code width} by {@code height} pixels, rows {@code stride} apart. */
+  public static final class Level {
+    private final LumaPyramid pyramid;
+    private byte[] pixels;
+    private int width;
+    private int height;
+    private int stride;
+    private int references;
+
+    private Level(final LumaPyramid pyramid) {
+      this.pyramid = pyramid;
+    }
+
+    public byte[] getPixels() {
+      return pixels;
+    }
+
+    public int getWidth() {
+      return width;
+    }
+
+    public int getHeight() {
+      return height;
+    }
+
+    public int getStride() {
+      return stride;
+    }
+
+    /**
+     * Keeps the level beyond its frame, until {@link #release()}. Level 0 is the camera's buffer and
+     * cannot be kept.
+     */
+    public Level retain() {
+      if (pyramid == null) {
+        throw new IllegalStateException("Level 0 belongs to the frame");
+      }
+      ++references;
+      return this;
+    }
+
+    /** Gives back a retained level. */
+    public void release() {
+      if (references <= 0) {
+        throw new IllegalStateException("Level released more often than retained");
+      }
+      if (--references == 0) {
+        pyramid.recycle(this);
+      }
+    }
+  }
+
+  private final int maxLevel;
+  private final Level base = new Level(null);
+  // Levels of the current frame, null where not computed yet.
+  private final Level[] levels;
+  private final List<Level> pool = new ArrayList<>();
+  private long levelsComputed;
+  private long buffersAllocated;
+
+  /** @param maxLevel Coarsest level, at {@code 2^maxLevel} times less resolution than the frame. */
+  public LumaPyramid(final int maxLevel) {
+    if (maxLevel < 0 || maxLevel > 8) {
+      throw new IllegalArgumentException("Invalid pyramid depth " + maxLevel);
+    }
+    this.maxLevel = maxLevel;
+    levels = new Level[maxLevel + 1];
+  }
+
+  public int getMaxLevel() {
+    return maxLevel;
+  }
+
+  /**
+   * Starts the next frame, giving back the levels of the previous one no one retained.
+   *
+   * @param luma Y plane of the frame, only read until the next frame is set.
+   * @param rowStride Distance between two rows of the Y plane in bytes.
+   */
+  public void setFrame(final byte[] luma, final int width, final int height, final int rowStride) {
+    for (int i = 1; i <= maxLevel; ++i) {
+      if (levels[i] != null) {
+        levels[i].release();
+        levels[i] = null;
+      }
+    }
+    base.pixels = luma;
+    base.width = width;
+    base.height = height;
+    base.stride = rowStride;
+    levels[0] = base;
+  }
+
+  /**
+   * Returns the level of the current frame, computing it and the levels before it if needed. The
+   * level is valid until the next frame is set, or until released if retained.
+   */
+  public Level getLevel(final int level) {
+    if (level < 0 || level > maxLevel) {
+      throw new IllegalArgumentException("No level " + level + " in a pyramid of " + maxLevel);
+    }
+    if (levels[0] == null) {
+      throw new IllegalStateException("No frame set");
+    }
+    if (levels[level] == null) {
+      final Level finer = getLevel(level - 1);
+      final Level coarser = acquire(finer.width / 2, finer.height / 2);
+      downscale(finer, coarser);
+      levels[level] = coarser;
+      ++levelsComputed;
+    }
+    return levels[level];
+  }
+
+  /** Number of levels computed so far, over all frames. */
+  public long getLevelsComputed() {
+    return levelsComputed;
+  }
+
+  /** Number of buffers allocated so far, as opposed to taken from the pool. */
+  public long getBuffersAllocated() {
+    return buffersAllocated;
+  }
+
+  private Level acquire(final int width, final int height) {
+    Level level = null;
+    for (int i = pool.size() - 1; i >= 0; --i) {
+      if (pool.get(i).pixels.length >= width * height) {
+        level = pool.remove(i);
+        break;
+      }
+    }
+    if (level == null) {
+      level = new Level(this);
+      level.pixels = new byte[width * height];
+      ++buffersAllocated;
+    }
+    level.width = width;
+    level.height = height;
+    level.stride = width;
+    level.references = 1;
+    return level;
+  }
+
+  private void recycle(final Level level) {
+    if (pool.size() < MAX_POOLED) {
+      pool.add(level);
+    }
+  }
+
+  private static void downscale(final Level finer, final Level coarser) {
+    final byte[] in = finer.pixels;
+    final byte[] out = coarser.pixels;
+    final int width = coarser.width;
+    for (int y = 0; y < coarser.height; ++y) {
+      int top = 2 * y * finer.stride;
+      int bottom = top + finer.stride;
+      int o = y * coarser.stride;
+      for (int x = 0; x < width; ++x, top += 2, bottom += 2) {
+        final int sum =
+            (in[top] & 0xFF) + (in[top + 1] & 0xFF) + (in[bottom] & 0xFF) + (in[bottom + 1] & 0xFF);
+        out[o++] = (byte) ((sum + 2) >> 2);
+      }
+    }
+  }
+}
@@ -0,0 +1,34 @@
+package com.motiontracking;
+
+/**
+ * Figures measured by tests, such as timings and throughput, printed only when the tests run with
+ * {@code -Dbenchmark=true} so that regular runs stay quiet.
+ */
+public final class Benchmark {
+  public static final boolean ENABLED = Boolean.getBoolean("benchmark");
+
+  private Benchmark() {}
+
+  /** Prints a line of figures if benchmarks are enabled. */
+  public static void report(final Object line) {
+    if (ENABLED) {
+      System.out.println(line);
+    }
+  }
+
+  /**
+   * Runs the code a third of the iterations to warm it up, then the iterations themselves.
+   *
+   * @return Milliseconds per iteration, excluding the warm-up.
+   */
+  public static double time(final int iterations, final Runnable runnable) {
+    for (int i = 0; i < iterations / 3; ++i) {
+      runnable.run();
+    }
+    final long start = System.nanoTime();
+    for (int i = 0; i < iterations; ++i) {
+      runnable.run();
+    }
+    return (System.nanoTime() - start) / 1e6 / iterations;
+  }
+}
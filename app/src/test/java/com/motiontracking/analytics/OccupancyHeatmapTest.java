@@ -0,0 +1,165 @@
+package com.motiontracking.analytics;
+
+import com.motiontracking.tracking.TrackSnapshot;
+import com.motiontracking.tracking.TrackSnapshotPublisher;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class OccupancyHeatmapTest {
+  private static final int WIDTH = 640;
+  private static final int HEIGHT = 480;
+  private static final long SECOND = 1_000_000_000L;
+  private static final long FRAME_NANOS = SECOND / 10;
+
+  private final TrackSnapshotPublisher publisher = new TrackSnapshotPublisher();
+  private final TrackSnapshot.Builder builder = new TrackSnapshot.Builder();
+
+  @Test
+  public void accumulatesTimeUnderFootprints() {
+    final OccupancyHeatmap heatmap = new OccupancyHeatmap(64, 48, 1_000_000 * SECOND);
+    // For 10 seconds, a person stands on columns 10-13 of rows 37-39 and a car on columns 40-49
+    // of rows 19-20, the cells under the bottom fifth of their boxes.
+    for (int f = 0; f <= 100; ++f) {
+      builder.clear().setFrameConfiguration(WIDTH, HEIGHT, 0);
+      builder.add(1, 100, 300, 139, 399, 0.9f, "person", 0);
+      builder.add(2, 400, 160, 499, 209, 0.9f, "car", 0);
+      heatmap.update(publisher.publish(builder), f * FRAME_NANOS);
+    }
+    final long now = 100 * FRAME_NANOS;
+    assertEquals(20, heatmap.getTotal(now), 1e-3);
+    assertEquals(10.0 / 12, heatmap.getValue("person", 12, 39, now), 1e-4);
+    assertEquals(0, heatmap.getValue("car", 12, 39, now), 0);
+    assertEquals(10.0 / 20, heatmap.getValue("car", 45, 20, now), 1e-4);
+    assertEquals(10.0 / 20, heatmap.getValue(null, 45, 19, now), 1e-4);
+    assertEquals(0, heatmap.getValue(null, 12, 30, now), 0);
+  }
+
+  @Test
+  public void decaysLazilyAsIfEveryCellDecayedEveryFrame() {
+    // A half-life of 50 ms rescales the cells several times over the 10 seconds.
+    final long halfLife = 50_000_000L;
+    final OccupancyHeatmap heatmap = new OccupancyHeatmap(16, 12, halfLife);
+    double expected = 0;
+    long previous = 0;
+    for (int f = 0; f <= 400; ++f) {
+      final long time = f * 25_000_000L;
+      builder.clear().setFrameConfiguration(WIDTH, HEIGHT, 0);
+      // Present for 2 out of every 3 seconds.
+      if (time % (3 * SECOND) < 2 * SECOND) {
+        builder.add(1, 0, 0, 639, 479, 0.9f, "person", 0);
+      }
+      heatmap.update(publisher.publish(builder), time);
+      if (f > 0) {
+        expected *= Math.pow(0.5, (time - previous) / (double) halfLife);
+        if (builder.size() > 0) {
+          expected += (time - previous) / 1e9;
+        }
+      }
+      previous = time;
+      assertEquals("frame " + f, expected, heatmap.getTotal(time), expected * 1e-4 + 1e-9);
+    }
+    // Nobody for 200 ms more: 4 half-lives.
+    assertEquals(expected / 16, heatmap.getTotal(previous + 200_000_000L), expected * 1e-4);
+  }
+
+  @Test
+  public void exportsCompactSnapshots() throws IOException {
+    final OccupancyHeatmap heatmap = new OccupancyHeatmap(64, 48, 60 * SECOND);
+    final String[] titles = {"person", "car", "bicycle"};
+    for (int f = 0; f <= 300; ++f) {
+      builder.clear().setFrameConfiguration(WIDTH, HEIGHT, 0);
+      for (int i = 0; i < titles.length; ++i) {
+        final float x = (f * (i + 1) * 3) % 600;
+        builder.add(i, x, 100 + 100 * i, x + 40, 180 + 100 * i, 0.9f, titles[i], 0);
+      }
+      heatmap.update(publisher.publish(builder), f * FRAME_NANOS);
+    }
+    final long now = 300 * FRAME_NANOS;
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    heatmap.write(bytes, now);
+    // Raw floats would take 64 * 48 * 4 bytes per class.
+    assertTrue("exported " + bytes.size() + " bytes", bytes.size() < 64 * 48 * 4);
+
+    final OccupancyHeatmap restored =
+        OccupancyHeatmap.read(new ByteArrayInputStream(bytes.toByteArray()));
+    assertEquals(64, restored.getColumns());
+    assertEquals(60 * SECOND, restored.getHalfLifeNanos());
+    assertEquals(heatmap.getClasses(), restored.getClasses());
+    for (final String title : titles) {
+      float max = 0;
+      for (int row = 0; row < 48; ++row) {
+        for (int column = 0; column < 64; ++column) {
+          max = Math.max(max, heatmap.getValue(title, column, row, now));
+        }
+      }
+      for (int row = 0; row < 48; ++row) {
+        for (int column = 0; column < 64; ++column) {
+          assertEquals(
+              heatmap.getValue(title, column, row, now),
+              restored.getValue(title, column, row, 0),
+              max / 30000);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void rendersEmptyCellsTransparent() {
+    final OccupancyHeatmap heatmap = new OccupancyHeatmap(8, 6, 60 * SECOND);
+    final int[] argb = new int[8 * 6];
+    heatmap.render(null, argb);
+    assertEquals(0, argb[0]);
+    for (int f = 0; f <= 10; ++f) {
+      builder.clear().setFrameConfiguration(WIDTH, HEIGHT, 0);
+      builder.add(1, 0, 0, 79, 79, 0.9f, "person", 0);
+      heatmap.update(publisher.publish(builder), f * FRAME_NANOS);
+    }
+    heatmap.render("person", argb);
+    assertTrue((argb[0] >>> 24) > 128);
+    assertEquals(0, argb[8 * 5 + 7]);
+    heatmap.render("car", argb);
+    assertEquals(0, argb[0]);
+  }
+
+  @Test
+  public void updatesDoNotAllocate() {
+    final OccupancyHeatmap heatmap = new OccupancyHeatmap(64, 48, 1_000_000L);
+    final List<TrackSnapshot> snapshots = new ArrayList<>();
+    for (int f = 0; f < 1000; ++f) {
+      builder.clear().setFrameConfiguration(WIDTH, HEIGHT, 0);
+      for (int i = 0; i < 20; ++i) {
+        final float x = (f + 30 * i) % 600;
+        builder.add(i, x, 200, x + 40, 300, 0.9f, i % 2 == 0 ? "person" : "car", 0);
+      }
+      snapshots.add(publisher.publish(builder));
+    }
+    // The first rounds see every class and get the code compiled.
+    long time = 0;
+    for (int round = 0; round < 5; ++round) {
+      for (int i = 0; i < snapshots.size(); ++i) {
+        heatmap.update(snapshots.get(i), time += FRAME_NANOS / 3);
+      }
+    }
+    final com.sun.management.ThreadMXBean threads =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    final long thread = Thread.currentThread().getId();
+    final long before = threads.getThreadAllocatedBytes(thread);
+    for (int round = 0; round < 10; ++round) {
+      for (int i = 0; i < snapshots.size(); ++i) {
+        heatmap.update(snapshots.get(i), time += FRAME_NANOS / 3);
+      }
+    }
+    final long allocated = threads.getThreadAllocatedBytes(thread) - before;
+    assertTrue("allocated " + allocated + " bytes", allocated < 1024);
+  }
+}
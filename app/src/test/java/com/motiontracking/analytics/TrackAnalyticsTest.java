@@ -0,0 +1,188 @@
+package com.motiontracking.analytics;
+
+import com.motiontracking.tracking.TrackSnapshot;
+import com.motiontracking.tracking.TrackSnapshotPublisher;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class TrackAnalyticsTest {
+  private static final int WIDTH = 640;
+  private static final int HEIGHT = 480;
+  private static final long FRAME_NANOS = 100_000_000L;
+
+  private final TrackSnapshotPublisher publisher = new TrackSnapshotPublisher();
+  private final TrackSnapshot.Builder builder = new TrackSnapshot.Builder();
+
+  @Test
+  public void countsLineCrossingsPerDirectionAndClass() {
+    // A vertical line down the middle; walking down it, the left-hand side is x > 0.5.
+    final CountingLine door = new CountingLine("door", 0.5f, 0.1f, 0.5f, 0.9f);
+    final TrackAnalytics analytics =
+        new TrackAnalytics(Collections.singletonList(door), Collections.<Zone>emptyList());
+
+    // Person 1 walks from right to left, person 2 and a car from left to right; person 3 walks
+    // past the end of the line. Feet at y = 0.5 except for person 3 at y = 0.95.
+    for (int f = 0; f <= 20; ++f) {
+      final float t = f / 20f;
+      builder.clear().setFrameConfiguration(WIDTH, HEIGHT, 0);
+      addFeetAt(1, "person", 0.9f - 0.8f * t, 0.5f);
+      addFeetAt(2, "person", 0.1f + 0.8f * t, 0.5f);
+      addFeetAt(3, "person", 0.1f + 0.8f * t, 0.95f);
+      addFeetAt(4, "car", 0.2f + 0.6f * t, 0.4f);
+      analytics.update(publisher.publish(builder), f * FRAME_NANOS);
+    }
+    // From the left-hand side to the right-hand side is forward.
+    assertEquals(1, analytics.getCrossings(0, "person", CountingLine.Direction.FORWARD));
+    assertEquals(1, analytics.getCrossings(0, "person", CountingLine.Direction.BACKWARD));
+    assertEquals(1, analytics.getCrossings(0, "car", CountingLine.Direction.BACKWARD));
+    assertEquals(0, analytics.getCrossings(0, "car", CountingLine.Direction.FORWARD));
+    assertEquals(2, analytics.getCrossings(0, CountingLine.Direction.BACKWARD));
+
+    // The same snapshot again changes nothing, a track coming back counts again.
+    final TrackSnapshot last = publisher.latest();
+    analytics.update(last, 21 * FRAME_NANOS);
+    builder.clear().setFrameConfiguration(WIDTH, HEIGHT, 0);
+    addFeetAt(1, "person", 0.9f, 0.5f);
+    analytics.update(publisher.publish(builder), 22 * FRAME_NANOS);
+    assertEquals(2, analytics.getCrossings(0, "person", CountingLine.Direction.BACKWARD));
+  }
+
+  @Test
+  public void tracksZoneOccupancyEntriesAndDwellTime() {
+    final Zone entrance =
+        new Zone("entrance", new float[] {0.2f, 0.2f, 0.6f, 0.2f, 0.6f, 0.6f, 0.2f, 0.6f});
+    final Zone lot = new Zone("lot", new float[] {0.5f, 0.5f, 1f, 0.5f, 1f, 1f, 0.5f, 1f});
+    final TrackAnalytics analytics =
+        new TrackAnalytics(Collections.<CountingLine>emptyList(), Arrays.asList(entrance, lot));
+
+    // Frames 0-9: person 7 walks into the entrance at frame 3 and stands in it; person 8 starts in
+    // the overlap of both zones; a car parks in the lot from frame 5.
+    for (int f = 0; f < 10; ++f) {
+      builder.clear().setFrameConfiguration(WIDTH, HEIGHT, 0);
+      addFeetAt(7, "person", f < 3 ? 0.1f : 0.3f, 0.3f);
+      addFeetAt(8, "person", 0.55f, 0.55f);
+      if (f >= 5) {
+        addFeetAt(9, "car", 0.8f, 0.8f);
+      }
+      analytics.update(publisher.publish(builder), f * FRAME_NANOS);
+    }
+    assertEquals(2, analytics.getOccupancy(0));
+    assertEquals(2, analytics.getOccupancy(1));
+    assertEquals(1, analytics.getOccupancy(1, "car"));
+    assertEquals(2, analytics.getEntries(0, "person"));
+    assertEquals(1, analytics.getEntries(1, "person"));
+    assertEquals(1, analytics.getEntries(1, "car"));
+    // Person 7 in the entrance from frame 3 to 9, person 8 from 0 to 9.
+    assertEquals(6 * FRAME_NANOS + 9 * FRAME_NANOS, analytics.getDwellNanos(0, "person"));
+    assertEquals(4 * FRAME_NANOS, analytics.getDwellNanos(1, "car"));
+
+    // Everyone leaves the picture.
+    builder.clear().setFrameConfiguration(WIDTH, HEIGHT, 0);
+    analytics.update(publisher.publish(builder), 10 * FRAME_NANOS);
+    assertEquals(0, analytics.getOccupancy(0));
+    assertEquals(0, analytics.getOccupancy(1));
+    assertEquals(6 * FRAME_NANOS + 9 * FRAME_NANOS, analytics.getDwellNanos(0, "person"));
+  }
+
+  @Test
+  public void gridLookupMatchesTestingEveryZone() {
+    final Random random = new Random(7);
+    final List<Zone> zones = new ArrayList<>();
+    for (int z = 0; z < 70; ++z) {
+      zones.add(randomPolygon(random, "zone" + z));
+    }
+    final ZoneGrid grid = new ZoneGrid(zones, Collections.<CountingLine>emptyList(), 16);
+    final long[] mask = new long[2];
+    for (int i = 0; i < 20000; ++i) {
+      final float x = random.nextFloat();
+      final float y = random.nextFloat();
+      grid.zonesAt(x, y, mask, 0);
+      for (int z = 0; z < zones.size(); ++z) {
+        final boolean expected = zones.get(z).contains(x, y);
+        assertEquals(x + ", " + y + " in " + z, expected, (mask[z >>> 6] & (1L << z)) != 0);
+      }
+    }
+  }
+
+  @Test
+  public void gridLookupFindsEveryCrossedLine() {
+    final Random random = new Random(11);
+    final List<CountingLine> lines = new ArrayList<>();
+    for (int l = 0; l < 40; ++l) {
+      lines.add(
+          new CountingLine(
+              "line" + l,
+              random.nextFloat(),
+              random.nextFloat(),
+              random.nextFloat(),
+              random.nextFloat()));
+    }
+    final TrackAnalytics analytics =
+        new TrackAnalytics(lines, Collections.<Zone>emptyList(), 16);
+    final float[] x = new float[20];
+    final float[] y = new float[20];
+    final long[] expected = new long[lines.size() * 2];
+    for (int i = 0; i < x.length; ++i) {
+      x[i] = random.nextFloat();
+      y[i] = random.nextFloat();
+    }
+    for (int f = 0; f < 500; ++f) {
+      builder.clear().setFrameConfiguration(WIDTH, HEIGHT, 0);
+      for (int i = 0; i < x.length; ++i) {
+        if (f > 0) {
+          final float nextX = clamp(x[i] + (random.nextFloat() - 0.5f) * 0.1f);
+          final float nextY = clamp(y[i] + (random.nextFloat() - 0.5f) * 0.1f);
+          for (int l = 0; l < lines.size(); ++l) {
+            final CountingLine line = lines.get(l);
+            if (line.isCrossedBy(x[i], y[i], nextX, nextY)) {
+              ++expected[l * 2 + (line.side(nextX, nextY) >= 0 ? 0 : 1)];
+            }
+          }
+          x[i] = nextX;
+          y[i] = nextY;
+        }
+        addFeetAt(i + 1, "person", x[i], y[i]);
+      }
+      analytics.update(publisher.publish(builder), f * FRAME_NANOS);
+    }
+    for (int l = 0; l < lines.size(); ++l) {
+      assertEquals(expected[l * 2], analytics.getCrossings(l, CountingLine.Direction.FORWARD));
+      assertEquals(
+          expected[l * 2 + 1], analytics.getCrossings(l, CountingLine.Direction.BACKWARD));
+    }
+  }
+
+  /** Adds a track of 40x80 pixels whose feet are at the normalized point. */
+  private void addFeetAt(final int id, final String title, final float x, final float y) {
+    final float centerX = x * WIDTH;
+    final float bottom = y * HEIGHT;
+    builder.add(id, centerX - 20, bottom - 80, centerX + 20, bottom, 0.9f, title, 0);
+  }
+
+  /** A star-shaped, usually concave polygon. */
+  private static Zone randomPolygon(final Random random, final String name) {
+    final int vertices = 3 + random.nextInt(8);
+    final float cx = random.nextFloat();
+    final float cy = random.nextFloat();
+    final float[] points = new float[vertices * 2];
+    for (int v = 0; v < vertices; ++v) {
+      final double angle = 2 * Math.PI * v / vertices;
+      final float radius = 0.05f + random.nextFloat() * 0.3f;
+      points[v * 2] = clamp(cx + radius * (float) Math.cos(angle));
+      points[v * 2 + 1] = clamp(cy + radius * (float) Math.sin(angle));
+    }
+    return new Zone(name, points);
+  }
+
+  private static float clamp(final float value) {
+    return Math.max(0, Math.min(1, value));
+  }
+}
@@ -0,0 +1,129 @@
+package com.motiontracking.detection;
+
+import com.motiontracking.Benchmark;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replays synthetic sequences through the cascade and reports how much detector time it saves.
+ */
+public class DetectionCascadeTest {
+  private static final int WIDTH = 640;
+  private static final int HEIGHT = 480;
+  // Typical time of one SSD run on a mid-range phone.
+  private static final float DETECTION_MS = 40.0f;
+
+  private static final byte[] NOISE = new byte[2 * WIDTH * HEIGHT];
+
+  static {
+    final Random random = new Random(7);
+    for (int i = 0; i < NOISE.length; ++i) {
+      NOISE[i] = (byte) (random.nextInt(5) - 2);
+    }
+  }
+
+  private final Random random = new Random(42);
+  private final CascadeFrame frame = new CascadeFrame();
+  private DetectionCascade cascade;
+
+  @Before
+  public void setUp() {
+    cascade = new DetectionCascade(
+        new IntervalGate(30), new TrackGate(1), new MotionGate(4, 8, 12, 0.005f, 0.25f));
+  }
+
+  /** Renders a textured static background with sensor noise and an optional bright square. */
+  private byte[] render(final int squareX, final int squareY, final int squareSize) {
+    final byte[] luma = new byte[WIDTH * HEIGHT];
+    final int noiseOffset = random.nextInt(NOISE.length - luma.length);
+    for (int y = 0; y < HEIGHT; ++y) {
+      for (int x = 0; x < WIDTH; ++x) {
+        final int i = y * WIDTH + x;
+        int value = 60 + ((x / 16 + y / 16) % 2) * 40 + NOISE[noiseOffset + i];
+        if (x >= squareX && x < squareX + squareSize && y >= squareY && y < squareY + squareSize) {
+          value = 230;
+        }
+        luma[i] = (byte) value;
+      }
+    }
+    return luma;
+  }
+
+  private boolean step(final byte[] luma, final long index, final int tracks) {
+    return cascade.shouldDetect(frame.set(luma, WIDTH, HEIGHT, WIDTH, index, tracks));
+  }
+
+  @Test
+  public void emptySceneOnlyRunsIntervalDetections() {
+    int detections = 0;
+    for (int i = 0; i < 300; ++i) {
+      if (step(render(0, 0, 0), i, 0)) {
+        ++detections;
+      }
+    }
+    assertEquals(10, detections);
+    report("empty corridor", cascade.getStats());
+  }
+
+  @Test
+  public void movingObjectIsDetectedInItsRegion() {
+    step(render(0, 0, 0), 0, 0);
+    step(render(0, 0, 0), 1, 0);
+    assertTrue(step(render(300, 200, 60), 2, 0));
+
+    final float[] region = new float[4];
+    assertTrue(cascade.getRegion(region));
+    assertTrue(region[0] <= 300 && region[2] >= 360);
+    assertTrue(region[1] <= 200 && region[3] >= 260);
+    assertTrue((region[2] - region[0]) * (region[3] - region[1]) < WIDTH * HEIGHT / 4);
+
+    assertFalse(step(render(300, 200, 60), 3, 0));
+  }
+
+  @Test
+  public void trackedObjectsKeepTheDetectorRunning() {
+    for (int i = 0; i < 50; ++i) {
+      assertTrue(step(render(0, 0, 0), i, 1));
+    }
+    final DetectionCascade.GateStats tracks = cascade.getStats().gates.get(1);
+    assertEquals("tracks", tracks.name);
+    assertEquals(49, tracks.detects);
+  }
+
+  @Test
+  public void replayedSequenceSavesDetectorTime() {
+    // 10 s of an empty scene, 5 s of an object crossing it while tracked, 10 s empty again.
+    final int frames = 750;
+    for (int i = 0; i < frames; ++i) {
+      final boolean crossing = i >= 300 && i < 450;
+      final int x = crossing ? (i - 300) * 4 : 0;
+      final byte[] luma = crossing ? render(x, 200, 60) : render(0, 0, 0);
+      step(luma, i, crossing && i > 302 ? 1 : 0);
+    }
+    final DetectionCascade.Stats stats = cascade.getStats();
+    assertEquals(frames, stats.frames);
+    assertTrue(stats.detections >= 150);
+    assertTrue(stats.getSkipRate() > 0.7f);
+    report("replayed crossing", stats);
+  }
+
+  private static void report(final String name, final DetectionCascade.Stats stats) {
+    final float savedMs = (stats.frames - stats.detections) * DETECTION_MS;
+    Benchmark.report(
+        String.format(
+            Locale.ENGLISH,
+            "%s: %s; saved %.1f of %.1f s detector time",
+            name,
+            stats,
+            savedMs / 1000,
+            stats.frames * DETECTION_MS / 1000));
+  }
+}
@@ -0,0 +1,167 @@
+package com.motiontracking.detection;
+
+import com.motiontracking.tracking.TrackSnapshot;
+import com.motiontracking.tracking.TrackSnapshotPublisher;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ProgressiveScanTest {
+  private static final int WIDTH = 1280;
+  private static final int HEIGHT = 720;
+  private static final long SECOND = 1_000_000_000L;
+
+  private final TrackSnapshot.Builder builder = new TrackSnapshot.Builder();
+  private final TrackSnapshotPublisher publisher = new TrackSnapshotPublisher();
+
+  @Test
+  public void gridCoversTheFrameInOneRound() {
+    final ProgressiveScan scan = new ProgressiveScan(3, 2, 0.15f, 1, 0.5f);
+    final TrackSnapshot none = tracks();
+    final float[] tiles = new float[4];
+    final boolean[] seen = new boolean[WIDTH * HEIGHT / 64];
+    boolean wholeFrame = false;
+    assertEquals(7, scan.getViewsPerRound());
+    for (int f = 0; f < scan.getViewsPerRound(); ++f) {
+      assertEquals(1, scan.plan(WIDTH, HEIGHT, none, tiles));
+      assertTrue(tiles[0] >= 0 && tiles[1] >= 0 && tiles[2] <= WIDTH && tiles[3] <= HEIGHT);
+      if (tiles[0] == 0 && tiles[1] == 0 && tiles[2] == WIDTH && tiles[3] == HEIGHT) {
+        wholeFrame = true;
+        continue;
+      }
+      // Tiles are smaller than the frame, so they are detected at a higher resolution.
+      assertTrue(tiles[2] - tiles[0] < WIDTH / 2);
+      for (int y = 4; y < HEIGHT; y += 8) {
+        for (int x = 4; x < WIDTH; x += 8) {
+          if (x >= tiles[0] && x < tiles[2] && y >= tiles[1] && y < tiles[3]) {
+            seen[(y / 8) * (WIDTH / 8) + x / 8] = true;
+          }
+        }
+      }
+    }
+    assertTrue(wholeFrame);
+    for (int i = 0; i < seen.length; ++i) {
+      assertTrue("pixel block " + i + " never scanned", seen[i]);
+    }
+  }
+
+  @Test
+  public void trackWindowsComeFirstLongestUnseenFirst() {
+    final ProgressiveScan scan = new ProgressiveScan(3, 2, 0.15f, 3, 0.5f);
+    // Two tracks far apart, and one next to the first that fits in its window.
+    final TrackSnapshot snapshot =
+        tracks(
+            new float[] {100, 100, 160, 220},
+            new float[] {1000, 400, 1060, 520},
+            new float[] {170, 120, 210, 200});
+    final float[] tiles = new float[12];
+    assertEquals(3, scan.plan(WIDTH, HEIGHT, snapshot, tiles));
+    assertTrue(contains(tiles, 0, snapshot, 0));
+    assertTrue(contains(tiles, 0, snapshot, 2));
+    assertTrue(contains(tiles, 4, snapshot, 1));
+    // The third tile is the grid.
+    assertTrue(!contains(tiles, 8, snapshot, 0) || !contains(tiles, 8, snapshot, 1));
+
+    // With room for one window per frame, the tracks take turns.
+    final ProgressiveScan narrow = new ProgressiveScan(3, 2, 0.15f, 2, 0.5f);
+    final float[] two = new float[8];
+    narrow.plan(WIDTH, HEIGHT, snapshot, two);
+    assertTrue(contains(two, 0, snapshot, 0));
+    narrow.plan(WIDTH, HEIGHT, snapshot, two);
+    assertTrue(contains(two, 0, snapshot, 1));
+    narrow.plan(WIDTH, HEIGHT, snapshot, two);
+    assertTrue(contains(two, 0, snapshot, 0));
+  }
+
+  @Test
+  public void singleTileAlternatesBetweenTracksAndGrid() {
+    final ProgressiveScan scan = new ProgressiveScan(3, 2, 0.15f, 1, 0.5f);
+    final TrackSnapshot snapshot = tracks(new float[] {600, 300, 660, 420});
+    final float[] tiles = new float[4];
+    int windows = 0;
+    for (int f = 0; f < 2 * scan.getViewsPerRound(); ++f) {
+      assertEquals(1, scan.plan(WIDTH, HEIGHT, snapshot, tiles));
+      final boolean window = contains(tiles, 0, snapshot, 0) && tiles[2] - tiles[0] < WIDTH;
+      if (window && Math.abs((tiles[0] + tiles[2]) / 2 - 630) < 1) {
+        ++windows;
+      }
+    }
+    assertEquals(scan.getViewsPerRound(), windows);
+  }
+
+  @Test
+  public void mergerReplacesScannedTilesAndFadesTheRest() {
+    final TileResultMerger merger = new TileResultMerger(SECOND);
+    final float[] left = {0, 0, 640, 720};
+    final float[] right = {640, 0, 1280, 720};
+
+    merger.begin(left, 1, 0);
+    merger.add(100, 100, 200, 300, "person", 0.8f);
+    merger.end();
+    merger.begin(right, 1, SECOND / 4);
+    merger.add(800, 100, 900, 300, "person", 0.9f);
+    merger.end();
+    assertEquals(2, merger.size());
+    // The left result is older and fades.
+    assertEquals(0.6f, merger.getConfidence(0), 1e-3);
+    assertEquals(0.9f, merger.getConfidence(1), 1e-3);
+
+    // The left tile is scanned again and the person moved within it.
+    merger.begin(left, 1, SECOND / 2);
+    merger.add(150, 100, 250, 300, "person", 0.7f);
+    merger.end();
+    assertEquals(2, merger.size());
+    assertEquals(800, merger.getLeft(0), 0);
+    assertEquals(150, merger.getLeft(1), 0);
+    assertEquals(0.7f, merger.getConfidence(1), 1e-3);
+
+    // The right result is not confirmed and expires.
+    merger.begin(left, 1, SECOND / 4 + SECOND + 1);
+    merger.add(150, 100, 250, 300, "person", 0.7f);
+    merger.end();
+    assertEquals(1, merger.size());
+    assertEquals(150, merger.getLeft(0), 0);
+  }
+
+  @Test
+  public void mergerKeepsOneOfOverlappingDetections() {
+    final TileResultMerger merger = new TileResultMerger(SECOND);
+    // Two overlapping tiles, one of which cut the person in half.
+    final float[] tiles = {0, 0, 700, 720, 580, 0, 1280, 720};
+    merger.begin(tiles, 2, 0);
+    merger.add(600, 100, 700, 400, "person", 0.5f);
+    merger.add(600, 100, 760, 420, "person", 0.9f);
+    merger.add(610, 110, 750, 410, "dog", 0.6f);
+    merger.end();
+    assertEquals(2, merger.size());
+    assertEquals("person", merger.getTitle(0));
+    assertEquals(0.9f, merger.getConfidence(0), 1e-3);
+    assertEquals("dog", merger.getTitle(1));
+
+    // A new detection of a kept object replaces it even where no tile covers it whole.
+    merger.begin(tiles, 1, SECOND / 2);
+    merger.add(590, 100, 700, 410, "person", 0.4f);
+    merger.end();
+    assertEquals(2, merger.size());
+    assertEquals("dog", merger.getTitle(0));
+    assertEquals(0.4f, merger.getConfidence(1), 1e-3);
+  }
+
+  private TrackSnapshot tracks(final float[]... boxes) {
+    builder.clear().setFrameConfiguration(WIDTH, HEIGHT, 0);
+    for (int i = 0; i < boxes.length; ++i) {
+      builder.add(i, boxes[i][0], boxes[i][1], boxes[i][2], boxes[i][3], 0.9f, "person", 0);
+    }
+    return publisher.publish(builder);
+  }
+
+  private static boolean contains(
+      final float[] tiles, final int t, final TrackSnapshot snapshot, final int i) {
+    return snapshot.getLeft(i) >= tiles[t]
+        && snapshot.getTop(i) >= tiles[t + 1]
+        && snapshot.getRight(i) <= tiles[t + 2]
+        && snapshot.getBottom(i) <= tiles[t + 3];
+  }
+}
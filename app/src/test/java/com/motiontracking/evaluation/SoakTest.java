@@ -0,0 +1,176 @@
+package com.motiontracking.evaluation;
+
+import com.motiontracking.Benchmark;
+import com.motiontracking.stream.StreamDetector;
+import com.motiontracking.stream.StreamFrame;
+import com.motiontracking.tflite.Detections;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The soak runner on a synthetic scene. The runs are short here; a long one is run with {@code
+ * -Dsoak.duration.seconds=43200}.
+ */
+public class SoakTest {
+  private static final long SECOND_NANOS = 1_000_000_000L;
+
+  @Test
+  public void sceneRendersObjectsOnTheirTrajectories() throws Exception {
+    final float speed = 6;
+    final SyntheticScene scene = new SyntheticScene("scene", 320, 240, 8, speed, 1);
+    final AnnotatedSequence truth = scene.toSequence(300);
+    final float[] box = new float[4];
+    final float[] previous = new float[4];
+    final StreamFrame frame = new StreamFrame();
+    for (int f = 0; f < 300; ++f) {
+      assertTrue(scene.read(frame));
+      assertEquals(f, frame.getIndex());
+      assertEquals(f, scene.getRenderedFrame());
+      assertEquals(8, truth.getObjectCount(f));
+      for (int i = 0; i < scene.getObjectCount(); ++i) {
+        scene.getBox(f, i, box);
+        assertEquals(scene.getId(i), truth.getId(f, i));
+        assertEquals(box[0], truth.getLeft(f, i), 0);
+        assertEquals(box[3], truth.getBottom(f, i), 0);
+        assertTrue(box[0] >= 0 && box[1] >= 0 && box[2] <= 320 && box[3] <= 240);
+        if (f > 0) {
+          // Never further than one and a half times the speed, in both directions together.
+          scene.getBox(f - 1, i, previous);
+          assertTrue(Math.abs(box[0] - previous[0]) <= 1.5f * speed + 1);
+          assertTrue(Math.abs(box[1] - previous[1]) <= 1.5f * speed + 1);
+        }
+      }
+      // The last object is drawn over all others: a rectangle of one color.
+      scene.getBox(f, scene.getObjectCount() - 1, box);
+      final byte[] y = scene.getYPlane();
+      final int luma = y[(int) box[1] * 320 + (int) box[0]];
+      final int u = scene.getUPlane()[(int) box[1] / 2 * 160 + (int) box[0] / 2];
+      for (int row = (int) box[1]; row < box[3]; ++row) {
+        for (int column = (int) box[0]; column < box[2]; ++column) {
+          assertEquals(luma, y[row * 320 + column]);
+          assertEquals(luma, frame.getLuma()[row * 320 + column]);
+          if (row % 2 == 1 && column % 2 == 1) {
+            assertEquals(u, scene.getUPlane()[row / 2 * 160 + column / 2]);
+          }
+        }
+      }
+    }
+
+    // Any frame renders the same without the ones before, however far into a run.
+    final SyntheticScene again = new SyntheticScene("scene", 320, 240, 8, speed, 1);
+    again.render(299);
+    assertArrayEquals(scene.getYPlane(), again.getYPlane());
+    assertArrayEquals(scene.getVPlane(), again.getVPlane());
+    again.render(12L * 3600 * 30);
+    again.getBox(12L * 3600 * 30, 0, box);
+    assertTrue(box[0] >= 0 && box[2] <= 320);
+  }
+
+  @Test
+  public void healthyPipelineDoesNotDrift() throws Exception {
+    final long duration = Long.getLong("soak.duration.seconds", 2) * SECOND_NANOS;
+    final SyntheticScene scene = new SyntheticScene("soak", 320, 240, 12, 4, 2);
+    final SoakRunner runner = new SoakRunner(scene, 300, 2, null, 30, duration / 20);
+    final SoakRunner.Report report =
+        runner.run(
+            duration,
+            new SoakRunner.Listener() {
+              @Override
+              public void onSample(final SoakRunner.Sample sample) {
+                if (sample.getElapsedNanos() > 60 * SECOND_NANOS) {
+                  Benchmark.report("Soak: " + sample);
+                }
+              }
+            });
+    Benchmark.report("Soak: " + report);
+    assertTrue(report.isConclusive());
+    assertTrue(report.getRebuilds() > 0);
+    final SoakRunner.Sample last = report.getSamples().get(report.getSamples().size() - 1);
+    assertTrue(last.getFrames() > 0);
+    assertTrue(last.getLatencyNanos(SoakRunner.FRAME, 99) > 0);
+    assertTrue(
+        last.getLatencyNanos(SoakRunner.FRAME, 50) <= last.getLatencyNanos(SoakRunner.FRAME, 95));
+    assertEquals(0, report.getThreadGrowth());
+    assertTrue(report.getHeapGrowthBytes() < 8 << 20);
+  }
+
+  @Test
+  public void leaksOfRebuiltDetectorsAreFlagged() throws Exception {
+    final List<Thread> threads = new ArrayList<>();
+    final List<byte[]> retained = new ArrayList<>();
+    // Leaks a thread and half a megabyte each time it is created, as a detector would that is
+    // never released.
+    final StreamDetector.Factory leaking =
+        new StreamDetector.Factory() {
+          @Override
+          public StreamDetector create() {
+            final Thread thread =
+                new Thread() {
+                  @Override
+                  public void run() {
+                    try {
+                      Thread.sleep(Long.MAX_VALUE);
+                    } catch (final InterruptedException e) {
+                      // Released by the test.
+                    }
+                  }
+                };
+            thread.setDaemon(true);
+            thread.start();
+            threads.add(thread);
+            retained.add(new byte[512 << 10]);
+            return new StreamDetector() {
+              @Override
+              public List<String> getLabels() {
+                return Collections.singletonList("object");
+              }
+
+              @Override
+              public void detect(final StreamFrame frame, final Detections out) {
+                out.add(10, 10, 50, 50, 0, 0.9f);
+              }
+
+              @Override
+              public void close() {}
+            };
+          }
+        };
+    // Paced so that the leak grows at a known rate of 20 detectors per second.
+    final SyntheticScene scene = new SyntheticScene("leak", 320, 240, 4, 4, 3, 2_000_000L);
+    final SoakRunner runner = new SoakRunner(scene, 300, 1, leaking, 25, SECOND_NANOS / 10);
+    try {
+      final SoakRunner.Report report = runner.run(2 * SECOND_NANOS, null);
+      Benchmark.report("Soak with leaks: " + report);
+      assertTrue(report.getThreadGrowth() > 0);
+      assertTrue(report.getHeapGrowthBytes() > 8 << 20);
+      final List<String> drift = report.getDrift();
+      assertTrue(drift.toString(), drift.size() >= 2);
+      assertTrue(drift.get(0).startsWith("retained heap grew"));
+      assertTrue(drift.get(1).startsWith("threads grew"));
+    } finally {
+      for (final Thread thread : threads) {
+        thread.interrupt();
+      }
+      retained.clear();
+    }
+  }
+
+  @Test
+  public void shortRunsAreInconclusive() throws Exception {
+    final SyntheticScene scene = new SyntheticScene("short", 64, 48, 2, 1, 4);
+    final SoakRunner.Report report =
+        new SoakRunner(scene, 32, 1, null, 0, SECOND_NANOS).run(SECOND_NANOS / 20, null);
+    assertFalse(report.isConclusive());
+    assertTrue(report.getDrift().isEmpty());
+    assertEquals(0, report.getRebuilds());
+  }
+}
@@ -0,0 +1,309 @@
+package com.motiontracking.evaluation;
+
+import com.motiontracking.Benchmark;
+import com.motiontracking.stream.StreamDetector;
+import com.motiontracking.stream.StreamFrame;
+import com.motiontracking.tflite.Detections;
+import com.motiontracking.tracking.TrackSnapshot;
+import com.motiontracking.tracking.TrackSnapshotPublisher;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TrackingEvaluationTest {
+  private static final int WIDTH = 640;
+  private static final int HEIGHT = 480;
+
+  private final TrackSnapshot.Builder builder = new TrackSnapshot.Builder();
+  private final TrackSnapshotPublisher publisher = new TrackSnapshotPublisher();
+
+  @Test
+  public void readsMotChallengeGroundTruth() throws IOException {
+    final AnnotatedSequence sequence =
+        AnnotatedSequence.readMotChallenge(
+            "MOT-test",
+            WIDTH,
+            HEIGHT,
+            new StringReader(
+                "1,1,100,50,40,80,1,1,1.0\n"
+                    + "1,2,300,60,40,80,1,1,0.8\n"
+                    + "1,3,10,10,5,5,0,8,0.1\n"
+                    + "\n"
+                    + "3,1,104,50,40,80,1,1,1.0\n"));
+    assertEquals(3, sequence.getFrameCount());
+    assertEquals(2, sequence.getObjectCount(0));
+    assertEquals(0, sequence.getObjectCount(1));
+    assertEquals(1, sequence.getObjectCount(2));
+    assertEquals(2, sequence.getId(0, 1));
+    assertEquals(300, sequence.getLeft(0, 1), 0);
+    assertEquals(140, sequence.getBottom(0, 1), 0);
+    assertEquals(144, sequence.getRight(2, 0), 0);
+    try {
+      AnnotatedSequence.readMotChallenge("bad", WIDTH, HEIGHT, new StringReader("1,1,a,2,3,4"));
+      assertTrue(false);
+    } catch (final IOException expected) {
+    }
+  }
+
+  @Test
+  public void perfectTracksScoreOne() {
+    final AnnotatedSequence sequence = walkers(3, 50);
+    final MotMetrics metrics = new MotMetrics(0.5f);
+    for (int f = 0; f < sequence.getFrameCount(); ++f) {
+      metrics.update(sequence, f, tracks(sequence, f));
+    }
+    assertEquals(1, metrics.getMota(), 1e-9);
+    assertEquals(1, metrics.getMotp(), 1e-6);
+    assertEquals(1, metrics.getIdf1(), 1e-9);
+    assertEquals(0, metrics.getIdSwitches());
+    assertEquals(150, metrics.getMatches());
+  }
+
+  @Test
+  public void countsErrorsOfEachKind() {
+    final AnnotatedSequence sequence =
+        new AnnotatedSequence.Builder("two", WIDTH, HEIGHT)
+            .add(0, 1, 0, 0, 100, 100)
+            .add(0, 2, 200, 0, 300, 100)
+            .add(1, 1, 0, 0, 100, 100)
+            .add(1, 2, 200, 0, 300, 100)
+            .add(2, 1, 0, 0, 100, 100)
+            .add(2, 2, 200, 0, 300, 100)
+            .add(3, 1, 0, 0, 100, 100)
+            .add(3, 2, 200, 0, 300, 100)
+            .build();
+    final MotMetrics metrics = new MotMetrics(0.5f);
+    // Frame 0 is right, frame 1 misses object 2 and has a false positive far away, frames 2 and
+    // 3 follow the objects with swapped tracks.
+    metrics.update(
+        sequence,
+        0,
+        snapshot(new float[] {10, 0, 0, 100, 100}, new float[] {20, 200, 0, 300, 100}));
+    metrics.update(
+        sequence,
+        1,
+        snapshot(new float[] {10, 0, 0, 100, 100}, new float[] {30, 400, 300, 500, 400}));
+    metrics.update(
+        sequence,
+        2,
+        snapshot(new float[] {20, 0, 0, 100, 100}, new float[] {10, 200, 0, 300, 100}));
+    metrics.update(
+        sequence,
+        3,
+        snapshot(new float[] {20, 0, 0, 100, 100}, new float[] {10, 200, 0, 300, 100}));
+    assertEquals(8, metrics.getGroundTruthBoxes());
+    assertEquals(1, metrics.getMisses());
+    assertEquals(1, metrics.getFalsePositives());
+    assertEquals(2, metrics.getIdSwitches());
+    assertEquals(1 - 4 / 8.0, metrics.getMota(), 1e-9);
+    // Object 1 to track 20 and object 2 to track 10 overlap in 4 frames, more than the matches
+    // of the first two frames.
+    assertEquals(4, metrics.getIdTruePositives());
+    assertEquals(8 / 16.0, metrics.getIdf1(), 1e-9);
+  }
+
+  @Test
+  public void assignmentFindsTheCheapestMatching() {
+    final double[][] cost = {{4, 1, 3}, {2, 0, 5}, {3, 2, 2}};
+    final int[] assigned = Assignment.minimize(cost, 3, 3);
+    assertEquals(1, assigned[0]);
+    assertEquals(0, assigned[1]);
+    assertEquals(2, assigned[2]);
+    // More rows than columns leaves the most expensive row out.
+    final int[] wide = Assignment.minimize(new double[][] {{1}, {0}, {5}}, 3, 1);
+    assertEquals(-1, wide[0]);
+    assertEquals(0, wide[1]);
+    assertEquals(-1, wide[2]);
+  }
+
+  @Test
+  public void reportComparesConfigurationsOnTheFrontier() throws Exception {
+    final AnnotatedSequence first = walkers(6, 300);
+    final AnnotatedSequence second = walkers(4, 200);
+    final TrackingEvaluation evaluation = new TrackingEvaluation(0.5f);
+    final EvaluationReport report = new EvaluationReport();
+    for (final AnnotatedSequence sequence : new AnnotatedSequence[] {first, second}) {
+      final TrackingEvaluation.Configuration[] configurations = {
+        new TrackingEvaluation.Configuration(
+            "precise every frame",
+            new SimulatedDetector.Factory(sequence, 1f, 0.02f, 0, 200_000),
+            1),
+        new TrackingEvaluation.Configuration(
+            "precise every 4th",
+            new SimulatedDetector.Factory(sequence, 1f, 0.02f, 0, 200_000),
+            4),
+        new TrackingEvaluation.Configuration(
+            "sloppy every frame",
+            new SimulatedDetector.Factory(sequence, 6f, 0.2f, 0.3f, 400_000),
+            1),
+      };
+      for (final TrackingEvaluation.Configuration configuration : configurations) {
+        final TrackingEvaluation.Result result = evaluation.run(configuration, sequence, null);
+        assertEquals(sequence.getFrameCount(), result.getFrames());
+        report.add(result);
+      }
+    }
+    final StringWriter table = new StringWriter();
+    report.write(table);
+    if (Benchmark.ENABLED) {
+      System.out.print(table);
+    }
+    final StringWriter csv = new StringWriter();
+    report.writeCsv(csv);
+    assertEquals(4, csv.toString().split("\n").length);
+
+    final List<EvaluationReport.Row> rows = report.getRows();
+    final EvaluationReport.Row everyFrame = rows.get(0);
+    final EvaluationReport.Row everyFourth = rows.get(1);
+    final EvaluationReport.Row sloppy = rows.get(2);
+    assertTrue(everyFrame.getMota() > 0.9);
+    assertTrue(everyFrame.getIdf1() > sloppy.getIdf1());
+    assertTrue(everyFourth.getMota() < everyFrame.getMota());
+    assertTrue(sloppy.getMota() < everyFrame.getMota());
+    assertTrue(everyFourth.getFps() > 2 * everyFrame.getFps());
+    assertTrue(everyFrame.getLatencyMillis(0.5) >= 0.2);
+    // Slower and worse than detecting precisely on every frame.
+    assertTrue(everyFrame.isOnFrontier());
+    assertTrue(everyFourth.isOnFrontier());
+    assertFalse(sloppy.isOnFrontier());
+  }
+
+  /** People of 40x80 pixels walking straight at a few pixels per frame, bouncing off the border. */
+  private static AnnotatedSequence walkers(final int count, final int frames) {
+    final Random random = new Random(count);
+    final AnnotatedSequence.Builder sequence =
+        new AnnotatedSequence.Builder("walkers-" + count, WIDTH, HEIGHT).setFrameCount(frames);
+    for (int id = 1; id <= count; ++id) {
+      float x = random.nextFloat() * (WIDTH - 40);
+      float y = random.nextFloat() * (HEIGHT - 80);
+      float vx = (random.nextFloat() - 0.5f) * 12;
+      float vy = (random.nextFloat() - 0.5f) * 4;
+      for (int f = 0; f < frames; ++f) {
+        sequence.add(f, id, x, y, x + 40, y + 80);
+        if (x + vx < 0 || x + vx > WIDTH - 40) {
+          vx = -vx;
+        }
+        if (y + vy < 0 || y + vy > HEIGHT - 80) {
+          vy = -vy;
+        }
+        x += vx;
+        y += vy;
+      }
+    }
+    return sequence.build();
+  }
+
+  /** The ground truth of the frame as tracks with other identifiers. */
+  private TrackSnapshot tracks(final AnnotatedSequence sequence, final int frame) {
+    builder.clear().setFrameConfiguration(WIDTH, HEIGHT, 0);
+    for (int i = 0; i < sequence.getObjectCount(frame); ++i) {
+      builder.add(
+          100 + sequence.getId(frame, i),
+          sequence.getLeft(frame, i),
+          sequence.getTop(frame, i),
+          sequence.getRight(frame, i),
+          sequence.getBottom(frame, i),
+          0.9f,
+          "person",
+          0);
+    }
+    return publisher.publish(builder);
+  }
+
+  /** Tracks of {@code id, left, top, right, bottom}. */
+  private TrackSnapshot snapshot(final float[]... tracks) {
+    builder.clear().setFrameConfiguration(WIDTH, HEIGHT, 0);
+    for (final float[] track : tracks) {
+      builder.add((int) track[0], track[1], track[2], track[3], track[4], 0.9f, "person", 0);
+    }
+    return publisher.publish(builder);
+  }
+
+  /**
+   * Reports the annotated boxes of the frame with noise, misses and false positives, spending a
+   * fixed time per frame like a model would.
+   */
+  private static final class SimulatedDetector implements StreamDetector {
+    static final class Factory implements StreamDetector.Factory {
+      private final AnnotatedSequence sequence;
+      private final float noise;
+      private final float missRate;
+      private final float falsePositiveRate;
+      private final long workNanos;
+
+      Factory(
+          final AnnotatedSequence sequence,
+          final float noise,
+          final float missRate,
+          final float falsePositiveRate,
+          final long workNanos) {
+        this.sequence = sequence;
+        this.noise = noise;
+        this.missRate = missRate;
+        this.falsePositiveRate = falsePositiveRate;
+        this.workNanos = workNanos;
+      }
+
+      @Override
+      public StreamDetector create() {
+        return new SimulatedDetector(this);
+      }
+    }
+
+    private final Factory factory;
+    private final Random random = new Random(11);
+
+    SimulatedDetector(final Factory factory) {
+      this.factory = factory;
+    }
+
+    @Override
+    public List<String> getLabels() {
+      return Collections.singletonList("person");
+    }
+
+    @Override
+    public void detect(final StreamFrame frame, final Detections out) {
+      final long end = System.nanoTime() + factory.workNanos;
+      while (System.nanoTime() < end) {
+        // The model runs.
+      }
+      final AnnotatedSequence sequence = factory.sequence;
+      final int f = (int) frame.getIndex();
+      for (int i = 0; i < sequence.getObjectCount(f); ++i) {
+        if (random.nextFloat() < factory.missRate) {
+          continue;
+        }
+        out.add(
+            jitter(sequence.getTop(f, i)),
+            jitter(sequence.getLeft(f, i)),
+            jitter(sequence.getBottom(f, i)),
+            jitter(sequence.getRight(f, i)),
+            0,
+            0.9f);
+      }
+      if (random.nextFloat() < factory.falsePositiveRate) {
+        final float left = random.nextFloat() * (sequence.getWidth() - 40);
+        final float top = random.nextFloat() * (sequence.getHeight() - 80);
+        out.add(top, left, top + 80, left + 40, 0, 0.6f);
+      }
+    }
+
+    @Override
+    public void close() {}
+
+    private float jitter(final float coordinate) {
+      return coordinate + (float) random.nextGaussian() * factory.noise;
+    }
+  }
+}
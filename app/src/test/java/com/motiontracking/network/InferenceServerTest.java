@@ -0,0 +1,254 @@
+package com.motiontracking.network;
+
+import com.motiontracking.Benchmark;
+import com.motiontracking.tflite.BatchDetector;
+import com.motiontracking.tflite.Detections;
+import com.motiontracking.tflite.ModelSpec;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class InferenceServerTest {
+  private static final int SIZE = 32;
+  private static final List<String> LABELS = Arrays.asList("???", "person", "car");
+
+  @Test
+  public void servesTheModelToClients() throws Exception {
+    final FakeDetector detector = new FakeDetector(0);
+    try (InferenceServer server = start(detector, 4, 1_000_000L);
+        InferenceClient client = connect(server)) {
+      final ModelSpec spec = client.getSpec();
+      assertEquals("fake", spec.getName());
+      assertEquals(SIZE, spec.getInputWidth());
+      assertEquals(SIZE, spec.getInputHeight());
+      assertTrue(spec.isQuantized());
+      assertEquals(1, spec.getLabelOffset());
+      assertEquals(3, spec.getMaxDetections());
+      assertEquals(0.5f, spec.getMinimumConfidence(), 0);
+      assertEquals(0.7f, spec.getMinimumConfidence("car"), 0);
+      assertEquals(LABELS, client.getLabels());
+
+      final Detections out = new Detections(3);
+      for (int value = 1; value <= 3; ++value) {
+        client.detect(input(value), out);
+        assertDetections(value, out);
+      }
+      assertEquals(3, server.getRequests());
+      assertEquals(3, server.getBatches());
+    }
+  }
+
+  @Test
+  public void concurrentRequestsAreBatched() throws Exception {
+    final FakeDetector detector = new FakeDetector(2);
+    final int clients = 4;
+    final int requests = 25;
+    try (InferenceServer server = start(detector, clients, 50_000_000L)) {
+      final AtomicReference<Throwable> failure = new AtomicReference<>();
+      final List<Thread> threads = new ArrayList<>();
+      for (int c = 0; c < clients; ++c) {
+        final InferenceClient client = connect(server);
+        final int first = c * requests + 1;
+        final Thread thread =
+            new Thread() {
+              @Override
+              public void run() {
+                try (InferenceClient closing = client) {
+                  final Detections out = new Detections(3);
+                  for (int value = first; value < first + requests; ++value) {
+                    closing.detect(input(value), out);
+                    // Each client gets the detections of its own input back.
+                    assertDetections(value, out);
+                  }
+                } catch (final Throwable e) {
+                  failure.compareAndSet(null, e);
+                }
+              }
+            };
+        threads.add(thread);
+        thread.start();
+      }
+      for (final Thread thread : threads) {
+        thread.join();
+      }
+      if (failure.get() != null) {
+        throw new AssertionError(failure.get());
+      }
+      Benchmark.report("Batched inference: " + server);
+      assertEquals(clients * requests, server.getRequests());
+      assertEquals(clients * requests, detector.inputs);
+      assertTrue(server.getBatches() < server.getRequests());
+      assertTrue(server.getLargestBatch() > 1);
+      assertTrue(server.getLargestBatch() <= clients);
+    }
+  }
+
+  @Test
+  public void requestsWaitForOthersNoLongerThanTheMaximumLatency() throws Exception {
+    final long maxLatencyNanos = 100_000_000L;
+    try (InferenceServer server = start(new FakeDetector(0), 4, maxLatencyNanos);
+        InferenceClient client = connect(server);
+        InferenceClient idle = connect(server)) {
+      final Detections out = new Detections(3);
+      // The idle client could still send a request, so the batch waits for it until the deadline.
+      final long start = System.nanoTime();
+      client.detect(input(9), out);
+      final long waited = System.nanoTime() - start;
+      assertDetections(9, out);
+      assertTrue(waited + " ns", waited >= maxLatencyNanos);
+      assertEquals(1, server.getLargestBatch());
+      // Its own request later waits for the other client just the same.
+      idle.detect(input(4), out);
+      assertDetections(4, out);
+      assertEquals(1, server.getLargestBatch());
+    }
+  }
+
+  @Test
+  public void failuresAreReportedToTheClient() throws Exception {
+    final FakeDetector detector = new FakeDetector(0);
+    try (InferenceServer server = start(detector, 4, 0);
+        InferenceClient client = connect(server)) {
+      final Detections out = new Detections(3);
+      try {
+        client.detect(input(FakeDetector.FAILING), out);
+        fail();
+      } catch (final IOException e) {
+        assertTrue(e.getMessage(), e.getMessage().contains("unreadable input"));
+      }
+      // The connection survives a failed request.
+      client.detect(input(5), out);
+      assertDetections(5, out);
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsInputsOfTheWrongSize() throws Exception {
+    try (InferenceServer server = start(new FakeDetector(0), 4, 0);
+        InferenceClient client = connect(server)) {
+      client.detect(ByteBuffer.allocateDirect(SIZE), new Detections(3));
+    }
+  }
+
+  private static InferenceServer start(
+      final BatchDetector detector, final int maxBatch, final long maxLatencyNanos)
+      throws IOException {
+    return new InferenceServer(
+        new InetSocketAddress(InetAddress.getLoopbackAddress(), 0),
+        detector,
+        maxBatch,
+        maxLatencyNanos);
+  }
+
+  private static InferenceClient connect(final InferenceServer server) throws IOException {
+    return new InferenceClient(
+        InetAddress.getLoopbackAddress().getHostAddress(), server.getPort());
+  }
+
+  /** A quantized input with the low byte of the value in the first channel of every pixel. */
+  private static ByteBuffer input(final int value) {
+    final ByteBuffer input = ByteBuffer.allocateDirect(3 * SIZE * SIZE);
+    for (int i = 0; i < input.capacity(); ++i) {
+      input.put(i, (byte) (i % 3 == 0 ? value : value >> 8));
+    }
+    return input;
+  }
+
+  private static void assertDetections(final int value, final Detections out) {
+    assertEquals(value % 3 + 1, out.size());
+    for (int i = 0; i < out.size(); ++i) {
+      assertEquals(value / 256f, out.getLeft(i), 1e-6f);
+      assertEquals(i / 4f, out.getTop(i), 0);
+      assertEquals(i % 2, out.getClassIndex(i));
+      assertEquals(0.9f, out.getScore(i), 0);
+    }
+  }
+
+  /**
+   * Detects one to three boxes depending on the value of the first input byte pair, reading the
+   * whole input as a model would.
+   */
+  private static final class FakeDetector implements BatchDetector {
+    static final int FAILING = 255;
+
+    private final ModelSpec spec =
+        new ModelSpec(
+            "fake",
+            "fake.tflite",
+            "labels.txt",
+            SIZE,
+            SIZE,
+            true,
+            128,
+            128,
+            1,
+            ModelSpec.OutputLayout.POSTPROCESSED,
+            null,
+            3,
+            0.5f,
+            Collections.singletonMap("car", 0.7f));
+    private final long millisPerBatch;
+    // Only touched by the server's batch thread.
+    int inputs;
+
+    FakeDetector(final long millisPerBatch) {
+      this.millisPerBatch = millisPerBatch;
+    }
+
+    @Override
+    public ModelSpec getSpec() {
+      return spec;
+    }
+
+    @Override
+    public List<String> getLabels() {
+      return LABELS;
+    }
+
+    @Override
+    public void detect(final ByteBuffer[] inputs, final int count, final Detections[] outputs) {
+      for (int k = 0; k < count; ++k) {
+        final ByteBuffer input = inputs[k];
+        // Thrown rather than asserted, so that the client sees the failure.
+        if (input.order() != ByteOrder.nativeOrder() || input.remaining() != spec.getInputBytes()) {
+          throw new IllegalStateException("Input of " + input.remaining() + " bytes");
+        }
+        final int value = (input.get(0) & 0xff) | (input.get(1) & 0xff) << 8;
+        for (int i = 0; i < input.capacity(); ++i) {
+          if (input.get(i) != input.get(i % 3)) {
+            throw new IllegalStateException("Input torn at " + i);
+          }
+        }
+        if (value == FAILING) {
+          throw new IllegalStateException("unreadable input");
+        }
+        outputs[k].clear();
+        for (int i = 0; i < value % 3 + 1; ++i) {
+          outputs[k].add(i / 4f, value / 256f, 1, 1, i % 2, 0.9f);
+        }
+      }
+      this.inputs += count;
+      if (millisPerBatch > 0) {
+        try {
+          Thread.sleep(millisPerBatch);
+        } catch (final InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }
+  }
+}
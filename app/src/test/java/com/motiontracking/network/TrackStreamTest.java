@@ -0,0 +1,277 @@
+package com.motiontracking.network;
+
+import com.motiontracking.tracking.TrackSnapshot;
+import com.motiontracking.tracking.TrackSnapshotPublisher;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TrackStreamTest {
+  private static final String[] TITLES = {"person", "car", "bicycle", "bus"};
+  private static final long START_MICROS = 1_600_000_000_000_000L;
+  private static final long FRAME_MICROS = 33_333L;
+  private static final long TIMEOUT_MILLIS = 20_000;
+  // Tracks per frame when subscribers are to fall behind.
+  private static final int TRACKS = 100;
+
+  @Test
+  public void streamsKeyAndDeltaFramesToEverySubscriber() throws Exception {
+    final int frames = 300;
+    final int tracks = 12;
+    final TrackStreamServer server =
+        new TrackStreamServer(
+            loopback(), 256 << 10, TrackStreamServer.SlowSubscriberPolicy.DISCONNECT);
+    try {
+      final TrackStreamClient first = new TrackStreamClient("127.0.0.1", server.getPort());
+      final TrackStreamClient second = new TrackStreamClient("127.0.0.1", server.getPort());
+      awaitSubscribers(server, 2);
+      for (int f = 0; f < frames; ++f) {
+        server.publish(scene(f, tracks), timeOf(f));
+        if (f % 16 == 15) {
+          Thread.sleep(1);
+        }
+      }
+      for (final TrackStreamClient client : new TrackStreamClient[] {first, second}) {
+        int received = 0;
+        int deltas = 0;
+        long sequence = 0;
+        do {
+          assertTrue(client.next());
+          assertEquals(received == 0, client.isKeyFrame());
+          assertTrue(client.getSequence() > sequence);
+          sequence = client.getSequence();
+          assertDecoded(client, tracks);
+          ++received;
+          deltas += client.isKeyFrame() ? 0 : 1;
+        } while (client.getTimeMicros() != timeOf(frames - 1));
+        assertEquals(frames - server.getFramesSkipped(), received);
+        assertEquals(received - 1, deltas);
+        client.close();
+      }
+      // Moving tracks take a few bytes each, as deltas to the frame before.
+      final double bytesPerTrack =
+          server.getBytesSent() / (2.0 * tracks * (frames - server.getFramesSkipped()));
+      assertTrue("bytes per track " + bytesPerTrack, bytesPerTrack < 9);
+      assertEquals(0, server.getFramesCoalesced());
+      assertEquals(0, server.getSubscribersDropped());
+
+      // A subscriber connecting later starts with the latest tracks.
+      final TrackStreamClient late = new TrackStreamClient("127.0.0.1", server.getPort());
+      assertTrue(late.next());
+      assertTrue(late.isKeyFrame());
+      assertEquals(timeOf(frames - 1), late.getTimeMicros());
+      assertDecoded(late, tracks);
+      late.close();
+    } finally {
+      server.close();
+    }
+  }
+
+  @Test
+  public void coalescesFramesOfSlowSubscribers() throws Exception {
+    final TrackStreamServer server =
+        new TrackStreamServer(
+            loopback(), 64 << 10, TrackStreamServer.SlowSubscriberPolicy.COALESCE);
+    try {
+      // Reads nothing until the fast one has seen all frames.
+      final TrackStreamClient slow = new TrackStreamClient("127.0.0.1", server.getPort());
+      final FastSubscriber fast = new FastSubscriber(server.getPort());
+      awaitSubscribers(server, 2);
+      final int frames =
+          publishUntil(
+              server,
+              new Condition() {
+                @Override
+                public boolean isMet() {
+                  return server.getFramesCoalesced() > 0;
+                }
+              });
+      server.publish(end(), timeOf(frames));
+      fast.join();
+      assertNull(fast.failure.get());
+      assertTrue(fast.received > 0);
+      assertEquals(0, server.getSubscribersDropped());
+
+      // What the slow subscriber finally reads still decodes: whole frames, and key frames after
+      // the gaps.
+      int received = 0;
+      int keyFrames = 0;
+      long sequence = 0;
+      do {
+        assertTrue(slow.next());
+        assertTrue(slow.getSequence() > sequence);
+        assertTrue(slow.isKeyFrame() || slow.getSequence() == sequence + 1);
+        sequence = slow.getSequence();
+        if (slow.size() > 0) {
+          assertDecoded(slow, TRACKS);
+        }
+        ++received;
+        keyFrames += slow.isKeyFrame() ? 1 : 0;
+      } while (slow.size() > 0);
+      assertTrue(received < frames);
+      assertTrue(keyFrames > 1);
+      slow.close();
+    } finally {
+      server.close();
+    }
+  }
+
+  @Test
+  public void disconnectsSlowSubscribers() throws Exception {
+    final TrackStreamServer server =
+        new TrackStreamServer(
+            loopback(), 64 << 10, TrackStreamServer.SlowSubscriberPolicy.DISCONNECT);
+    try {
+      final TrackStreamClient slow = new TrackStreamClient("127.0.0.1", server.getPort());
+      final FastSubscriber fast = new FastSubscriber(server.getPort());
+      awaitSubscribers(server, 2);
+      final int frames =
+          publishUntil(
+              server,
+              new Condition() {
+                @Override
+                public boolean isMet() {
+                  return server.getSubscribersDropped() > 0;
+                }
+              });
+      assertEquals(1, server.getSubscribersDropped());
+      assertEquals(1, server.getSubscriberCount());
+      server.publish(end(), timeOf(frames));
+      fast.join();
+      assertNull(fast.failure.get());
+      slow.close();
+    } finally {
+      server.close();
+    }
+  }
+
+  private interface Condition {
+    boolean isMet();
+  }
+
+  /** Reads and checks every frame on its own thread until the empty last one. */
+  private static final class FastSubscriber extends Thread {
+    final TrackStreamClient client;
+    final AtomicReference<Throwable> failure = new AtomicReference<>();
+    volatile int received;
+
+    FastSubscriber(final int port) throws IOException {
+      client = new TrackStreamClient("127.0.0.1", port);
+      setDaemon(true);
+      start();
+    }
+
+    @Override
+    public void run() {
+      try {
+        long sequence = 0;
+        while (client.next()) {
+          assertTrue(client.getSequence() > sequence);
+          sequence = client.getSequence();
+          if (client.size() == 0) {
+            break;
+          }
+          assertDecoded(client, TRACKS);
+          ++received;
+        }
+        client.close();
+      } catch (final Throwable t) {
+        failure.set(t);
+      }
+    }
+  }
+
+  /** Publishes frames of TRACKS tracks until the condition holds; returns the number published. */
+  private static int publishUntil(final TrackStreamServer server, final Condition condition)
+      throws InterruptedException {
+    final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+    int f = 0;
+    while (!condition.isMet()) {
+      assertTrue("timed out after " + f + " frames", System.currentTimeMillis() < deadline);
+      server.publish(scene(f, TRACKS), timeOf(f));
+      if (++f % 8 == 0) {
+        Thread.sleep(1);
+      }
+    }
+    return f;
+  }
+
+  private static void awaitSubscribers(final TrackStreamServer server, final int count)
+      throws InterruptedException {
+    final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+    while (server.getSubscriberCount() < count) {
+      assertTrue(System.currentTimeMillis() < deadline);
+      Thread.sleep(1);
+    }
+  }
+
+  private static InetSocketAddress loopback() {
+    return new InetSocketAddress(InetAddress.getLoopbackAddress(), 0);
+  }
+
+  private static long timeOf(final int frame) {
+    return START_MICROS + frame * FRAME_MICROS;
+  }
+
+  /** Checks the decoded frame against the snapshot published at its time. */
+  private static void assertDecoded(final TrackStreamClient client, final int tracks) {
+    final int frame = (int) ((client.getTimeMicros() - START_MICROS) / FRAME_MICROS);
+    assertEquals(timeOf(frame), client.getTimeMicros());
+    final TrackSnapshot snapshot = scene(frame, tracks);
+    assertEquals(snapshot.getFrameWidth(), client.getFrameWidth());
+    assertEquals(snapshot.getFrameHeight(), client.getFrameHeight());
+    assertEquals(snapshot.getSensorOrientation(), client.getSensorOrientation());
+    assertEquals(snapshot.size(), client.size());
+    for (int i = 0; i < snapshot.size(); ++i) {
+      assertEquals(snapshot.getId(i), client.getId(i));
+      assertEquals(i, client.indexOf(snapshot.getId(i)));
+      assertEquals(snapshot.getTitle(i), client.getTitle(i));
+      assertEquals(snapshot.getLeft(i), client.getLeft(i), 0.125f);
+      assertEquals(snapshot.getTop(i), client.getTop(i), 0.125f);
+      assertEquals(snapshot.getRight(i), client.getRight(i), 0.125f);
+      assertEquals(snapshot.getBottom(i), client.getBottom(i), 0.125f);
+      assertEquals(snapshot.getConfidence(i), client.getConfidence(i), 1f / 255);
+    }
+    assertFalse(client.indexOf(-1) >= 0);
+  }
+
+  /**
+   * Objects moving across a 640x480 frame; each is replaced by a new track every few seconds, and
+   * every eleventh has no title.
+   */
+  private static TrackSnapshot scene(final int frame, final int tracks) {
+    final TrackSnapshot.Builder builder = new TrackSnapshot.Builder();
+    builder.setFrameConfiguration(640, 480, 90);
+    for (int k = 0; k < tracks; ++k) {
+      final int lifetime = 90 + 7 * k;
+      final float x = (frame * (1 + k % 5) * 0.75f + 37 * k) % 580;
+      final float y = (frame * (k % 3) * 0.5f + 53 * k) % 420;
+      builder.add(
+          1000 * k + frame / lifetime,
+          x,
+          y,
+          x + 20 + k % 40,
+          y + 30 + k % 30,
+          0.3f + (k * 13 + frame) % 70 / 100f,
+          k % 11 == 10 ? null : TITLES[k % TITLES.length],
+          0);
+    }
+    return new TrackSnapshotPublisher().publish(builder);
+  }
+
+  /** The empty frame that tells the subscribers the test is over. */
+  private static TrackSnapshot end() {
+    final TrackSnapshot.Builder builder = new TrackSnapshot.Builder();
+    builder.setFrameConfiguration(640, 480, 90);
+    return new TrackSnapshotPublisher().publish(builder);
+  }
+}
@@ -0,0 +1,171 @@
+package com.motiontracking.recording;
+
+import com.motiontracking.stream.CaptureFrameSource;
+import com.motiontracking.stream.StreamFrame;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CaptureTest {
+  private static final int WIDTH = 160;
+  private static final int HEIGHT = 120;
+  // Padded rows and interleaved chroma, as cameras deliver them.
+  private static final int Y_ROW_STRIDE = 192;
+  private static final int UV_ROW_STRIDE = 192;
+  private static final int UV_PIXEL_STRIDE = 2;
+  private static final int CHUNK_BYTES = 1 << 20;
+  private static final long FRAME_NANOS = 33_333_333L;
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private final ByteBuffer[] planes = new ByteBuffer[3];
+  private final int[] rowStrides = {Y_ROW_STRIDE, UV_ROW_STRIDE, UV_ROW_STRIDE};
+  private final int[] pixelStrides = {1, UV_PIXEL_STRIDE, UV_PIXEL_STRIDE};
+
+  @Test
+  public void roundTripsPlanesStridesAndTimestamps() throws IOException, InterruptedException {
+    for (final boolean compress : new boolean[] {false, true}) {
+      final File directory = folder.newFolder("capture-" + compress);
+      final CaptureWriter writer = new CaptureWriter(directory, CHUNK_BYTES, 100, 4, compress);
+      final int frames = 60;
+      for (int f = 0; f < frames; ++f) {
+        fill(f);
+        final long timestamp = 1000 + f * FRAME_NANOS;
+        while (!writer.capture(timestamp, WIDTH, HEIGHT, planes, rowStrides, pixelStrides)) {
+          Thread.sleep(1);
+        }
+        // Capturing leaves the buffers to the camera as they were.
+        assertEquals(0, planes[0].position());
+      }
+      writer.close();
+
+      final CaptureReader reader = new CaptureReader(directory);
+      final YuvFrame frame = new YuvFrame();
+      long previousIndex = -1;
+      int read = 0;
+      while (reader.next(frame)) {
+        assertTrue(frame.getIndex() > previousIndex);
+        previousIndex = frame.getIndex();
+        final int f = read++;
+        fill(f);
+        assertEquals(1000 + f * FRAME_NANOS, frame.getTimestampNanos());
+        assertEquals(WIDTH, frame.getWidth());
+        assertEquals(HEIGHT, frame.getHeight());
+        for (int i = 0; i < YuvFrame.PLANES; ++i) {
+          assertEquals(rowStrides[i], frame.getRowStride(i));
+          assertEquals(pixelStrides[i], frame.getPixelStride(i));
+          assertEquals(planes[i].remaining(), frame.getPlaneLength(i));
+          for (int k = 0; k < frame.getPlaneLength(i); ++k) {
+            assertEquals(planes[i].get(k), frame.getPlane(i)[k]);
+          }
+        }
+      }
+      reader.close();
+      assertEquals(frames, read);
+      // Frames of 45 KB fill several chunks of 1 MiB uncompressed.
+      assertEquals(compress ? 1 : 3, reader.getChunkCount());
+      if (compress) {
+        assertTrue(
+            "compressed " + writer.getRawBytes() + " to " + writer.getBytesWritten(),
+            writer.getBytesWritten() * 3 < writer.getRawBytes());
+      }
+    }
+  }
+
+  @Test
+  public void dropsFramesWhenBuffersAreFullAndCountsThem() throws IOException {
+    final File directory = folder.newFolder("capture");
+    final CaptureWriter writer = new CaptureWriter(directory, CHUNK_BYTES, 2, 2, true);
+    final int offered = 500;
+    int accepted = 0;
+    for (int f = 0; f < offered; ++f) {
+      fill(f);
+      if (writer.capture(f * FRAME_NANOS, WIDTH, HEIGHT, planes, rowStrides, pixelStrides)) {
+        ++accepted;
+      }
+    }
+    writer.close();
+    assertEquals(accepted, writer.getFramesWritten());
+    assertEquals(offered, writer.getFramesWritten() + writer.getFramesDropped());
+    assertFalse(writer.capture(0, WIDTH, HEIGHT, planes, rowStrides, pixelStrides));
+
+    // Indices of the frames read back leave gaps where frames were dropped; only the newest
+    // chunks are kept.
+    final CaptureReader reader = new CaptureReader(directory);
+    assertTrue(reader.getChunkCount() <= 2);
+    final YuvFrame frame = new YuvFrame();
+    long previous = -1;
+    while (reader.next(frame)) {
+      assertTrue(frame.getIndex() > previous);
+      assertEquals(frame.getIndex() * FRAME_NANOS, frame.getTimestampNanos());
+      assertEquals((byte) frame.getIndex(), frame.getPlane(0)[Y_ROW_STRIDE * 7 + 3]);
+      previous = frame.getIndex();
+    }
+    reader.close();
+  }
+
+  @Test
+  public void replaysLuminanceAsStream() throws IOException, InterruptedException {
+    final File directory = folder.newFolder("capture");
+    final CaptureWriter writer = new CaptureWriter(directory, CHUNK_BYTES, 100, 4, true);
+    for (int f = 0; f < 10; ++f) {
+      fill(f);
+      while (!writer.capture(f * FRAME_NANOS, WIDTH, HEIGHT, planes, rowStrides, pixelStrides)) {
+        Thread.sleep(1);
+      }
+    }
+    writer.close();
+
+    final CaptureFrameSource source = new CaptureFrameSource(directory, false);
+    assertEquals(WIDTH, source.getWidth());
+    assertEquals(HEIGHT, source.getHeight());
+    final StreamFrame frame = new StreamFrame();
+    for (int f = 0; f < 10; ++f) {
+      assertTrue(source.read(frame));
+      fill(f);
+      assertEquals(f, frame.getIndex());
+      for (int y = 0; y < HEIGHT; y += 17) {
+        for (int x = 0; x < WIDTH; x += 13) {
+          assertEquals(planes[0].get(y * Y_ROW_STRIDE + x), frame.getLuma()[y * WIDTH + x]);
+        }
+      }
+    }
+    assertFalse(source.read(frame));
+    source.close();
+  }
+
+  /**
+   * Fills the planes with a smooth gradient moving with the frame, some noise and junk in the row
+   * padding. The last row of a plane ends at its last pixel, as in camera buffers.
+   */
+  private void fill(final int f) {
+    final Random random = new Random(f);
+    final byte[] y = new byte[Y_ROW_STRIDE * (HEIGHT - 1) + WIDTH];
+    for (int row = 0; row < HEIGHT; ++row) {
+      for (int x = 0; x < Y_ROW_STRIDE && row * Y_ROW_STRIDE + x < y.length; ++x) {
+        y[row * Y_ROW_STRIDE + x] =
+            (byte) (x < WIDTH ? x + row + f + random.nextInt(3) : random.nextInt(256));
+      }
+    }
+    y[Y_ROW_STRIDE * 7 + 3] = (byte) f;
+    planes[0] = ByteBuffer.wrap(y);
+    final int chromaLength = UV_ROW_STRIDE * (HEIGHT / 2 - 1) + WIDTH - 1;
+    final byte[] uv = new byte[chromaLength + 1];
+    for (int i = 0; i < uv.length; ++i) {
+      uv[i] = (byte) (128 + (i % UV_ROW_STRIDE) / 16 + ((i & 1) == 0 ? f : -f));
+    }
+    // U and V interleave: V starts one byte after U in the same memory.
+    planes[1] = ByteBuffer.wrap(uv, 0, chromaLength).slice();
+    planes[2] = ByteBuffer.wrap(uv, 1, chromaLength).slice();
+  }
+}
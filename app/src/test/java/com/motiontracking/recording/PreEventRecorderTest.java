@@ -0,0 +1,208 @@
+package com.motiontracking.recording;
+
+import com.motiontracking.tracking.TrackSnapshotPublisher;
+import com.motiontracking.tracking.TrackSnapshot;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PreEventRecorderTest {
+  private static final int WIDTH = 64;
+  private static final int HEIGHT = 48;
+  private static final int ROW_STRIDE = 72;
+  private static final int DOWNSCALE = 4;
+  private static final int SCALED_BYTES = (WIDTH / DOWNSCALE) * (HEIGHT / DOWNSCALE);
+  private static final long FRAME_NANOS = 100_000_000L;
+  private static final long SECOND = 1_000_000_000L;
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  private final TrackSnapshotPublisher publisher = new TrackSnapshotPublisher();
+  private final TrackSnapshot.Builder builder = new TrackSnapshot.Builder();
+  private final byte[] luma = new byte[ROW_STRIDE * HEIGHT];
+
+  @Test
+  public void savesFramesAndTracksAroundAppearances() throws IOException {
+    final File directory = folder.newFolder("clips");
+    final PreEventRecorder recorder = recorder(directory, 100 * SCALED_BYTES);
+    // A car from frame 50 triggers nothing; a person appearing at frame 100 does, and another one
+    // appearing at frame 105 extends the clip to frame 115.
+    for (int f = 0; f <= 130; ++f) {
+      recorder.onFrame(frame(f), ROW_STRIDE, f * FRAME_NANOS);
+      builder.clear().setFrameConfiguration(WIDTH, HEIGHT, 0);
+      if (f >= 50) {
+        builder.add(1, 0, 0, 10, 10, 0.8f, "car", 0);
+      }
+      if (f >= 100) {
+        builder.add(2, f, 20, f + 8, 40, 0.9f, "person", 0);
+      }
+      if (f >= 105) {
+        builder.add(3, 30, 20, 38, 40, 0.7f, "person", 0);
+      }
+      recorder.onTracks(publisher.publish(builder), f * FRAME_NANOS);
+    }
+    recorder.close();
+    assertEquals(1, recorder.getClipsSaved());
+    assertEquals(0, recorder.getFramesLost());
+
+    final File[] clips = directory.listFiles();
+    assertEquals(1, clips.length);
+    final ClipReader reader = new ClipReader(clips[0]);
+    assertEquals(WIDTH / DOWNSCALE, reader.getWidth());
+    assertEquals(HEIGHT / DOWNSCALE, reader.getHeight());
+    assertEquals(100 * FRAME_NANOS, reader.getTriggerNanos());
+    assertEquals(2, reader.getTriggerId());
+    assertEquals("person", reader.getTriggerTitle());
+
+    int nextFrame = 80;
+    int tracksRecords = 0;
+    ClipReader.RecordType type;
+    while ((type = reader.next()) != null) {
+      final long time = reader.getTimestampNanos();
+      if (type == ClipReader.RecordType.FRAME) {
+        assertEquals(nextFrame * FRAME_NANOS, time);
+        for (final byte value : reader.getFrame()) {
+          assertEquals(nextFrame, value & 0xff);
+        }
+        ++nextFrame;
+      } else {
+        final int f = (int) (time / FRAME_NANOS);
+        assertTrue("tracks of frame " + f, f >= 80 && f <= 115);
+        assertEquals(f >= 105 ? 3 : f >= 100 ? 2 : 1, reader.getTrackCount());
+        if (f >= 100) {
+          assertEquals(2, reader.getTrackId(1));
+          assertEquals("person", reader.getTrackTitle(1));
+          assertEquals(f, reader.getTrackBox(1, 0), 0);
+          assertEquals(0.9f, reader.getTrackConfidence(1), 0);
+        }
+        ++tracksRecords;
+      }
+    }
+    reader.close();
+    assertEquals(116, nextFrame);
+    assertEquals(36, tracksRecords);
+  }
+
+  @Test
+  public void startsClipsNoEarlierThanTheBudgetHolds() throws IOException {
+    final File directory = folder.newFolder("clips");
+    final PreEventRecorder recorder = recorder(directory, 10 * SCALED_BYTES);
+    assertEquals(10, recorder.getCapacity());
+    for (int f = 0; f <= 110; ++f) {
+      recorder.onFrame(frame(f), ROW_STRIDE, f * FRAME_NANOS);
+      builder.clear().setFrameConfiguration(WIDTH, HEIGHT, 0);
+      if (f >= 100) {
+        builder.add(2, 10, 20, 18, 40, 0.9f, "person", 0);
+      }
+      recorder.onTracks(publisher.publish(builder), f * FRAME_NANOS);
+    }
+    recorder.close();
+
+    // The ring held frames 91-100 at the trigger. Frames after it that the clip thread could not
+    // copy in time were overwritten and are counted as lost.
+    final ClipReader reader = new ClipReader(directory.listFiles()[0]);
+    int frames = 0;
+    int previous = -1;
+    ClipReader.RecordType type;
+    while ((type = reader.next()) != null) {
+      if (type == ClipReader.RecordType.FRAME) {
+        final int f = reader.getFrame()[0] & 0xff;
+        assertEquals(f * FRAME_NANOS, reader.getTimestampNanos());
+        assertTrue(f > previous && f >= 91 && f <= 110);
+        previous = f;
+        ++frames;
+      }
+    }
+    reader.close();
+    assertEquals(frames, recorder.getFramesSaved());
+    assertEquals(110 - 91 + 1, recorder.getFramesSaved() + recorder.getFramesLost());
+  }
+
+  @Test
+  public void persistingTracksDoNotTriggerAgain() throws IOException {
+    final File directory = folder.newFolder("clips");
+    // Room for all frames, so none is overwritten before the clip thread gets to it.
+    final PreEventRecorder recorder = recorder(directory, 256 * SCALED_BYTES);
+    for (int f = 0; f <= 200; ++f) {
+      recorder.onFrame(frame(f), ROW_STRIDE, f * FRAME_NANOS);
+      builder.clear().setFrameConfiguration(WIDTH, HEIGHT, 0);
+      builder.add(7, 10, 20, 18, 40, 0.9f, "person", 0);
+      recorder.onTracks(publisher.publish(builder), f * FRAME_NANOS);
+    }
+    recorder.close();
+    assertEquals(1, recorder.getClipsSaved());
+    final ClipReader reader = new ClipReader(directory.listFiles()[0]);
+    int frames = 0;
+    ClipReader.RecordType type;
+    while ((type = reader.next()) != null) {
+      if (type == ClipReader.RecordType.FRAME) {
+        ++frames;
+      }
+    }
+    assertNull(reader.next());
+    reader.close();
+    // Frames 0-10: nothing before the start, one second after.
+    assertEquals(11, frames);
+  }
+
+  @Test
+  public void tracksOfALongClipAreDroppedOnceWritten() throws IOException {
+    final File directory = folder.newFolder("clips");
+    final PreEventRecorder recorder = recorder(directory, 10 * SCALED_BYTES);
+    // Someone new appears in every frame, so the clip never ends.
+    int mostBuffered = 0;
+    for (int f = 0; f <= 600; ++f) {
+      recorder.onFrame(frame(f % 256), ROW_STRIDE, f * FRAME_NANOS);
+      builder.clear().setFrameConfiguration(WIDTH, HEIGHT, 0);
+      builder.add(f, 10, 20, 18, 40, 0.9f, "person", 0);
+      recorder.onTracks(publisher.publish(builder), f * FRAME_NANOS);
+      mostBuffered = Math.max(mostBuffered, recorder.getBufferedSnapshots());
+    }
+    recorder.close();
+    assertEquals(1, recorder.getClipsSaved());
+    assertTrue(mostBuffered + " tracks buffered", mostBuffered <= 2 * recorder.getCapacity());
+    final ClipReader reader = new ClipReader(directory.listFiles()[0]);
+    long previous = -1;
+    ClipReader.RecordType type;
+    while ((type = reader.next()) != null) {
+      if (type == ClipReader.RecordType.TRACKS) {
+        assertTrue(reader.getTimestampNanos() > previous);
+        previous = reader.getTimestampNanos();
+      }
+    }
+    reader.close();
+    assertTrue(previous >= 500 * FRAME_NANOS);
+  }
+
+  private PreEventRecorder recorder(final File directory, final int budgetBytes)
+      throws IOException {
+    return new PreEventRecorder(
+        directory,
+        WIDTH,
+        HEIGHT,
+        DOWNSCALE,
+        budgetBytes,
+        2 * SECOND,
+        SECOND,
+        Collections.singleton("person"));
+  }
+
+  /** A frame whose pixels are all the frame number, with garbage in the row padding. */
+  private byte[] frame(final int f) {
+    for (int y = 0; y < HEIGHT; ++y) {
+      for (int x = 0; x < ROW_STRIDE; ++x) {
+        luma[y * ROW_STRIDE + x] = (byte) (x < WIDTH ? f : 255 - f);
+      }
+    }
+    return luma;
+  }
+}
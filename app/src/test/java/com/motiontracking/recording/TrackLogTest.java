@@ -0,0 +1,240 @@
+package com.motiontracking.recording;
+
+import com.motiontracking.tracking.TrackSnapshot;
+import com.motiontracking.tracking.TrackSnapshotPublisher;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TrackLogTest {
+  private static final String[] TITLES = {"person", "car", "bicycle", "bus"};
+  private static final long START_MICROS = 1_600_000_000_000_000L;
+  private static final long FRAME_MICROS = 33_333L;
+  private static final int FRAMES = 3000;
+  private static final int SEGMENT_BYTES = 1 << 16;
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void roundTripsTracksAndLifecycleEvents() throws IOException {
+    final File directory = folder.newFolder("log");
+    final List<TrackSnapshot> frames = scene(FRAMES);
+    final TrackLogWriter writer = new TrackLogWriter(directory, SEGMENT_BYTES, 100);
+    long tracks = 0;
+    for (int i = 0; i < frames.size(); ++i) {
+      while (!writer.log(frames.get(i), timeOf(i))) {
+        writer.flush();
+      }
+      tracks += frames.get(i).size();
+    }
+    writer.close();
+    assertEquals(FRAMES, writer.getFramesLogged());
+
+    // Positions of moving tracks take a few bytes, not the 4 floats they are in memory.
+    final double bytesPerTrack = writer.getBytesWritten() / (double) tracks;
+    assertTrue("bytes per track " + bytesPerTrack, bytesPerTrack < 8);
+
+    final TrackLogReader reader = new TrackLogReader(directory);
+    assertTrue(reader.getSegmentCount() > 1);
+    assertEquals(timeOf(0), reader.getFirstTimeMicros());
+    assertEquals(timeOf(FRAMES - 1), reader.getLastTimeMicros());
+    assertFrames(frames, 0, FRAMES, reader.readAll());
+  }
+
+  @Test
+  public void tracksWithoutTitleStayWithoutTitle() throws IOException {
+    final File directory = folder.newFolder("log");
+    final TrackSnapshotPublisher publisher = new TrackSnapshotPublisher();
+    final TrackSnapshot.Builder builder = new TrackSnapshot.Builder();
+    builder.setFrameConfiguration(640, 480, 0);
+    final List<TrackSnapshot> frames = new ArrayList<>();
+    for (int f = 0; f < 3; ++f) {
+      builder.clear().setFrameConfiguration(640, 480, 0);
+      builder.add(1, 10 + f, 10, 50 + f, 50, 0.8f, "person", 0);
+      builder.add(2, 100, 100 + f, 140, 140 + f, 0.6f, null, 0);
+      builder.add(3, 200, 200, 240, 240, 0.4f, "car", 0);
+      frames.add(publisher.publish(builder));
+    }
+    writeAll(directory, frames);
+    assertFrames(frames, 0, frames.size(), new TrackLogReader(directory).readAll());
+  }
+
+  @Test
+  public void queriesTimeRangeFromNearestSyncFrame() throws IOException {
+    final File directory = folder.newFolder("log");
+    final List<TrackSnapshot> frames = scene(FRAMES);
+    writeAll(directory, frames);
+
+    final TrackLogReader reader = new TrackLogReader(directory);
+    final int first = 2000;
+    final int last = 2100;
+    final TrackLogReader.Cursor cursor = reader.read(timeOf(first), timeOf(last));
+    assertFrames(frames, first, last + 1, cursor);
+    // At most one sync interval of frames is decoded before the range.
+    final long framesPerSync = TrackLogFormat.SYNC_INTERVAL_MICROS / FRAME_MICROS + 1;
+    assertTrue(
+        "decoded " + cursor.framesDecoded,
+        cursor.framesDecoded <= last - first + 1 + framesPerSync + 1);
+
+    assertFalse(reader.read(timeOf(FRAMES) + 1, Long.MAX_VALUE).next(new LoggedFrame()));
+  }
+
+  @Test
+  public void readsSegmentsWithoutIndexAndWhileWriting() throws IOException {
+    final File directory = folder.newFolder("log");
+    final List<TrackSnapshot> frames = scene(FRAMES);
+    final TrackLogWriter writer = new TrackLogWriter(directory, SEGMENT_BYTES, 100);
+    for (int i = 0; i < frames.size(); ++i) {
+      while (!writer.log(frames.get(i), timeOf(i))) {
+        writer.flush();
+      }
+    }
+    writer.flush();
+    // As after a crash: no index for the current segment, and the finished ones lost theirs.
+    for (final File file : directory.listFiles()) {
+      if (file.getName().endsWith(".idx")) {
+        assertTrue(file.delete());
+      }
+    }
+    final TrackLogReader reader = new TrackLogReader(directory);
+    assertFrames(frames, 0, FRAMES, reader.readAll());
+    assertFrames(frames, 1500, 1601, reader.read(timeOf(1500), timeOf(1600)));
+    writer.close();
+  }
+
+  @Test
+  public void keepsOnlyTheNewestSegments() throws IOException {
+    final File directory = folder.newFolder("log");
+    final List<TrackSnapshot> frames = scene(FRAMES);
+    final TrackLogWriter writer = new TrackLogWriter(directory, SEGMENT_BYTES, 3);
+    for (int i = 0; i < frames.size(); ++i) {
+      while (!writer.log(frames.get(i), timeOf(i))) {
+        writer.flush();
+      }
+    }
+    writer.close();
+    assertEquals(3, TrackLogFormat.listSegments(directory).size());
+
+    // The retained segments still decode on their own, starting at a sync frame.
+    final TrackLogReader reader = new TrackLogReader(directory);
+    final int first = (int) ((reader.getFirstTimeMicros() - START_MICROS) / FRAME_MICROS);
+    assertTrue(first > 0);
+    assertFrames(frames, first, FRAMES, reader.readAll());
+
+    // A new writer continues after the existing segments.
+    final TrackLogWriter next = new TrackLogWriter(directory, SEGMENT_BYTES, 3);
+    next.log(frames.get(0), timeOf(FRAMES));
+    next.close();
+    final TrackLogReader reopened = new TrackLogReader(directory);
+    assertEquals(timeOf(FRAMES), reopened.getLastTimeMicros());
+  }
+
+  private static void writeAll(final File directory, final List<TrackSnapshot> frames)
+      throws IOException {
+    final TrackLogWriter writer = new TrackLogWriter(directory, SEGMENT_BYTES, 100);
+    for (int i = 0; i < frames.size(); ++i) {
+      while (!writer.log(frames.get(i), timeOf(i))) {
+        writer.flush();
+      }
+    }
+    writer.close();
+  }
+
+  private static long timeOf(final int frame) {
+    return START_MICROS + frame * FRAME_MICROS;
+  }
+
+  private static void assertFrames(
+      final List<TrackSnapshot> expected,
+      final int from,
+      final int to,
+      final TrackLogReader.Cursor cursor)
+      throws IOException {
+    final LoggedFrame frame = new LoggedFrame();
+    for (int f = from; f < to; ++f) {
+      assertTrue("frame " + f, cursor.next(frame));
+      final TrackSnapshot snapshot = expected.get(f);
+      final TrackSnapshot previous = f > 0 ? expected.get(f - 1) : TrackSnapshot.EMPTY;
+      assertEquals(timeOf(f), frame.getTimeMicros());
+      assertEquals(snapshot.getFrameWidth(), frame.getFrameWidth());
+      assertEquals(snapshot.size(), frame.size());
+      for (int i = 0; i < snapshot.size(); ++i) {
+        assertEquals(snapshot.getId(i), frame.getId(i));
+        assertEquals(snapshot.getTitle(i), frame.getTitle(i));
+        assertEquals(snapshot.getLeft(i), frame.getLeft(i), 0.125f);
+        assertEquals(snapshot.getTop(i), frame.getTop(i), 0.125f);
+        assertEquals(snapshot.getRight(i), frame.getRight(i), 0.125f);
+        assertEquals(snapshot.getBottom(i), frame.getBottom(i), 0.125f);
+        assertEquals(snapshot.getConfidence(i), frame.getConfidence(i), 0.5f / 255);
+        assertEquals(previous.indexOf(snapshot.getId(i)) < 0, frame.isAppeared(i));
+      }
+      int gone = 0;
+      for (int i = 0; i < previous.size(); ++i) {
+        if (snapshot.indexOf(previous.getId(i)) < 0) {
+          assertEquals(previous.getId(i), frame.getDisappearedId(gone++));
+        }
+      }
+      assertEquals(gone, frame.getDisappearedCount());
+    }
+    assertFalse(cursor.next(frame));
+  }
+
+  /** Up to a dozen objects moving across a 640x480 frame, appearing and disappearing. */
+  private static List<TrackSnapshot> scene(final int frames) {
+    final Random random = new Random(42);
+    final TrackSnapshotPublisher publisher = new TrackSnapshotPublisher();
+    final TrackSnapshot.Builder builder = new TrackSnapshot.Builder();
+    builder.setFrameConfiguration(640, 480, 90);
+    final List<TrackSnapshot> snapshots = new ArrayList<>();
+    final List<float[]> objects = new ArrayList<>();
+    final List<Integer> ids = new ArrayList<>();
+    int nextId = 1;
+    for (int f = 0; f < frames; ++f) {
+      if (objects.size() < 12 && random.nextInt(20) == 0) {
+        final float x = random.nextFloat() * 560;
+        final float y = random.nextFloat() * 400;
+        objects.add(
+            new float[] {
+              x, y, x + 20 + random.nextInt(60), y + 20 + random.nextInt(60),
+              random.nextFloat() * 4 - 2, random.nextFloat() * 4 - 2, random.nextInt(TITLES.length)
+            });
+        ids.add(nextId++);
+      }
+      if (!objects.isEmpty() && random.nextInt(40) == 0) {
+        final int gone = random.nextInt(objects.size());
+        objects.remove(gone);
+        ids.remove(gone);
+      }
+      builder.clear();
+      for (int i = 0; i < objects.size(); ++i) {
+        final float[] o = objects.get(i);
+        o[0] += o[4];
+        o[2] += o[4];
+        o[1] += o[5];
+        o[3] += o[5];
+        builder.add(
+            ids.get(i),
+            o[0],
+            o[1],
+            o[2],
+            o[3],
+            0.5f + random.nextFloat() / 2,
+            TITLES[(int) o[6]],
+            0);
+      }
+      snapshots.add(publisher.publish(builder));
+    }
+    return snapshots;
+  }
+}
@@ -0,0 +1,72 @@
+package com.motiontracking.stream;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CameraFrameSourceTest {
+  @Test
+  public void readerGetsTheNewestFrameWithoutRowPadding() throws Exception {
+    final CameraFrameSource source = new CameraFrameSource("camera", 4, 2);
+    source.offer(plane(1), 6);
+    source.offer(plane(2), 6);
+
+    final StreamFrame frame = new StreamFrame();
+    assertTrue(source.read(frame));
+    assertEquals(0, frame.getIndex());
+    assertEquals(4, frame.getWidth());
+    assertEquals(2, frame.getHeight());
+    assertEquals(2, frame.getLuma()[0]);
+    // Pixel (3, 1) comes from the second row of the plane, past its padding.
+    assertEquals(2 + 6 + 3, frame.getLuma()[7]);
+    assertEquals(1, source.getFramesSkipped());
+
+    source.offer(plane(3), 6);
+    assertTrue(source.read(frame));
+    assertEquals(1, frame.getIndex());
+    assertEquals(3, frame.getLuma()[0]);
+  }
+
+  @Test
+  public void closeEndsABlockedRead() throws Exception {
+    final CameraFrameSource source = new CameraFrameSource("camera", 4, 2);
+    final AtomicBoolean read = new AtomicBoolean(true);
+    final CountDownLatch done = new CountDownLatch(1);
+    final Thread reader =
+        new Thread(
+            new Runnable() {
+              @Override
+              public void run() {
+                try {
+                  read.set(source.read(new StreamFrame()));
+                } catch (final InterruptedException e) {
+                  Thread.currentThread().interrupt();
+                }
+                done.countDown();
+              }
+            });
+    reader.start();
+    assertFalse(done.await(50, TimeUnit.MILLISECONDS));
+    source.close();
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    assertFalse(read.get());
+
+    source.offer(plane(1), 6);
+    assertFalse(source.read(new StreamFrame()));
+  }
+
+  /** A 4x2 plane with rows of 6 bytes; pixel (x, y) is {@code value + 6y + x}. */
+  private static byte[] plane(final int value) {
+    final byte[] plane = new byte[12];
+    for (int i = 0; i < plane.length; ++i) {
+      plane[i] = (byte) (value + i);
+    }
+    return plane;
+  }
+}
@@ -0,0 +1,152 @@
+package com.motiontracking.stream;
+
+import com.motiontracking.tflite.BatchDetector;
+import com.motiontracking.tflite.DetectorSlot;
+import com.motiontracking.tflite.Detections;
+import com.motiontracking.tflite.ModelSpec;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ModelStreamDetectorTest {
+  private static final int FRAME_WIDTH = 640;
+  private static final int FRAME_HEIGHT = 480;
+
+  @Test
+  public void boxesAreScaledToTheFrameAndClassesMatchTheLabels() throws Exception {
+    final FakeModel model = new FakeModel(spec(true));
+    final StreamDetector detector = new ModelStreamDetector<>(new FakeLoader(), model);
+    assertEquals(Arrays.asList("person", "car"), detector.getLabels());
+
+    final Detections out = new Detections(10);
+    detector.detect(frame(), out);
+    assertEquals(1, out.size());
+    assertEquals(0.25f * FRAME_HEIGHT, out.getTop(0), 1e-3f);
+    assertEquals(0.5f * FRAME_WIDTH, out.getLeft(0), 1e-3f);
+    assertEquals(0.75f * FRAME_HEIGHT, out.getBottom(0), 1e-3f);
+    assertEquals(FRAME_WIDTH, out.getRight(0), 1e-3f);
+    assertEquals("car", detector.getLabels().get(out.getClassIndex(0)));
+    assertEquals(0.9f, out.getScore(0), 0);
+  }
+
+  @Test
+  public void quantizedInputSamplesTheFrameAsGray() throws Exception {
+    final FakeModel model = new FakeModel(spec(true));
+    new ModelStreamDetector<>(new FakeLoader(), model).detect(frame(), new Detections(10));
+    // Input pixel (x, y) covers frame pixel (8x + 4, 8y + 4), whose value is its column.
+    final ByteBuffer input = model.input;
+    for (final int x : new int[] {0, 1, 40, 79}) {
+      final int i = 3 * (7 * 80 + x);
+      final int expected = (8 * x + 4) & 0xff;
+      assertEquals(expected, input.get(i) & 0xff);
+      assertEquals(expected, input.get(i + 1) & 0xff);
+      assertEquals(expected, input.get(i + 2) & 0xff);
+    }
+  }
+
+  @Test
+  public void floatInputIsNormalized() throws Exception {
+    final FakeModel model = new FakeModel(spec(false));
+    new ModelStreamDetector<>(new FakeLoader(), model).detect(frame(), new Detections(10));
+    final ByteBuffer input = model.input;
+    final int x = 10;
+    final float expected = ((8 * x + 4) - 128) / 128f;
+    assertEquals(expected, input.getFloat(4 * 3 * x), 1e-6f);
+    assertEquals(expected, input.getFloat(4 * (3 * x + 2)), 1e-6f);
+  }
+
+  @Test
+  public void closingTheDetectorClosesItsModel() throws Exception {
+    final FakeLoader loader = new FakeLoader();
+    final StreamDetector detector = ModelStreamDetector.factory(loader, spec(true)).create();
+    detector.close();
+    assertTrue(loader.closed);
+  }
+
+  private static StreamFrame frame() {
+    final StreamFrame frame = new StreamFrame();
+    final byte[] luma = frame.prepare(FRAME_WIDTH, FRAME_HEIGHT);
+    for (int y = 0; y < FRAME_HEIGHT; ++y) {
+      for (int x = 0; x < FRAME_WIDTH; ++x) {
+        luma[y * FRAME_WIDTH + x] = (byte) x;
+      }
+    }
+    frame.setTiming(0, 0);
+    return frame;
+  }
+
+  private static ModelSpec spec(final boolean quantized) {
+    return new ModelSpec(
+        "fake",
+        "fake.tflite",
+        "labels.txt",
+        80,
+        60,
+        quantized,
+        128,
+        128,
+        1,
+        ModelSpec.OutputLayout.POSTPROCESSED,
+        null,
+        10,
+        0.5f,
+        Collections.<String, Float>emptyMap());
+  }
+
+  /** Finds a car in the right half of every input and keeps a copy of the input. */
+  private static final class FakeModel implements BatchDetector {
+    private final ModelSpec spec;
+    final ByteBuffer input;
+
+    FakeModel(final ModelSpec spec) {
+      this.spec = spec;
+      input = ByteBuffer.allocate(spec.getInputBytes()).order(ByteOrder.nativeOrder());
+    }
+
+    @Override
+    public ModelSpec getSpec() {
+      return spec;
+    }
+
+    @Override
+    public List<String> getLabels() {
+      return Arrays.asList("???", "person", "car");
+    }
+
+    @Override
+    public void detect(final ByteBuffer[] inputs, final int count, final Detections[] outputs) {
+      assertEquals(1, count);
+      assertEquals(0, inputs[0].position());
+      input.clear();
+      input.put(inputs[0].duplicate());
+      outputs[0].clear();
+      outputs[0].add(0.25f, 0.5f, 0.75f, 1, 1, 0.9f);
+    }
+  }
+
+  private static final class FakeLoader implements DetectorSlot.Loader<FakeModel> {
+    boolean closed;
+
+    @Override
+    public FakeModel load(final ModelSpec spec) throws IOException {
+      return new FakeModel(spec);
+    }
+
+    @Override
+    public void close(final FakeModel detector) {
+      closed = true;
+    }
+
+    @Override
+    public void onLoadFailed(final ModelSpec spec, final Exception e) {}
+  }
+}
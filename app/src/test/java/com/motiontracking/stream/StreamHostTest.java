@@ -0,0 +1,160 @@
+package com.motiontracking.stream;
+
+import com.motiontracking.Benchmark;
+import com.motiontracking.tflite.Detections;
+import com.motiontracking.tracking.TrackSnapshot;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class StreamHostTest {
+  private static final int WIDTH = 160;
+  private static final int HEIGHT = 120;
+  private static final int FRAMES_PER_FILE = 90;
+  private static final long FRAME_INTERVAL_NANOS = 33_333_333L;
+  private static final int SQUARE = 20;
+  private static final long DETECTION_MILLIS = 40;
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void fileStreamsShareDetectorPool() throws Exception {
+    // Two detectors of 40 ms serve at most 50 frames per second; the four streams deliver 120.
+    final StreamHost host = new StreamHost(new SquareDetector.Factory(), 2);
+    final VideoStream plain = host.addStream(source("plain", 1), 1, 0);
+    final VideoStream heavy = host.addStream(source("heavy", 2), 6, 0);
+    final VideoStream guaranteed = host.addStream(source("guaranteed", 3), 1, 20);
+    final VideoStream other = host.addStream(source("other", 4), 1, 0);
+
+    host.start();
+    Thread.sleep(3000);
+    final List<StreamStats> stats = host.getStats();
+    host.stop();
+
+    for (final StreamStats stream : stats) {
+      Benchmark.report(stream);
+      assertEquals(0, stream.getFailures());
+      assertTrue(stream.getName() + " reads at its rate", stream.getInputFps() > 25);
+      assertTrue(stream.getName() + " latency", stream.getLatencyP50Millis() < 500);
+    }
+    final StreamStats plainStats = stats.get(0);
+    final StreamStats heavyStats = stats.get(1);
+    final StreamStats guaranteedStats = stats.get(2);
+    final double total =
+        plainStats.getDetectionFps()
+            + heavyStats.getDetectionFps()
+            + guaranteedStats.getDetectionFps()
+            + stats.get(3).getDetectionFps();
+    assertTrue("pool saturated: " + total, total > 45);
+    // The guaranteed stream gets its 20 fps, the remaining 30 are shared 6:1:1.
+    assertTrue(guaranteedStats.getDetectionFps() > 18);
+    assertTrue(heavyStats.getDetectionFps() > 3 * plainStats.getDetectionFps());
+    assertTrue(plainStats.getDetectionFps() > 1);
+
+    // Every stream kept its own tracks of its own square.
+    for (final VideoStream stream : Arrays.asList(plain, heavy, guaranteed, other)) {
+      final TrackSnapshot snapshot = stream.getSnapshot();
+      assertEquals(stream.getName(), 1, snapshot.size());
+      assertEquals("square", snapshot.getTitle(0));
+      assertEquals(SQUARE - 1, snapshot.getRight(0) - snapshot.getLeft(0), 0);
+    }
+  }
+
+  @Test
+  public void finiteStreamsEndWithoutStoppingTheOthers() throws Exception {
+    final StreamHost host = new StreamHost(new SquareDetector.Factory(), 1);
+    final File file = folder.newFile("short.raw");
+    writeSquareFile(file, 1, 10);
+    final VideoStream shortStream =
+        host.addStream(new RawFrameFileSource(file, false, false), 1, 0);
+    final VideoStream looping = host.addStream(source("looping", 2), 1, 0);
+    host.start();
+    Thread.sleep(1000);
+    final List<StreamStats> stats = host.getStats();
+    host.stop();
+
+    assertEquals(10, stats.get(0).getFramesRead());
+    assertTrue(stats.get(1).getFramesDetected() > 10);
+    assertEquals(1, shortStream.getSnapshot().size());
+    assertEquals(1, looping.getSnapshot().size());
+  }
+
+  private FrameSource source(final String name, final int seed) throws IOException {
+    final File file = folder.newFile(name + ".raw");
+    writeSquareFile(file, seed, FRAMES_PER_FILE);
+    return new RawFrameFileSource(file, true, true);
+  }
+
+  /** A bright square moving diagonally over a dark background. */
+  private static void writeSquareFile(final File file, final int seed, final int frames)
+      throws IOException {
+    final RawFrameFileSource.Writer writer =
+        new RawFrameFileSource.Writer(file, WIDTH, HEIGHT, FRAME_INTERVAL_NANOS);
+    final byte[] luma = new byte[WIDTH * HEIGHT];
+    for (int f = 0; f < frames; ++f) {
+      Arrays.fill(luma, (byte) 16);
+      final int x = (seed * 13 + f) % (WIDTH - SQUARE);
+      final int y = (seed * 7 + f / 2) % (HEIGHT - SQUARE);
+      for (int row = y; row < y + SQUARE; ++row) {
+        Arrays.fill(luma, row * WIDTH + x, row * WIDTH + x + SQUARE, (byte) 235);
+      }
+      writer.write(luma);
+    }
+    writer.close();
+  }
+
+  /** Finds the bounding box of bright pixels, taking as long as a small detection model. */
+  private static class SquareDetector implements StreamDetector {
+    static class Factory implements StreamDetector.Factory {
+      @Override
+      public StreamDetector create() {
+        return new SquareDetector();
+      }
+    }
+
+    @Override
+    public List<String> getLabels() {
+      return Collections.singletonList("square");
+    }
+
+    @Override
+    public void detect(final StreamFrame frame, final Detections out) {
+      final byte[] luma = frame.getLuma();
+      int left = Integer.MAX_VALUE;
+      int top = Integer.MAX_VALUE;
+      int right = -1;
+      int bottom = -1;
+      for (int y = 0; y < frame.getHeight(); ++y) {
+        for (int x = 0; x < frame.getWidth(); ++x) {
+          if ((luma[y * frame.getWidth() + x] & 0xff) > 200) {
+            left = Math.min(left, x);
+            top = Math.min(top, y);
+            right = Math.max(right, x);
+            bottom = Math.max(bottom, y);
+          }
+        }
+      }
+      if (right >= 0) {
+        out.add(top, left, bottom, right, 0, 0.9f);
+      }
+      try {
+        Thread.sleep(DETECTION_MILLIS);
+      } catch (final InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    @Override
+    public void close() {}
+  }
+}
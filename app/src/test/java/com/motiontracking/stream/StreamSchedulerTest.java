@@ -0,0 +1,113 @@
+package com.motiontracking.stream;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class StreamSchedulerTest {
+  private static final long MS = 1_000_000L;
+  private static final long COST = 10 * MS;
+
+  @Test
+  public void sharesDetectorTimeByWeight() {
+    final VideoStream a = stream("a", 1, 0);
+    final VideoStream b = stream("b", 3, 0);
+    final VideoStream c = stream("c", 1, 0);
+    final int[] counts = simulate(Arrays.asList(a, b, c), 0, 10_000 * MS);
+    // 1000 detections of 10 ms, split 1:3:1.
+    assertEquals(200, counts[0], 2);
+    assertEquals(600, counts[1], 2);
+    assertEquals(200, counts[2], 2);
+  }
+
+  @Test
+  public void minimumRateTakesPrecedenceOverWeights() {
+    final VideoStream a = stream("a", 1, 0);
+    final VideoStream b = stream("b", 6, 0);
+    final VideoStream c = stream("c", 1, 30);
+    final int[] counts = simulate(Arrays.asList(a, b, c), 0, 10_000 * MS);
+    // By weight c would get 1/8 of 100 detections per second; it is guaranteed 30.
+    assertTrue("c got " + counts[2], counts[2] >= 300);
+    // The rest is still shared 1:6.
+    assertEquals(6.0, counts[1] / (double) counts[0], 0.3);
+  }
+
+  @Test
+  public void idleStreamDoesNotCatchUpWhenItReturns() {
+    final VideoStream a = stream("a", 1, 0);
+    final VideoStream b = stream("b", 1, 0);
+    final StreamScheduler scheduler = new StreamScheduler(1);
+    final List<VideoStream> streams = Arrays.asList(a, b);
+    long now = 0;
+    a.pending = new StreamFrame();
+    scheduler.onReady(a, streams, now);
+    // Only a has frames for 5 seconds.
+    for (; now < 5_000 * MS; now += COST) {
+      assertEquals(a, scheduler.pick(streams, now));
+      scheduler.charge(a, now, now + COST);
+    }
+    b.pending = new StreamFrame();
+    scheduler.onReady(b, streams, now);
+    final int[] counts = new int[2];
+    for (final long end = now + 1_000 * MS; now < end; now += COST) {
+      final VideoStream picked = scheduler.pick(streams, now);
+      scheduler.charge(picked, now, now + COST);
+      ++counts[picked == a ? 0 : 1];
+    }
+    // Without catching up b would own the detector for the next 5 seconds.
+    assertEquals(50, counts[0], 1);
+    assertEquals(50, counts[1], 1);
+  }
+
+  /** Runs one detector of fixed cost over streams that always have a frame waiting. */
+  private static int[] simulate(
+      final List<VideoStream> streams, final long startNanos, final long endNanos) {
+    final StreamScheduler scheduler = new StreamScheduler(1);
+    for (final VideoStream stream : streams) {
+      stream.pending = new StreamFrame();
+      stream.lastDetectionNanos = startNanos;
+      scheduler.onReady(stream, streams, startNanos);
+    }
+    final int[] counts = new int[streams.size()];
+    for (long now = startNanos; now < endNanos; now += COST) {
+      final VideoStream picked = scheduler.pick(streams, now);
+      scheduler.charge(picked, now, now + COST);
+      ++counts[streams.indexOf(picked)];
+    }
+    return counts;
+  }
+
+  private static VideoStream stream(final String name, final int weight, final float minFps) {
+    return new VideoStream(
+        new FrameSource() {
+          @Override
+          public String getName() {
+            return name;
+          }
+
+          @Override
+          public int getWidth() {
+            return 1;
+          }
+
+          @Override
+          public int getHeight() {
+            return 1;
+          }
+
+          @Override
+          public boolean read(final StreamFrame frame) {
+            return false;
+          }
+
+          @Override
+          public void close() {}
+        },
+        weight,
+        minFps);
+  }
+}
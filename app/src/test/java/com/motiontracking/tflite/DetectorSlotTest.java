@@ -0,0 +1,187 @@
+package com.motiontracking.tflite;
+
+import org.junit.Test;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DetectorSlotTest {
+  private static final ModelSpec FIRST = spec("first");
+  private static final ModelSpec SECOND = spec("second");
+  private static final ModelSpec THIRD = spec("third");
+
+  @Test
+  public void theCurrentModelRunsUntilTheNextOneIsLoaded() throws Exception {
+    final FakeLoader loader = new FakeLoader();
+    final DetectorSlot<String> slot = new DetectorSlot<>(loader, "test");
+    slot.load(FIRST);
+    assertEquals("first", awaitDetector(slot, "first"));
+
+    final CountDownLatch secondLoading = loader.block(SECOND);
+    slot.load(SECOND);
+    assertTrue(loader.awaitLoading(SECOND));
+    // Frames keep running on the first model while the second one loads.
+    assertEquals("first", slot.acquire());
+    assertEquals("first", slot.acquire());
+    assertEquals(Collections.emptyList(), loader.closed());
+
+    secondLoading.countDown();
+    awaitDetector(slot, "second");
+    // The replaced model is closed by the stage's own call, not by the loader.
+    assertEquals(Collections.singletonList("first"), loader.closed());
+
+    slot.close();
+    assertNull(slot.acquire());
+    assertEquals(Arrays.asList("first", "second"), loader.closed());
+  }
+
+  @Test
+  public void aSupersededLoadNeverBecomesCurrent() throws Exception {
+    final FakeLoader loader = new FakeLoader();
+    final DetectorSlot<String> slot = new DetectorSlot<>(loader, "test");
+    slot.load(FIRST);
+    awaitDetector(slot, "first");
+
+    final CountDownLatch secondLoading = loader.block(SECOND);
+    slot.load(SECOND);
+    assertTrue(loader.awaitLoading(SECOND));
+    slot.load(THIRD);
+    secondLoading.countDown();
+    awaitDetector(slot, "third");
+    assertEquals(Arrays.asList("second", "first"), loader.closed());
+    assertEquals(Arrays.asList("first", "second", "third"), loader.loaded());
+    slot.close();
+  }
+
+  @Test
+  public void aFailedLoadKeepsTheCurrentModel() throws Exception {
+    final FakeLoader loader = new FakeLoader();
+    final DetectorSlot<String> slot = new DetectorSlot<>(loader, "test");
+    slot.load(FIRST);
+    awaitDetector(slot, "first");
+    slot.load(spec(FakeLoader.MISSING));
+    slot.load(SECOND);
+    awaitDetector(slot, "second");
+    assertEquals(Collections.singletonList(FakeLoader.MISSING), loader.failed());
+    slot.close();
+  }
+
+  /** Acquires detectors, as a stage does frame after frame, until the named one is current. */
+  private static String awaitDetector(final DetectorSlot<String> slot, final String name)
+      throws InterruptedException {
+    final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (System.nanoTime() < deadline) {
+      final String detector = slot.acquire();
+      if (name.equals(detector)) {
+        return detector;
+      }
+      Thread.sleep(1);
+    }
+    fail("Timed out waiting for " + name);
+    return null;
+  }
+
+  private static ModelSpec spec(final String name) {
+    return new ModelSpec(
+        name,
+        name + ".tflite",
+        "labels.txt",
+        300,
+        300,
+        true,
+        128,
+        128,
+        1,
+        ModelSpec.OutputLayout.POSTPROCESSED,
+        null,
+        10,
+        0.5f,
+        Collections.<String, Float>emptyMap());
+  }
+
+  /** Loads detectors that are just the model's name, optionally blocking until released. */
+  private static final class FakeLoader implements DetectorSlot.Loader<String> {
+    static final String MISSING = "missing";
+
+    private final List<String> loaded = new ArrayList<>();
+    private final List<String> closed = new ArrayList<>();
+    private final List<String> failed = new ArrayList<>();
+    private final List<String> blocked = new ArrayList<>();
+    private final List<CountDownLatch> releases = new ArrayList<>();
+    private final List<CountDownLatch> loadings = new ArrayList<>();
+
+    synchronized CountDownLatch block(final ModelSpec spec) {
+      final CountDownLatch release = new CountDownLatch(1);
+      blocked.add(spec.getName());
+      releases.add(release);
+      loadings.add(new CountDownLatch(1));
+      return release;
+    }
+
+    boolean awaitLoading(final ModelSpec spec) throws InterruptedException {
+      final CountDownLatch loading;
+      synchronized (this) {
+        loading = loadings.get(blocked.indexOf(spec.getName()));
+      }
+      return loading.await(5, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public String load(final ModelSpec spec) throws IOException {
+      final String name = spec.getName();
+      if (MISSING.equals(name)) {
+        throw new FileNotFoundException(spec.getModelFile());
+      }
+      final CountDownLatch release;
+      synchronized (this) {
+        loaded.add(name);
+        final int index = blocked.indexOf(name);
+        release = index >= 0 ? releases.get(index) : null;
+        if (index >= 0) {
+          loadings.get(index).countDown();
+        }
+      }
+      if (release != null) {
+        try {
+          release.await();
+        } catch (final InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      return name;
+    }
+
+    @Override
+    public synchronized void close(final String detector) {
+      closed.add(detector);
+    }
+
+    @Override
+    public synchronized void onLoadFailed(final ModelSpec spec, final Exception e) {
+      failed.add(spec.getName());
+    }
+
+    synchronized List<String> loaded() {
+      return new ArrayList<>(loaded);
+    }
+
+    synchronized List<String> closed() {
+      return new ArrayList<>(closed);
+    }
+
+    synchronized List<String> failed() {
+      return new ArrayList<>(failed);
+    }
+  }
+}
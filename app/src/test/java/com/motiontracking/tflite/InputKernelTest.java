@@ -0,0 +1,161 @@
+package com.motiontracking.tflite;
+
+import com.motiontracking.Benchmark;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class InputKernelTest {
+  private static final float MEAN = 128f;
+  private static final float STD = 128f;
+  private static final int[] SIZES = {300, 640};
+
+  @Test
+  public void matchesTheGenericLoop() {
+    for (final int size : SIZES) {
+      final int[] pixels = createImage(size, size, size);
+      for (final boolean quantized : new boolean[] {false, true}) {
+        final ByteBuffer expected = allocate(size, quantized);
+        new Reference(expected, size, size, quantized).fill(pixels);
+        for (final int threads : new int[] {1, 4}) {
+          final ByteBuffer actual = allocate(size, quantized);
+          final InputKernel kernel =
+              InputKernel.create(actual, size, size, quantized, MEAN, STD, threads);
+          assertEquals(quantized, kernel.isQuantized());
+          assertEquals(
+              size * size >= InputKernel.MIN_PARALLEL_PIXELS ? threads : 1, kernel.getThreads());
+          // Filled twice, as frame after frame.
+          kernel.fill(createImage(size, size, 0));
+          kernel.fill(pixels);
+          kernel.close();
+          assertEquals(0, actual.position());
+          expected.rewind();
+          assertEquals(size + " quantized " + quantized + " threads " + threads, expected, actual);
+        }
+      }
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsTooSmallInputBuffers() {
+    InputKernel.create(allocate(299, false), 300, 300, false, MEAN, STD, 1);
+  }
+
+  @Test
+  public void benchmarkAgainstTheGenericLoop() {
+    final int iterations = 30;
+    for (final int size : SIZES) {
+      final int[] pixels = createImage(size, size, 7);
+      for (final boolean quantized : new boolean[] {false, true}) {
+        final Reference reference = new Reference(allocate(size, quantized), size, size, quantized);
+        final ByteBuffer input = allocate(size, quantized);
+        final InputKernel serial = InputKernel.create(input, size, size, quantized, MEAN, STD, 1);
+        final InputKernel parallel =
+            InputKernel.create(input, size, size, quantized, MEAN, STD, 4);
+        final double referenceMs =
+            Benchmark.time(
+                iterations,
+                new Runnable() {
+                  @Override
+                  public void run() {
+                    reference.fill(pixels);
+                  }
+                });
+        final double serialMs =
+            Benchmark.time(
+                iterations,
+                new Runnable() {
+                  @Override
+                  public void run() {
+                    serial.fill(pixels);
+                  }
+                });
+        final double parallelMs =
+            Benchmark.time(
+                iterations,
+                new Runnable() {
+                  @Override
+                  public void run() {
+                    parallel.fill(pixels);
+                  }
+                });
+        Benchmark.report(
+            String.format(
+                Locale.ENGLISH,
+                "%dx%d %s input: generic loop %.3f ms, kernel %.3f ms, %d threads %.3f ms",
+                size,
+                size,
+                quantized ? "quantized" : "float",
+                referenceMs,
+                serialMs,
+                parallel.getThreads(),
+                parallelMs));
+        if (!quantized) {
+          assertTrue(size + " float kernel slower than the generic loop", serialMs < referenceMs);
+        }
+        serial.close();
+        parallel.close();
+      }
+    }
+  }
+
+  /** The loop the model used for both input types. */
+  private static final class Reference {
+    private final ByteBuffer imgData;
+    private final int inputWidth;
+    private final int inputHeight;
+    private final boolean isModelQuantized;
+    private final float imageMean = MEAN;
+    private final float imageStd = STD;
+
+    Reference(
+        final ByteBuffer imgData,
+        final int inputWidth,
+        final int inputHeight,
+        final boolean isModelQuantized) {
+      this.imgData = imgData;
+      this.inputWidth = inputWidth;
+      this.inputHeight = inputHeight;
+      this.isModelQuantized = isModelQuantized;
+    }
+
+    void fill(final int[] intValues) {
+      imgData.rewind();
+      for (int i = 0; i < inputHeight; ++i) {
+        for (int j = 0; j < inputWidth; ++j) {
+          int pixelValue = intValues[i * inputWidth + j];
+          if (isModelQuantized) {
+            imgData.put((byte) ((pixelValue >> 16) & 0xFF));
+            imgData.put((byte) ((pixelValue >> 8) & 0xFF));
+            imgData.put((byte) (pixelValue & 0xFF));
+          } else {
+            imgData.putFloat((((pixelValue >> 16) & 0xFF) - imageMean) / imageStd);
+            imgData.putFloat((((pixelValue >> 8) & 0xFF) - imageMean) / imageStd);
+            imgData.putFloat(((pixelValue & 0xFF) - imageMean) / imageStd);
+          }
+        }
+      }
+    }
+  }
+
+  private static ByteBuffer allocate(final int size, final boolean quantized) {
+    return ByteBuffer.allocateDirect(size * size * 3 * (quantized ? 1 : 4))
+        .order(ByteOrder.nativeOrder());
+  }
+
+  private static int[] createImage(final int width, final int height, final long seed) {
+    final Random random = new Random(seed);
+    final int[] pixels = new int[width * height];
+    for (int i = 0; i < pixels.length; ++i) {
+      pixels[i] = 0xff000000 | random.nextInt(0x1000000);
+    }
+    return pixels;
+  }
+}
@@ -0,0 +1,114 @@
+package com.motiontracking.tflite;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SsdAnchorDecoderTest {
+  private static final float EPSILON = 1e-5f;
+
+  @Test
+  public void generatesSsdMobileNetAnchors() {
+    final float[] anchors = SsdAnchorDecoder.generateSsdMobileNetAnchors();
+    assertEquals(4 * 1917, anchors.length);
+    // First anchor of the lowest layer: cell (0, 0) of the 19x19 map, scale 0.1.
+    assertEquals(0.5f / 19, anchors[0], EPSILON);
+    assertEquals(0.5f / 19, anchors[1], EPSILON);
+    assertEquals(0.1f, anchors[2], EPSILON);
+    assertEquals(0.1f, anchors[3], EPSILON);
+    // Last anchor: the interpolated square box of the single cell of the top layer.
+    final float scale = (float) Math.sqrt(0.95);
+    assertEquals(0.5f, anchors[anchors.length - 4], EPSILON);
+    assertEquals(scale, anchors[anchors.length - 2], EPSILON);
+  }
+
+  @Test
+  public void prunesSuppressesAndSortsPerClass() {
+    // Four anchors: two overlapping boxes, one separate box, one empty anchor.
+    final float[] anchors = {
+      0.5f, 0.5f, 0.2f, 0.2f,
+      0.51f, 0.51f, 0.2f, 0.2f,
+      0.1f, 0.1f, 0.1f, 0.1f,
+      0.9f, 0.9f, 0.1f, 0.1f,
+    };
+    // Background plus two classes, as logits.
+    final float[] scores = {
+      5, 2.0f, -9,
+      5, 1.0f, -9,
+      5, -9, 0.5f,
+      5, -9, -9,
+    };
+    final float[] encodings = new float[16];
+    final SsdAnchorDecoder decoder = new SsdAnchorDecoder(anchors, 3, 1, true, 0.5f, 10, 10);
+    final Detections out = new Detections(10);
+
+    decoder.decode(encodings, scores, new float[] {0.5f, 0.5f}, out);
+    assertEquals(2, out.size());
+    assertEquals(0, out.getClassIndex(0));
+    assertEquals(sigmoid(2.0f), out.getScore(0), EPSILON);
+    assertEquals(0.4f, out.getTop(0), EPSILON);
+    assertEquals(0.6f, out.getRight(0), EPSILON);
+    assertEquals(1, out.getClassIndex(1));
+    assertEquals(sigmoid(0.5f), out.getScore(1), EPSILON);
+
+    // A per-class threshold above the second class' score drops it before decoding.
+    decoder.decode(encodings, scores, new float[] {0.5f, 0.99f}, out);
+    assertEquals(1, out.size());
+    assertEquals(0, out.getClassIndex(0));
+
+    // A disabled class is never reported, however confident.
+    final ClassFilter filter =
+        ClassFilter.forLabels(
+            Arrays.asList("???", "person", "bicycle"), Collections.singletonMap("bicycle", 0.1f));
+    decoder.decode(
+        encodings, scores, new float[] {filter.getThreshold(1), filter.getThreshold(2)}, out);
+    assertEquals(1, out.size());
+    assertEquals(1, out.getClassIndex(0));
+  }
+
+  @Test
+  public void decodesBoxEncodingsRelativeToAnchors() {
+    final float[] anchors = {0.5f, 0.5f, 0.2f, 0.4f};
+    final float[] scores = {0.9f};
+    // Shift the center by half an anchor down and double the height.
+    final float[] encodings = {5.0f, 0.0f, (float) (5 * Math.log(2)), 0.0f};
+    final SsdAnchorDecoder decoder = new SsdAnchorDecoder(anchors, 1, 0, false, 0.5f, 10, 10);
+    final Detections out = new Detections(10);
+    decoder.decode(encodings, scores, new float[] {0.5f}, out);
+    assertEquals(1, out.size());
+    assertEquals(0.6f - 0.2f, out.getTop(0), EPSILON);
+    assertEquals(0.6f + 0.2f, out.getBottom(0), EPSILON);
+    assertEquals(0.3f, out.getLeft(0), EPSILON);
+    assertEquals(0.7f, out.getRight(0), EPSILON);
+  }
+
+  @Test
+  public void returnsHundredsOfDetectionsInDenseScenes() {
+    final float[] anchors = SsdAnchorDecoder.generateSsdMobileNetAnchors();
+    final int numAnchors = anchors.length / 4;
+    final int columns = 91;
+    final float[] scores = new float[numAnchors * columns];
+    Arrays.fill(scores, -6.0f);
+    // Light up every anchor of the 19x19 square scale-0.1 boxes as a person; they do not overlap.
+    for (int cell = 0; cell < 19 * 19; ++cell) {
+      scores[(3 * cell) * columns + 1] = 3.0f + cell * 1e-3f;
+    }
+    final SsdAnchorDecoder decoder = new SsdAnchorDecoder(anchors, columns, 1, true, 0.6f, 500, 300);
+    final Detections out = new Detections(300);
+    final float[] thresholds = new float[90];
+    Arrays.fill(thresholds, 0.5f);
+    decoder.decode(new float[4 * numAnchors], scores, thresholds, out);
+    assertEquals(300, out.size());
+    for (int i = 1; i < out.size(); ++i) {
+      assertTrue(out.getScore(i - 1) >= out.getScore(i));
+    }
+  }
+
+  private static float sigmoid(final float x) {
+    return (float) (1 / (1 + Math.exp(-x)));
+  }
+}
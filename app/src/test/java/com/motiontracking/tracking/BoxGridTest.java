@@ -0,0 +1,83 @@
+package com.motiontracking.tracking;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BoxGridTest {
+  private static final String[] TITLES = {"person", "car", null};
+
+  @Test
+  public void queriesFindTheTouchingBoxesOfTheirClass() {
+    final BoxGrid grid = new BoxGrid();
+    final Random random = new Random(11);
+    for (int round = 0; round < 3; ++round) {
+      // Rebuilt with sets of different sizes, as for every update.
+      final int count = 50 + round * 400;
+      final float[][] boxes = new float[count][];
+      final int[] classes = new int[count];
+      grid.reset(count, 30);
+      for (int i = 0; i < count; ++i) {
+        boxes[i] = randomBox(random);
+        classes[i] = grid.classOf(TITLES[random.nextInt(TITLES.length)]);
+        assertEquals(i, grid.add(boxes[i][0], boxes[i][1], boxes[i][2], boxes[i][3], classes[i]));
+      }
+      for (int q = 0; q < 200; ++q) {
+        // Some queries cover most of the frame.
+        final float[] box = q % 50 == 0 ? new float[] {-10, -10, 700, 500} : randomBox(random);
+        final int classId = grid.classOf(TITLES[q % TITLES.length]);
+        final List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < count; ++i) {
+          if (classes[i] == classId && touches(boxes[i], box)) {
+            expected.add(i);
+          }
+        }
+        final int found = grid.query(box[0], box[1], box[2], box[3], classId);
+        final List<Integer> actual = new ArrayList<>();
+        for (int k = 0; k < found; ++k) {
+          actual.add(grid.get(k));
+        }
+        Collections.sort(actual);
+        // Candidates include boxes that only share a cell, but never miss a touching one.
+        assertEquals(actual.size(), found);
+        assertTrue(actual.containsAll(expected));
+        for (int k = 1; k < actual.size(); ++k) {
+          assertNotEquals(actual.get(k - 1), actual.get(k));
+        }
+        for (final int i : actual) {
+          assertEquals(classId, classes[i]);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void titlesKeepTheirClass() {
+    final BoxGrid grid = new BoxGrid();
+    final int car = grid.classOf("car");
+    assertEquals(car, grid.classOf(new String("car")));
+    assertNotEquals(car, grid.classOf("person"));
+    assertNotEquals(car, grid.classOf(null));
+    assertEquals(grid.classOf(null), grid.classOf(null));
+  }
+
+  private static float[] randomBox(final Random random) {
+    final float left = random.nextFloat() * 660 - 10;
+    final float top = random.nextFloat() * 500 - 10;
+    final float width = 4 + random.nextFloat() * 80;
+    final float height = 4 + random.nextFloat() * 80;
+    return new float[] {left, top, left + width, top + height};
+  }
+
+  private static boolean touches(final float[] a, final float[] b) {
+    return Math.max(a[0], b[0]) <= Math.min(a[2], b[2])
+        && Math.max(a[1], b[1]) <= Math.min(a[3], b[3]);
+  }
+}
@@ -0,0 +1,145 @@
+package com.motiontracking.tracking;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BoxInterpolatorTest {
+  private static final float EPSILON = 1e-3f;
+  private static final long MS = 1_000_000L;
+
+  @Test
+  public void showsFirstTracksWithoutAnimation() {
+    final BoxInterpolator interpolator = new BoxInterpolator();
+    final float[] dirty = new float[4];
+    assertFalse(interpolator.advance(0, dirty));
+
+    final TrackSnapshot.Builder builder = new TrackSnapshot.Builder();
+    builder.add(1, 10, 20, 30, 40, 0.9f, "car", 0);
+    builder.add(2, 100, 120, 130, 140, 0.8f, "bus", 0);
+    assertTrue(interpolator.update(builder.build(1, 1000 * MS)));
+    assertFalse(interpolator.update(builder.build(1, 1000 * MS)));
+    assertFalse(interpolator.isAnimating());
+
+    assertTrue(interpolator.advance(1001 * MS, dirty));
+    assertArrayEquals(new float[] {10, 20, 130, 140}, dirty, EPSILON);
+    assertEquals(130, interpolator.getRight(1), EPSILON);
+    // Nothing changed, nothing to redraw.
+    assertFalse(interpolator.advance(1017 * MS, dirty));
+  }
+
+  @Test
+  public void interpolatesOverTheIntervalBetweenUpdates() {
+    final BoxInterpolator interpolator = new BoxInterpolator();
+    final float[] dirty = new float[4];
+    final TrackSnapshot.Builder builder = new TrackSnapshot.Builder();
+    builder.add(7, 0, 0, 10, 10, 0.9f, "person", 0);
+    interpolator.update(builder.build(1, 1000 * MS));
+    interpolator.advance(1000 * MS, dirty);
+
+    // The detector reports 100 ms later; the box moves there over the next 100 ms.
+    builder.clear().add(7, 100, 0, 110, 10, 0.9f, "person", 0);
+    interpolator.update(builder.build(2, 1100 * MS));
+    assertTrue(interpolator.isAnimating());
+
+    assertTrue(interpolator.advance(1150 * MS, dirty));
+    assertEquals(50, interpolator.getLeft(0), EPSILON);
+    assertArrayEquals(new float[] {0, 0, 60, 10}, dirty, EPSILON);
+    assertTrue(interpolator.isAnimating());
+
+    // The dirty area only spans the last drawn and the new position.
+    assertTrue(interpolator.advance(1175 * MS, dirty));
+    assertArrayEquals(new float[] {50, 0, 85, 10}, dirty, EPSILON);
+
+    assertTrue(interpolator.advance(1300 * MS, dirty));
+    assertEquals(100, interpolator.getLeft(0), EPSILON);
+    assertFalse(interpolator.isAnimating());
+    assertFalse(interpolator.advance(1316 * MS, dirty));
+  }
+
+  @Test
+  public void continuesFromTheShownPositionWhenInterrupted() {
+    final BoxInterpolator interpolator = new BoxInterpolator();
+    final float[] dirty = new float[4];
+    final TrackSnapshot.Builder builder = new TrackSnapshot.Builder();
+    builder.add(3, 0, 0, 10, 10, 0.9f, "car", 0);
+    interpolator.update(builder.build(1, 0));
+    interpolator.advance(0, dirty);
+    builder.clear().add(3, 100, 0, 110, 10, 0.9f, "car", 0);
+    interpolator.update(builder.build(2, 100 * MS));
+    interpolator.advance(150 * MS, dirty);
+    assertEquals(50, interpolator.getLeft(0), EPSILON);
+
+    // A new update halfway through starts from the shown box rather than the old target.
+    builder.clear().add(3, 0, 0, 10, 10, 0.9f, "car", 0);
+    interpolator.update(builder.build(3, 150 * MS));
+    interpolator.advance(150 * MS, dirty);
+    assertEquals(50, interpolator.getLeft(0), EPSILON);
+    interpolator.advance(175 * MS, dirty);
+    assertEquals(25, interpolator.getLeft(0), EPSILON);
+  }
+
+  @Test
+  public void dirtyAreaCoversRemovedAndNewTracks() {
+    final BoxInterpolator interpolator = new BoxInterpolator();
+    final float[] dirty = new float[4];
+    final TrackSnapshot.Builder builder = new TrackSnapshot.Builder();
+    builder.add(1, 10, 10, 20, 20, 0.9f, "car", 0);
+    interpolator.update(builder.build(1, 0));
+    interpolator.advance(0, dirty);
+
+    // Track 1 disappears, track 2 appears elsewhere: no animation, but both areas are redrawn.
+    builder.clear().add(2, 200, 300, 220, 330, 0.9f, "car", 0);
+    interpolator.update(builder.build(2, 100 * MS));
+    assertFalse(interpolator.isAnimating());
+    assertTrue(interpolator.advance(100 * MS, dirty));
+    assertArrayEquals(new float[] {10, 10, 220, 330}, dirty, EPSILON);
+
+    // Once every track is gone the old area is cleared once.
+    builder.clear();
+    interpolator.update(builder.build(3, 200 * MS));
+    assertTrue(interpolator.advance(200 * MS, dirty));
+    assertArrayEquals(new float[] {200, 300, 220, 330}, dirty, EPSILON);
+    assertFalse(interpolator.advance(216 * MS, dirty));
+  }
+
+  @Test
+  public void matchesTracksByIdentifierWhenTheirOrderChanges() {
+    final BoxInterpolator interpolator = new BoxInterpolator();
+    final float[] dirty = new float[4];
+    final TrackSnapshot.Builder builder = new TrackSnapshot.Builder();
+    for (int id = 0; id < 100; ++id) {
+      builder.add(id, id, 0, id + 10, 10, 0.9f, "car", 0);
+    }
+    interpolator.update(builder.build(1, 0));
+    interpolator.advance(0, dirty);
+
+    // The even tracks come back in reverse order and moved down; the odd ones are gone.
+    builder.clear();
+    for (int id = 98; id >= 0; id -= 2) {
+      builder.add(id, id, 100, id + 10, 110, 0.9f, "car", 0);
+    }
+    interpolator.update(builder.build(2, 100 * MS));
+    interpolator.advance(150 * MS, dirty);
+    assertEquals(50, interpolator.size());
+    for (int i = 0; i < 50; ++i) {
+      final int id = 98 - 2 * i;
+      assertEquals(id, interpolator.getLeft(i), EPSILON);
+      assertEquals(50, interpolator.getTop(i), EPSILON);
+    }
+
+    // Growing again after the arrays of both snapshots were swapped keeps the shown positions.
+    builder.clear();
+    for (int id = 0; id < 200; ++id) {
+      builder.add(id, id, 100, id + 10, 110, 0.9f, "car", 0);
+    }
+    interpolator.update(builder.build(3, 150 * MS));
+    interpolator.advance(150 * MS, dirty);
+    for (int id = 0; id < 200; ++id) {
+      assertEquals(id % 2 == 0 && id < 100 ? 50 : 100, interpolator.getTop(id), EPSILON);
+    }
+  }
+}
@@ -0,0 +1,70 @@
+package com.motiontracking.tracking;
+
+import com.motiontracking.Benchmark;
+import com.motiontracking.tflite.Detections;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DetectionTrackerTest {
+  private static final List<String> LABELS = Arrays.asList("person", "car");
+
+  @Test
+  public void coastingTracksAreMatchedWhereTheyArePredicted() {
+    final DetectionTracker tracker = new DetectionTracker(LABELS, 3);
+    tracker.setFrameConfiguration(640, 480, 0);
+    final Detections detections = new Detections(4);
+    // A car 40 pixels wide speeds up from 16 to 24 pixels per frame. Once it is fast, a box where
+    // it was a frame earlier overlaps its next detection too little to continue the track.
+    float x = 0;
+    for (int f = 0; f < 15; ++f) {
+      x += f == 0 ? 0 : f < 5 ? 16 : 24;
+      detections.clear();
+      // Missed in frames 11 and 12.
+      if (f != 11 && f != 12) {
+        detections.add(200, x, 230, x + 40, 1, 0.9f);
+      }
+      final TrackSnapshot snapshot = tracker.update(detections);
+      assertEquals("frame " + f, 1, snapshot.size());
+      assertEquals("frame " + f, 0, snapshot.getId(0));
+      assertEquals("frame " + f, x, snapshot.getLeft(0), 1);
+    }
+  }
+
+  @Test
+  public void thousandsOfTracksKeepTheirIdentifiers() {
+    final int columns = 80;
+    final int rows = 50;
+    final DetectionTracker tracker = new DetectionTracker(LABELS);
+    tracker.setFrameConfiguration(columns * 24, rows * 24, 0);
+    final Detections detections = new Detections(columns * rows);
+    long elapsed = 0;
+    for (int f = 0; f < 20; ++f) {
+      detections.clear();
+      for (int row = 0; row < rows; ++row) {
+        for (int column = 0; column < columns; ++column) {
+          // Alternating classes in a lattice of 16 pixel boxes, drifting a pixel per frame.
+          final float left = column * 24 + f;
+          final float top = row * 24 + f / 2;
+          detections.add(top, left, top + 16, left + 16, (row + column) % 2, 0.8f);
+        }
+      }
+      final long start = System.nanoTime();
+      final TrackSnapshot snapshot = tracker.update(detections);
+      elapsed = System.nanoTime() - start;
+      assertEquals(columns * rows, snapshot.size());
+      for (int i = 0; i < snapshot.size(); ++i) {
+        final int id = snapshot.getId(i);
+        assertTrue(id < columns * rows);
+        assertEquals(id % columns * 24 + f, snapshot.getLeft(i), 0);
+      }
+    }
+    Benchmark.report(
+        "Tracking " + columns * rows + " detections in " + elapsed / 1e6 + " ms per frame");
+  }
+}
@@ -0,0 +1,214 @@
+package com.motiontracking.tracking;
+
+import com.motiontracking.Benchmark;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class EgoMotionTest {
+  private static final int WIDTH = 640;
+  private static final int HEIGHT = 480;
+  // A scene larger than the frame, so shifted frames show new content at their borders.
+  private static final int SCENE_WIDTH = WIDTH + 200;
+  private static final int SCENE_HEIGHT = HEIGHT + 200;
+
+  private final float[] scene = createScene(new Random(42));
+
+  @Test
+  public void estimatesIntegerShifts() {
+    final EgoMotionEstimator estimator = new EgoMotionEstimator(2, 64);
+    final int[][] shifts = {{0, 0}, {12, -7}, {-30, 22}, {3, 41}, {-50, -50}, {1, 0}};
+    float x = 100;
+    float y = 100;
+    assertFalse(estimator.update(frame(x, y), WIDTH, HEIGHT, WIDTH));
+    for (final int[] shift : shifts) {
+      // The camera moves against the image.
+      x -= shift[0];
+      y -= shift[1];
+      assertTrue(estimator.update(frame(x, y), WIDTH, HEIGHT, WIDTH));
+      assertEquals(Arrays.toString(shift), shift[0], estimator.getShiftX(), 1);
+      assertEquals(Arrays.toString(shift), shift[1], estimator.getShiftY(), 1);
+    }
+    assertEquals(100 - x, estimator.getPositionX(), 3);
+    assertEquals(100 - y, estimator.getPositionY(), 3);
+  }
+
+  @Test
+  public void estimatesFractionalShiftsWithNoise() {
+    final EgoMotionEstimator estimator = new EgoMotionEstimator(2, 64);
+    final Random random = new Random(7);
+    float x = 100;
+    float y = 100;
+    estimator.update(noisy(frame(x, y), random), WIDTH, HEIGHT, WIDTH);
+    float worst = 0;
+    for (int i = 0; i < 40; ++i) {
+      final float dx = (random.nextFloat() - 0.5f) * 16;
+      final float dy = (random.nextFloat() - 0.5f) * 16;
+      x -= dx;
+      y -= dy;
+      assertTrue(estimator.update(noisy(frame(x, y), random), WIDTH, HEIGHT, WIDTH));
+      worst = Math.max(worst, Math.abs(estimator.getShiftX() - dx));
+      worst = Math.max(worst, Math.abs(estimator.getShiftY() - dy));
+    }
+    assertTrue("worst error " + worst + " px", worst < 1);
+  }
+
+  @Test
+  public void flatFramesDoNotMove() {
+    final EgoMotionEstimator estimator = new EgoMotionEstimator(2, 64);
+    final byte[] flat = new byte[WIDTH * HEIGHT];
+    Arrays.fill(flat, (byte) 90);
+    estimator.update(flat, WIDTH, HEIGHT, WIDTH);
+    assertFalse(estimator.update(flat, WIDTH, HEIGHT, WIDTH));
+    assertEquals(0, estimator.getShiftX(), 0);
+    assertEquals(0, estimator.getPositionY(), 0);
+    // A new size starts over.
+    estimator.update(frame(100, 100), WIDTH, HEIGHT, WIDTH);
+    assertFalse(estimator.update(frame(100, 100), WIDTH / 2, HEIGHT / 2, WIDTH));
+  }
+
+  @Test
+  public void compensatedTracksKeepTheirIdentifiers() {
+    final EgoMotionEstimator estimator = new EgoMotionEstimator(2, 64);
+    final TrackStore store = new TrackStore(16, 1);
+    final TrackAssociator compensated = new TrackAssociator(0.3f);
+    final TrackAssociator uncompensated = new TrackAssociator(0.3f);
+    final TrackStore uncompensatedStore = new TrackStore(16, 1);
+
+    // Two still objects of 40x80 pixels filmed by a shaking camera.
+    final float[][] objects = {{300, 300, 340, 380}, {500, 320, 540, 400}};
+    float x = 100;
+    float y = 100;
+    estimator.update(frame(x, y), WIDTH, HEIGHT, WIDTH);
+    float lastX = estimator.getPositionX();
+    float lastY = estimator.getPositionY();
+    int switches = 0;
+    int uncompensatedSwitches = 0;
+    for (int f = 0; f < 20; ++f) {
+      x += f % 2 == 0 ? 30 : -30;
+      y += f % 2 == 0 ? -20 : 20;
+      estimator.update(frame(x, y), WIDTH, HEIGHT, WIDTH);
+      final float shiftX = estimator.getPositionX() - lastX;
+      final float shiftY = estimator.getPositionY() - lastY;
+      lastX = estimator.getPositionX();
+      lastY = estimator.getPositionY();
+      switches += track(compensated, store, objects, x, y, shiftX, shiftY);
+      uncompensatedSwitches += track(uncompensated, uncompensatedStore, objects, x, y, 0, 0);
+    }
+    assertEquals(0, switches);
+    assertNotEquals(0, uncompensatedSwitches);
+  }
+
+  @Test
+  public void estimationTakesLessThanAMillisecond() {
+    final EgoMotionEstimator estimator = new EgoMotionEstimator(2, 64);
+    final byte[][] frames = {frame(100, 100), frame(110, 95)};
+    final int rounds = 500;
+    long elapsed = 0;
+    for (int pass = 0; pass < 3; ++pass) {
+      final long start = System.nanoTime();
+      for (int i = 0; i < rounds; ++i) {
+        estimator.update(frames[i & 1], WIDTH, HEIGHT, WIDTH);
+      }
+      elapsed = System.nanoTime() - start;
+    }
+    final double millis = elapsed / 1e6 / rounds;
+    Benchmark.report("Ego-motion of " + WIDTH + "x" + HEIGHT + " in " + millis + " ms");
+    assertTrue("estimation took " + millis + " ms", millis < 1);
+  }
+
+  /**
+   * Associates detections of the objects in the frame at the camera position with the tracks.
+   *
+   * @return The number of objects that did not keep their identifier.
+   */
+  private static int track(
+      final TrackAssociator associator,
+      final TrackStore store,
+      final float[][] objects,
+      final float x,
+      final float y,
+      final float shiftX,
+      final float shiftY) {
+    final boolean tracking = store.size() > 0;
+    store.age();
+    store.predict(shiftX, shiftY);
+    associator.begin(store, 0);
+    int switches = 0;
+    for (int i = 0; i < objects.length; ++i) {
+      final float left = objects[i][0] - x;
+      final float top = objects[i][1] - y;
+      final float right = objects[i][2] - x;
+      final float bottom = objects[i][3] - y;
+      final int id = associator.associate(left, top, right, bottom, "person");
+      if (tracking && id != i) {
+        ++switches;
+      }
+      store.put(i, left, top, right, bottom, 0.9f, "person", 0);
+    }
+    associator.end(0);
+    store.cullExpired(0);
+    return switches;
+  }
+
+  /** Smooth random texture, as cameras see it. */
+  private static float[] createScene(final Random random) {
+    final float[] coarse = new float[(SCENE_WIDTH / 8 + 2) * (SCENE_HEIGHT / 8 + 2)];
+    for (int i = 0; i < coarse.length; ++i) {
+      coarse[i] = 40 + random.nextFloat() * 180;
+    }
+    final int coarseWidth = SCENE_WIDTH / 8 + 2;
+    final float[] scene = new float[SCENE_WIDTH * SCENE_HEIGHT];
+    for (int y = 0; y < SCENE_HEIGHT; ++y) {
+      for (int x = 0; x < SCENE_WIDTH; ++x) {
+        final int cx = x / 8;
+        final int cy = y / 8;
+        final float fx = (x % 8) / 8f;
+        final float fy = (y % 8) / 8f;
+        final float top =
+            coarse[cy * coarseWidth + cx] * (1 - fx) + coarse[cy * coarseWidth + cx + 1] * fx;
+        final float bottom =
+            coarse[(cy + 1) * coarseWidth + cx] * (1 - fx)
+                + coarse[(cy + 1) * coarseWidth + cx + 1] * fx;
+        scene[y * SCENE_WIDTH + x] = top * (1 - fy) + bottom * fy;
+      }
+    }
+    return scene;
+  }
+
+  /** The part of the scene the camera sees at the position, bilinearly interpolated. */
+  private byte[] frame(final float x, final float y) {
+    final byte[] frame = new byte[WIDTH * HEIGHT];
+    final int ix = (int) Math.floor(x);
+    final int iy = (int) Math.floor(y);
+    final float fx = x - ix;
+    final float fy = y - iy;
+    for (int row = 0; row < HEIGHT; ++row) {
+      final int sy = Math.max(0, Math.min(SCENE_HEIGHT - 2, iy + row));
+      for (int column = 0; column < WIDTH; ++column) {
+        final int sx = Math.max(0, Math.min(SCENE_WIDTH - 2, ix + column));
+        final int p = sy * SCENE_WIDTH + sx;
+        final float value =
+            (scene[p] * (1 - fx) + scene[p + 1] * fx) * (1 - fy)
+                + (scene[p + SCENE_WIDTH] * (1 - fx) + scene[p + SCENE_WIDTH + 1] * fx) * fy;
+        frame[row * WIDTH + column] = (byte) Math.round(value);
+      }
+    }
+    return frame;
+  }
+
+  private static byte[] noisy(final byte[] frame, final Random random) {
+    for (int i = 0; i < frame.length; ++i) {
+      final int value = (frame[i] & 0xFF) + random.nextInt(9) - 4;
+      frame[i] = (byte) Math.max(0, Math.min(255, value));
+    }
+    return frame;
+  }
+}
@@ -0,0 +1,178 @@
+package com.motiontracking.tracking;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ReidentificationTest {
+  private static final int WIDTH = 320;
+  private static final int HEIGHT = 240;
+  private static final long FRAME_NANOS = 100_000_000L;
+  private static final long MAX_AGE_NANOS = 3_000_000_000L;
+  // Luminance and chrominance of the clothes of three people.
+  private static final int[] RED = {80, 100, 200};
+  private static final int[] BLUE = {60, 200, 110};
+  private static final int[] GREEN = {140, 70, 70};
+
+  private final byte[] y = new byte[WIDTH * HEIGHT];
+  private final byte[] u = new byte[WIDTH * HEIGHT / 4];
+  private final byte[] v = new byte[WIDTH * HEIGHT / 4];
+  private final AppearanceFrame frame = new AppearanceFrame();
+  private final TrackStore store = new TrackStore(16, 1);
+  private final float[] signature = new float[AppearanceFrame.SIGNATURE_LENGTH];
+
+  @Test
+  public void similarityTellsColorsApart() {
+    clear();
+    fill(20, 20, 80, 200, RED);
+    fill(120, 20, 180, 200, RED);
+    fill(220, 20, 280, 200, BLUE);
+    setFrame();
+    final float[] a = new float[AppearanceFrame.SIGNATURE_LENGTH];
+    final float[] b = new float[AppearanceFrame.SIGNATURE_LENGTH];
+    final float[] c = new float[AppearanceFrame.SIGNATURE_LENGTH];
+    // Boxes a little larger than the people, as detections are.
+    assertTrue(frame.computeSignature(16, 14, 84, 204, a, 0));
+    assertTrue(frame.computeSignature(118, 18, 190, 210, b, 0));
+    assertTrue(frame.computeSignature(214, 10, 286, 206, c, 0));
+    assertEquals(1, AppearanceFrame.similarity(a, 0, a, 0), 1e-5);
+    assertTrue(AppearanceFrame.similarity(a, 0, b, 0) > 0.9f);
+    assertTrue(AppearanceFrame.similarity(a, 0, c, 0) < 0.5f);
+    // Too small to say.
+    assertFalse(frame.computeSignature(10, 10, 14, 14, a, 0));
+  }
+
+  @Test
+  public void lostTracksKeepTheirIdentifierWhenTheyReappear() {
+    final TrackAssociator associator =
+        new TrackAssociator(0.3f, new ReidCache(8, MAX_AGE_NANOS, 0.85f));
+    long time = 0;
+    int[] ids = null;
+    for (int f = 0; f < 5; ++f) {
+      ids = update(associator, time += FRAME_NANOS, box(40, RED), box(200, BLUE));
+    }
+    assertEquals(Arrays.toString(ids), 0, ids[0]);
+    assertEquals(1, ids[1]);
+
+    // The red person is hidden for a second and comes back elsewhere, next to a newcomer in green.
+    for (int f = 0; f < 10; ++f) {
+      ids = update(associator, time += FRAME_NANOS, box(200, BLUE));
+    }
+    ids = update(associator, time += FRAME_NANOS, box(200, BLUE), box(120, RED), box(20, GREEN));
+    assertEquals(1, ids[0]);
+    assertEquals(0, ids[1]);
+    assertEquals(2, ids[2]);
+
+    // The blue person is gone for longer than lost tracks are remembered.
+    for (int f = 0; f < 40; ++f) {
+      ids = update(associator, time += FRAME_NANOS, box(120, RED), box(20, GREEN));
+    }
+    ids = update(associator, time += FRAME_NANOS, box(120, RED), box(20, GREEN), box(240, BLUE));
+    assertEquals(0, ids[0]);
+    assertEquals(2, ids[1]);
+    assertEquals(3, ids[2]);
+  }
+
+  @Test
+  public void lostTracksAreNotTakenOverByOthers() {
+    final TrackAssociator associator =
+        new TrackAssociator(0.3f, new ReidCache(8, MAX_AGE_NANOS, 0.85f));
+    long time = 0;
+    update(associator, time += FRAME_NANOS, box(40, RED));
+    update(associator, time += FRAME_NANOS);
+    // A blue person is someone else, and only one of two red people can be the lost one.
+    int[] ids = update(associator, time += FRAME_NANOS, box(200, BLUE));
+    assertEquals(1, ids[0]);
+    ids = update(associator, time += FRAME_NANOS, box(200, BLUE), box(20, RED), box(120, RED));
+    assertEquals(1, ids[0]);
+    assertEquals(0, ids[1]);
+    assertEquals(2, ids[2]);
+  }
+
+  @Test
+  public void reidentificationTakesMicroseconds() {
+    final ReidCache cache = new ReidCache(32, Long.MAX_VALUE, 0.99f);
+    clear();
+    fill(40, 20, 100, 220, RED);
+    fill(200, 20, 260, 220, BLUE);
+    setFrame();
+    for (int i = 0; i < 32; ++i) {
+      frame.computeSignature(36 + i, 16, 104 + i, 224, signature, 0);
+      cache.put(i, "person", signature, 0, 0);
+    }
+    final int rounds = 20_000;
+    int matched = 0;
+    long elapsed = 0;
+    for (int pass = 0; pass < 2; ++pass) {
+      final long start = System.nanoTime();
+      for (int i = 0; i < rounds; ++i) {
+        frame.computeSignature(196, 16, 264, 224, signature, 0);
+        if (cache.match("person", signature, 0, 1) >= 0) {
+          ++matched;
+        }
+      }
+      elapsed = System.nanoTime() - start;
+    }
+    assertEquals(0, matched);
+    final double micros = elapsed / 1e3 / rounds;
+    assertTrue("signature and lookup took " + micros + " us", micros < 50);
+  }
+
+  /** A person in the clothes standing at the column. */
+  private static int[] box(final int left, final int[] color) {
+    return new int[] {left, 40, left + 60, 200, color[0], color[1], color[2]};
+  }
+
+  /** Draws the people, detects them with slightly larger boxes and tracks them. */
+  private int[] update(final TrackAssociator associator, final long time, final int[]... people) {
+    clear();
+    for (final int[] person : people) {
+      fill(person[0], person[1], person[2], person[3], Arrays.copyOfRange(person, 4, 7));
+    }
+    setFrame();
+    store.age();
+    store.predict(0, 0);
+    associator.begin(store, time);
+    final int[] ids = new int[people.length];
+    for (int i = 0; i < people.length; ++i) {
+      final int[] person = people[i];
+      final float left = person[0] - 4;
+      final float top = person[1] - 6;
+      final float right = person[2] + 4;
+      final float bottom = person[3] + 4;
+      final boolean signed = frame.computeSignature(left, top, right, bottom, signature, 0);
+      ids[i] =
+          associator.associate(left, top, right, bottom, "person", signed ? signature : null, 0);
+      final int slot = store.put(ids[i], left, top, right, bottom, 0.9f, "person", 0);
+      store.setSignature(slot, signed ? signature : null, 0);
+    }
+    associator.end(0);
+    store.cullExpired(0);
+    return ids;
+  }
+
+  private void clear() {
+    Arrays.fill(y, (byte) 160);
+    Arrays.fill(u, (byte) 128);
+    Arrays.fill(v, (byte) 128);
+  }
+
+  private void fill(
+      final int left, final int top, final int right, final int bottom, final int[] color) {
+    for (int row = top; row < bottom; ++row) {
+      for (int column = left; column < right; ++column) {
+        y[row * WIDTH + column] = (byte) (color[0] + (row + column) % 9);
+        u[(row / 2) * (WIDTH / 2) + column / 2] = (byte) color[1];
+        v[(row / 2) * (WIDTH / 2) + column / 2] = (byte) color[2];
+      }
+    }
+  }
+
+  private void setFrame() {
+    frame.set(y, u, v, WIDTH, HEIGHT, WIDTH, WIDTH / 2, 1);
+  }
+}
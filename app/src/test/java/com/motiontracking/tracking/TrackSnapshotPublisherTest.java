@@ -0,0 +1,160 @@
+package com.motiontracking.tracking;
+
+import com.motiontracking.Benchmark;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TrackSnapshotPublisherTest {
+  private static final int UPDATES = 200_000;
+  private static final int READERS = 3;
+  private static final int MAX_TRACKS = 40;
+  private static final String[] TITLES = {"person", "bicycle", "car", "truck", "bus", "train"};
+
+  @Test
+  public void publishedSnapshotsAreNotAffectedByLaterUpdates() {
+    final TrackSnapshotPublisher publisher = new TrackSnapshotPublisher();
+    assertSame(TrackSnapshot.EMPTY, publisher.latest());
+
+    final TrackSnapshot.Builder builder = new TrackSnapshot.Builder();
+    builder.setFrameConfiguration(640, 480, 90);
+    fill(builder, 1);
+    final TrackSnapshot first = publisher.publish(builder);
+    assertEquals(1, first.getVersion());
+    // Refills and grows the builder past its initial capacity while the first snapshot is live.
+    fill(builder, MAX_TRACKS - 1);
+    final TrackSnapshot second = publisher.publish(builder);
+
+    assertSame(second, publisher.latest());
+    assertEquals(2, second.getVersion());
+    assertEquals(MAX_TRACKS - 1, second.size());
+    assertEquals(MAX_TRACKS - 1, second.getLeft(0), 0);
+    assertEquals(640, first.getFrameWidth());
+    assertEquals(90, first.getSensorOrientation());
+    assertEquals(1, first.size());
+    assertNull(check(first));
+  }
+
+  @Test
+  public void readersNeverSeeTornSnapshots() throws InterruptedException {
+    final TrackSnapshotPublisher publisher = new TrackSnapshotPublisher();
+    final AtomicBoolean done = new AtomicBoolean();
+    final AtomicReference<String> failure = new AtomicReference<>();
+    final AtomicLong reads = new AtomicLong();
+    final CountDownLatch start = new CountDownLatch(1);
+
+    final Thread[] readers = new Thread[READERS];
+    for (int r = 0; r < READERS; ++r) {
+      readers[r] =
+          new Thread(
+              new Runnable() {
+                @Override
+                public void run() {
+                  long lastVersion = 0;
+                  long count = 0;
+                  try {
+                    start.await();
+                  } catch (final InterruptedException e) {
+                    return;
+                  }
+                  while (!done.get() && failure.get() == null) {
+                    final TrackSnapshot snapshot = publisher.latest();
+                    if (snapshot.getVersion() < lastVersion) {
+                      failure.compareAndSet(null, "version went back to " + snapshot.getVersion());
+                    }
+                    lastVersion = snapshot.getVersion();
+                    final String error = check(snapshot);
+                    if (error != null) {
+                      failure.compareAndSet(null, error);
+                    }
+                    ++count;
+                  }
+                  reads.addAndGet(count);
+                }
+              });
+      readers[r].start();
+    }
+
+    final TrackSnapshot.Builder builder = new TrackSnapshot.Builder();
+    final long[] latencies = new long[UPDATES];
+    start.countDown();
+    final long begin = System.nanoTime();
+    for (int i = 0; i < UPDATES; ++i) {
+      final long updateStart = System.nanoTime();
+      // The version of the next snapshot is i + 1; every field below is derived from it.
+      fill(builder, i + 1);
+      publisher.publish(builder);
+      latencies[i] = System.nanoTime() - updateStart;
+    }
+    final long elapsed = System.nanoTime() - begin;
+    done.set(true);
+    for (final Thread reader : readers) {
+      reader.join();
+    }
+
+    assertNull(failure.get(), failure.get());
+    assertEquals(UPDATES, publisher.latest().getVersion());
+    Arrays.sort(latencies);
+    final long p50 = latencies[UPDATES / 2];
+    final long p999 = latencies[UPDATES - UPDATES / 1000];
+    Benchmark.report(
+        String.format(
+            Locale.ENGLISH,
+            "%d updates in %.1f ms with %d concurrent reads, publish p50 %.2f us, p99.9 %.2f us",
+            UPDATES,
+            elapsed / 1e6,
+            reads.get(),
+            p50 / 1e3,
+            p999 / 1e3));
+    // Readers never hold anything the writer waits for, so publishing stays in the microseconds
+    // regardless of how often the snapshot is read. The bound leaves room for GC pauses on CI.
+    assertTrue("p99.9 publish latency " + p999 + " ns", p999 < 20_000_000L);
+  }
+
+  /** Fills the builder with tracks whose fields all encode {@code version}. */
+  private static void fill(final TrackSnapshot.Builder builder, final long version) {
+    builder.clear();
+    final int count = (int) (version % MAX_TRACKS);
+    for (int i = 0; i < count; ++i) {
+      final float v = version + i;
+      final String title = TITLES[(int) ((version + i) % TITLES.length)];
+      builder.add((int) v, v, v + 1, v + 2, v + 3, v, title, (int) v);
+    }
+  }
+
+  /** Returns a description of the first inconsistency in the snapshot, null if it is consistent. */
+  private static String check(final TrackSnapshot snapshot) {
+    final long version = snapshot.getVersion();
+    if (version == 0) {
+      return snapshot.size() == 0 ? null : "empty snapshot has tracks";
+    }
+    if (snapshot.size() != version % MAX_TRACKS) {
+      return "version " + version + " has " + snapshot.size() + " tracks";
+    }
+    for (int i = 0; i < snapshot.size(); ++i) {
+      final float v = version + i;
+      if (snapshot.getLeft(i) != v
+          || snapshot.getTop(i) != v + 1
+          || snapshot.getRight(i) != v + 2
+          || snapshot.getBottom(i) != v + 3
+          || snapshot.getConfidence(i) != v
+          || snapshot.getColor(i) != (int) v
+          || snapshot.getId(i) != (int) v
+          || !TITLES[(int) ((version + i) % TITLES.length)].equals(snapshot.getTitle(i))) {
+        return "track " + i + " of version " + version + " is torn";
+      }
+    }
+    return null;
+  }
+}
@@ -0,0 +1,175 @@
+package com.motiontracking.tracking;
+
+import com.motiontracking.Benchmark;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TrackStoreTest {
+  private static final int TRACKS = 5000;
+
+  @Test
+  public void thousandsOfTracksReuseFreedSlots() {
+    final TrackStore store = new TrackStore(16, 1);
+    for (int id = 0; id < TRACKS; ++id) {
+      store.put(id, id, 0, id + 10, 10, 0.5f, "car", id);
+    }
+    assertEquals(TRACKS, store.size());
+    assertEquals(TRACKS, store.getSlotCount());
+
+    // Every third track goes undetected for two updates.
+    for (int update = 0; update < 2; ++update) {
+      store.age();
+      for (int id = 0; id < TRACKS; ++id) {
+        if (id % 3 != 0) {
+          store.put(id, id, 0, id + 10, 10, 0.6f, "car", -1);
+        }
+      }
+    }
+    assertEquals(0, store.cullExpired(2));
+    final int culled = store.cullExpired(1);
+    assertEquals((TRACKS + 2) / 3, culled);
+    assertEquals(TRACKS - culled, store.size());
+
+    // New tracks take the freed slots instead of growing the arrays.
+    for (int id = TRACKS; id < TRACKS + culled; ++id) {
+      store.put(id, 0, 0, 10, 10, 0.7f, "person", id);
+    }
+    assertEquals(TRACKS, store.size());
+    assertEquals(TRACKS, store.getSlotCount());
+
+    final Set<Integer> slots = new HashSet<>();
+    for (int i = 0; i < store.size(); ++i) {
+      final int slot = store.getSlot(i);
+      assertTrue(slots.add(slot));
+      final int id = store.getId(slot);
+      assertEquals(slot, store.slotOf(id));
+      assertFalse(id < TRACKS && id % 3 == 0);
+      // Continued tracks keep the color they started with.
+      assertEquals(id, store.getColor(slot));
+      assertEquals(id < TRACKS ? "car" : "person", store.getTitle(slot));
+    }
+    for (int id = 0; id < TRACKS; id += 3) {
+      assertEquals(-1, store.slotOf(id));
+    }
+
+    final TrackSnapshot.Builder builder = new TrackSnapshot.Builder();
+    store.writeTo(builder);
+    final TrackSnapshot snapshot = new TrackSnapshotPublisher().publish(builder);
+    assertEquals(TRACKS, snapshot.size());
+    assertEquals(1, snapshot.getId(snapshot.indexOf(1)));
+    assertEquals(11, snapshot.getRight(snapshot.indexOf(1)), 0);
+
+    final int slot = store.slotOf(1);
+    assertTrue(store.remove(1));
+    assertFalse(store.remove(1));
+    assertNull(store.getTitle(slot));
+    store.clear();
+    assertEquals(0, store.size());
+    assertEquals(-1, store.slotOf(2));
+  }
+
+  @Test
+  public void predictionsFollowTheMotionOfTracks() {
+    final TrackStore store = new TrackStore(4, 1);
+    // Moves 2 pixels right and 2 up per update while the image moves 1 pixel left, so it moves 3
+    // pixels right in the scene.
+    for (int update = 0; update < 20; ++update) {
+      store.age();
+      store.predict(-1, 0);
+      final float x = 2 * update;
+      final float y = 100 - 2 * update;
+      store.put(7, x, y, x + 20, y + 20, 0.9f, null, 0);
+    }
+    final int slot = store.slotOf(7);
+    assertEquals(3, store.getVelocityX(slot), 0.01f);
+    assertEquals(-2, store.getVelocityY(slot), 0.01f);
+    assertEquals(19, store.getAge(slot));
+
+    // Undetected, the track coasts along its motion until it expires.
+    final float left = store.getLeft(slot);
+    final float top = store.getTop(slot);
+    for (int update = 1; update <= 3; ++update) {
+      store.age();
+      store.predict(-1, 0);
+      assertEquals(0, store.cullExpired(3));
+      assertEquals(update, store.getMisses(slot));
+      assertEquals(left + 2 * update, store.getLeft(slot), 0.1f);
+      assertEquals(top - 2 * update, store.getTop(slot), 0.1f);
+    }
+    store.age();
+    assertEquals(1, store.cullExpired(3));
+    assertEquals(0, store.size());
+  }
+
+  @Test
+  public void parallelBulkOperationsMatchSerial() {
+    final int tracks = 50_000;
+    final TrackStore serial = new TrackStore(16, 1);
+    final TrackStore parallel = new TrackStore(16, 4);
+    final Random random = new Random(3);
+    for (int id = 0; id < tracks; ++id) {
+      final float x = random.nextInt(4000);
+      final float y = random.nextInt(3000);
+      serial.put(id, x, y, x + 8, y + 8, 0.5f, null, 0);
+      parallel.put(id, x, y, x + 8, y + 8, 0.5f, null, 0);
+    }
+    for (int update = 0; update < 5; ++update) {
+      serial.age();
+      parallel.age();
+      serial.predict(0.5f, -0.25f);
+      parallel.predict(0.5f, -0.25f);
+      for (int id = update; id < tracks; id += 2) {
+        final int slot = serial.slotOf(id);
+        final float x = serial.getLeft(slot) + (id % 5) - 2;
+        final float y = serial.getTop(slot) + (id % 3) - 1;
+        serial.put(id, x, y, x + 8, y + 8, 0.5f, null, 0);
+        parallel.put(id, x, y, x + 8, y + 8, 0.5f, null, 0);
+      }
+      assertEquals(serial.cullExpired(1), parallel.cullExpired(1));
+    }
+    assertEquals(serial.size(), parallel.size());
+    for (int i = 0; i < serial.size(); ++i) {
+      final int slot = serial.getSlot(i);
+      assertEquals(slot, parallel.getSlot(i));
+      assertEquals(serial.getId(slot), parallel.getId(slot));
+      assertEquals(serial.getLeft(slot), parallel.getLeft(slot), 0);
+      assertEquals(serial.getBottom(slot), parallel.getBottom(slot), 0);
+      assertEquals(serial.getVelocityY(slot), parallel.getVelocityY(slot), 0);
+      assertEquals(serial.getAge(slot), parallel.getAge(slot));
+      assertEquals(serial.getMisses(slot), parallel.getMisses(slot));
+    }
+
+    final int iterations = 200;
+    Benchmark.report(
+        String.format(
+            Locale.ENGLISH,
+            "Predicting and aging %d tracks: %.3f ms, 4 threads %.3f ms",
+            serial.size(),
+            time(serial, iterations),
+            time(parallel, iterations)));
+    serial.close();
+    parallel.close();
+  }
+
+  private static double time(final TrackStore store, final int iterations) {
+    return Benchmark.time(
+        iterations,
+        new Runnable() {
+          @Override
+          public void run() {
+            store.predict(0, 0);
+            store.age();
+          }
+        });
+  }
+}
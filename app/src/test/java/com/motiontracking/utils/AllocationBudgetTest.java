@@ -0,0 +1,316 @@
+package com.motiontracking.utils;
+
+import com.motiontracking.Benchmark;
+import com.motiontracking.analytics.CountingLine;
+import com.motiontracking.analytics.OccupancyHeatmap;
+import com.motiontracking.analytics.TrackAnalytics;
+import com.motiontracking.analytics.Zone;
+import com.motiontracking.detection.CascadeFrame;
+import com.motiontracking.detection.DetectionCascade;
+import com.motiontracking.detection.IntervalGate;
+import com.motiontracking.detection.MotionGate;
+import com.motiontracking.detection.ProgressiveScan;
+import com.motiontracking.detection.TileResultMerger;
+import com.motiontracking.detection.TrackGate;
+import com.motiontracking.tflite.Detections;
+import com.motiontracking.tflite.SsdAnchorDecoder;
+import com.motiontracking.tracking.DetectionTracker;
+import com.motiontracking.tracking.EgoMotionEstimator;
+import com.motiontracking.tracking.TrackSnapshot;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Runs the stages of the frame pipeline that do not need a device over thousands of synthetic
+ * frames and fails when one of them allocates more per frame than its budget once warmed up, so a
+ * stray allocation in the frame path is caught before it shows up as collector pauses.
+ *
+ * <p>The budgets are bytes per frame; they can be overridden with system properties named {@code
+ * allocation.budget.<stage>}.
+ */
+public class AllocationBudgetTest {
+  private static final int WIDTH = 640;
+  private static final int HEIGHT = 480;
+  private static final int INPUT_SIZE = 300;
+  private static final int WARM_UP_FRAMES = 500;
+  private static final int MEASURED_FRAMES = 3000;
+
+  private static final int ANALYZE = 0;
+  private static final int RESAMPLE = 1;
+  private static final int DECODE = 2;
+  private static final int TRACK = 3;
+  private static final String[] STAGES = {"analyze", "resample", "decode", "track"};
+  // Publishing tracks builds an immutable snapshot, so readers on other threads never block; that
+  // snapshot, a few hundred bytes, is all tracking may allocate.
+  private static final long[] BUDGETS = {16, 16, 16, 512};
+
+  /** Allocations of the calling thread as counted by the HotSpot thread management bean. */
+  private static final class ThreadAllocationCounter implements AllocationMeter.Counter {
+    private final com.sun.management.ThreadMXBean threads =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    boolean isSupported() {
+      return threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled();
+    }
+
+    @Override
+    public long getAllocatedBytes() {
+      return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+  }
+
+  @Test
+  public void meterAddsUpStagesPerFrame() {
+    final long[] allocated = {0};
+    final AllocationMeter meter =
+        new AllocationMeter(
+            new AllocationMeter.Counter() {
+              @Override
+              public long getAllocatedBytes() {
+                return allocated[0];
+              }
+            },
+            "a",
+            "b");
+    for (int frame = 0; frame < 4; ++frame) {
+      long start = meter.start();
+      allocated[0] += 100;
+      meter.stop(0, start);
+      if (frame % 2 == 0) {
+        start = meter.start();
+        allocated[0] += 40;
+        meter.stop(1, start);
+      }
+      meter.endFrame();
+    }
+    assertTrue(meter.isEnabled());
+    assertEquals(400, meter.getBytes(0));
+    assertEquals(2, meter.getCalls(1));
+    assertEquals(20, meter.getBytesPerFrame(1), 0);
+    assertEquals(120, meter.getTotalBytesPerFrame(), 0);
+    meter.reset();
+    assertEquals(0, meter.getFrames());
+    assertEquals(0, meter.getBytes(0));
+
+    final AllocationMeter disabled = new AllocationMeter(AllocationMeter.Counter.NONE, "a");
+    disabled.stop(0, disabled.start());
+    assertFalse(disabled.isEnabled());
+    assertEquals(0, disabled.getCalls(0));
+  }
+
+  @Test
+  public void headlessStagesStayWithinTheirBudgets() {
+    final ThreadAllocationCounter counter = new ThreadAllocationCounter();
+    assumeTrue(counter.isSupported());
+    final AllocationMeter meter = new AllocationMeter(counter, STAGES);
+    final Pipeline pipeline = new Pipeline();
+    try {
+      for (int f = 0; f < WARM_UP_FRAMES; ++f) {
+        pipeline.process(f, meter);
+      }
+      meter.reset();
+      for (int f = WARM_UP_FRAMES; f < WARM_UP_FRAMES + MEASURED_FRAMES; ++f) {
+        pipeline.process(f, meter);
+      }
+    } finally {
+      pipeline.close();
+    }
+    Benchmark.report("Allocations: " + meter);
+    assertEquals(MEASURED_FRAMES, meter.getFrames());
+    for (int stage = 0; stage < STAGES.length; ++stage) {
+      final long budget = Long.getLong("allocation.budget." + STAGES[stage], BUDGETS[stage]);
+      assertTrue(
+          STAGES[stage] + " allocates " + meter.getBytesPerFrame(stage) + " B/frame, budget "
+              + budget,
+          meter.getBytesPerFrame(stage) <= budget);
+    }
+  }
+
+  @Test
+  public void aMovingRegionKeepsItsResamplingPlans() {
+    final ThreadAllocationCounter counter = new ThreadAllocationCounter();
+    assumeTrue(counter.isSupported());
+    final AllocationMeter meter = new AllocationMeter(counter, STAGES);
+    final ImageResampler resampler = new ImageResampler(1);
+    final ImageResampler.Geometry geometry =
+        new ImageResampler.Geometry(
+            WIDTH, HEIGHT, INPUT_SIZE, INPUT_SIZE, 90, false, ImageResampler.Filter.BILINEAR);
+    final int[] rgb = new int[WIDTH * HEIGHT];
+    final int[] input = new int[INPUT_SIZE * INPUT_SIZE];
+    try {
+      for (int f = 0; f < WARM_UP_FRAMES + MEASURED_FRAMES; ++f) {
+        if (f == WARM_UP_FRAMES) {
+          meter.reset();
+        }
+        // The region jumps between three groups of tracks and sways with their boxes in between,
+        // a few pixels in sub-pixel steps.
+        final int group = f / 100 % 3;
+        final float left = 84 + 176 * group + 3 * (float) Math.sin(f * 0.3);
+        final float top = 60 + 120 * (group % 2) + 3 * (float) Math.cos(f * 0.23);
+        final float size = 180 + 3 * (float) Math.sin(f * 0.17);
+        final long start = meter.start();
+        geometry.setRegion(left, top, left + size, top + size, 8);
+        resampler.resample(rgb, geometry, input);
+        meter.stop(RESAMPLE, start);
+        meter.endFrame();
+        assertEquals(0, geometry.getRegionLeft() % 8);
+        assertTrue(geometry.getRegionLeft() <= left);
+        assertTrue(geometry.getRegionTop() + geometry.getRegionHeight() >= top + size);
+      }
+    } finally {
+      resampler.close();
+    }
+    final long budget = Long.getLong("allocation.budget.resample", BUDGETS[RESAMPLE]);
+    assertTrue(
+        "moving region allocates " + meter.getBytesPerFrame(RESAMPLE) + " B/frame, budget "
+            + budget,
+        meter.getBytesPerFrame(RESAMPLE) <= budget);
+  }
+
+  /**
+   * The camera thread's analyses, the model input crop, the decoding of raw SSD outputs and
+   * everything fed with the tracks, on a scene of squares moving over a textured background.
+   */
+  private static final class Pipeline {
+    private final Random random = new Random(3);
+    private final byte[] yPlane = new byte[WIDTH * HEIGHT];
+    private final byte[] background = new byte[WIDTH * HEIGHT];
+    private final int[] rgb = new int[WIDTH * HEIGHT];
+    private final int[] input = new int[INPUT_SIZE * INPUT_SIZE];
+
+    private final LumaPyramid pyramid = new LumaPyramid(2);
+    private final EgoMotionEstimator egoMotion = new EgoMotionEstimator(2, 64);
+    private final CascadeFrame cascadeFrame = new CascadeFrame();
+    private final DetectionCascade cascade =
+        new DetectionCascade(
+            new IntervalGate(30), new TrackGate(1), new MotionGate(4, 8, 12, 0.005f, 0.25f));
+    private final ProgressiveScan scan = new ProgressiveScan(3, 2, 0.15f, 1, 0.5f);
+    private final float[] tiles = new float[4];
+
+    private final ImageResampler resampler = new ImageResampler(1);
+    private final ImageResampler.Geometry geometry =
+        new ImageResampler.Geometry(
+            WIDTH, HEIGHT, INPUT_SIZE, INPUT_SIZE, 90, false, ImageResampler.Filter.BILINEAR);
+
+    private final float[] anchors = SsdAnchorDecoder.generateSsdMobileNetAnchors();
+    private final int columns = 7;
+    private final SsdAnchorDecoder decoder =
+        new SsdAnchorDecoder(anchors, columns, 1, true, 0.6f, 20, 20);
+    private final float[] boxEncodings = new float[anchors.length];
+    private final float[] scores = new float[anchors.length / 4 * columns];
+    private final float[] thresholds = new float[columns - 1];
+    private final Detections detections = new Detections(20);
+    private final Detections frameDetections = new Detections(20);
+
+    private final DetectionTracker tracker =
+        new DetectionTracker(Arrays.asList("person", "bicycle", "car", "truck", "bus", "train"));
+    private final TileResultMerger tileResults = new TileResultMerger(1_000_000_000L);
+    private final TrackAnalytics analytics =
+        new TrackAnalytics(
+            Collections.singletonList(new CountingLine("door", 0.5f, 0.1f, 0.5f, 0.9f)),
+            Collections.singletonList(new Zone("entrance", new float[] {0, 0, 0.5f, 0, 0.5f, 1})));
+    private final OccupancyHeatmap heatmap = new OccupancyHeatmap(64, 48, 600_000_000_000L);
+
+    Pipeline() {
+      for (int i = 0; i < background.length; ++i) {
+        background[i] = (byte) (60 + ((i % WIDTH / 16 + i / WIDTH / 16) % 2) * 40);
+      }
+      for (int i = 0; i < rgb.length; ++i) {
+        rgb[i] = 0xff000000 | random.nextInt(0x1000000);
+      }
+      Arrays.fill(thresholds, 0.5f);
+      Arrays.fill(scores, -6);
+      tracker.setFrameConfiguration(WIDTH, HEIGHT, 0);
+    }
+
+    void process(final int frame, final AllocationMeter meter) {
+      render(frame);
+
+      long start = meter.start();
+      pyramid.setFrame(yPlane, WIDTH, HEIGHT, WIDTH);
+      egoMotion.update(pyramid);
+      cascadeFrame.set(pyramid, frame, tracker.getSnapshot().size());
+      final boolean detect = cascade.shouldDetect(cascadeFrame);
+      final int tileCount = scan.plan(WIDTH, HEIGHT, tracker.getSnapshot(), tiles);
+      meter.stop(ANALYZE, start);
+
+      if (detect || frame % 3 == 0) {
+        start = meter.start();
+        resampler.resample(rgb, geometry, input);
+        meter.stop(RESAMPLE, start);
+
+        start = meter.start();
+        fillModelOutputs(frame);
+        decoder.decode(boxEncodings, scores, thresholds, detections);
+        meter.stop(DECODE, start);
+
+        start = meter.start();
+        tileResults.begin(tiles, tileCount, frame * 33_000_000L);
+        for (int i = 0; i < detections.size(); ++i) {
+          tileResults.add(
+              detections.getLeft(i) * WIDTH,
+              detections.getTop(i) * HEIGHT,
+              detections.getRight(i) * WIDTH,
+              detections.getBottom(i) * HEIGHT,
+              "person",
+              detections.getScore(i));
+        }
+        tileResults.end();
+        frameDetections.clear();
+        for (int i = 0; i < detections.size(); ++i) {
+          frameDetections.add(
+              detections.getTop(i) * HEIGHT,
+              detections.getLeft(i) * WIDTH,
+              detections.getBottom(i) * HEIGHT,
+              detections.getRight(i) * WIDTH,
+              detections.getClassIndex(i),
+              detections.getScore(i));
+        }
+        final TrackSnapshot snapshot = tracker.update(frameDetections);
+        analytics.update(snapshot, frame * 33_000_000L);
+        heatmap.update(snapshot, frame * 33_000_000L);
+        meter.stop(TRACK, start);
+      }
+      meter.endFrame();
+    }
+
+    void close() {
+      resampler.close();
+    }
+
+    /** Squares walking across the background, with a little sensor noise. */
+    private void render(final int frame) {
+      System.arraycopy(background, 0, yPlane, 0, yPlane.length);
+      for (int k = 0; k < 3; ++k) {
+        final int x = (frame * (3 + k) + 150 * k) % (WIDTH - 60);
+        final int y = 100 + 120 * k;
+        for (int row = y; row < y + 60; ++row) {
+          Arrays.fill(yPlane, row * WIDTH + x, row * WIDTH + x + 60, (byte) 230);
+        }
+      }
+      for (int i = 0; i < 64; ++i) {
+        yPlane[random.nextInt(yPlane.length)] += (byte) (random.nextInt(5) - 2);
+      }
+    }
+
+    /** Scores that put an object of class 1 on three anchors that follow the squares. */
+    private void fillModelOutputs(final int frame) {
+      final int anchorCount = anchors.length / 4;
+      for (int k = 0; k < 3; ++k) {
+        final int anchor = (frame * 7 + 500 * k) % anchorCount;
+        scores[anchor * columns + 1] = 3;
+        scores[((anchor + anchorCount - 7) % anchorCount) * columns + 1] = -6;
+      }
+    }
+  }
+}
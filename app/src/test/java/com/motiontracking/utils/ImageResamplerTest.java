@@ -0,0 +1,366 @@
+package com.motiontracking.utils;
+
+import com.motiontracking.Benchmark;
+import com.motiontracking.utils.ImageResampler.Filter;
+import com.motiontracking.utils.ImageResampler.Geometry;
+
+import org.junit.Test;
+
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ImageResamplerTest {
+  private static final int[] ROTATIONS = {0, 90, 180, 270, -90};
+
+  @Test
+  public void matchesReferenceForAllRotationsAndFilters() {
+    final int[] src = createImage(640, 480, 1);
+    final ImageResampler resampler = new ImageResampler(1);
+    for (final Filter filter : Filter.values()) {
+      for (final int rotation : ROTATIONS) {
+        for (final boolean maintainAspect : new boolean[] {false, true}) {
+          assertMatchesReference(
+              resampler,
+              src,
+              new Geometry(640, 480, 300, 300, rotation, maintainAspect, filter),
+              new Reference(640, 480, 0, 0, 640, 480, 300, 300, rotation, maintainAspect));
+        }
+      }
+    }
+    resampler.close();
+  }
+
+  @Test
+  public void matchesReferenceForRegionsAndUpscaling() {
+    final int[] src = createImage(640, 480, 2);
+    final ImageResampler resampler = new ImageResampler(1);
+    for (final Filter filter : Filter.values()) {
+      for (final int rotation : ROTATIONS) {
+        // A region of the frame, as cropped for the cascade's detection region.
+        assertMatchesReference(
+            resampler,
+            src,
+            new Geometry(640, 480, 100, 50, 320, 240, 300, 300, rotation, false, filter),
+            new Reference(640, 480, 100, 50, 320, 240, 300, 300, rotation, false));
+        // Part of the region lies outside the frame.
+        assertMatchesReference(
+            resampler,
+            src,
+            new Geometry(640, 480, 500, 400, 200, 120, 150, 90, rotation, true, filter),
+            new Reference(640, 480, 500, 400, 200, 120, 150, 90, rotation, true));
+        // Upscaling a small tile.
+        assertMatchesReference(
+            resampler,
+            src,
+            new Geometry(640, 480, 10, 20, 40, 30, 97, 70, rotation, false, filter),
+            new Reference(640, 480, 10, 20, 40, 30, 97, 70, rotation, false));
+      }
+    }
+    resampler.close();
+  }
+
+  @Test
+  public void identityCopiesPixels() {
+    final int[] src = createImage(64, 48, 3);
+    final int[] dst = new int[64 * 48];
+    final ImageResampler resampler = new ImageResampler(1);
+    for (final Filter filter : Filter.values()) {
+      resampler.resample(src, new Geometry(64, 48, 64, 48, 0, false, filter), dst);
+      assertArrayEquals(filter.name(), src, dst);
+    }
+    // Rotating four times by 90 degrees gets the original back.
+    int[] image = src;
+    int width = 64;
+    int height = 48;
+    for (int i = 0; i < 4; ++i) {
+      final int[] rotated = new int[width * height];
+      resampler.resample(
+          image, new Geometry(width, height, height, width, 90, false, Filter.NEAREST), rotated);
+      image = rotated;
+      final int swap = width;
+      width = height;
+      height = swap;
+    }
+    assertArrayEquals(src, image);
+    resampler.close();
+  }
+
+  @Test
+  public void parallelRowsMatchSerialResult() {
+    final int[] src = createImage(640, 480, 4);
+    final ImageResampler serial = new ImageResampler(1);
+    final ImageResampler parallel = new ImageResampler(4);
+    for (final Filter filter : Filter.values()) {
+      final Geometry geometry = new Geometry(640, 480, 300, 300, 90, false, filter);
+      final int[] expected = new int[300 * 300];
+      final int[] actual = new int[300 * 300];
+      serial.resample(src, geometry, expected);
+      parallel.resample(src, geometry, actual);
+      assertArrayEquals(filter.name(), expected, actual);
+    }
+    serial.close();
+    parallel.close();
+  }
+
+  @Test
+  public void benchmarkAgainstReference() {
+    final int[] src = createImage(640, 480, 5);
+    final int[] dst = new int[300 * 300];
+    final Reference reference = new Reference(640, 480, 0, 0, 640, 480, 300, 300, 90, false);
+    final ImageResampler serial = new ImageResampler(1);
+    final ImageResampler parallel = new ImageResampler(4);
+    final int iterations = 30;
+    for (final Filter filter : Filter.values()) {
+      final Geometry geometry = new Geometry(640, 480, 300, 300, 90, false, filter);
+      final double referenceMs =
+          Benchmark.time(
+              iterations,
+              new Runnable() {
+                @Override
+                public void run() {
+                  reference.resample(src, filter, dst);
+                }
+              });
+      final double serialMs =
+          Benchmark.time(
+              iterations,
+              new Runnable() {
+                @Override
+                public void run() {
+                  serial.resample(src, geometry, dst);
+                }
+              });
+      final double parallelMs =
+          Benchmark.time(
+              iterations,
+              new Runnable() {
+                @Override
+                public void run() {
+                  parallel.resample(src, geometry, dst);
+                }
+              });
+      Benchmark.report(
+          String.format(
+              Locale.ENGLISH,
+              "640x480 -> 300x300 rotated, %s: reference %.2f ms, fixed point %.2f ms, "
+                  + "4 threads %.2f ms",
+              filter,
+              referenceMs,
+              serialMs,
+              parallelMs));
+      assertTrue(filter + " slower than the reference", serialMs < referenceMs);
+    }
+    serial.close();
+    parallel.close();
+  }
+
+  private static void assertMatchesReference(
+      final ImageResampler resampler,
+      final int[] src,
+      final Geometry geometry,
+      final Reference reference) {
+    final Filter filter = geometry.getFilter();
+    final int[] expected = new int[geometry.getDstWidth() * geometry.getDstHeight()];
+    final int[] actual = new int[expected.length];
+    reference.resample(src, filter, expected);
+    resampler.resample(src, geometry, actual);
+
+    // Coordinates exactly on pixel edges may round either way in single or double precision.
+    final int tolerance = filter == Filter.NEAREST ? 0 : 2;
+    int mismatches = 0;
+    for (int i = 0; i < expected.length; ++i) {
+      if (maxChannelDifference(expected[i], actual[i]) > tolerance) {
+        ++mismatches;
+      }
+    }
+    assertTrue(
+        geometry + ": " + mismatches + " of " + expected.length + " pixels differ",
+        mismatches <= expected.length / 1000);
+  }
+
+  private static int maxChannelDifference(final int a, final int b) {
+    int max = 0;
+    for (int shift = 0; shift < 32; shift += 8) {
+      max = Math.max(max, Math.abs(((a >>> shift) & 0xff) - ((b >>> shift) & 0xff)));
+    }
+    return max;
+  }
+
+  /** A smooth gradient with noise, so that every filter has something to average. */
+  private static int[] createImage(final int width, final int height, final long seed) {
+    final Random random = new Random(seed);
+    final int[] pixels = new int[width * height];
+    for (int y = 0; y < height; ++y) {
+      for (int x = 0; x < width; ++x) {
+        final int r = (x * 255 / width + random.nextInt(32)) & 0xff;
+        final int g = (y * 255 / height + random.nextInt(32)) & 0xff;
+        final int b = random.nextInt(256);
+        pixels[y * width + x] = 0xff000000 | (r << 16) | (g << 8) | b;
+      }
+    }
+    return pixels;
+  }
+
+  /**
+   * Straightforward floating point resampler: builds the affine transformation the way {@link
+   * ImageUtils#getTransformationMatrix} composes it on an android.graphics.Matrix, inverts it and
+   * maps every destination pixel back into the source.
+   */
+  private static final class Reference {
+    private final int srcWidth;
+    private final int srcHeight;
+    private final int dstWidth;
+    private final int dstHeight;
+    // Inverse transformation, destination to source: x' = a x + b y + c, y' = d x + e y + f.
+    private final double a;
+    private final double b;
+    private final double c;
+    private final double d;
+    private final double e;
+    private final double f;
+
+    Reference(
+        final int srcWidth,
+        final int srcHeight,
+        final int regionLeft,
+        final int regionTop,
+        final int regionWidth,
+        final int regionHeight,
+        final int dstWidth,
+        final int dstHeight,
+        final int rotation,
+        final boolean maintainAspect) {
+      this.srcWidth = srcWidth;
+      this.srcHeight = srcHeight;
+      this.dstWidth = dstWidth;
+      this.dstHeight = dstHeight;
+
+      double[] m = translate(-regionLeft, -regionTop);
+      if (rotation != 0) {
+        m = multiply(translate(-regionWidth / 2.0, -regionHeight / 2.0), m);
+        final double radians = Math.toRadians(rotation);
+        final double cos = Math.round(Math.cos(radians));
+        final double sin = Math.round(Math.sin(radians));
+        m = multiply(new double[] {cos, -sin, 0, sin, cos, 0}, m);
+      }
+      final boolean transpose = (Math.abs(rotation) + 90) % 180 == 0;
+      final int inWidth = transpose ? regionHeight : regionWidth;
+      final int inHeight = transpose ? regionWidth : regionHeight;
+      if (inWidth != dstWidth || inHeight != dstHeight) {
+        double scaleX = dstWidth / (double) inWidth;
+        double scaleY = dstHeight / (double) inHeight;
+        if (maintainAspect) {
+          scaleX = scaleY = Math.max(scaleX, scaleY);
+        }
+        m = multiply(new double[] {scaleX, 0, 0, 0, scaleY, 0}, m);
+      }
+      if (rotation != 0) {
+        m = multiply(translate(dstWidth / 2.0, dstHeight / 2.0), m);
+      }
+
+      final double det = m[0] * m[4] - m[1] * m[3];
+      a = m[4] / det;
+      b = -m[1] / det;
+      d = -m[3] / det;
+      e = m[0] / det;
+      c = -(a * m[2] + b * m[5]);
+      f = -(d * m[2] + e * m[5]);
+    }
+
+    private static double[] translate(final double x, final double y) {
+      return new double[] {1, 0, x, 0, 1, y};
+    }
+
+    /** Returns p * q for 2x3 affine matrices. */
+    private static double[] multiply(final double[] p, final double[] q) {
+      return new double[] {
+        p[0] * q[0] + p[1] * q[3],
+        p[0] * q[1] + p[1] * q[4],
+        p[0] * q[2] + p[1] * q[5] + p[2],
+        p[3] * q[0] + p[4] * q[3],
+        p[3] * q[1] + p[4] * q[4],
+        p[3] * q[2] + p[4] * q[5] + p[5],
+      };
+    }
+
+    void resample(final int[] src, final Filter filter, final int[] dst) {
+      for (int y = 0; y < dstHeight; ++y) {
+        for (int x = 0; x < dstWidth; ++x) {
+          final double sx = a * (x + 0.5) + b * (y + 0.5) + c;
+          final double sy = d * (x + 0.5) + e * (y + 0.5) + f;
+          if (sx < 0 || sy < 0 || sx >= srcWidth || sy >= srcHeight) {
+            dst[y * dstWidth + x] = ImageResampler.OUTSIDE_COLOR;
+            continue;
+          }
+          final int pixel;
+          switch (filter) {
+            case NEAREST:
+              pixel = src[(int) Math.floor(sy) * srcWidth + (int) Math.floor(sx)];
+              break;
+            case BILINEAR:
+              pixel = bilinear(src, sx - 0.5, sy - 0.5);
+              break;
+            default:
+              pixel = area(src, x, y);
+              break;
+          }
+          dst[y * dstWidth + x] = pixel;
+        }
+      }
+    }
+
+    private int bilinear(final int[] src, final double x, final double y) {
+      final int x0 = (int) Math.floor(x);
+      final int y0 = (int) Math.floor(y);
+      final double fx = x - x0;
+      final double fy = y - y0;
+      int pixel = 0;
+      for (int shift = 0; shift < 32; shift += 8) {
+        final double top =
+            channel(src, x0, y0, shift) * (1 - fx) + channel(src, x0 + 1, y0, shift) * fx;
+        final double bottom =
+            channel(src, x0, y0 + 1, shift) * (1 - fx) + channel(src, x0 + 1, y0 + 1, shift) * fx;
+        pixel |= (int) Math.round(top * (1 - fy) + bottom * fy) << shift;
+      }
+      return pixel;
+    }
+
+    private int area(final int[] src, final int x, final int y) {
+      // With rotations by multiples of 90 degrees a destination pixel covers an upright rectangle.
+      final double x0 = a * x + b * y + c;
+      final double y0 = d * x + e * y + f;
+      final double x1 = a * (x + 1) + b * (y + 1) + c;
+      final double y1 = d * (x + 1) + e * (y + 1) + f;
+      final double left = Math.max(0, Math.min(x0, x1));
+      final double right = Math.min(srcWidth, Math.max(x0, x1));
+      final double top = Math.max(0, Math.min(y0, y1));
+      final double bottom = Math.min(srcHeight, Math.max(y0, y1));
+      final double[] sums = new double[4];
+      double total = 0;
+      for (int sy = (int) Math.floor(top); sy < Math.ceil(bottom); ++sy) {
+        final double h = Math.min(bottom, sy + 1) - Math.max(top, sy);
+        for (int sx = (int) Math.floor(left); sx < Math.ceil(right); ++sx) {
+          final double w = (Math.min(right, sx + 1) - Math.max(left, sx)) * h;
+          for (int channel = 0; channel < 4; ++channel) {
+            sums[channel] += w * ((src[sy * srcWidth + sx] >>> (8 * channel)) & 0xff);
+          }
+          total += w;
+        }
+      }
+      int pixel = 0;
+      for (int channel = 0; channel < 4; ++channel) {
+        pixel |= (int) Math.round(sums[channel] / total) << (8 * channel);
+      }
+      return pixel;
+    }
+
+    private int channel(final int[] src, final int x, final int y, final int shift) {
+      final int cx = Math.max(0, Math.min(srcWidth - 1, x));
+      final int cy = Math.max(0, Math.min(srcHeight - 1, y));
+      return (src[cy * srcWidth + cx] >>> shift) & 0xff;
+    }
+  }
+}
@@ -0,0 +1,133 @@
+package com.motiontracking.utils;
+
+import com.motiontracking.detection.CascadeFrame;
+import com.motiontracking.detection.MotionGate;
+import com.motiontracking.tracking.EgoMotionEstimator;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class LumaPyramidTest {
+  private static final int WIDTH = 640;
+  private static final int HEIGHT = 480;
+  // Rows of camera planes are often padded.
+  private static final int ROW_STRIDE = 672;
+
+  private final Random random = new Random(3);
+
+  @Test
+  public void levelsAverageBlocksOfTheFrame() {
+    final byte[] luma = frame();
+    final LumaPyramid pyramid = new LumaPyramid(3);
+    pyramid.setFrame(luma, WIDTH, HEIGHT, ROW_STRIDE);
+    assertSame(luma, pyramid.getLevel(0).getPixels());
+    for (int level = 1; level <= 3; ++level) {
+      final LumaPyramid.Level scaled = pyramid.getLevel(level);
+      final int factor = 1 << level;
+      assertEquals(WIDTH / factor, scaled.getWidth());
+      assertEquals(HEIGHT / factor, scaled.getHeight());
+      for (int y = 0; y < scaled.getHeight(); y += 7) {
+        for (int x = 0; x < scaled.getWidth(); x += 5) {
+          int sum = 0;
+          for (int dy = 0; dy < factor; ++dy) {
+            for (int dx = 0; dx < factor; ++dx) {
+              sum += luma[(y * factor + dy) * ROW_STRIDE + x * factor + dx] & 0xFF;
+            }
+          }
+          // Each halving rounds, so the mean of the block is off by less than one per level.
+          final float mean = sum / (float) (factor * factor);
+          final int value = scaled.getPixels()[y * scaled.getStride() + x] & 0xFF;
+          assertEquals(mean, value, level);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void levelsAreComputedOnceAndOnlyWhenAsked() {
+    final LumaPyramid pyramid = new LumaPyramid(4);
+    pyramid.setFrame(frame(), WIDTH, HEIGHT, ROW_STRIDE);
+    assertEquals(0, pyramid.getLevelsComputed());
+    final LumaPyramid.Level level2 = pyramid.getLevel(2);
+    assertEquals(2, pyramid.getLevelsComputed());
+    assertSame(level2, pyramid.getLevel(2));
+    pyramid.getLevel(1);
+    assertEquals(2, pyramid.getLevelsComputed());
+
+    // The motion gate, at a sample step of 4, and the ego-motion estimate, at 2, share the levels.
+    final MotionGate gate = new MotionGate(4, 8, 12, 0.005f, 0.25f);
+    final EgoMotionEstimator egoMotion = new EgoMotionEstimator(2, 64);
+    final CascadeFrame cascadeFrame = new CascadeFrame();
+    final float[] region = new float[4];
+    final long before = pyramid.getLevelsComputed();
+    for (int f = 0; f < 10; ++f) {
+      pyramid.setFrame(frame(), WIDTH, HEIGHT, ROW_STRIDE);
+      egoMotion.update(pyramid);
+      cascadeFrame.set(pyramid, f, 0);
+      gate.evaluate(cascadeFrame, region);
+      gate.endFrame(cascadeFrame, false);
+    }
+    assertEquals(20, pyramid.getLevelsComputed() - before);
+  }
+
+  @Test
+  public void buffersAreReusedAcrossFrames() {
+    final LumaPyramid pyramid = new LumaPyramid(3);
+    final byte[] luma = frame();
+    LumaPyramid.Level previous = null;
+    for (int f = 0; f < 50; ++f) {
+      pyramid.setFrame(luma, WIDTH, HEIGHT, ROW_STRIDE);
+      pyramid.getLevel(3);
+      // A consumer comparing each frame with the one before keeps its level.
+      if (previous != null) {
+        previous.release();
+      }
+      previous = pyramid.getLevel(2).retain();
+    }
+    // Three levels of the frame and the retained level of the previous one.
+    assertEquals(4, pyramid.getBuffersAllocated());
+  }
+
+  @Test
+  public void retainedLevelsOutliveTheirFrame() {
+    final LumaPyramid pyramid = new LumaPyramid(2);
+    final byte[] first = frame();
+    pyramid.setFrame(first, WIDTH, HEIGHT, ROW_STRIDE);
+    final LumaPyramid.Level kept = pyramid.getLevel(1).retain();
+    final byte[] copy = kept.getPixels().clone();
+    for (int f = 0; f < 5; ++f) {
+      pyramid.setFrame(frame(), WIDTH, HEIGHT, ROW_STRIDE);
+      pyramid.getLevel(2);
+    }
+    for (int i = 0; i < kept.getWidth() * kept.getHeight(); ++i) {
+      assertEquals(copy[i], kept.getPixels()[i]);
+    }
+    kept.release();
+    try {
+      kept.release();
+      fail();
+    } catch (final IllegalStateException expected) {
+    }
+    try {
+      pyramid.getLevel(0).retain();
+      fail();
+    } catch (final IllegalStateException expected) {
+    }
+    try {
+      pyramid.getLevel(3);
+      fail();
+    } catch (final IllegalArgumentException expected) {
+    }
+  }
+
+  private byte[] frame() {
+    final byte[] luma = new byte[ROW_STRIDE * HEIGHT];
+    random.nextBytes(luma);
+    return luma;
+  }
+}